@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.ctrl;
@@ -29,7 +29,7 @@ import edu.chalmers.dat255.audiobookplayer.model.Track;
  * <p>
  * Ignores testing methods which only relay the calls directly to the model.
  * 
- * @author Aki Kkel
+ * @author Aki Käkelä
  * @version 0.2
  * 
  */
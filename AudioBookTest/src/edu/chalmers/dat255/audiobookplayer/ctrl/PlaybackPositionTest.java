@@ -0,0 +1,134 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.ctrl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.Track;
+
+/**
+ * Tests that a playback position gives back the track index and elapsed time
+ * it was given.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ */
+public class PlaybackPositionTest extends TestCase {
+	// The test object.
+	private PlaybackPosition position;
+
+	private static final int TRACK_INDEX = 3;
+	private static final int ELAPSED_TIME = 123456;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() {
+		try {
+			super.setUp();
+		} catch (Exception e) {
+			// catch exceptions from super.setUp() and fail
+			fail("setUp failed + " + e.getMessage());
+		}
+		position = new PlaybackPosition();
+	}
+
+	/**
+	 * Tests that a new position has no track.
+	 */
+	public final void testInitialPosition() {
+		long pos = position.get();
+		assertEquals(Constants.Value.NO_TRACK_SELECTED,
+				PlaybackPosition.getTrackIndex(pos));
+		assertEquals(0, PlaybackPosition.getElapsedTime(pos));
+	}
+
+	/**
+	 * Tests that the values that are set are read back.
+	 */
+	public final void testSet() {
+		position.set(TRACK_INDEX, ELAPSED_TIME);
+		long pos = position.get();
+		assertEquals(TRACK_INDEX, PlaybackPosition.getTrackIndex(pos));
+		assertEquals(ELAPSED_TIME, PlaybackPosition.getElapsedTime(pos));
+
+		// the largest values and no track
+		position.set(Constants.Value.NO_TRACK_SELECTED, Integer.MAX_VALUE);
+		pos = position.get();
+		assertEquals(Constants.Value.NO_TRACK_SELECTED,
+				PlaybackPosition.getTrackIndex(pos));
+		assertEquals(Integer.MAX_VALUE, PlaybackPosition.getElapsedTime(pos));
+
+		position.set(Integer.MAX_VALUE, 0);
+		pos = position.get();
+		assertEquals(Integer.MAX_VALUE, PlaybackPosition.getTrackIndex(pos));
+		assertEquals(0, PlaybackPosition.getElapsedTime(pos));
+	}
+
+	/**
+	 * Tests that equal positions give equal values and that different
+	 * positions do not.
+	 */
+	public final void testEquality() {
+		position.set(TRACK_INDEX, ELAPSED_TIME);
+		long first = position.get();
+		position.set(TRACK_INDEX, ELAPSED_TIME);
+		assertEquals(first, position.get());
+
+		position.set(TRACK_INDEX + 1, ELAPSED_TIME);
+		assertFalse(first == position.get());
+		position.set(TRACK_INDEX, ELAPSED_TIME + 1);
+		assertFalse(first == position.get());
+	}
+
+	/**
+	 * Tests that no position is in the selected track of an empty bookshelf,
+	 * which has no selected track to compare with.
+	 */
+	public final void testEmptyBookshelf() {
+		Bookshelf bs = new Bookshelf();
+		assertFalse(PlaybackPosition.isInSelectedTrack(position.get(), bs));
+		assertFalse(PlaybackPosition.isInSelectedTrack(position.get(),
+				bs.getSnapshot()));
+		position.set(0, ELAPSED_TIME);
+		assertFalse(PlaybackPosition.isInSelectedTrack(position.get(), bs));
+	}
+
+	/**
+	 * Tests that only a position in the selected track is in it.
+	 */
+	public final void testSelectedTrack() {
+		List<Track> tracks = new ArrayList<Track>();
+		tracks.add(new Track("/a.mp3", ELAPSED_TIME));
+		tracks.add(new Track("/b.mp3", ELAPSED_TIME));
+		Bookshelf bs = new Bookshelf();
+		bs.addBook(new Book(tracks, "Book", "Author"));
+
+		int selected = bs.getSelectedTrackIndex();
+		position.set(selected, ELAPSED_TIME);
+		assertTrue(PlaybackPosition.isInSelectedTrack(position.get(), bs));
+		position.set(selected + 1, ELAPSED_TIME);
+		assertFalse(PlaybackPosition.isInSelectedTrack(position.get(), bs));
+	}
+
+}
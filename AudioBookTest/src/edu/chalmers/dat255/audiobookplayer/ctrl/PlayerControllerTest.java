@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.ctrl;
@@ -41,7 +41,7 @@ import edu.chalmers.dat255.audiobookplayer.model.Track;
  * These methods are currently not implemented in a way that makes test runs
  * consistent, and the assertions have therefore been removed.
  * 
- * @author Aki Kkel
+ * @author Aki Käkelä
  * @version 0.3
  * 
  */
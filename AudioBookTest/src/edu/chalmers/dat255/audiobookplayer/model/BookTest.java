@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.model;
@@ -20,11 +20,11 @@ import junit.framework.TestCase;
 
 /**
  * Tests the Book class, by testing cloning a book,
- * removing/adding/swapping/moving tracks, selecting tracks and setting the
- * title of the book.
+ * removing/adding/swapping/moving tracks, selecting tracks, finding tracks by
+ * their time in the book and setting the title of the book.
  * 
- * @author Marcus Parkkinen, Aki Kkel
- * @version 0.2
+ * @author Marcus Parkkinen, Aki Käkelä
+ * @version 0.3
  */
 public class BookTest extends TestCase {
 	private List<Track> bList;
@@ -250,4 +250,162 @@ public class BookTest extends TestCase {
 		assertEquals(anotherTitle, b.getSelectedBookTitle());
 	}
 
+	/**
+	 * Tests that the start times of the tracks follow the tracks when they are
+	 * added, removed, swapped and moved.
+	 */
+	public void testTrackStartTimes() {
+		// t0, t1, t2, t3
+		assertEquals(0, b.getTrackStartTimeAt(0));
+		assertEquals(DURATION0, b.getTrackStartTimeAt(1));
+		assertEquals(DURATION0 + DURATION1, b.getTrackStartTimeAt(2));
+		assertEquals(DURATION0 + DURATION1 + DURATION2,
+				b.getTrackStartTimeAt(3));
+
+		// t1, t0, t2, t3
+		b.swapTracks(0, 1);
+		assertEquals(DURATION1, b.getTrackStartTimeAt(1));
+		assertEquals(DURATION0 + DURATION1, b.getTrackStartTimeAt(2));
+
+		// t1, t2, t3, t0
+		b.moveTrack(1, 3);
+		assertEquals(DURATION1 + DURATION2, b.getTrackStartTimeAt(2));
+		assertEquals(DURATION1 + DURATION2 + DURATION3,
+				b.getTrackStartTimeAt(3));
+
+		// t1, t3, t0
+		b.removeTrack(1);
+		assertEquals(DURATION1, b.getTrackStartTimeAt(1));
+		assertEquals(DURATION1 + DURATION3, b.getTrackStartTimeAt(2));
+
+		// t1, t3, t0, t2
+		b.addTrack(t2);
+		assertEquals(DURATION1 + DURATION3 + DURATION0,
+				b.getTrackStartTimeAt(3));
+		assertEquals(TOTAL_DURATION, b.getDuration());
+
+		// the elapsed time of the book follows the selected track
+		b.setSelectedTrackIndex(2);
+		b.setSelectedTrackElapsedTime(1);
+		assertEquals(DURATION1 + DURATION3 + 1, b.getBookElapsedTime());
+	}
+
+	/**
+	 * Tests finding the track that plays at a given time in the book.
+	 */
+	public void testGetTrackIndexAtTime() {
+		// the start of the book is in the first track
+		assertEquals(0, b.getTrackIndexAtTime(0));
+
+		// the end of a track belongs to that track
+		assertEquals(0, b.getTrackIndexAtTime(DURATION0));
+		assertEquals(1, b.getTrackIndexAtTime(DURATION0 + 1));
+		assertEquals(2, b.getTrackIndexAtTime(DURATION0 + DURATION1 + 1));
+
+		// the end of the book, and beyond, is in the last track
+		assertEquals(3, b.getTrackIndexAtTime(TOTAL_DURATION));
+		assertEquals(3, b.getTrackIndexAtTime(TOTAL_DURATION + 1));
+
+		// an empty book has no tracks to find
+		assertEquals(-1, new Book(bookName).getTrackIndexAtTime(0));
+	}
+
+	/**
+	 * Tests that the version and the cached hash follow changes to the book.
+	 */
+	public void testVersion() {
+		int version = b.getVersion();
+		int hash = b.hashCode();
+
+		// a copy starts at the same version and is equal
+		Book copy = new Book(b);
+		assertEquals(version, copy.getVersion());
+		assertEquals(hash, copy.hashCode());
+		assertTrue(copy.equals(b));
+
+		// changing the copy gives it a new version and changes its hash
+		copy.setSelectedTrackElapsedTime(1);
+		assertFalse(version == copy.getVersion());
+		assertFalse(hash == copy.hashCode());
+		assertFalse(copy.equals(b));
+
+		// the original is left as it was
+		assertEquals(version, b.getVersion());
+		assertEquals(hash, b.hashCode());
+
+		// equal contents are equal even when stored apart
+		b.setSelectedTrackElapsedTime(1);
+		assertFalse(copy.getVersion() == b.getVersion());
+		assertTrue(copy.equals(b));
+		assertEquals(copy.hashCode(), b.hashCode());
+	}
+
+	/**
+	 * Tests that hashing a stored book does not load its tracks, and that it
+	 * hashes as the loaded book does.
+	 */
+	public void testHashWithoutLoading() {
+		Book stored = new Book(newSegment(b), bookName, bookAuthor, 0);
+		Book loaded = new Book(newSegment(b), bookName, bookAuthor, 0);
+		loaded.getTrackPathAt(0);
+
+		assertEquals(loaded.hashCode(), stored.hashCode());
+		assertFalse(stored.isLoaded());
+		assertTrue(stored.equals(loaded));
+	}
+
+	/**
+	 * Tests that a book keeps the segment its tracks are stored in until its
+	 * tracks change.
+	 */
+	public void testTrackSegment() {
+		TrackSegment segment = newSegment(b);
+		Book stored = new Book(segment, bookName, bookAuthor, 0);
+		assertSame(segment, stored.getTrackSegment());
+
+		// loading and copying keep the segment, as does changing the title
+		assertEquals(b.getTrackPathAt(1), stored.getTrackPathAt(1));
+		Book copy = new Book(stored);
+		stored.setSelectedBookTitle("Renamed");
+		assertSame(segment, stored.getTrackSegment());
+		assertSame(segment, copy.getTrackSegment());
+
+		// changing the tracks does not
+		stored.setSelectedTrackElapsedTime(1);
+		assertNull(stored.getTrackSegment());
+		assertSame(segment, copy.getTrackSegment());
+
+		// until they are stored again
+		TrackSegment saved = newSegment(stored);
+		stored.setTrackSegment(saved);
+		assertSame(saved, stored.getTrackSegment());
+
+		// a segment of other tracks is refused
+		stored.removeTrack(0);
+		try {
+			stored.setTrackSegment(saved);
+			fail("a segment of another number of tracks was accepted");
+		} catch (IllegalArgumentException e) {
+			assertNull(stored.getTrackSegment());
+		}
+	}
+
+	/**
+	 * @return A segment that loads the tracks the given book has now.
+	 */
+	private static TrackSegment newSegment(Book book) {
+		final List<Track> stored = new ArrayList<Track>();
+		for (int i = 0; i < book.getNumberOfTracks(); i++) {
+			stored.add(new Track(book.getTrackPathAt(i), book
+					.getTrackDurationAt(i)));
+		}
+		return new TrackSegment(0, 0, book.getNumberOfTracks(),
+				book.getDuration(), book.getBookElapsedTime(),
+				new TrackSegment.Loader() {
+					public List<Track> load() {
+						return stored;
+					}
+				});
+	}
+
 }
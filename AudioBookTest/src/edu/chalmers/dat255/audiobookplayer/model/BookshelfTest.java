@@ -8,21 +8,29 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.model;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 import junit.framework.TestCase;
 import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+import edu.chalmers.dat255.audiobookplayer.constants.EventType;
 
 /**
  * Test for Bookshelf. Tests constructing and copying a bookshelf,
- * selecting/adding/moving/removing book(s), getting number of books and the
- * equals method for a bookshelf.
+ * selecting/adding/moving/removing book(s), getting number of books, the
+ * change events and snapshots of a bookshelf and the equals method for a
+ * bookshelf.
  * 
- * @author Aki Kkel
- * @version 0.3
+ * @author Aki Käkelä
+ * @version 0.5
  * 
  */
 public class BookshelfTest extends TestCase {
@@ -354,4 +362,244 @@ public class BookshelfTest extends TestCase {
 		assertTrue(bookshelf.equals(testBookshelf2));
 	}
 
+	/**
+	 * Tests that the change events only describe what changed.
+	 */
+	public void testChangeEvents() {
+		EventRecorder recorder = new EventRecorder();
+		bookshelf.addPropertyChangeListener(recorder);
+
+		// the new listener is told to synchronize
+		assertEquals(Constants.Event.BOOKSHELF_UPDATED,
+				recorder.last.getPropertyName());
+
+		// moving a book tells where it was moved from and to
+		bookshelf.moveBook(LEGAL_POSITIVE_INDEX, OTHER_LEGAL_POSITIVE_INDEX);
+		BookshelfEvent e = recorder.last;
+		assertEquals(Constants.Event.BOOK_LIST_CHANGED, e.getPropertyName());
+		assertEquals(OTHER_LEGAL_POSITIVE_INDEX, e.getBookIndex());
+		assertEquals(LEGAL_POSITIVE_INDEX, e.getOldValue());
+		assertEquals(OTHER_LEGAL_POSITIVE_INDEX, e.getNewValue());
+
+		// the event refers to the bookshelf itself, not a copy
+		assertSame(bookshelf, e.getBookshelf());
+
+		// add a book of our own to change (the others are shared)
+		Book b = new Book(TITLE0);
+		b.addTrack(new Track(PATH0, DURATION0));
+		bookshelf.addBook(b);
+		int index = STARTING_NUMBER_OF_BOOKS;
+
+		// selecting a book tells the old and new index
+		bookshelf.setSelectedBookIndex(index);
+		bookshelf.setSelectedBookIndex(index);
+		e = recorder.last;
+		assertEquals(Constants.Event.BOOK_SELECTED, e.getPropertyName());
+		assertEquals(index, e.getBookIndex());
+
+		// re-selecting the same book still fires an event
+		assertEquals(index, e.getOldValue());
+		assertEquals(index, e.getNewValue());
+
+		// the elapsed time event carries the old and new time
+		bookshelf.setSelectedTrackIndex(FIRST);
+		bookshelf.setSelectedTrackElapsedTime(DURATION0 / 2);
+		e = recorder.last;
+		assertEquals(Constants.Event.ELAPSED_TIME_CHANGED, e.getPropertyName());
+		assertEquals(FIRST, e.getTrackIndex());
+		assertEquals(0, e.getOldValue());
+		assertEquals(DURATION0 / 2, e.getNewValue());
+
+		// renaming a book carries the old and new title
+		bookshelf.setBookTitleAt(index, TITLE4);
+		e = recorder.last;
+		assertEquals(Constants.Event.BOOK_TITLE_CHANGED, e.getPropertyName());
+		assertEquals(TITLE0, e.getOldValue());
+		assertEquals(TITLE4, e.getNewValue());
+	}
+
+	/**
+	 * Tests that tags are kept in order, can be found from a time, and that
+	 * adding them fires one event per change.
+	 */
+	public void testTags() {
+		// add a book of our own to change (the others are shared)
+		Book b = new Book(TITLE0);
+		b.addTrack(new Track(PATH0, DURATION0));
+		bookshelf.addBook(b);
+		bookshelf.setSelectedBookIndex(STARTING_NUMBER_OF_BOOKS);
+
+		EventRecorder recorder = new EventRecorder();
+		bookshelf.addPropertyChangeListener(EventType.TAG_ADDED, recorder);
+
+		bookshelf.addTag(300);
+		bookshelf.addTag(100);
+		assertEquals(100, recorder.last.getNewValue());
+
+		// a time that is already tagged fires nothing
+		recorder.last = null;
+		bookshelf.addTag(100);
+		assertNull(recorder.last);
+
+		// an import fires once
+		int[] times = { 200, 400, 300 };
+		bookshelf.addTags(times);
+		assertTrue(Arrays.equals(times, (int[]) recorder.last.getNewValue()));
+
+		assertTrue(Arrays.equals(new int[] { 100, 200, 300, 400 },
+				bookshelf.getTagTimesBetween(0, DURATION0)));
+		assertEquals(300, bookshelf.getNextTagTime(200));
+		assertEquals(100, bookshelf.getPreviousTagTime(200));
+		assertEquals(Constants.Value.NO_TAG, bookshelf.getNextTagTime(400));
+	}
+
+	/**
+	 * Tests that a listener of one kind of events is only told about that
+	 * kind.
+	 */
+	public void testTypedListeners() {
+		EventRecorder recorder = new EventRecorder();
+		bookshelf.addPropertyChangeListener(EventType.BOOK_TITLE_CHANGED,
+				recorder);
+
+		// no synchronization and no other kinds of events
+		assertNull(recorder.last);
+		bookshelf.moveBook(LEGAL_POSITIVE_INDEX, OTHER_LEGAL_POSITIVE_INDEX);
+		assertNull(recorder.last);
+
+		// rename a book of our own (the others are shared)
+		bookshelf.addBook(new Book(TITLE0));
+		int index = STARTING_NUMBER_OF_BOOKS;
+		assertNull(recorder.last);
+
+		bookshelf.setBookTitleAt(index, TITLE4);
+		BookshelfEvent e = recorder.last;
+		assertEquals(EventType.BOOK_TITLE_CHANGED, e.getType());
+		assertEquals(Constants.Event.BOOK_TITLE_CHANGED, e.getPropertyName());
+
+		// removed listeners are not told anything
+		bookshelf.removeListeners();
+		recorder.last = null;
+		bookshelf.setBookTitleAt(index, TITLE0);
+		assertNull(recorder.last);
+	}
+
+	/**
+	 * Tests that a snapshot is an equal but separate bookshelf.
+	 */
+	public void testGetSnapshot() {
+		Bookshelf snapshot = bookshelf.getSnapshot();
+
+		// Assert that it is equal but not the same instance
+		assertNotSame(bookshelf, snapshot);
+		assertTrue(snapshot.equals(bookshelf));
+
+		// Assert that later changes do not affect the snapshot
+		bookshelf.removeBookAt(FIRST);
+		assertEquals(STARTING_NUMBER_OF_BOOKS, snapshot.getNumberOfBooks());
+		assertFalse(snapshot.equals(bookshelf));
+	}
+
+	/**
+	 * Tests that a snapshot shares the books that have not been changed.
+	 */
+	public void testSnapshotSharing() {
+		// add a book of our own to change (the others are shared)
+		Book b = new Book(TITLE0);
+		b.addTrack(new Track(PATH0, DURATION0));
+		b.addTrack(new Track(PATH1, DURATION1));
+		bookshelf.addBook(b);
+		int index = STARTING_NUMBER_OF_BOOKS;
+		bookshelf.setSelectedBookIndex(index);
+
+		Bookshelf snapshot = bookshelf.getSnapshot();
+
+		// change the elapsed time of the selected track
+		bookshelf.setSelectedTrackIndex(FIRST);
+		bookshelf.setSelectedTrackElapsedTime(DURATION0 / 2);
+
+		// the changed book was copied; the snapshot still has the old one
+		assertNotSame(snapshot.getBookAt(index), bookshelf.getBookAt(index));
+		assertSame(b, snapshot.getBookAt(index));
+		assertEquals(0, snapshot.getBookAt(index)
+				.getSelectedTrackElapsedTime());
+		assertEquals(DURATION0 / 2, bookshelf.getBookAt(index)
+				.getSelectedTrackElapsedTime());
+
+		// the untouched books are shared
+		for (int i = 0; i < STARTING_NUMBER_OF_BOOKS; i++) {
+			assertSame(snapshot.getBookAt(i), bookshelf.getBookAt(i));
+		}
+
+		// changes to the snapshot do not affect the bookshelf either
+		snapshot.setBookTitleAt(index, TITLE1);
+		assertEquals(TITLE0, bookshelf.getBookTitleAt(index));
+	}
+
+	/**
+	 * Tests that the version and the cached hash of a bookshelf follow its
+	 * changes, and are shared with its snapshots until then.
+	 */
+	public void testVersion() {
+		int hash = bookshelf.hashCode();
+		Bookshelf snapshot = bookshelf.getSnapshot();
+		assertEquals(bookshelf.getVersion(), snapshot.getVersion());
+		assertEquals(hash, snapshot.hashCode());
+		assertTrue(snapshot.equals(bookshelf));
+
+		// a change through the bookshelf gives it a new version and hash
+		bookshelf.setBookTitleAt(FIRST, TITLE1);
+		assertFalse(bookshelf.getVersion() == snapshot.getVersion());
+		assertFalse(hash == bookshelf.hashCode());
+		assertFalse(snapshot.equals(bookshelf));
+
+		// equal contents are equal again, whatever their versions
+		snapshot.setBookTitleAt(FIRST, TITLE1);
+		assertFalse(bookshelf.getVersion() == snapshot.getVersion());
+		assertEquals(bookshelf.hashCode(), snapshot.hashCode());
+		assertTrue(snapshot.equals(bookshelf));
+	}
+
+	/**
+	 * Tests that the durations of tracks are set by their paths, in the book
+	 * and not in its snapshots, and that the book duration follows.
+	 */
+	public void testSetTrackDurations() {
+		EventRecorder recorder = new EventRecorder();
+		bookshelf.addPropertyChangeListener(EventType.TRACK_LIST_CHANGED,
+				recorder);
+		Bookshelf snapshot = bookshelf.getSnapshot();
+		int bookDuration = bookshelf.getBookDurationAt(FIRST);
+		int index = bookshelf.getBookAt(FIRST).getTrackPaths().indexOf(PATH1);
+
+		Map<String, Integer> durations = new HashMap<String, Integer>();
+		durations.put(PATH1, DURATION1 + 1);
+		durations.put("unknown path", DURATION1);
+		// each track with the path is changed
+		int changed = bookshelf.setTrackDurations(durations);
+		assertTrue(changed >= 1);
+
+		Book b = bookshelf.getBookAt(FIRST);
+		assertEquals(DURATION1 + 1, b.getTrackDurationAt(index));
+		assertEquals(bookDuration + changed, b.getDuration());
+		assertEquals(DURATION1, snapshot.getBookAt(FIRST)
+				.getTrackDurationAt(index));
+		assertEquals(EventType.TRACK_LIST_CHANGED, recorder.last.getType());
+		assertEquals(FIRST, recorder.last.getBookIndex());
+
+		// durations that are already set change nothing
+		assertEquals(0, bookshelf.setTrackDurations(durations));
+	}
+
+	/**
+	 * Keeps the last event fired by a bookshelf.
+	 */
+	private static class EventRecorder implements PropertyChangeListener {
+		private BookshelfEvent last;
+
+		public void propertyChange(PropertyChangeEvent event) {
+			last = (BookshelfEvent) event;
+		}
+	}
+
 }
@@ -0,0 +1,203 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.model;
+
+import junit.framework.TestCase;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor.Command;
+
+/**
+ * Tests that commands are run one at a time on the model thread, in order,
+ * and that their changes can be seen in the snapshots.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ */
+public class ModelExecutorTest extends TestCase {
+	// The test object.
+	private ModelExecutor model;
+
+	private static final String TITLE = "title";
+	private static final String NEW_TITLE = "new title";
+	private static final String PATH = "path";
+	private static final int DURATION = 1000;
+	private static final int MANY_COMMANDS = 100;
+	// how long (ms) to wait for queued commands at most
+	private static final long TIMEOUT = 5000;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() {
+		try {
+			super.setUp();
+		} catch (Exception e) {
+			// catch exceptions from super.setUp() and fail
+			fail("setUp failed + " + e.getMessage());
+		}
+		model = new ModelExecutor(new Bookshelf());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		model.shutdown();
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that a command is run on another thread and that its changes are
+	 * in the snapshot when run returns.
+	 */
+	public final void testRun() {
+		final Thread[] ranOn = new Thread[1];
+		model.run(new Command() {
+			public void execute(Bookshelf bs) {
+				ranOn[0] = Thread.currentThread();
+				bs.addBook(newBook());
+			}
+		});
+
+		assertNotNull(ranOn[0]);
+		assertNotSame(Thread.currentThread(), ranOn[0]);
+		assertEquals(1, model.getSnapshot().getNumberOfBooks());
+	}
+
+	/**
+	 * Tests that queued commands are run in order, before later commands.
+	 */
+	public final void testExecuteInOrder() {
+		for (int i = 0; i < MANY_COMMANDS; i++) {
+			model.execute(new Command() {
+				public void execute(Bookshelf bs) {
+					bs.addBook(newBook());
+				}
+			});
+		}
+
+		final int[] books = new int[1];
+		model.run(new Command() {
+			public void execute(Bookshelf bs) {
+				books[0] = bs.getNumberOfBooks();
+			}
+		});
+		assertEquals(MANY_COMMANDS, books[0]);
+	}
+
+	/**
+	 * Tests that exceptions thrown by a command are thrown to the caller.
+	 */
+	public final void testRunThrows() {
+		try {
+			model.run(new Command() {
+				public void execute(Bookshelf bs) {
+					bs.removeBookAt(0);
+				}
+			});
+			fail("Exception of the command was not thrown.");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+
+		// the executor still works
+		model.run(new Command() {
+			public void execute(Bookshelf bs) {
+				bs.addBook(newBook());
+			}
+		});
+		assertEquals(1, model.getSnapshot().getNumberOfBooks());
+	}
+
+	/**
+	 * Tests that a command given by a command (e.g. by a listener) is run at
+	 * once instead of waiting for itself, and that the running command sees
+	 * its own changes in a snapshot.
+	 */
+	public final void testRunOnModelThread() {
+		final String[] title = new String[1];
+		model.run(new Command() {
+			public void execute(Bookshelf bs) {
+				bs.addBook(newBook());
+				model.run(new Command() {
+					public void execute(Bookshelf inner) {
+						inner.setBookTitleAt(0, NEW_TITLE);
+					}
+				});
+				title[0] = model.getSnapshot().getBookAt(0)
+						.getSelectedBookTitle();
+			}
+		});
+		assertEquals(NEW_TITLE, title[0]);
+	}
+
+	/**
+	 * Tests that commands queued before a shutdown still run, and that
+	 * commands given after it are refused.
+	 */
+	public final void testShutdown() {
+		for (int i = 0; i < MANY_COMMANDS; i++) {
+			model.execute(new Command() {
+				public void execute(Bookshelf bs) {
+					bs.addBook(newBook());
+				}
+			});
+		}
+		model.shutdown();
+		assertTrue(model.isShutdown());
+
+		// a command queued after it is dropped without an exception
+		model.execute(new Command() {
+			public void execute(Bookshelf bs) {
+				bs.addBook(newBook());
+			}
+		});
+
+		// a command that is waited for cannot be run
+		try {
+			model.run(new Command() {
+				public void execute(Bookshelf bs) {
+					bs.addBook(newBook());
+				}
+			});
+			fail("A command was run after shutdown.");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		// everything queued before the shutdown was run
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (model.getSnapshot().getNumberOfBooks() < MANY_COMMANDS
+				&& System.currentTimeMillis() < end) {
+			Thread.yield();
+		}
+		assertEquals(MANY_COMMANDS, model.getSnapshot().getNumberOfBooks());
+	}
+
+	/**
+	 * @return A new book with one track.
+	 */
+	private static Book newBook() {
+		Book b = new Book(TITLE);
+		b.addTrack(new Track(PATH, DURATION));
+		return b;
+	}
+
+}
@@ -0,0 +1,117 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.model;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests keeping the tags of a track sorted, importing tags, and finding tags
+ * near a time and in a range of time.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ */
+public class TagIndexTest extends TestCase {
+	private static final int[] TAGS = { 10, 20, 30 };
+
+	/**
+	 * Tests that added tags are kept in order and not repeated.
+	 */
+	public void testInsert() {
+		int[] tags = TagIndex.insert(null, 20);
+		tags = TagIndex.insert(tags, 30);
+		tags = TagIndex.insert(tags, 10);
+		assertTrue(Arrays.equals(TAGS, tags));
+
+		// a time that is already tagged gives back the same array
+		assertSame(tags, TagIndex.insert(tags, 20));
+
+		try {
+			TagIndex.insert(tags, -1);
+			fail("Added a tag at a negative time.");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests removing tags.
+	 */
+	public void testRemove() {
+		int[] tags = TagIndex.remove(TAGS, 1);
+		assertTrue(Arrays.equals(new int[] { 10, 30 }, tags));
+
+		// the given array is left as it was
+		assertTrue(Arrays.equals(new int[] { 10, 20, 30 }, TAGS));
+
+		// the last tag leaves no array
+		assertNull(TagIndex.remove(new int[] { 10 }, 0));
+
+		try {
+			TagIndex.remove(TAGS, TAGS.length);
+			fail("Removed a tag that does not exist.");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests importing many tags at once.
+	 */
+	public void testMerge() {
+		int[] tags = TagIndex.merge(TAGS, new int[] { 25, 5, 20, 25, 40 });
+		assertTrue(Arrays.equals(new int[] { 5, 10, 20, 25, 30, 40 }, tags));
+
+		// nothing new gives back the same array
+		assertSame(TAGS, TagIndex.merge(TAGS, new int[] { 30, 10 }));
+
+		// importing nothing into nothing leaves nothing
+		assertNull(TagIndex.merge(null, new int[0]));
+	}
+
+	/**
+	 * Tests finding the tags next to a time.
+	 */
+	public void testNextPrevious() {
+		assertEquals(0, TagIndex.next(TAGS, 0));
+		assertEquals(1, TagIndex.next(TAGS, 10));
+		assertEquals(2, TagIndex.next(TAGS, 25));
+		assertEquals(TagIndex.NO_TAG, TagIndex.next(TAGS, 30));
+
+		assertEquals(TagIndex.NO_TAG, TagIndex.previous(TAGS, 10));
+		assertEquals(0, TagIndex.previous(TAGS, 15));
+		assertEquals(1, TagIndex.previous(TAGS, 30));
+		assertEquals(2, TagIndex.previous(TAGS, 100));
+
+		// a track without tags has none to find
+		assertEquals(TagIndex.NO_TAG, TagIndex.next(null, 0));
+		assertEquals(TagIndex.NO_TAG, TagIndex.previous(null, 0));
+	}
+
+	/**
+	 * Tests finding the tags in a range of time.
+	 */
+	public void testRange() {
+		assertTrue(Arrays.equals(new int[] { 10, 20 },
+				TagIndex.range(TAGS, 10, 30)));
+		assertTrue(Arrays.equals(TAGS, TagIndex.range(TAGS, 0, 100)));
+		assertEquals(0, TagIndex.range(TAGS, 11, 20).length);
+		assertEquals(0, TagIndex.range(TAGS, 30, 10).length);
+		assertEquals(0, TagIndex.range(null, 0, 100).length);
+	}
+
+}
@@ -0,0 +1,205 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.model;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests adding, removing, swapping and moving tracks in a track table, the
+ * start times of the tracks, tags, and that copies of a table do not affect
+ * each other.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ */
+public class TrackTableTest extends TestCase {
+	// The test object.
+	private TrackTable table;
+
+	private static final String[] PATHS = { "path0", "path1", "path2" };
+	private static final String[] TITLES = { "title0", null, "title2" };
+	private static final int[] DURATIONS = { 100, 200, 300 };
+
+	// more tracks than the initial capacity of a table
+	private static final int MANY_TRACKS = 500;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() {
+		try {
+			super.setUp();
+		} catch (Exception e) {
+			// catch exceptions from super.setUp() and fail
+			fail("setUp failed + " + e.getMessage());
+		}
+		table = new TrackTable();
+		for (int i = 0; i < PATHS.length; i++) {
+			table.add(new Track(PATHS[i], TITLES[i], DURATIONS[i]));
+		}
+	}
+
+	/**
+	 * Tests that added tracks can be read back.
+	 */
+	public void testAdd() {
+		assertEquals(PATHS.length, table.size());
+		for (int i = 0; i < PATHS.length; i++) {
+			assertEquals(PATHS[i], table.getPath(i));
+			assertEquals(TITLES[i], table.getTitle(i));
+			assertEquals(DURATIONS[i], table.getDuration(i));
+			assertEquals(0, table.getElapsedTime(i));
+			assertEquals(0, table.getTagCount(i));
+		}
+
+		// the table grows as needed and keeps the start times
+		for (int i = 0; i < MANY_TRACKS; i++) {
+			table.add(new Track(PATHS[0], DURATIONS[0]));
+		}
+		assertEquals(PATHS.length + MANY_TRACKS, table.size());
+		assertEquals(DURATIONS[0] + DURATIONS[1] + DURATIONS[2]
+				+ MANY_TRACKS * DURATIONS[0], table.getDuration());
+	}
+
+	/**
+	 * Tests that the track objects handed out are equal to the added ones.
+	 */
+	public void testGetTrack() {
+		Track t = new Track(PATHS[0], TITLES[0], DURATIONS[0]);
+		t.setSelectedTrackElapsedTime(DURATIONS[0] / 2);
+		t.addTag(1);
+		table.add(t);
+
+		int last = table.size() - 1;
+		assertEquals(t, table.getTrack(last));
+		assertNotSame(table.getTrack(last), table.getTrack(last));
+	}
+
+	/**
+	 * Tests removing, swapping and moving tracks.
+	 */
+	public void testRemoveSwapMove() {
+		// 0, 2
+		table.remove(1);
+		assertEquals(2, table.size());
+		assertEquals(PATHS[2], table.getPath(1));
+		assertEquals(DURATIONS[0], table.getStartTime(1));
+		assertEquals(DURATIONS[0] + DURATIONS[2], table.getDuration());
+
+		// 2, 0
+		table.swap(0, 1);
+		assertEquals(PATHS[2], table.getPath(0));
+		assertEquals(TITLES[0], table.getTitle(1));
+		assertEquals(DURATIONS[2], table.getStartTime(1));
+
+		// 2, 0, 1 -> 1, 2, 0
+		table.add(new Track(PATHS[1], TITLES[1], DURATIONS[1]));
+		table.move(2, 0);
+		assertEquals(PATHS[1], table.getPath(0));
+		assertEquals(PATHS[2], table.getPath(1));
+		assertEquals(PATHS[0], table.getPath(2));
+		assertEquals(DURATIONS[1] + DURATIONS[2], table.getStartTime(2));
+
+		// 1, 2, 0 -> 2, 0, 1
+		table.move(0, 2);
+		assertEquals(PATHS[2], table.getPath(0));
+		assertEquals(PATHS[0], table.getPath(1));
+		assertEquals(PATHS[1], table.getPath(2));
+		assertEquals(DURATIONS[2] + DURATIONS[0], table.getStartTime(2));
+	}
+
+	/**
+	 * Tests finding the track at a time in the book.
+	 */
+	public void testGetIndexAt() {
+		assertEquals(0, table.getIndexAt(0));
+		assertEquals(0, table.getIndexAt(DURATIONS[0]));
+		assertEquals(1, table.getIndexAt(DURATIONS[0] + 1));
+		assertEquals(2, table.getIndexAt(table.getDuration() + 1));
+	}
+
+	/**
+	 * Tests setting the elapsed time of a track.
+	 */
+	public void testSetElapsedTime() {
+		table.setElapsedTime(1, DURATIONS[1] / 2);
+		assertEquals(DURATIONS[1] / 2, table.getElapsedTime(1));
+
+		// a time past the end of the track is set to the end of it
+		table.setElapsedTime(1, DURATIONS[1] + 1);
+		assertEquals(DURATIONS[1], table.getElapsedTime(1));
+
+		// negative times are illegal
+		try {
+			table.setElapsedTime(1, -1);
+			fail("Set a negative elapsed time.");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests adding and removing tags.
+	 */
+	public void testTags() {
+		table.addTag(0, 10);
+		table.addTag(0, 20);
+		table.addTag(0, 30);
+		assertEquals(3, table.getTagCount(0));
+
+		table.removeTag(0, 1);
+		assertTrue(Arrays.equals(new int[] { 10, 30 }, table.getTagTimes(0)));
+
+		// the tags follow the track
+		table.move(0, 2);
+		assertEquals(0, table.getTagCount(0));
+		assertEquals(2, table.getTagCount(2));
+
+		try {
+			table.removeTag(2, 2);
+			fail("Removed a tag that does not exist.");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests that a copy and its original do not affect each other.
+	 */
+	public void testCopy() {
+		TrackTable copy = new TrackTable(table);
+		assertEquals(table, copy);
+		assertEquals(table.hashCode(), copy.hashCode());
+
+		// change the copy
+		copy.setElapsedTime(0, 1);
+		copy.addTag(1, 1);
+		copy.remove(2);
+		assertEquals(0, table.getElapsedTime(0));
+		assertEquals(0, table.getTagCount(1));
+		assertEquals(PATHS.length, table.size());
+
+		// change the original
+		table.swap(0, 1);
+		assertEquals(PATHS[0], copy.getPath(0));
+		assertFalse(table.equals(copy));
+	}
+
+}
@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.model;
@@ -19,7 +19,7 @@ import junit.framework.TestCase;
  * Tests constructing and copying a track, getting the track path, and getting
  * and setting the elapsed time of the selected track.
  * 
- * @author Marcus Parkkinen, Aki Kkel
+ * @author Marcus Parkkinen, Aki Käkelä
  * @version 0.2
  */
 
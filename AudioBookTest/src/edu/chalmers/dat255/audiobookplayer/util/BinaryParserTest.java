@@ -0,0 +1,156 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.Track;
+
+/**
+ * Tests writing and reading bookshelves in the binary format.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+public class BinaryParserTest extends AndroidTestCase {
+	private static final String FILE_NAME = "BinaryParserTest.shelf";
+	private static final String FOLDER = "/sdcard/audiobooks/a long folder/";
+	private static final int NUMBER_OF_TRACKS = 20;
+	private static final int DURATION = 100000;
+
+	private Bookshelf bs;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.test.AndroidTestCase#setUp()
+	 */
+	@Override
+	protected void setUp() {
+		try {
+			super.setUp();
+		} catch (Exception e) {
+			// catch exceptions from super.setUp() and fail
+			fail("setUp failed + " + e.getMessage());
+		}
+		bs = new Bookshelf();
+
+		Book b = new Book(Arrays.asList(new Track[] {
+				new Track(FOLDER + "a.mp3", "Chapter å", DURATION),
+				new Track(FOLDER + "b.mp3", DURATION) }), "Title", "Author");
+		b.setSelectedTrackIndex(1);
+		b.setSelectedTrackElapsedTime(DURATION / 2);
+		b.addTags(new int[] { 300, 100, DURATION });
+		bs.addBook(b);
+
+		Book other = new Book("Other title");
+		for (int i = 0; i < NUMBER_OF_TRACKS; i++) {
+			other.addTrack(new Track(FOLDER + i + ".mp3", i + 1));
+		}
+		bs.addBook(other);
+		bs.addBook(new Book("Empty"));
+		bs.setSelectedBookIndex(1);
+	}
+
+	/**
+	 * Tests that a bookshelf is read back equal to the one written.
+	 */
+	public void testWriteAndRead() {
+		try {
+			assertEquals(bs, BinaryParser.read(ByteBuffer.wrap(toBytes(bs))));
+
+			// also an empty bookshelf
+			Bookshelf empty = new Bookshelf();
+			assertEquals(empty,
+					BinaryParser.read(ByteBuffer.wrap(toBytes(empty))));
+		} catch (IOException e) {
+			fail("Writing and reading resulted in a IOException: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Tests reading a file through a memory map.
+	 */
+	public void testReadFile() {
+		File file = getContext().getFileStreamPath(FILE_NAME);
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(toBytes(bs));
+			out.close();
+
+			assertEquals(bs, BinaryParser.read(file));
+		} catch (IOException e) {
+			fail("Reading a file resulted in a IOException: "
+					+ e.getMessage());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tests that the format is smaller than JSON, since folders are only
+	 * stored once.
+	 */
+	public void testSize() {
+		try {
+			assertTrue(toBytes(bs).length < JsonParser.toJSON(bs).length() / 2);
+		} catch (IOException e) {
+			fail("Writing resulted in a IOException: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Tests that something else than a bookshelf is refused.
+	 */
+	public void testReadBadData() {
+		try {
+			BinaryParser.read(ByteBuffer.wrap("{\"books\":[]}".getBytes()));
+			fail("Read JSON as a binary bookshelf.");
+		} catch (IOException e) {
+			// expected
+		}
+
+		try {
+			byte[] bytes = toBytes(bs);
+			BinaryParser.read(ByteBuffer.wrap(Arrays.copyOf(bytes,
+					bytes.length / 2)));
+			fail("Read a truncated bookshelf.");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * @param shelf
+	 *            A bookshelf.
+	 * @return The bookshelf in the binary format.
+	 * @throws IOException
+	 */
+	private static byte[] toBytes(Bookshelf shelf) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryParser.write(shelf, out);
+		return out.toByteArray();
+	}
+}
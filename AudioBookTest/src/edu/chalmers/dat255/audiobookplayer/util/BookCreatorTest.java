@@ -8,23 +8,28 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.util;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 import android.os.Environment;
 import android.util.Log;
+import edu.chalmers.dat255.audiobookplayer.interfaces.IImportEvents;
 import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
 
 /**
  * JUnit test for BookCreator class.
  * 
- * @author Marcus Parkkinen, Aki Kkel
+ * @author Marcus Parkkinen, Aki Käkelä
  * 
  *         NOTE: in order for the test to pass, a valid path to an audio track
  *         on the device must be specified in VALID_PATH.
@@ -48,9 +53,12 @@ public class BookCreatorTest extends TestCase {
 			.getExternalStorageDirectory().getPath() + FILE_NAME;
 
 	private static final int NUMBER_OF_TRACKS = 125;
+	private static final int NUMBER_OF_FILES = 20;
 	private final BookCreator bc = BookCreator.getInstance();
 	private final Bookshelf bs = new Bookshelf();
 	private List<String> paths;
+	// files that exist, for imports that should not depend on the device
+	private List<String> files;
 
 	/*
 	 * (non-Javadoc)
@@ -74,6 +82,29 @@ public class BookCreatorTest extends TestCase {
 		for (int i = 0; i < NUMBER_OF_TRACKS; i++) {
 			paths.add(VALID_PATH);
 		}
+
+		files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < NUMBER_OF_FILES; i++) {
+				files.add(File.createTempFile("BookCreatorTest" + i, ".mp3")
+						.getPath());
+			}
+		} catch (IOException e) {
+			fail("setUp failed + " + e.getMessage());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		for (String path : files) {
+			new File(path).delete();
+		}
+		super.tearDown();
 	}
 
 	/**
@@ -102,4 +133,170 @@ public class BookCreatorTest extends TestCase {
 		}
 
 	}
+
+	/**
+	 * Tests that an import reads all tracks, keeps their order, and reports
+	 * its progress.
+	 */
+	public void testImportBook() {
+		final AtomicInteger progress = new AtomicInteger();
+		final AtomicInteger finished = new AtomicInteger();
+		BookImport i = bc.importBook(files, "Imported", "Tester",
+				new IImportEvents() {
+					public void importProgress(int done, int total) {
+						assertEquals(NUMBER_OF_FILES, total);
+						progress.incrementAndGet();
+					}
+
+					public void importFinished(boolean added) {
+						assertTrue(added);
+						finished.incrementAndGet();
+					}
+				});
+		try {
+			assertTrue(i.await());
+		} catch (InterruptedException e) {
+			fail("Interrupted while waiting for the import.");
+		}
+
+		assertTrue(i.isDone());
+		assertFalse(i.isCancelled());
+		assertEquals(NUMBER_OF_FILES, i.getProgress());
+		assertEquals(NUMBER_OF_FILES, progress.get());
+		assertEquals(1, finished.get());
+
+		assertEquals(1, bs.getNumberOfBooks());
+		assertEquals(files, bs.getBookAt(0).getTrackPaths());
+		assertEquals("Imported", bs.getBookAt(0).getSelectedBookTitle());
+
+		// too late to cancel
+		assertFalse(i.cancel());
+	}
+
+	/**
+	 * Tests that a cancelled import adds no book.
+	 */
+	public void testCancelImport() {
+		// hold the workers until the import has been cancelled
+		final CountDownLatch gate = new CountDownLatch(1);
+		final AtomicInteger finished = new AtomicInteger();
+		BookImport i = bc.importBook(files, "Cancelled", "Tester",
+				new IImportEvents() {
+					public void importProgress(int done, int total) {
+						try {
+							gate.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+
+					public void importFinished(boolean added) {
+						assertFalse(added);
+						finished.incrementAndGet();
+					}
+				});
+		assertTrue(i.cancel());
+		gate.countDown();
+		try {
+			assertFalse(i.await());
+		} catch (InterruptedException e) {
+			fail("Interrupted while waiting for the import.");
+		}
+
+		assertTrue(i.isCancelled());
+		assertFalse(i.cancel());
+		assertEquals(1, finished.get());
+		assertEquals(0, bs.getNumberOfBooks());
+	}
+
+	/**
+	 * Tests that an import goes on once its listener is detached, and that a
+	 * listener attached after the end is told of it once.
+	 */
+	public void testDetachListener() {
+		// hold the workers until the listener has been detached
+		final CountDownLatch gate = new CountDownLatch(1);
+		final AtomicInteger detached = new AtomicInteger();
+		BookImport i = bc.importBook(files, "Detached", "Tester",
+				new IImportEvents() {
+					public void importProgress(int done, int total) {
+						try {
+							gate.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+
+					public void importFinished(boolean added) {
+						detached.incrementAndGet();
+					}
+				});
+		assertTrue(bc.getImports().contains(i));
+		i.setListener(null);
+		gate.countDown();
+		try {
+			assertTrue(i.await());
+		} catch (InterruptedException e) {
+			fail("Interrupted while waiting for the import.");
+		}
+		assertEquals(0, detached.get());
+		assertFalse(bc.getImports().contains(i));
+		assertEquals(1, bs.getNumberOfBooks());
+
+		final AtomicInteger attached = new AtomicInteger();
+		i.setListener(new IImportEvents() {
+			public void importProgress(int done, int total) {
+				fail("Progress told after the end.");
+			}
+
+			public void importFinished(boolean added) {
+				assertTrue(added);
+				attached.incrementAndGet();
+			}
+		});
+		assertEquals(1, attached.get());
+	}
+
+	/**
+	 * Tests that no book is created without tracks, or when the first track
+	 * cannot be read.
+	 */
+	public void testImportInvalidBook() {
+		assertFalse(bc.createBookToBookshelf(new ArrayList<String>(), "Empty",
+				"Tester"));
+
+		List<String> invalid = new ArrayList<String>(files);
+		invalid.set(0, files.get(0) + ".missing");
+		assertFalse(bc.createBookToBookshelf(invalid, "Invalid", "Tester"));
+		assertEquals(0, bs.getNumberOfBooks());
+	}
+
+	/**
+	 * Tests that imported tracks are looked up in the metadata cache before
+	 * they are read.
+	 */
+	public void testImportFromCache() {
+		File cacheFile = new File(files.get(0) + ".cache");
+		MetadataCache cache = new MetadataCache(cacheFile);
+		TrackMetadata cached = new TrackMetadata(1, "Cached", "Album",
+				"Artist");
+		cache.put(new File(files.get(0)), cached);
+		bc.setCache(cache);
+		try {
+			assertTrue(bc.createBookToBookshelf(files, "Imported", "Tester"));
+
+			assertEquals("Album", bs.getBookAt(0).getSelectedBookTitle());
+			assertEquals("Artist", bs.getBookAt(0).getSelectedBookAuthor());
+			assertEquals(1, cache.getHits());
+			assertEquals(NUMBER_OF_FILES - 1, cache.getMisses());
+
+			// all of them are found the next time
+			assertTrue(bc.createBookToBookshelf(files, "Imported", "Tester"));
+			assertEquals(1 + NUMBER_OF_FILES, cache.getHits());
+			assertEquals(NUMBER_OF_FILES, new MetadataCache(cacheFile).size());
+		} finally {
+			bc.setCache(null);
+			cacheFile.delete();
+		}
+	}
 }
@@ -0,0 +1,263 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+import edu.chalmers.dat255.audiobookplayer.ctrl.BookshelfController;
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor.Command;
+import edu.chalmers.dat255.audiobookplayer.model.Track;
+
+/**
+ * Tests that changes are autosaved together once they settle, and that
+ * nothing is lost in between. Each test saves the bookshelf of a user of
+ * its own, so that nothing left of one test can save over another.
+ * 
+ * @author Aki Käkelä
+ * @version 0.3
+ * 
+ */
+public class BookshelfAutosaveTest extends AndroidTestCase {
+	private static final String USERNAME = "BookshelfAutosaveTest";
+	private static final int DURATION = 1000;
+
+	private static final long QUIET_PERIOD = 100;
+	private static final long MAX_DELAY = 250;
+	// how long to wait for an autosave at most
+	private static final long TIMEOUT = 5000;
+
+	private String username;
+	private ModelExecutor model;
+	private BookshelfController controller;
+	private BookshelfAutosave autosave;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.test.AndroidTestCase#setUp()
+	 */
+	@Override
+	protected void setUp() {
+		try {
+			super.setUp();
+		} catch (Exception e) {
+			// catch exceptions from super.setUp() and fail
+			fail("setUp failed + " + e.getMessage());
+		}
+		username = USERNAME + getName();
+		Bookshelf bs = new Bookshelf();
+		bs.addBook(new Book(Arrays.asList(new Track[] {
+				new Track("/a/0.mp3", DURATION),
+				new Track("/a/1.mp3", DURATION) }), "Title", "Author"));
+
+		model = new ModelExecutor(bs);
+		controller = new BookshelfController(model);
+		BookshelfJournal journal = new BookshelfJournal(getContext(),
+				username);
+		controller.setJournal(journal);
+
+		// wait for the books to be saved once, as they are when loaded
+		assertTrue(controller.saveBookshelf(getContext(), username));
+		autosave = new BookshelfAutosave(model, journal, QUIET_PERIOD,
+				MAX_DELAY);
+		controller.setAutosave(autosave);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.test.AndroidTestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		// no autosave may still be waiting when the next test starts
+		controller.shutdown();
+		model.shutdown();
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that a burst of changes is saved once.
+	 */
+	public void testBurst() {
+		for (int i = 0; i < 10; i++) {
+			controller.setBookTitleAt(0, "Title " + i);
+		}
+		assertTrue(awaitSaves(1));
+
+		// no more saves follow
+		sleep(QUIET_PERIOD * 3);
+		assertEquals(1, autosave.getSaveCount());
+		assertEquals(10, autosave.getChangeCount());
+		assertFalse(autosave.isDirty());
+
+		assertEquals(model.getSnapshot(), load());
+		// only the title changed, so only the index was written
+		assertEquals(BookshelfHandler.getShelfFile(getContext(), username)
+				.length(), autosave.getBytesWritten());
+		assertTrue(autosave.getMaxLatency() >= autosave.getLastLatency());
+	}
+
+	/**
+	 * Tests that changes that never settle are still saved every so often.
+	 */
+	public void testMaxDelay() {
+		long end = System.currentTimeMillis() + MAX_DELAY * 4;
+		int i = 0;
+		while (System.currentTimeMillis() < end) {
+			controller.setBookTitleAt(0, "Title " + i++);
+			sleep(QUIET_PERIOD / 4);
+		}
+		assertTrue(autosave.getSaveCount() >= 2);
+	}
+
+	/**
+	 * Tests that saving by hand covers the waiting autosave, and that the
+	 * position changed after the books changed is saved as well.
+	 */
+	public void testSaveNow() {
+		controller.setBookTitleAt(0, "New title");
+		model.run(new Command() {
+			public void execute(Bookshelf bs) {
+				bs.setSelectedTrackIndex(1);
+				bs.setSelectedTrackElapsedTime(DURATION / 2);
+			}
+		});
+		assertTrue(controller.saveBookshelf(getContext(), username));
+		assertFalse(autosave.isDirty());
+
+		sleep(QUIET_PERIOD * 3);
+		assertEquals(1, autosave.getSaveCount());
+		assertEquals(model.getSnapshot(), load());
+	}
+
+	/**
+	 * Tests that shutting down saves the changes not yet autosaved, and that
+	 * nothing is autosaved after it.
+	 */
+	public void testShutdown() {
+		controller.setBookTitleAt(0, "Last title");
+		assertTrue(autosave.isDirty());
+		assertTrue(autosave.shutdown());
+		assertFalse(autosave.isDirty());
+		assertEquals(1, autosave.getSaveCount());
+		assertEquals(model.getSnapshot(), load());
+
+		controller.setBookTitleAt(0, "Too late");
+		sleep(QUIET_PERIOD * 3);
+		assertFalse(autosave.isDirty());
+		assertEquals(1, autosave.getSaveCount());
+	}
+
+	/**
+	 * Tests that a failed save leaves the bookshelf dirty and is tried again
+	 * until it succeeds.
+	 */
+	public void testFailedSave() {
+		SafeFile.setOpener(new SafeFile.Opener() {
+			public FileOutputStream open(File f) throws IOException {
+				throw new IOException("Failed save");
+			}
+		});
+		try {
+			controller.setBookTitleAt(0, "Unsaved title");
+			assertTrue(awaitFailures(2));
+			assertTrue(autosave.isDirty());
+			assertEquals(0, autosave.getSaveCount());
+		} finally {
+			SafeFile.setOpener(null);
+		}
+
+		assertTrue(awaitSaves(1));
+		assertFalse(autosave.isDirty());
+		assertEquals(model.getSnapshot(), load());
+	}
+
+	/**
+	 * Tests that a save that failed is made when shutting down.
+	 */
+	public void testShutdownAfterFailedSave() {
+		SafeFile.setOpener(new SafeFile.Opener() {
+			public FileOutputStream open(File f) throws IOException {
+				throw new IOException("Failed save");
+			}
+		});
+		try {
+			controller.setBookTitleAt(0, "Unsaved title");
+			assertFalse(autosave.saveNow());
+			assertTrue(autosave.isDirty());
+		} finally {
+			SafeFile.setOpener(null);
+		}
+
+		assertTrue(autosave.shutdown());
+		assertFalse(autosave.isDirty());
+		assertEquals(model.getSnapshot(), load());
+	}
+
+	/**
+	 * Waits until the given number of saves have failed.
+	 * 
+	 * @return False if they did not fail in time.
+	 */
+	private boolean awaitFailures(int count) {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (autosave.getFailureCount() < count) {
+			if (System.currentTimeMillis() > end) {
+				return false;
+			}
+			sleep(QUIET_PERIOD / 4);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until the given number of saves have been made.
+	 * 
+	 * @return False if they were not made in time.
+	 */
+	private boolean awaitSaves(int count) {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (autosave.getSaveCount() < count) {
+			if (System.currentTimeMillis() > end) {
+				return false;
+			}
+			sleep(QUIET_PERIOD / 4);
+		}
+		return true;
+	}
+
+	private static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			fail("Interrupted");
+		}
+	}
+
+	/**
+	 * @return The bookshelf loaded for the user of this test.
+	 */
+	private Bookshelf load() {
+		return BookshelfHandler.loadBookshelf(getContext(), username);
+	}
+}
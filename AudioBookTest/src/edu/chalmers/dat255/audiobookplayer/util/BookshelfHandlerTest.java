@@ -8,11 +8,14 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.util;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 
 import android.test.AndroidTestCase;
@@ -23,12 +26,19 @@ import edu.chalmers.dat255.audiobookplayer.model.Track;
 /**
  * Test case for loading and saving bookmarks.
  * 
- * @author Aki Kkel, Marcus Parkkinen
+ * @author Aki Käkelä, Marcus Parkkinen
  * @version 0.1
  * 
  */
 public class BookshelfHandlerTest extends AndroidTestCase {
 	private static final String USERNAME = "BookshelfHandlerTest";
+	private static final String JSON_USERNAME = "BookshelfHandlerTestJSON";
+	private static final String[] PROFILES = { "BookshelfHandlerTestA",
+			"BookshelfHandlerTestB" };
+
+	// enough tracks to make the file larger than 64 KB
+	private static final int LARGE_NUMBER_OF_BOOKS = 50;
+	private static final int TRACKS_PER_BOOK = 40;
 
 	private Bookshelf bs;
 	private Book newBook;
@@ -94,4 +104,256 @@ public class BookshelfHandlerTest extends AndroidTestCase {
 		assertEquals(newBook, loadedBookshelf.getBookAt(0));
 	}
 
+	/**
+	 * Tests that a bookshelf too large for the old file format is saved and
+	 * loaded.
+	 */
+	public void testSaveAndLoadLargeBookshelf() {
+		for (int i = 0; i < LARGE_NUMBER_OF_BOOKS; i++) {
+			Book b = new Book("BookTitle" + i, "BookAuthor");
+			for (int j = 0; j < TRACKS_PER_BOOK; j++) {
+				b.addTrack(new Track("/sdcard/audiobooks/book" + i + "/track"
+						+ j + ".mp3", j + 1));
+			}
+			bs.addBook(b);
+		}
+
+		assertTrue(BookshelfHandler.saveBookshelf(this.getContext(), USERNAME,
+				bs));
+		assertEquals(bs,
+				BookshelfHandler.loadBookshelf(this.getContext(), USERNAME));
+	}
+
+	/**
+	 * Tests that only the index is read when loading, and the tracks of a
+	 * book when they are first needed.
+	 */
+	public void testLazyLoading() {
+		addBooks(3);
+		bs.setSelectedBookIndex(1);
+		bs.setSelectedTrackIndex(2);
+		bs.setSelectedTrackElapsedTime(1);
+		assertTrue(BookshelfHandler.saveBookshelf(this.getContext(), USERNAME,
+				bs));
+
+		Bookshelf loaded = BookshelfHandler.loadBookshelf(this.getContext(),
+				USERNAME);
+		for (int i = 0; i < loaded.getNumberOfBooks(); i++) {
+			Book b = loaded.getBookAt(i);
+			assertFalse(b.isLoaded());
+
+			// what the list of books shows is known without the tracks
+			assertEquals(bs.getBookAt(i).getNumberOfTracks(),
+					b.getNumberOfTracks());
+			assertEquals(bs.getBookAt(i).getDuration(), b.getDuration());
+			assertEquals(bs.getBookAt(i).getBookElapsedTime(),
+					b.getBookElapsedTime());
+			assertFalse(b.isLoaded());
+		}
+
+		// the tracks of one book are loaded, the others are left alone
+		assertEquals(bs.getBookAt(1).getTrackPathAt(2), loaded.getBookAt(1)
+				.getTrackPathAt(2));
+		assertTrue(loaded.getBookAt(1).isLoaded());
+		assertFalse(loaded.getBookAt(0).isLoaded());
+
+		assertEquals(bs, loaded);
+	}
+
+	/**
+	 * Tests that the segments of books whose tracks did not change are kept
+	 * as they are, and that segments no longer referred to are deleted.
+	 */
+	public void testSegments() {
+		addBooks(3);
+		assertTrue(BookshelfHandler.saveBookshelf(this.getContext(), USERNAME,
+				bs));
+		Bookshelf loaded = BookshelfHandler.loadBookshelf(this.getContext(),
+				USERNAME);
+		long unloadedKey = loaded.getBookAt(0).getTrackSegment().getKey();
+
+		// a loaded book keeps its segment until its tracks change
+		loaded.setSelectedBookIndex(1);
+		loaded.getTrackPathAt(1, 0);
+		assertTrue(loaded.getBookAt(1).isLoaded());
+		long loadedKey = loaded.getBookAt(1).getTrackSegment().getKey();
+		loaded.setSelectedBookIndex(2);
+		loaded.setSelectedTrackElapsedTime(1);
+		assertNull(loaded.getBookAt(2).getTrackSegment());
+
+		File segments = BookshelfHandler.getSegmentFolder(this.getContext(),
+				USERNAME);
+		assertTrue(BookshelfHandler.saveBookshelf(this.getContext(),
+				USERNAME, loaded));
+		long changedKey = loaded.getBookAt(2).getTrackSegment().getKey();
+
+		// only the changed book got a new segment, and the backup still
+		// refers to the one it had
+		assertEquals(bs.getNumberOfBooks() + 1, segments.list().length);
+
+		// saved again without changes, so the first save is no longer the
+		// backup and nothing new is written
+		assertTrue(BookshelfHandler.saveBookshelf(this.getContext(),
+				USERNAME, loaded));
+		assertEquals(bs.getNumberOfBooks(), segments.list().length);
+
+		Bookshelf reloaded = BookshelfHandler.loadBookshelf(
+				this.getContext(), USERNAME);
+		assertEquals(unloadedKey, reloaded.getBookAt(0).getTrackSegment()
+				.getKey());
+		assertEquals(loadedKey, reloaded.getBookAt(1).getTrackSegment()
+				.getKey());
+		assertEquals(changedKey, reloaded.getBookAt(2).getTrackSegment()
+				.getKey());
+		assertEquals(loaded, reloaded);
+	}
+
+	/**
+	 * Tests that a save writes the segments of the changed books only, so
+	 * its size does not grow with the bookshelf.
+	 */
+	public void testIncrementalSave() {
+		addBooks(LARGE_NUMBER_OF_BOOKS);
+		long full = BookshelfHandler.save(this.getContext(), USERNAME, bs);
+		assertTrue(full > 0);
+
+		// the title is in the index only
+		bs.setBookTitleAt(0, "Renamed");
+		long renamed = BookshelfHandler.save(this.getContext(), USERNAME, bs);
+		assertTrue(renamed > 0);
+
+		// the position is in the segment of one book
+		bs.setSelectedBookIndex(1);
+		bs.setSelectedTrackElapsedTime(1);
+		long moved = BookshelfHandler.save(this.getContext(), USERNAME, bs);
+		assertTrue(moved > renamed);
+		assertTrue(moved < full);
+
+		assertEquals(bs,
+				BookshelfHandler.loadBookshelf(this.getContext(), USERNAME));
+	}
+
+	/**
+	 * Tests that profiles share the paths, titles and durations of their
+	 * tracks, and keep their own positions.
+	 */
+	public void testProfiles() {
+		for (int i = 0; i < 3; i++) {
+			Book b = new Book("Shared" + i, "BookAuthor");
+			b.addTrack(new Track("/sdcard/shared/book" + i + ".mp3", i + 1));
+			bs.addBook(b);
+		}
+		File catalogue = BookshelfHandler.getCatalogueFolder(getContext());
+
+		// the second profile stores nothing in the catalogue
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), PROFILES[0],
+				bs));
+		int entries = catalogue.list().length;
+		Bookshelf[] shelves = new Bookshelf[PROFILES.length];
+		for (int i = 0; i < PROFILES.length; i++) {
+			shelves[i] = BookshelfHandler.loadBookshelf(getContext(),
+					PROFILES[0]);
+			assertTrue(BookshelfHandler.saveBookshelf(getContext(),
+					PROFILES[i], shelves[i]));
+		}
+		assertEquals(entries, catalogue.list().length);
+		assertTrue(BookshelfHandler.getProfiles(getContext()).containsAll(
+				Arrays.asList(PROFILES)));
+		assertTrue(BookshelfHandler.isValidProfile(PROFILES[0]));
+		assertFalse(BookshelfHandler.isValidProfile(""));
+		assertFalse(BookshelfHandler.isValidProfile("a/b"));
+
+		// a position is kept by its profile
+		shelves[1].setSelectedBookIndex(0);
+		shelves[1].setSelectedTrackElapsedTime(1);
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), PROFILES[1],
+				shelves[1]));
+		assertEquals(entries, catalogue.list().length);
+		assertEquals(shelves[0],
+				BookshelfHandler.loadBookshelf(getContext(), PROFILES[0]));
+		assertEquals(shelves[1],
+				BookshelfHandler.loadBookshelf(getContext(), PROFILES[1]));
+
+		// an entry is deleted once no profile refers to it, even as a backup
+		for (int i = 0; i < PROFILES.length; i++) {
+			shelves[i].removeBookAt(2);
+			for (int j = 0; j < 2; j++) {
+				assertTrue(BookshelfHandler.saveBookshelf(getContext(),
+						PROFILES[i], shelves[i]));
+			}
+		}
+		assertEquals(entries - 1, catalogue.list().length);
+	}
+
+	/**
+	 * Tests that once the references to the catalogue are counted, a save of
+	 * one profile keeps them without reading the bookshelves of the others:
+	 * an entry is deleted even while another profile cannot be read.
+	 */
+	public void testCatalogueCounts() throws IOException {
+		Bookshelf other = new Bookshelf();
+		for (int i = 0; i < 2; i++) {
+			Book b = new Book("Counted" + i, "BookAuthor");
+			b.addTrack(new Track("/sdcard/counted/book" + i + ".mp3", i + 1));
+			bs.addBook(b);
+		}
+		other.addBook(new Book(bs.getBookAt(1)));
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), PROFILES[0],
+				bs));
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), PROFILES[1],
+				other));
+		File catalogue = BookshelfHandler.getCatalogueFolder(getContext());
+		int entries = catalogue.list().length;
+
+		// the other profile can no longer be read
+		FileOutputStream out = new FileOutputStream(
+				BookshelfHandler.getShelfFile(getContext(), PROFILES[1]));
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+
+		bs.removeBookAt(0);
+		for (int j = 0; j < 2; j++) {
+			assertTrue(BookshelfHandler.saveBookshelf(getContext(),
+					PROFILES[0], bs));
+		}
+		assertEquals(entries - 1, catalogue.list().length);
+	}
+
+	/**
+	 * Adds books of a few tracks each to the bookshelf.
+	 * 
+	 * @param count
+	 *            The number of books.
+	 */
+	private void addBooks(int count) {
+		for (int i = 0; i < count; i++) {
+			Book b = new Book("BookTitle" + i, "BookAuthor");
+			for (int j = 0; j < 3; j++) {
+				b.addTrack(new Track("/sdcard/audiobooks/book" + i + "/track"
+						+ j + ".mp3", j + 1));
+			}
+			bs.addBook(b);
+		}
+	}
+
+	/**
+	 * Tests that a bookshelf saved as JSON by an earlier version is loaded,
+	 * and that a bookshelf can be exported as JSON.
+	 */
+	public void testLoadJSON() {
+		File shelf = BookshelfHandler.getShelfFile(getContext(), JSON_USERNAME);
+		shelf.delete();
+
+		bs.addBook(newBook);
+		assertTrue(BookshelfHandler.exportBookshelf(this.getContext(),
+				JSON_USERNAME + ".bookmark", bs));
+		assertEquals(bs, BookshelfHandler.loadBookshelf(this.getContext(),
+				JSON_USERNAME));
+
+		// converted into the binary format on the way
+		assertTrue(shelf.exists());
+		assertEquals(bs, BookshelfHandler.loadBookshelf(this.getContext(),
+				JSON_USERNAME));
+	}
+
 }
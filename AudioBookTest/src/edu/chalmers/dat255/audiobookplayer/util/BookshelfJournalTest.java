@@ -0,0 +1,201 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import edu.chalmers.dat255.audiobookplayer.constants.EventType;
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.Track;
+
+/**
+ * Tests that changes written to the journal are replayed when the bookshelf
+ * is loaded, and only onto the bookshelf the journal continues from.
+ * 
+ * @author Aki Käkelä
+ * @version 0.3
+ * 
+ */
+public class BookshelfJournalTest extends AndroidTestCase {
+	private static final String USERNAME = "BookshelfJournalTest";
+	private static final int DURATION = 1000;
+
+	private Bookshelf bs;
+	private BookshelfJournal journal;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.test.AndroidTestCase#setUp()
+	 */
+	@Override
+	protected void setUp() {
+		try {
+			super.setUp();
+		} catch (Exception e) {
+			// catch exceptions from super.setUp() and fail
+			fail("setUp failed + " + e.getMessage());
+		}
+		bs = new Bookshelf();
+		bs.addBook(new Book(Arrays.asList(new Track[] {
+				new Track("/a/0.mp3", DURATION),
+				new Track("/a/1.mp3", DURATION) }), "Title", "Author"));
+		bs.addBook(new Book(Arrays.asList(new Track[] { new Track(
+				"/b/0.mp3", DURATION) }), "Other", "Author"));
+
+		// start the journal from the bookshelf as it is now
+		journal = new BookshelfJournal(getContext(), USERNAME);
+		assertTrue(BookshelfJournal.await(journal.compact(bs.getSnapshot())));
+		for (EventType type : journal.getEventTypes()) {
+			bs.addPropertyChangeListener(type, journal);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.test.AndroidTestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		// the journal thread and file of one test must not outlive it
+		bs.removeListeners();
+		journal.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that the position, selections and tags are replayed.
+	 */
+	public void testReplay() {
+		bs.setSelectedTrackIndex(1);
+		bs.setSelectedTrackElapsedTime(DURATION / 2);
+		bs.addTag(100);
+		bs.addTags(new int[] { 300, 200 });
+		bs.removeTagAt(0);
+		bs.setSelectedBookIndex(1);
+		bs.setSelectedTrackElapsedTime(DURATION / 4);
+		journal.drain();
+
+		assertEquals(bs, BookshelfHandler.loadBookshelf(getContext(),
+				USERNAME));
+	}
+
+	/**
+	 * Tests that a journal is not replayed onto the bookshelf it was
+	 * compacted into, nor onto a bookshelf saved some other way.
+	 */
+	public void testCompaction() {
+		bs.setSelectedTrackElapsedTime(DURATION / 2);
+		bs.addTag(100);
+		journal.drain();
+
+		// renaming a book saves the whole bookshelf and starts over
+		bs.setBookTitleAt(0, "New title");
+		bs.removeTagAt(0);
+		journal.drain();
+		assertEquals(bs, BookshelfHandler.loadBookshelf(getContext(),
+				USERNAME));
+
+		// a bookshelf saved without the journal is left as it is
+		Bookshelf other = new Bookshelf();
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), USERNAME,
+				other));
+		assertEquals(other, BookshelfHandler.loadBookshelf(getContext(),
+				USERNAME));
+	}
+
+	/**
+	 * Tests that closing the journal writes what it was given first, and
+	 * that it records nothing after.
+	 */
+	public void testClose() {
+		bs.setSelectedTrackElapsedTime(DURATION / 2);
+		journal.close();
+		Bookshelf closed = bs.getSnapshot();
+		assertEquals(closed, BookshelfHandler.loadBookshelf(getContext(),
+				USERNAME));
+
+		// a change that still reaches the journal is not recorded
+		bs.setSelectedTrackElapsedTime(DURATION / 4);
+		assertEquals(closed, BookshelfHandler.loadBookshelf(getContext(),
+				USERNAME));
+
+		// closing twice does nothing
+		journal.close();
+	}
+
+	/**
+	 * Tests that nothing is recorded onto the bookshelf saved before a save
+	 * fails, as the books may since have moved.
+	 */
+	public void testFailedSave() {
+		bs.setSelectedTrackElapsedTime(DURATION / 2);
+		journal.drain();
+		Bookshelf saved = bs.getSnapshot();
+
+		SafeFile.setOpener(new SafeFile.Opener() {
+			public FileOutputStream open(File f) throws IOException {
+				throw new IOException("Failed save");
+			}
+		});
+		try {
+			bs.removeBookAt(0);
+			journal.drain();
+		} finally {
+			SafeFile.setOpener(null);
+		}
+
+		// the index of the remaining book was that of the removed one
+		bs.setSelectedBookIndex(0);
+		bs.setSelectedTrackElapsedTime(DURATION / 4);
+		journal.drain();
+		assertEquals(saved, BookshelfHandler.loadBookshelf(getContext(),
+				USERNAME));
+
+		// the next save starts the journal over
+		bs.setBookTitleAt(0, "New title");
+		bs.setSelectedTrackElapsedTime(DURATION / 8);
+		journal.drain();
+		assertEquals(bs, BookshelfHandler.loadBookshelf(getContext(),
+				USERNAME));
+	}
+
+	/**
+	 * Tests that a record cut short at the end of the journal is ignored.
+	 */
+	public void testTornRecord() {
+		bs.setSelectedTrackElapsedTime(DURATION / 2);
+		journal.drain();
+
+		try {
+			FileOutputStream out = getContext().openFileOutput(
+					USERNAME + ".journal", Context.MODE_APPEND);
+			out.write(new byte[] { 3, 0, 0 });
+			out.close();
+		} catch (IOException e) {
+			fail("Could not append to the journal: " + e.getMessage());
+		}
+
+		assertEquals(bs, BookshelfHandler.loadBookshelf(getContext(),
+				USERNAME));
+	}
+}
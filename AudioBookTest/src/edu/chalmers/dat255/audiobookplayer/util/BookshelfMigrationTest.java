@@ -0,0 +1,293 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import android.os.Environment;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.Track;
+
+/**
+ * Test case for converting old bookshelf files.
+ * 
+ * @author Aki Käkelä
+ * @version 0.3
+ * 
+ *         NOTE: to convert bookshelf files of your own as a batch, put them
+ *         in BATCH_FOLDER on the device; the test that does it passes
+ *         without them.
+ * 
+ */
+public class BookshelfMigrationTest extends AndroidTestCase {
+	private static final String OLD_FILE = "BookshelfMigrationTestOld";
+	private static final String NEW_FILE = "BookshelfMigrationTest.shelf";
+
+	private static final String BATCH_FOLDER = Environment
+			.getExternalStorageDirectory().getPath()
+			+ "/audiobooks/migration";
+	private static final String OLD_FOLDER = "BookshelfMigrationTestBatch";
+	private static final String NEW_FOLDER = "BookshelfMigrationTestConverted";
+
+	private static final int NUMBER_OF_BOOKS = 50;
+	private static final int TRACKS_PER_BOOK = 40;
+	private static final int DURATION = 1000;
+
+	// the size of the large file
+	private static final int LARGE_NUMBER_OF_BOOKS = 500;
+	private static final int LARGE_TRACKS_PER_BOOK = 200;
+
+	private Bookshelf bs;
+	private File from;
+	private File to;
+	private File oldFolder;
+	private File newFolder;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.test.AndroidTestCase#setUp()
+	 */
+	@Override
+	protected void setUp() {
+		try {
+			super.setUp();
+		} catch (Exception e) {
+			// catch exceptions from super.setUp() and fail
+			fail("setUp failed + " + e.getMessage());
+		}
+		bs = createBookshelf(NUMBER_OF_BOOKS, TRACKS_PER_BOOK);
+
+		from = getContext().getFileStreamPath(OLD_FILE);
+		to = getContext().getFileStreamPath(NEW_FILE);
+		oldFolder = getContext().getFileStreamPath(OLD_FOLDER);
+		newFolder = getContext().getFileStreamPath(NEW_FOLDER);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.test.AndroidTestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		from.delete();
+		to.delete();
+		new File(to.getPath() + ".bak").delete();
+		File segments = BookshelfHandler.getSegmentFolder(to);
+		File[] files = segments.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		segments.delete();
+		delete(oldFolder);
+		delete(newFolder);
+		super.tearDown();
+	}
+
+	/**
+	 * Tests converting a bookshelf saved as JSON.
+	 */
+	public void testMigrateJSON() {
+		assertTrue(BookshelfHandler.exportBookshelf(getContext(), OLD_FILE,
+				bs));
+		assertMigrated();
+	}
+
+	/**
+	 * Tests converting a bookshelf saved whole in the binary format, before
+	 * the tracks were saved in segments.
+	 */
+	public void testMigrateBinary() {
+		try {
+			write(bs, from);
+		} catch (IOException e) {
+			fail("Writing resulted in a IOException: " + e.getMessage());
+		}
+		assertMigrated();
+	}
+
+	/**
+	 * Tests that converting a file that is not there fails.
+	 */
+	public void testMigrateMissingFile() {
+		try {
+			BookshelfMigration.migrate(from, to);
+			fail("Converted a missing file.");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(to.exists());
+	}
+
+	/**
+	 * Tests converting a folder of files as a batch: a JSON file, a binary
+	 * file, and a file that is not a bookshelf, which is skipped.
+	 */
+	public void testMigrateAll() {
+		try {
+			assertTrue(oldFolder.mkdirs());
+			assertTrue(BookshelfHandler.exportBookshelf(getContext(),
+					OLD_FILE, bs));
+			assertTrue(from.renameTo(new File(oldFolder, "a.bookmark")));
+			write(bs, new File(oldFolder, "b.shelf"));
+			FileOutputStream out = new FileOutputStream(new File(oldFolder,
+					"c.txt"));
+			out.write("Not a bookshelf".getBytes());
+			out.close();
+
+			Map<String, Integer> converted = BookshelfMigration.migrateAll(
+					oldFolder, newFolder);
+			assertEquals(2, converted.size());
+			for (String name : new String[] { "a.bookmark", "b.shelf" }) {
+				assertEquals(Integer.valueOf(NUMBER_OF_BOOKS),
+						converted.get(name));
+				assertEquals(bs, read(new File(newFolder, name + ".shelf")));
+			}
+		} catch (IOException e) {
+			fail("Converting resulted in a IOException: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Tests converting a large JSON bookshelf, which the conversion never
+	 * holds in memory as a whole.
+	 */
+	public void testMigrateLargeFile() {
+		Bookshelf large = createBookshelf(LARGE_NUMBER_OF_BOOKS,
+				LARGE_TRACKS_PER_BOOK);
+		assertTrue(BookshelfHandler.exportBookshelf(getContext(), OLD_FILE,
+				large));
+		try {
+			long start = System.currentTimeMillis();
+			assertEquals(LARGE_NUMBER_OF_BOOKS, BookshelfMigration.migrate(
+					from, to));
+			Log.i(OLD_FILE, "Converted " + from.length() + " bytes in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			assertEquals(large, readMigrated());
+		} catch (IOException e) {
+			fail("Converting resulted in a IOException: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Converts the bookshelf files in BATCH_FOLDER on the device, if there
+	 * are any, and asserts that each new file holds as many books as were
+	 * converted.
+	 */
+	public void testMigrateBatchFolder() {
+		File batch = new File(BATCH_FOLDER);
+		if (!batch.isDirectory()) {
+			Log.i(OLD_FILE, "No files to convert in " + BATCH_FOLDER);
+			return;
+		}
+		try {
+			Map<String, Integer> converted = BookshelfMigration.migrateAll(
+					batch, newFolder);
+			for (Map.Entry<String, Integer> e : converted.entrySet()) {
+				Bookshelf migrated = read(new File(newFolder, e.getKey()
+						+ ".shelf"));
+				assertEquals(e.getValue().intValue(),
+						migrated.getNumberOfBooks());
+			}
+		} catch (IOException e) {
+			fail("Converting resulted in a IOException: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Converts the old file and asserts that the new one holds the bookshelf.
+	 */
+	private void assertMigrated() {
+		try {
+			assertEquals(NUMBER_OF_BOOKS, BookshelfMigration.migrate(from, to));
+			Bookshelf migrated = readMigrated();
+			assertEquals(bs, migrated);
+			assertEquals(bs.getSelectedBookIndex(),
+					migrated.getSelectedBookIndex());
+		} catch (IOException e) {
+			fail("Converting resulted in a IOException: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return The bookshelf read from the new file.
+	 */
+	private Bookshelf readMigrated() throws IOException {
+		return read(to);
+	}
+
+	/**
+	 * @return The bookshelf read from a converted file.
+	 */
+	private static Bookshelf read(File f) throws IOException {
+		return BinaryParser.read(f, BookshelfHandler.getSegmentFolder(f),
+				BookshelfHandler.getCatalogueFolder(f));
+	}
+
+	/**
+	 * Writes a bookshelf whole in the binary format.
+	 */
+	private static void write(Bookshelf shelf, File f) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			BinaryParser.write(shelf, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return A bookshelf of the given size, with a position and a tag in
+	 *         each book.
+	 */
+	private static Bookshelf createBookshelf(int books, int tracks) {
+		Bookshelf shelf = new Bookshelf();
+		for (int i = 0; i < books; i++) {
+			Book b = new Book("BookTitle" + i, "BookAuthor");
+			for (int j = 0; j < tracks; j++) {
+				b.addTrack(new Track("/sdcard/audiobooks/book" + i + "/track"
+						+ j + ".mp3", DURATION));
+			}
+			b.setSelectedTrackIndex(i % tracks);
+			b.setSelectedTrackElapsedTime(i);
+			b.addTags(new int[] { i });
+			shelf.addBook(b);
+		}
+		shelf.setSelectedBookIndex(books / 2);
+		return shelf;
+	}
+
+	/**
+	 * Deletes a file, or a folder and everything in it.
+	 */
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+}
@@ -8,11 +8,12 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.util;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 import android.test.AndroidTestCase;
@@ -25,6 +26,9 @@ import android.test.AndroidTestCase;
  * 
  */
 public class FileParserTest extends AndroidTestCase {
+	// larger than what could be written before
+	private static final int LARGE_SIZE = 200000;
+
 	private String textString;
 	private String fileName;
 
@@ -72,4 +76,42 @@ public class FileParserTest extends AndroidTestCase {
 		// Assert that the text strings are equal
 		assertEquals(textString, readResult);
 	}
+
+	/**
+	 * Tests that content larger than the old 64 KB limit can be written and
+	 * read back.
+	 */
+	public void testLargeContent() {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < LARGE_SIZE) {
+			sb.append(textString).append(" \u00e5\u00e4\u00f6 ");
+		}
+		String content = sb.toString();
+
+		try {
+			FileParser.writeToInternalStorage(fileName, getContext(), content);
+			assertEquals(content,
+					FileParser.readFromInternalStorage(fileName, getContext()));
+		} catch (IOException e) {
+			fail("Large content resulted in a IOException: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Tests that files written in the old length-prefixed format are read.
+	 */
+	public void testReadLegacyFormat() {
+		try {
+			DataOutputStream out = new DataOutputStream(getContext()
+					.openFileOutput(fileName, 0));
+			out.writeUTF(textString);
+			out.close();
+
+			assertEquals(textString,
+					FileParser.readFromInternalStorage(fileName, getContext()));
+		} catch (IOException e) {
+			fail("Reading the old format resulted in a IOException: "
+					+ e.getMessage());
+		}
+	}
 }
@@ -8,7 +8,7 @@ Creative Commons, 444 Castro Street, Suite 900, Mountain View, California,
 Use of this work is permitted only in accordance with license rights granted.
 Materials provided "AS IS"; no representations or warranties provided.
 
-Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  */
 
 package edu.chalmers.dat255.audiobookplayer.util;
@@ -16,18 +16,38 @@ package edu.chalmers.dat255.audiobookplayer.util;
 import java.util.Arrays;
 
 import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.gson.Gson;
+
 import edu.chalmers.dat255.audiobookplayer.model.Book;
 import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.Tag;
 import edu.chalmers.dat255.audiobookplayer.model.Track;
 
 /**
  * Test case for JSONParser utility class.
  * 
  * @author Marcus Parkkinen
- * @version 0.1
+ * @version 0.2
  * 
  */
 public class JsonParserTest extends AndroidTestCase {
+	private static final String TAG = "JsonParserTest";
+
+	// the size of the bookshelf timed
+	private static final int NUMBER_OF_BOOKS = 200;
+	private static final int TRACKS_PER_BOOK = 30;
+	private static final int ROUNDS = 5;
+
+	// the bookshelf of setUp with a tag, as reflection wrote it before the
+	// model classes had type adapters
+	private static final String FORMAT = "{\"books\":[{\"tracks\":[{"
+			+ "\"path\":\"trackPath\",\"duration\":1,\"elapsedTime\":0,"
+			+ "\"tags\":[{\"time\":1}]}],\"selectedTrackIndex\":0,"
+			+ "\"author\":\"BookAuthor\",\"title\":\"BookTitle\","
+			+ "\"duration\":1}],\"selectedBookIndex\":0}";
+
 	private Bookshelf bs;
 
 	/*
@@ -68,4 +88,70 @@ public class JsonParserTest extends AndroidTestCase {
 		// But assert that they are not the same object
 		assertNotSame(newBookshelf, bs);
 	}
+
+	/**
+	 * Tests that the type adapters write what reflection wrote, and read it
+	 * back.
+	 */
+	public void testReflectiveFormat() {
+		bs.getBookAt(0).addTag(1);
+		assertEquals(FORMAT, JsonParser.toJSON(bs));
+		assertEquals(bs, JsonParser.fromJSON(FORMAT, Bookshelf.class));
+
+		Tag tag = new Tag(2);
+		assertEquals(new Gson().toJson(tag), JsonParser.toJSON(tag));
+		assertEquals(tag, JsonParser.fromJSON(new Gson().toJson(tag),
+				Tag.class));
+
+		// tracks are written as in a book, but also read as reflection
+		// writes them now
+		Track track = new Track("trackPath", "title", 3);
+		track.addTags(new int[] { 1, 2 });
+		assertEquals(track, JsonParser.fromJSON(JsonParser.toJSON(track),
+				Track.class));
+		assertEquals(track, JsonParser.fromJSON(new Gson().toJson(track),
+				Track.class));
+	}
+
+	/**
+	 * Times converting a large bookshelf with the type adapters and with
+	 * plain reflection, and checks that both read back what they wrote. The
+	 * timings are only logged, for comparison on a device; they are not
+	 * asserted, as they depend too much on where the test runs.
+	 */
+	public void testBenchmark() {
+		Bookshelf large = new Bookshelf();
+		for (int i = 0; i < NUMBER_OF_BOOKS; i++) {
+			Book b = new Book("Book " + i, "Author");
+			for (int j = 0; j < TRACKS_PER_BOOK; j++) {
+				b.addTrack(new Track("/sdcard/audiobooks/book" + i + "/track"
+						+ j + ".mp3", "Track " + j, j + 1));
+			}
+			b.addTag(0);
+			large.addBook(b);
+		}
+		Gson reflective = new Gson();
+
+		String json = null;
+		long adapters = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			json = JsonParser.toJSON(large);
+			assertEquals(large, JsonParser.fromJSON(json, Bookshelf.class));
+		}
+		adapters = System.nanoTime() - adapters;
+
+		String reflectiveJson = null;
+		long reflection = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			reflectiveJson = reflective.toJson(large);
+			assertEquals(large,
+					reflective.fromJson(reflectiveJson, Bookshelf.class));
+		}
+		reflection = System.nanoTime() - reflection;
+
+		Log.i(TAG, "Type adapters: " + adapters / ROUNDS / 1000
+				+ " us, reflection: " + reflection / ROUNDS / 1000
+				+ " us per round of " + json.length() + " characters ("
+				+ reflectiveJson.length() + " by reflection)");
+	}
 }
@@ -0,0 +1,183 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for the metadata cache.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+public class MetadataCacheTest extends TestCase {
+	private static final int NUMBER_OF_FILES = 5;
+	private static final int DURATION = 1000;
+
+	private File cacheFile;
+	private List<File> files;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() {
+		try {
+			super.setUp();
+			cacheFile = File.createTempFile("MetadataCacheTest", ".cache");
+			cacheFile.delete();
+			files = new ArrayList<File>();
+			for (int i = 0; i < NUMBER_OF_FILES; i++) {
+				files.add(File.createTempFile("MetadataCacheTest" + i, ".mp3"));
+			}
+		} catch (Exception e) {
+			// catch exceptions from super.setUp() and fail
+			fail("setUp failed + " + e.getMessage());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : files) {
+			f.delete();
+		}
+		SafeFile safe = new SafeFile(cacheFile);
+		for (File f : safe.getCandidates()) {
+			f.delete();
+		}
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that the metadata put in the cache is found.
+	 */
+	public void testGetAndPut() {
+		MetadataCache cache = new MetadataCache(cacheFile);
+		File f = files.get(0);
+		assertNull(cache.get(f));
+
+		TrackMetadata m = metadata(0);
+		cache.put(f, m);
+		assertEquals(m, cache.get(f));
+
+		// also through another path to the same file
+		assertEquals(m, cache.get(new File(f.getParentFile(), "./"
+				+ f.getName())));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	/**
+	 * Tests that a file that has changed is read again.
+	 */
+	public void testChangedFile() {
+		MetadataCache cache = new MetadataCache(cacheFile);
+		File f = files.get(0);
+		cache.put(f, metadata(0));
+
+		try {
+			FileOutputStream out = new FileOutputStream(f);
+			out.write(new byte[] { 1, 2, 3 });
+			out.close();
+		} catch (IOException e) {
+			fail("Writing resulted in a IOException: " + e.getMessage());
+		}
+		assertNull(cache.get(f));
+		assertEquals(0, cache.size());
+	}
+
+	/**
+	 * Tests that the entry used least recently is evicted.
+	 */
+	public void testEviction() {
+		MetadataCache cache = new MetadataCache(cacheFile, 2);
+		cache.put(files.get(0), metadata(0));
+		cache.put(files.get(1), metadata(1));
+
+		// use the first, so that the second is evicted
+		assertNotNull(cache.get(files.get(0)));
+		cache.put(files.get(2), metadata(2));
+
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(files.get(0)));
+		assertNull(cache.get(files.get(1)));
+		assertNotNull(cache.get(files.get(2)));
+	}
+
+	/**
+	 * Tests that the cache is saved and read back, in the same order of use.
+	 */
+	public void testSaveAndLoad() {
+		MetadataCache cache = new MetadataCache(cacheFile);
+		for (int i = 0; i < NUMBER_OF_FILES; i++) {
+			cache.put(files.get(i), metadata(i));
+		}
+		assertNotNull(cache.get(files.get(0)));
+		assertTrue(cache.save());
+
+		MetadataCache loaded = new MetadataCache(cacheFile, NUMBER_OF_FILES);
+		for (int i = 0; i < NUMBER_OF_FILES; i++) {
+			assertEquals(metadata(i), loaded.get(files.get(i)));
+		}
+
+		// a smaller cache keeps those used last: the first and the last ones
+		MetadataCache smaller = new MetadataCache(cacheFile, 2);
+		assertEquals(2, smaller.size());
+		assertNotNull(smaller.get(files.get(0)));
+		assertNotNull(smaller.get(files.get(NUMBER_OF_FILES - 1)));
+	}
+
+	/**
+	 * Tests that a damaged cache file is ignored.
+	 */
+	public void testDamagedFile() {
+		try {
+			FileOutputStream out = new FileOutputStream(cacheFile);
+			out.write("not a cache".getBytes());
+			out.close();
+		} catch (IOException e) {
+			fail("Writing resulted in a IOException: " + e.getMessage());
+		}
+
+		MetadataCache cache = new MetadataCache(cacheFile);
+		assertEquals(0, cache.size());
+		cache.put(files.get(0), metadata(0));
+		assertTrue(cache.save());
+		assertEquals(metadata(0),
+				new MetadataCache(cacheFile).get(files.get(0)));
+	}
+
+	/**
+	 * @return Metadata that differs for each index.
+	 */
+	private static TrackMetadata metadata(int i) {
+		return new TrackMetadata(DURATION + i, "Title" + i, i % 2 == 0 ? null
+				: "Album", "Artist");
+	}
+}
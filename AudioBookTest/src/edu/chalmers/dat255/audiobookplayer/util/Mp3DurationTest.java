@@ -0,0 +1,339 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import android.util.Log;
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor;
+
+/**
+ * Test case for finding the duration of MP3 files. The files are generated:
+ * frames of MPEG 1 layer III at 44.1 kHz, with silence for audio.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+public class Mp3DurationTest extends TestCase {
+	private static final String TAG = "Mp3DurationTest";
+
+	private static final int RATE = 44100;
+	private static final int SAMPLES = 1152;
+	private static final int FRAMES = 2000;
+	// the bitrate index of 128 kbps
+	private static final int BITRATE_128 = 9;
+	private static final int XING_OFFSET = 36;
+	private static final int VBRI_OFFSET = 36;
+
+	// how long to wait for the durations to be refined at most
+	private static final long TIMEOUT = 5000;
+
+	// the corpus of the benchmark
+	private static final int FILES = 1000;
+	private static final int FILE_FRAMES = 50;
+
+	private final List<File> files = new ArrayList<File>();
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : files) {
+			f.delete();
+		}
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that the frame count of a Xing header gives the exact duration,
+	 * not counting the frame it is in.
+	 */
+	public void testXing() {
+		byte[] header = frame(BITRATE_128);
+		put(header, XING_OFFSET, "Xing".getBytes());
+		put(header, XING_OFFSET + 4, new byte[] { 0, 0, 0, 1 });
+		put(header, XING_OFFSET + 8, int32(FRAMES));
+		File f = write(concat(header, cbr(FRAMES)));
+
+		TrackMetadata m = read(f, false);
+		assertEquals(exact(FRAMES), m.getDuration());
+		assertTrue(m.isDurationExact());
+		assertEquals(exact(FRAMES), read(f, true).getDuration());
+	}
+
+	/**
+	 * Tests that the frame count of a VBRI header gives the exact duration.
+	 */
+	public void testVbri() {
+		byte[] header = frame(BITRATE_128);
+		put(header, VBRI_OFFSET, "VBRI".getBytes());
+		put(header, VBRI_OFFSET + 14, int32(FRAMES));
+		TrackMetadata m = read(write(concat(header, vbr(FRAMES))), false);
+		assertEquals(exact(FRAMES), m.getDuration());
+		assertTrue(m.isDurationExact());
+	}
+
+	/**
+	 * Tests estimating the duration of a file with a constant bitrate and no
+	 * header, between an ID3v2 and an ID3v1 tag, and then scanning it.
+	 */
+	public void testConstantBitrate() {
+		byte[] id3v2 = { 'I', 'D', '3', 3, 0, 0, 0, 0, 0, 0 };
+		byte[] id3v1 = new byte[128];
+		put(id3v1, 0, "TAG".getBytes());
+		File f = write(concat(id3v2, cbr(FRAMES), id3v1));
+
+		TrackMetadata m = read(f, false);
+		assertFalse(m.isDurationExact());
+		assertEquals(exact(FRAMES), m.getDuration(), exact(FRAMES) / 100);
+
+		m = read(f, true);
+		assertTrue(m.isDurationExact());
+		assertEquals(exact(FRAMES), m.getDuration());
+	}
+
+	/**
+	 * Tests estimating the duration of a file with a variable bitrate and no
+	 * header by sampling it, and then scanning it.
+	 */
+	public void testVariableBitrate() {
+		File f = write(vbr(FRAMES));
+
+		TrackMetadata m = read(f, false);
+		assertFalse(m.isDurationExact());
+		assertEquals(exact(FRAMES), m.getDuration(), exact(FRAMES) / 20);
+
+		m = read(f, true);
+		assertTrue(m.isDurationExact());
+		assertEquals(exact(FRAMES), m.getDuration());
+	}
+
+	/**
+	 * Tests that a file that is not audio is not taken for one: a sync word
+	 * with nothing like a frame after it.
+	 */
+	public void testNoFrames() {
+		byte[] b = new byte[4096];
+		b[0] = (byte) 0xff;
+		b[1] = (byte) 0xfb;
+		b[2] = (byte) 0x90;
+		TrackMetadata m = read(write(b), false);
+		assertNotNull(m);
+		assertFalse(m.hasDuration());
+		assertFalse(m.isDurationExact());
+	}
+
+	/**
+	 * Tests that an estimated duration is refined, and put in the cache.
+	 */
+	public void testRefine() {
+		File f = write(vbr(FRAMES));
+		MetadataCache cache = new MetadataCache(new File(f.getPath()
+				+ ".cache"));
+		files.add(new File(f.getPath() + ".cache"));
+
+		TrackMetadata m = TrackCreator.getMetadata(f.getPath(), cache);
+		assertFalse(m.isDurationExact());
+		TrackMetadata refined = TrackCreator.refineMetadata(f.getPath(), m,
+				cache);
+		assertTrue(refined.isDurationExact());
+		assertEquals(exact(FRAMES), refined.getDuration());
+		assertEquals(refined, cache.get(f));
+
+		// an exact duration is left as it is
+		assertSame(refined,
+				TrackCreator.refineMetadata(f.getPath(), refined, cache));
+	}
+
+	/**
+	 * Tests that the durations refined after an import are given to the
+	 * tracks of the book on the bookshelf.
+	 */
+	public void testRefineImport() {
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < 3; i++) {
+			paths.add(write(vbr(FRAMES)).getPath());
+		}
+		ModelExecutor model = new ModelExecutor(new Bookshelf());
+		BookCreator bc = BookCreator.getInstance();
+		bc.setModel(model);
+		try {
+			BookImport i = bc.importBook(paths, "Refined", "Tester", null);
+			assertTrue(i.await());
+
+			long end = System.currentTimeMillis() + TIMEOUT;
+			while (!isRefined(model.getSnapshot().getBookAt(0))) {
+				assertTrue(System.currentTimeMillis() < end);
+				Thread.sleep(10);
+			}
+			assertEquals(paths.size() * exact(FRAMES), model.getSnapshot()
+					.getBookDurationAt(0));
+		} catch (InterruptedException e) {
+			fail("Interrupted while waiting for the import.");
+		} finally {
+			bc.setModel(null);
+			model.shutdown();
+		}
+	}
+
+	/**
+	 * @return True if all tracks of the book have the exact duration.
+	 */
+	private static boolean isRefined(Book b) {
+		for (int i = 0; i < b.getNumberOfTracks(); i++) {
+			if (b.getTrackDurationAt(i) != exact(FRAMES)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Times estimating and scanning the durations of a collection of files.
+	 */
+	public void testBenchmark() {
+		Random random = new Random(1);
+		List<File> corpus = new ArrayList<File>();
+		for (int i = 0; i < FILES; i++) {
+			corpus.add(write(random.nextBoolean() ? cbr(FILE_FRAMES)
+					: vbr(FILE_FRAMES)));
+		}
+
+		long estimate = System.nanoTime();
+		for (File f : corpus) {
+			assertTrue(read(f, false).hasDuration());
+		}
+		estimate = System.nanoTime() - estimate;
+
+		long scan = System.nanoTime();
+		for (File f : corpus) {
+			assertEquals(exact(FILE_FRAMES), read(f, true).getDuration());
+		}
+		scan = System.nanoTime() - scan;
+
+		Log.i(TAG, "Estimate: " + estimate / 1000000 + " ms, scan: " + scan
+				/ 1000000 + " ms for " + corpus.size() + " files");
+	}
+
+	/**
+	 * @return The exact duration of a number of frames.
+	 */
+	private static int exact(int frames) {
+		return (int) ((long) frames * SAMPLES * 1000 / RATE);
+	}
+
+	private TrackMetadata read(File f, boolean scan) {
+		try {
+			FileInputStream in = new FileInputStream(f);
+			try {
+				return TagReader.read(in.getChannel(), scan);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			fail("Reading resulted in a IOException: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private File write(byte[] contents) {
+		try {
+			File f = File.createTempFile(TAG, null);
+			files.add(f);
+			FileOutputStream out = new FileOutputStream(f);
+			try {
+				out.write(contents);
+			} finally {
+				out.close();
+			}
+			return f;
+		} catch (IOException e) {
+			fail("Writing resulted in a IOException: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/* MPEG */
+
+	/**
+	 * @return Frames at 128 kbps.
+	 */
+	private static byte[] cbr(int frames) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] frame = frame(BITRATE_128);
+		for (int i = 0; i < frames; i++) {
+			out.write(frame, 0, frame.length);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return Frames at random bitrates from 64 to 192 kbps.
+	 */
+	private static byte[] vbr(int frames) {
+		Random random = new Random(frames);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < frames; i++) {
+			byte[] frame = frame(5 + random.nextInt(7));
+			out.write(frame, 0, frame.length);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return A frame of MPEG 1 layer III at 44.1 kHz in stereo, without
+	 *         padding.
+	 */
+	private static byte[] frame(int bitrateIndex) {
+		int[] kbps = { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192,
+				224, 256, 320 };
+		byte[] b = new byte[144 * kbps[bitrateIndex] * 1000 / RATE];
+		b[0] = (byte) 0xff;
+		b[1] = (byte) 0xfb;
+		b[2] = (byte) (bitrateIndex << 4);
+		return b;
+	}
+
+	private static byte[] int32(int n) {
+		return new byte[] { (byte) (n >>> 24), (byte) (n >>> 16),
+				(byte) (n >>> 8), (byte) n };
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts) {
+			out.write(part, 0, part.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static void put(byte[] to, int offset, byte[] b) {
+		System.arraycopy(b, 0, to, offset, b.length);
+	}
+}
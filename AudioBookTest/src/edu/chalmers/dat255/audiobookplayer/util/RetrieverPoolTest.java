@@ -0,0 +1,180 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import android.media.MediaMetadataRetriever;
+import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+
+/**
+ * Test case for the pool of media metadata retrievers.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+public class RetrieverPoolTest extends TestCase {
+	private static final int SIZE = 2;
+	private static final long TIMEOUT = 100;
+	private static final long WAIT = 2000;
+	private static final int FILES = 5000;
+
+	private RetrieverPool pool;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		pool = new RetrieverPool(SIZE, TIMEOUT);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		pool.releaseIdle();
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that a thread is given back the retriever it used last, and that
+	 * another thread is not given one that is in use.
+	 */
+	public void testReuse() throws InterruptedException {
+		MediaMetadataRetriever first = pool.acquire();
+		pool.release(first);
+		assertSame(first, pool.acquire());
+
+		final AtomicReference<MediaMetadataRetriever> other = new AtomicReference<MediaMetadataRetriever>();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				other.set(pool.acquire());
+				pool.release(other.get());
+			}
+		};
+		t.start();
+		t.join(WAIT);
+		assertNotSame(first, other.get());
+		pool.release(first);
+
+		// each thread gets its own back
+		assertSame(first, pool.acquire());
+		assertEquals(2, pool.getCreated());
+	}
+
+	/**
+	 * Tests that no more retrievers than the size are created, and that a
+	 * thread waits for one to be given back.
+	 */
+	public void testBound() throws InterruptedException {
+		MediaMetadataRetriever a = pool.acquire();
+		pool.acquire();
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				pool.release(pool.acquire());
+				acquired.countDown();
+			}
+		};
+		t.start();
+		assertFalse(acquired.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(SIZE, pool.size());
+
+		pool.release(a);
+		assertTrue(acquired.await(WAIT, TimeUnit.MILLISECONDS));
+		assertEquals(SIZE, pool.getCreated());
+	}
+
+	/**
+	 * Tests that a discarded retriever is released and makes room for a new
+	 * one.
+	 */
+	public void testDiscard() {
+		MediaMetadataRetriever a = pool.acquire();
+		pool.discard(a);
+		assertEquals(0, pool.size());
+		assertEquals(1, pool.getReleased());
+		assertNotSame(a, pool.acquire());
+	}
+
+	/**
+	 * Tests that idle retrievers are released after the timeout, and all of
+	 * them when asked to.
+	 */
+	public void testIdleTeardown() throws InterruptedException {
+		pool.release(pool.acquire());
+		assertEquals(1, pool.getIdle());
+
+		long end = System.currentTimeMillis() + WAIT;
+		while (pool.size() > 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(TIMEOUT / 4);
+		}
+		assertEquals(0, pool.size());
+		assertEquals(1, pool.getReleased());
+
+		// used again after the teardown
+		pool.release(pool.acquire());
+		pool.releaseIdle();
+		assertEquals(0, pool.size());
+		assertEquals(2, pool.getReleased());
+	}
+
+	/**
+	 * Tests that reading many files through the media framework on the
+	 * import workers creates no more retrievers than there are workers.
+	 */
+	public void testManyFiles() throws IOException, InterruptedException {
+		final File f = File.createTempFile("RetrieverPoolTest", null);
+		try {
+			RetrieverPool shared = TrackCreator.getRetrievers();
+			int created = shared.getCreated();
+			int workers = Constants.Value.MAX_IMPORT_WORKERS;
+			ExecutorService executor = Executors.newFixedThreadPool(workers);
+			for (int i = 0; i < FILES; i++) {
+				executor.execute(new Runnable() {
+					public void run() {
+						TrackCreator.retrieveMetadata(f.getPath());
+					}
+				});
+			}
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(WAIT * 10,
+					TimeUnit.MILLISECONDS));
+
+			assertTrue(shared.getCreated() - created <= workers);
+			assertTrue(shared.size() <= workers);
+			assertEquals(shared.size(), shared.getIdle());
+		} finally {
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.Track;
+
+/**
+ * Tests that a bookshelf is always loaded whole, whatever byte a save is
+ * killed at: either the bookshelf saved before or the new one is loaded,
+ * never a broken or empty one.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+public class SafeFileTest extends AndroidTestCase {
+	private static final String USERNAME = "SafeFileTest";
+	private static final int KILLS = 50;
+	private static final long SEED = 255;
+	// makes the tracks of each killed save differ, with paths of one length
+	private static final int FIRST_RUN = 1000;
+
+	// three versions of a bookshelf, saved in this order
+	private Bookshelf first;
+	private Bookshelf second;
+	private Bookshelf third;
+
+	private SafeFile shelf;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.test.AndroidTestCase#setUp()
+	 */
+	@Override
+	protected void setUp() {
+		try {
+			super.setUp();
+		} catch (Exception e) {
+			// catch exceptions from super.setUp() and fail
+			fail("setUp failed + " + e.getMessage());
+		}
+		first = createBookshelf(1);
+		second = createBookshelf(2);
+		third = createBookshelf(3);
+		shelf = new SafeFile(BookshelfHandler.getShelfFile(getContext(),
+				USERNAME));
+	}
+
+	/**
+	 * Tests that a save keeps the version before it as a backup.
+	 */
+	public void testBackup() {
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), USERNAME,
+				first));
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), USERNAME,
+				second));
+
+		assertFalse(shelf.getTempFile().exists());
+		assertTrue(shelf.getBackupFile().exists());
+		assertEquals(second, load());
+
+		// the backup is loaded if the file is gone
+		shelf.getBaseFile().delete();
+		assertEquals(first, load());
+	}
+
+	/**
+	 * Kills a save at random bytes and checks what is loaded after each.
+	 */
+	public void testKilledWrites() {
+		byte[] bytes = toBytes(third);
+		Random random = new Random(SEED);
+
+		for (int i = 0; i < KILLS; i++) {
+			int killedAt = random.nextInt(bytes.length);
+
+			// killed while writing the new version
+			saveFirstAndSecond();
+			write(shelf.getTempFile(), bytes, killedAt);
+			assertEquals(second, load());
+
+			// killed between backing up the file and renaming the new version
+			saveFirstAndSecond();
+			write(shelf.getTempFile(), bytes, killedAt);
+			assertTrue(shelf.getBaseFile().renameTo(shelf.getBackupFile()));
+			assertEquals(second, load());
+
+			// ... after the new version was written in full
+			saveFirstAndSecond();
+			write(shelf.getTempFile(), bytes, bytes.length);
+			assertTrue(shelf.getBaseFile().renameTo(shelf.getBackupFile()));
+			assertEquals(third, load());
+
+			// a file overwritten in place, as before, falls back on the backup
+			saveFirstAndSecond();
+			write(shelf.getBaseFile(), bytes, killedAt);
+			assertEquals(first, load());
+		}
+	}
+
+	/**
+	 * Kills the real saving of a bookshelf at several bytes of each file it
+	 * writes: the catalogue entries, the segments and the index. The index is
+	 * renamed into place last, so the bookshelf saved before must be loaded
+	 * whole after each kill, and the new one once a save is not killed.
+	 */
+	public void testKilledSaves() {
+		// learn which files a save writes, and how long each one is
+		Killer plan = new Killer(Long.MAX_VALUE);
+		save(FIRST_RUN, plan);
+		assertEquals(createBookshelf(3, FIRST_RUN), load());
+		assertEquals(2 * third.getNumberOfBooks() + 1, plan.lengths.size());
+
+		int run = FIRST_RUN;
+		long before = 0;
+		for (int file = 0; file < plan.lengths.size(); file++) {
+			long length = plan.lengths.get(file);
+			for (long killedAt : new long[] { 0, 1, length / 2, length - 1 }) {
+				run++;
+				Killer killer = new Killer(before + killedAt);
+				try {
+					save(run, killer);
+					fail("The save was not killed in file " + file);
+				} catch (Killed e) {
+					// expected
+				}
+				assertEquals(file + 1, killer.lengths.size());
+				assertEquals(createBookshelf(2, run), load());
+			}
+			before += length;
+		}
+	}
+
+	/**
+	 * Saves the first and the second version of a bookshelf, then the third
+	 * with the given opener.
+	 */
+	private void save(int run, Killer killer) {
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), USERNAME,
+				createBookshelf(1, run)));
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), USERNAME,
+				createBookshelf(2, run)));
+		SafeFile.setOpener(killer);
+		try {
+			assertTrue(BookshelfHandler.saveBookshelf(getContext(),
+					USERNAME, createBookshelf(3, run)));
+		} finally {
+			SafeFile.setOpener(null);
+		}
+	}
+
+	/**
+	 * Saves the first and then the second bookshelf, leaving no other files.
+	 */
+	private void saveFirstAndSecond() {
+		shelf.getTempFile().delete();
+		shelf.getBackupFile().delete();
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), USERNAME,
+				first));
+		assertTrue(BookshelfHandler.saveBookshelf(getContext(), USERNAME,
+				second));
+	}
+
+	/**
+	 * @return The bookshelf loaded for the user.
+	 */
+	private Bookshelf load() {
+		return BookshelfHandler.loadBookshelf(getContext(), USERNAME);
+	}
+
+	/**
+	 * Writes the first bytes of an array to a file, replacing it.
+	 */
+	private static void write(File file, byte[] bytes, int length) {
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(bytes, 0, length);
+			out.close();
+		} catch (IOException e) {
+			fail("Could not write " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return The bookshelf in the binary format.
+	 */
+	private static byte[] toBytes(Bookshelf bs) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			BinaryParser.write(bs, out);
+		} catch (IOException e) {
+			fail("Could not write the bookshelf: " + e.getMessage());
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param version
+	 *            Which version of the bookshelf to create.
+	 * @return A bookshelf that differs with the version.
+	 */
+	private static Bookshelf createBookshelf(int version) {
+		return createBookshelf(version, 0);
+	}
+
+	/**
+	 * @param version
+	 *            Which version of the bookshelf to create.
+	 * @param run
+	 *            Goes into the paths of the tracks.
+	 * @return A bookshelf that differs with the version and the run.
+	 */
+	private static Bookshelf createBookshelf(int version, int run) {
+		Bookshelf bs = new Bookshelf();
+		for (int i = 0; i < version; i++) {
+			String folder = "/books/" + run + "/" + i;
+			Book b = new Book(Arrays.asList(new Track[] {
+					new Track(folder + "/0.mp3", version * 1000),
+					new Track(folder + "/1.mp3", 1000) }), "Book " + i,
+					"Author");
+			b.setSelectedTrackElapsedTime(version);
+			bs.addBook(b);
+		}
+		return bs;
+	}
+
+	/**
+	 * Stands in for the application being killed.
+	 */
+	private static class Killed extends Error {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Opens files that stop being written after a number of bytes, counted
+	 * over all of them, and remembers how much was written to each.
+	 */
+	private static class Killer implements SafeFile.Opener {
+		private final long killedAt;
+		private final List<Long> lengths = new ArrayList<Long>();
+		private long written;
+
+		Killer(long killedAt) {
+			this.killedAt = killedAt;
+		}
+
+		public FileOutputStream open(File f) throws IOException {
+			final int file = lengths.size();
+			lengths.add(0L);
+			return new FileOutputStream(f) {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b) throws IOException {
+					write(b, 0, b.length);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len)
+						throws IOException {
+					int n = (int) Math.min(len, killedAt - written);
+					super.write(b, off, n);
+					written += n;
+					lengths.set(file, lengths.get(file) + n);
+					if (n < len) {
+						throw new Killed();
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,454 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for reading tags without the media framework. The files are
+ * generated: tags in each format, around a little data that is not audio.
+ * Comparing the reader with the media framework needs a device, and is done
+ * in {@link TrackCreatorTest}.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+public class TagReaderTest extends TestCase {
+	private static final String TAG = "TagReaderTest";
+
+	private static final String TITLE = "Chapter å";
+	private static final String ALBUM = "The Book";
+	private static final String ARTIST = "The Author";
+	private static final int TRACK = 7;
+	private static final int DURATION = 123456;
+
+	// the number of files of each format in the corpus
+	private static final int FILES_PER_FORMAT = 50;
+
+	private final List<File> files = new ArrayList<File>();
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : files) {
+			f.delete();
+		}
+		super.tearDown();
+	}
+
+	/**
+	 * Tests reading an ID3v2.3 tag, with text in UTF-16 and a large picture
+	 * before it that should be skipped.
+	 */
+	public void testId3v23() {
+		assertMetadata(DURATION, read(mp3()));
+	}
+
+	/**
+	 * Tests reading an ID3v2.4 tag in UTF-8 with a frame that is
+	 * unsynchronised, and an ID3v2.2 tag.
+	 */
+	public void testId3v24And22() {
+		byte[] title = unsync(concat(new byte[] { 3 }, TITLE.getBytes(UTF_8())));
+		byte[] v24 = id3v2(4, 0, frame4("TIT2", 0x02, title),
+				frame4("TALB", 0, text(3, ALBUM)),
+				frame4("TPE1", 0, text(3, ARTIST)),
+				frame4("TRCK", 0, text(3, Integer.toString(TRACK))),
+				frame4("TLEN", 0, text(3, Integer.toString(DURATION))));
+		assertMetadata(DURATION, read(concat(v24, mpegFrames())));
+
+		byte[] v22 = id3v2(2, 0, frame2("TT2", text(1, TITLE)),
+				frame2("TAL", text(0, ALBUM)), frame2("TP1", text(0, ARTIST)),
+				frame2("TRK", text(0, Integer.toString(TRACK))),
+				frame2("TLE", text(0, Integer.toString(DURATION))));
+		assertMetadata(DURATION, read(concat(v22, mpegFrames())));
+	}
+
+	/**
+	 * Tests reading an ID3v1 tag, which has no duration.
+	 */
+	public void testId3v1() {
+		TrackMetadata m = read(concat(mpegFrames(), id3v1()));
+		assertMetadata(TrackMetadata.UNKNOWN_DURATION, m);
+		assertFalse(m.hasDuration());
+
+		// the ID3v2 tag comes first
+		byte[] v23 = id3v2(3, 0, frame3("TIT2", text(0, "Other")));
+		assertEquals("Other", read(concat(v23, mpegFrames(), id3v1()))
+				.getTitle());
+	}
+
+	/**
+	 * Tests reading the atoms of an MP4 file.
+	 */
+	public void testMp4() {
+		assertMetadata(DURATION, read(mp4()));
+	}
+
+	/**
+	 * Tests reading an Ogg Vorbis file.
+	 */
+	public void testOgg() {
+		assertMetadata(DURATION, read(ogg()));
+	}
+
+	/**
+	 * Tests reading a FLAC file.
+	 */
+	public void testFlac() {
+		assertMetadata(DURATION, read(flac()));
+	}
+
+	/**
+	 * Tests that a file in another format is not read.
+	 */
+	public void testUnknownFormat() {
+		assertNull(read("RIFF....WAVEfmt ".getBytes()));
+		assertNull(read(new byte[0]));
+	}
+
+	/**
+	 * Tests that a damaged tag does not stop the reading.
+	 */
+	public void testDamagedTag() {
+		byte[] tag = id3v2(3, 0, frame3("TIT2", text(0, TITLE)));
+		// a frame that claims to go past the end of the tag
+		byte[] damaged = concat(tag, mpegFrames());
+		damaged[ID3_HEADER + 7] = 0x7f;
+		TrackMetadata m = read(damaged);
+		assertNotNull(m);
+		assertNull(m.getTitle());
+
+		// cut short
+		byte[] flac = flac();
+		byte[] cut = new byte[flac.length / 2];
+		System.arraycopy(flac, 0, cut, 0, cut.length);
+		assertNotNull(read(cut));
+	}
+
+	/**
+	 * Tests reading a corpus of files in all formats that have a duration,
+	 * each file from the start.
+	 */
+	public void testCorpus() {
+		byte[][] formats = { mp3(), mp4(), ogg(), flac() };
+		List<File> corpus = new ArrayList<File>();
+		for (byte[] format : formats) {
+			for (int i = 0; i < FILES_PER_FORMAT; i++) {
+				corpus.add(write(format));
+			}
+		}
+
+		for (File f : corpus) {
+			try {
+				assertMetadata(DURATION, TagReader.read(f));
+			} catch (IOException e) {
+				fail("Reading resulted in a IOException: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Asserts that the metadata holds what the generated files hold.
+	 */
+	private static void assertMetadata(int duration, TrackMetadata m) {
+		assertNotNull(m);
+		assertEquals(TITLE, m.getTitle());
+		assertEquals(ALBUM, m.getAlbum());
+		assertEquals(ARTIST, m.getArtist());
+		assertEquals(TRACK, m.getTrackNumber());
+		assertEquals(duration, m.getDuration());
+	}
+
+	/**
+	 * Writes the bytes to a file and reads its metadata.
+	 */
+	private TrackMetadata read(byte[] contents) {
+		try {
+			return TagReader.read(write(contents));
+		} catch (IOException e) {
+			fail("Reading resulted in a IOException: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private File write(byte[] contents) {
+		try {
+			File f = File.createTempFile(TAG, null);
+			files.add(f);
+			FileOutputStream out = new FileOutputStream(f);
+			try {
+				out.write(contents);
+			} finally {
+				out.close();
+			}
+			return f;
+		} catch (IOException e) {
+			fail("Writing resulted in a IOException: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/* ID3 */
+
+	private static final int ID3_HEADER = 10;
+
+	private static byte[] id3v2(int major, int flags, byte[]... frames) {
+		byte[] body = concat(concat(frames), new byte[16]); // padding
+		ByteBuffer b = ByteBuffer.allocate(ID3_HEADER + body.length);
+		b.put("ID3".getBytes()).put((byte) major).put((byte) 0)
+				.put((byte) flags).put(syncsafe(body.length)).put(body);
+		return b.array();
+	}
+
+	private static byte[] frame2(String id, byte[] body) {
+		ByteBuffer b = ByteBuffer.allocate(6 + body.length);
+		b.put(id.getBytes()).put((byte) (body.length >> 16))
+				.put((byte) (body.length >> 8)).put((byte) body.length)
+				.put(body);
+		return b.array();
+	}
+
+	private static byte[] frame3(String id, byte[] body) {
+		ByteBuffer b = ByteBuffer.allocate(10 + body.length);
+		b.put(id.getBytes()).putInt(body.length).putShort((short) 0)
+				.put(body);
+		return b.array();
+	}
+
+	private static byte[] frame4(String id, int flags, byte[] body) {
+		ByteBuffer b = ByteBuffer.allocate(10 + body.length);
+		b.put(id.getBytes()).put(syncsafe(body.length))
+				.putShort((short) flags).put(body);
+		return b.array();
+	}
+
+	/**
+	 * @return A text frame body in the encoding with the given number.
+	 */
+	private static byte[] text(int encoding, String s) {
+		String[] charsets = { "ISO-8859-1", "UTF-16", "UTF-16BE", "UTF-8" };
+		try {
+			return concat(new byte[] { (byte) encoding },
+					s.getBytes(charsets[encoding]), new byte[2]);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static byte[] syncsafe(int n) {
+		return new byte[] { (byte) ((n >> 21) & 0x7f),
+				(byte) ((n >> 14) & 0x7f), (byte) ((n >> 7) & 0x7f),
+				(byte) (n & 0x7f) };
+	}
+
+	/**
+	 * Puts a zero after each 0xff, as unsynchronisation does.
+	 */
+	private static byte[] unsync(byte[] b) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte x : b) {
+			out.write(x);
+			if (x == (byte) 0xff) {
+				out.write(0);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return An MP3 with an ID3v2.3 tag, with text in UTF-16 and a large
+	 *         picture before it.
+	 */
+	private static byte[] mp3() {
+		byte[] tag = id3v2(3, 0, frame3("APIC", new byte[100000]),
+				frame3("TIT2", text(1, TITLE)), frame3("TALB", text(0, ALBUM)),
+				frame3("TPE1", text(0, ARTIST)),
+				frame3("TRCK", text(0, TRACK + "/12")),
+				frame3("TLEN", text(0, Integer.toString(DURATION))));
+		return concat(tag, mpegFrames());
+	}
+
+	private static byte[] id3v1() {
+		byte[] t = new byte[128];
+		System.arraycopy("TAG".getBytes(), 0, t, 0, 3);
+		put(t, 3, TITLE.getBytes(latin1()));
+		put(t, 33, ARTIST.getBytes());
+		put(t, 63, ALBUM.getBytes());
+		t[126] = TRACK;
+		return t;
+	}
+
+	private static byte[] mpegFrames() {
+		byte[] b = new byte[1024];
+		b[0] = (byte) 0xff;
+		b[1] = (byte) 0xfb;
+		return b;
+	}
+
+	/* MP4 */
+
+	private static byte[] mp4() {
+		ByteBuffer mvhd = ByteBuffer.allocate(100);
+		mvhd.putInt(0).putInt(0).putInt(0).putInt(1000).putInt(DURATION);
+		ByteBuffer trkn = ByteBuffer.allocate(8);
+		trkn.putShort((short) 0).putShort((short) TRACK).putShort((short) 12);
+		byte[] ilst = atom("ilst", item("©nam", TITLE.getBytes(UTF_8())),
+				item("©alb", ALBUM.getBytes()),
+				item("©ART", ARTIST.getBytes()),
+				item("trkn", trkn.array()));
+		byte[] meta = atom("meta", new byte[4], atom("hdlr", new byte[25]),
+				ilst);
+		byte[] moov = atom("moov", atom("mvhd", mvhd.array()),
+				atom("trak", new byte[2000]), atom("udta", meta));
+		return concat(atom("ftyp", "M4B ".getBytes(), new byte[8]), moov,
+				atom("mdat", new byte[1024]));
+	}
+
+	private static byte[] atom(String type, byte[]... children) {
+		byte[] body = concat(children);
+		ByteBuffer b = ByteBuffer.allocate(8 + body.length);
+		b.putInt(8 + body.length).put(type.getBytes(latin1())).put(body);
+		return b.array();
+	}
+
+	private static byte[] item(String type, byte[] value) {
+		ByteBuffer data = ByteBuffer.allocate(8 + value.length);
+		data.putInt(1).putInt(0).put(value);
+		return atom(type, atom("data", data.array()));
+	}
+
+	/* Ogg and FLAC */
+
+	private static final int RATE = 44100;
+
+	private static byte[] ogg() {
+		ByteBuffer id = le(30);
+		id.put((byte) 1).put("vorbis".getBytes()).putInt(0).put((byte) 2)
+				.putInt(RATE);
+		// a comment header over two pages
+		byte[] comments = concat(new byte[] { 3 }, "vorbis".getBytes(),
+				vorbisComments(), new byte[] { 1 });
+		byte[] first = new byte[255 * 2];
+		byte[] rest = new byte[comments.length - first.length];
+		System.arraycopy(comments, 0, first, 0, first.length);
+		System.arraycopy(comments, first.length, rest, 0, rest.length);
+
+		long samples = (long) DURATION * RATE / 1000;
+		return concat(oggPage(0, id.array(), true), oggPage(0, first, false),
+				oggPage(0, rest, true), oggPage(-1, new byte[300], true),
+				oggPage(samples, new byte[100], true));
+	}
+
+	/**
+	 * @return A page holding the bytes as one packet, or the start of one if
+	 *         it does not end in the page.
+	 */
+	private static byte[] oggPage(long granule, byte[] body, boolean ends) {
+		ByteArrayOutputStream lacing = new ByteArrayOutputStream();
+		int n = body.length;
+		while (n >= 255) {
+			lacing.write(255);
+			n -= 255;
+		}
+		if (ends) {
+			lacing.write(n);
+		}
+		ByteBuffer h = le(27);
+		h.put("OggS".getBytes()).put((byte) 0).put((byte) 0).putLong(granule)
+				.putInt(1).putInt(0).putInt(0).put((byte) lacing.size());
+		return concat(h.array(), lacing.toByteArray(), body);
+	}
+
+	private static byte[] flac() {
+		long samples = (long) DURATION * RATE / 1000;
+		ByteBuffer info = ByteBuffer.allocate(34);
+		info.position(10);
+		info.put((byte) (RATE >> 12)).put((byte) (RATE >> 4))
+				.put((byte) ((RATE & 0x0f) << 4 | 0x02))
+				.put((byte) (0xf0 | (samples >> 32)))
+				.putInt((int) samples);
+		return concat("fLaC".getBytes(), flacBlock(0, false, info.array()),
+				flacBlock(6, false, new byte[5000]),
+				flacBlock(4, true, vorbisComments()), new byte[1024]);
+	}
+
+	private static byte[] flacBlock(int type, boolean last, byte[] body) {
+		return concat(new byte[] { (byte) (type | (last ? 0x80 : 0)),
+				(byte) (body.length >> 16), (byte) (body.length >> 8),
+				(byte) body.length }, body);
+	}
+
+	private static byte[] vorbisComments() {
+		String[] comments = { "title=" + TITLE, "ALBUM=" + ALBUM,
+				"Artist=" + ARTIST, "TRACKNUMBER=" + TRACK + "/12",
+				"COMMENT=" + new String(new char[1000]).replace('\0', 'x') };
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] vendor = "test".getBytes();
+		write(out, le(4).putInt(vendor.length).array());
+		write(out, vendor);
+		write(out, le(4).putInt(comments.length).array());
+		for (String c : comments) {
+			byte[] b = c.getBytes(UTF_8());
+			write(out, le(4).putInt(b.length).array());
+			write(out, b);
+		}
+		return out.toByteArray();
+	}
+
+	/* Bytes */
+
+	private static ByteBuffer le(int n) {
+		return ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts) {
+			write(out, part);
+		}
+		return out.toByteArray();
+	}
+
+	private static void write(ByteArrayOutputStream out, byte[] b) {
+		out.write(b, 0, b.length);
+	}
+
+	private static void put(byte[] to, int offset, byte[] b) {
+		System.arraycopy(b, 0, to, offset, b.length);
+	}
+
+	private static java.nio.charset.Charset UTF_8() {
+		return java.nio.charset.Charset.forName("UTF-8");
+	}
+
+	private static java.nio.charset.Charset latin1() {
+		return java.nio.charset.Charset.forName("ISO-8859-1");
+	}
+}
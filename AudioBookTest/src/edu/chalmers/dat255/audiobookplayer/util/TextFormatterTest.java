@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.util;
@@ -17,7 +17,7 @@ import junit.framework.TestCase;
 import edu.chalmers.dat255.audiobookplayer.constants.Constants;
 
 /**
- * @author Aki Kkel
+ * @author Aki Käkelä
  * @version 0.1
  * 
  */
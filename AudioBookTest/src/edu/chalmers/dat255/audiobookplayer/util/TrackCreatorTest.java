@@ -8,19 +8,23 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.util;
 
+import java.io.File;
+import java.io.IOException;
+
 import junit.framework.TestCase;
 import android.os.Environment;
+import android.util.Log;
 import edu.chalmers.dat255.audiobookplayer.model.Track;
 
 /**
  * JUnit test for TrackCreator class.
  * 
- * @author Marcus Parkkinen, Aki Kkel
+ * @author Marcus Parkkinen, Aki Käkelä
  * 
  *         NOTE: in order for the test to pass, a valid path to an audio track
  *         on the device must be specified in VALID_PATH.
@@ -45,6 +49,11 @@ public class TrackCreatorTest extends TestCase {
 
 	private static final String INVALID_PATH = "/invalidPath/myInvalidTrack.mp3";
 
+	private static final String TAG = "TrackCreatorTest";
+	// how far the durations of the tag reader and the retriever may differ
+	private static final int DURATION_TOLERANCE = 1000;
+	private static final int ROUNDS = 20;
+
 	/**
 	 * Tests if creating tracks works as intended.
 	 */
@@ -72,4 +81,46 @@ public class TrackCreatorTest extends TestCase {
 			assertNull(t);
 		}
 	}
+
+	/**
+	 * Tests that the tag reader reads the same metadata as the media
+	 * framework from the track in VALID_PATH, and logs the time each takes.
+	 * This needs the track on a device, and passes without it.
+	 */
+	public void testTagReaderAgainstRetriever() {
+		File f = new File(VALID_PATH);
+		if (!f.isFile()) {
+			Log.i(TAG, "No track at " + VALID_PATH + "; skipping");
+			return;
+		}
+
+		TrackMetadata tags = null;
+		long reader = System.nanoTime();
+		try {
+			for (int i = 0; i < ROUNDS; i++) {
+				tags = TagReader.read(f, true);
+			}
+		} catch (IOException e) {
+			fail("Reading resulted in a IOException: " + e.getMessage());
+		}
+		reader = System.nanoTime() - reader;
+
+		TrackMetadata retrieved = null;
+		long retriever = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			retrieved = TrackCreator.retrieveMetadata(VALID_PATH);
+		}
+		retriever = System.nanoTime() - retriever;
+
+		assertNotNull(tags);
+		assertEquals(retrieved.getTitle(), tags.getTitle());
+		assertEquals(retrieved.getAlbum(), tags.getAlbum());
+		assertEquals(retrieved.getArtist(), tags.getArtist());
+		assertTrue(Math.abs(retrieved.getDuration() - tags.getDuration())
+				<= DURATION_TOLERANCE);
+
+		Log.i(TAG, "Tag reader: " + reader / ROUNDS / 1000
+				+ " us, retriever: " + retriever / ROUNDS / 1000
+				+ " us per read of " + VALID_PATH);
+	}
 }
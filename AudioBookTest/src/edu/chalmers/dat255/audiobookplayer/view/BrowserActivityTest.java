@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.view;
@@ -26,7 +26,7 @@ import edu.chalmers.dat255.audiobookplayer.R;
 /**
  * Tests the BrowserActivity class.
  * 
- * @author Fredrik hs
+ * @author Fredrik Åhs
  * 
  */
 public class BrowserActivityTest extends
@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.constants;
@@ -16,15 +16,18 @@ package edu.chalmers.dat255.audiobookplayer.constants;
 /**
  * Contains hard-coded values.
  * 
- * @author Aki Kkel
+ * @author Aki Käkelä
  * @version 0.3
  */
 public final class Constants {
 	/**
 	 * Holds unique property names ensuring that property names match if
 	 * intended to do so and that property name changing is simple.
+	 * <p>
+	 * The events are fired as BookshelfEvents. The old and new values they
+	 * carry are described for each event; the rest is left as null.
 	 * 
-	 * @author Aki Kkel, Marcus Parkkinen
+	 * @author Aki Käkelä, Marcus Parkkinen
 	 * 
 	 */
 	public static final class Event {
@@ -32,49 +35,56 @@ public final class Constants {
 		// Bookshelf update events
 		/**
 		 * Called when the bookshelf is populated when a new instance of this
-		 * application is run.
+		 * application is run. Carries no values; listeners should ask the
+		 * bookshelf for a snapshot.
 		 */
 		public static final String BOOKSHELF_UPDATED = "!bookshelfUpdated";
 
 		// Book update events
 		/**
-		 * Called when books are removed, added, or moved.
+		 * Called when books are removed, added, or moved. When moved, the old
+		 * and new values are the old and new index.
 		 */
 		public static final String BOOK_LIST_CHANGED = "!booksChanged";
 		/**
-		 * Called when tracks are removed, added, or moved.
+		 * Called when tracks are removed, added, or moved. When moved, the old
+		 * and new values are the old and new index.
 		 */
 		public static final String TRACK_LIST_CHANGED = "!tracksChanged";
 
 		/**
-		 * Called when a book is selected.
+		 * Called when a book is selected. The values are the old and new book
+		 * index.
 		 */
 		public static final String BOOK_SELECTED = "!bookSelected";
 		/**
-		 * Called when the title of a book is changed.
+		 * Called when the title of a book is changed. The values are the old
+		 * and new title.
 		 */
 		public static final String BOOK_TITLE_CHANGED = "!bookTitleChanged";
 
 		/**
 		 * Called when the elapsed time of a track (usually, or probably
 		 * exclusively, the currently selected track in the currently selected
-		 * book) has changed.
+		 * book) has changed. The values are the old and new elapsed time of
+		 * the track.
 		 */
 		public static final String ELAPSED_TIME_CHANGED = "!elapsedTimeChanged";
 		/**
-		 * Called when the track index of a book is changed.
+		 * Called when the track index of a book is changed. The values are the
+		 * old and new track index.
 		 */
 		public static final String TRACK_INDEX_CHANGED = "!trackIndexChanged";
 
-		/*
-		 * Unimplemented properties below.
-		 */
 		/**
-		 * Called when a tag is added to a track.
+		 * Called when tags are added to a track. The new value is the time of
+		 * the added tag, or an int[] with the times given to an import. The
+		 * tags of a track are kept in order of time.
 		 */
 		public static final String TAG_ADDED = "!tagAdded";
 		/**
-		 * Called when a tag is removed from a track.
+		 * Called when a tag is removed from a track. The old value is the
+		 * index the tag had in the track.
 		 */
 		public static final String TAG_REMOVED = "!tagRemoved";
 
@@ -97,7 +107,7 @@ public final class Constants {
 	/**
 	 * Contains hard-coded integer values.
 	 * 
-	 * @author Aki Kkel
+	 * @author Aki Käkelä
 	 * 
 	 */
 	public static final class Value {
@@ -106,6 +116,40 @@ public final class Constants {
 		 */
 		public static final int UPDATE_FREQUENCY = 200;
 
+		/**
+		 * How often (ms) the playback position is written to the model while
+		 * playing. The GUI is updated more often than this from the player.
+		 */
+		public static final int CHECKPOINT_FREQUENCY = 5000;
+
+		/**
+		 * How long (ms) the bookshelf is autosaved after the last change of its
+		 * books or tracks, if no more changes come.
+		 */
+		public static final int AUTOSAVE_QUIET_PERIOD = 2000;
+		/**
+		 * How long (ms) a change of the books or tracks may go without being
+		 * autosaved, however many changes follow it.
+		 */
+		public static final int AUTOSAVE_MAX_DELAY = 10000;
+
+		/**
+		 * The most threads that read the metadata of tracks being imported
+		 * at once. Fewer are used on devices with fewer processors.
+		 */
+		public static final int MAX_IMPORT_WORKERS = 4;
+		/**
+		 * The most tracks whose metadata is kept in the metadata cache. The
+		 * track used least recently is evicted first.
+		 */
+		public static final int METADATA_CACHE_SIZE = 5000;
+		/**
+		 * How long (ms) a media metadata retriever is kept after its last
+		 * use before its native resources are released. As many are kept as
+		 * there are import workers.
+		 */
+		public static final int RETRIEVER_IDLE_TIMEOUT = 10000;
+
 		/**
 		 * The number of zones in a seek bar; the possible values its progress
 		 * can take.
@@ -123,6 +167,10 @@ public final class Constants {
 		 * The index that the system should interpret as "none selected"
 		 */
 		public static final int NO_TRACK_SELECTED = -1;
+		/**
+		 * The time that the system should interpret as "no tag found"
+		 */
+		public static final int NO_TAG = -1;
 
 		/**
 		 * The maximum title length allowed in the GUI before the text is
@@ -135,7 +183,7 @@ public final class Constants {
 	/**
 	 * Contains GUI-messages.
 	 * 
-	 * @author Aki Kkel
+	 * @author Aki Käkelä
 	 * 
 	 */
 	public static final class Message {
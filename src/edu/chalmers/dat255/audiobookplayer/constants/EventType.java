@@ -0,0 +1,78 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.constants;
+
+/**
+ * The kinds of events fired by the bookshelf. Listeners can be registered for
+ * a single kind, and are then only called for events of that kind.
+ * <p>
+ * Each kind has a property name (see Constants.Event), which is what the
+ * fired events carry as their property name.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+public enum EventType {
+	/**
+	 * The bookshelf was populated or a listener was added.
+	 */
+	BOOKSHELF_UPDATED(Constants.Event.BOOKSHELF_UPDATED),
+	/**
+	 * Books were removed, added, or moved.
+	 */
+	BOOK_LIST_CHANGED(Constants.Event.BOOK_LIST_CHANGED),
+	/**
+	 * Tracks were removed, added, or moved.
+	 */
+	TRACK_LIST_CHANGED(Constants.Event.TRACK_LIST_CHANGED),
+	/**
+	 * A book was selected.
+	 */
+	BOOK_SELECTED(Constants.Event.BOOK_SELECTED),
+	/**
+	 * The title of a book was changed.
+	 */
+	BOOK_TITLE_CHANGED(Constants.Event.BOOK_TITLE_CHANGED),
+	/**
+	 * The elapsed time of a track was changed.
+	 */
+	ELAPSED_TIME_CHANGED(Constants.Event.ELAPSED_TIME_CHANGED),
+	/**
+	 * The selected track of a book was changed.
+	 */
+	TRACK_INDEX_CHANGED(Constants.Event.TRACK_INDEX_CHANGED),
+	/**
+	 * A tag was added to a track.
+	 */
+	TAG_ADDED(Constants.Event.TAG_ADDED),
+	/**
+	 * A tag was removed from a track.
+	 */
+	TAG_REMOVED(Constants.Event.TAG_REMOVED);
+
+	private final String propertyName;
+
+	private EventType(String propertyName) {
+		this.propertyName = propertyName;
+	}
+
+	/**
+	 * @return The property name of events of this kind.
+	 */
+	public String getPropertyName() {
+		return propertyName;
+	}
+}
@@ -8,14 +8,14 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 package edu.chalmers.dat255.audiobookplayer.constants;
 
 /**
  * Contains the possible playback statuses.
  * 
- * @author Aki Kkel
+ * @author Aki Käkelä
  * @version 0.1
  * 
  */
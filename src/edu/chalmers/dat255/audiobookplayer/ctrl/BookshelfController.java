@@ -8,36 +8,60 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.ctrl;
 
 import java.beans.PropertyChangeListener;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
 import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+import edu.chalmers.dat255.audiobookplayer.constants.EventType;
 import edu.chalmers.dat255.audiobookplayer.interfaces.IBookshelfEvents;
 import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor.Command;
+import edu.chalmers.dat255.audiobookplayer.util.BookshelfAutosave;
 import edu.chalmers.dat255.audiobookplayer.util.BookshelfHandler;
+import edu.chalmers.dat255.audiobookplayer.util.BookshelfJournal;
 
 /**
  * Manages setting the current book and bookshelf, as well as saving it when the
  * application terminates.
  * 
- * @author Marcus Parkkinen, Aki Kkel
- * @version 0.7
+ * @author Marcus Parkkinen, Aki Käkelä
+ * @version 0.8
  */
 public class BookshelfController implements IBookshelfEvents {
-	private Bookshelf bookshelf;
+	private ModelExecutor model;
+	private BookshelfJournal journal;
+	private BookshelfAutosave autosave;
 
 	/**
-	 * Bookshelf constructor.
+	 * Bookshelf constructor. The bookshelf is given an executor of its own;
+	 * use {@link #BookshelfController(ModelExecutor)} to share one with other
+	 * controllers.
 	 * 
 	 * @param bs
 	 */
 	public BookshelfController(Bookshelf bs) {
-		bookshelf = bs;
+		if (bs != null) {
+			model = new ModelExecutor(bs);
+		}
+	}
+
+	/**
+	 * Creates a controller that changes the bookshelf through the given
+	 * executor.
+	 * 
+	 * @param model
+	 *            The executor of the bookshelf.
+	 */
+	public BookshelfController(ModelExecutor model) {
+		this.model = model;
 	}
 
 	/**
@@ -45,9 +69,13 @@ public class BookshelfController implements IBookshelfEvents {
 	 * 
 	 * @param index
 	 */
-	public void setSelectedBook(int index) {
-		if (bookshelf != null) {
-			bookshelf.setSelectedBookIndex(index);
+	public void setSelectedBook(final int index) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					bookshelf.setSelectedBookIndex(index);
+				}
+			});
 		}
 	}
 
@@ -57,8 +85,8 @@ public class BookshelfController implements IBookshelfEvents {
 	 * @return
 	 */
 	public int getSelectedBookIndex() {
-		if (bookshelf != null) {
-			return bookshelf.getSelectedBookIndex();
+		if (model != null) {
+			return model.getSnapshot().getSelectedBookIndex();
 		}
 		return Constants.Value.NO_BOOK_SELECTED;
 	}
@@ -69,8 +97,8 @@ public class BookshelfController implements IBookshelfEvents {
 	 * @return
 	 */
 	public int getSelectedTrackIndex() {
-		if (bookshelf != null) {
-			return bookshelf.getSelectedTrackIndex();
+		if (model != null) {
+			return model.getSnapshot().getSelectedTrackIndex();
 		}
 		return Constants.Value.NO_TRACK_SELECTED;
 	}
@@ -85,12 +113,16 @@ public class BookshelfController implements IBookshelfEvents {
 	 * @see edu.chalmers.dat255.audiobookplayer.interfaces.IBookshelfEvents#
 	 * setSelectedTrack(int, int)
 	 */
-	public void setSelectedTrack(int bookIndex, int trackIndex) {
-		if (bookshelf != null) {
-			if (bookshelf.getSelectedBookIndex() != bookIndex) {
-				bookshelf.setSelectedBookIndex(bookIndex);
-			}
-			bookshelf.setSelectedTrackIndex(bookIndex, trackIndex);
+	public void setSelectedTrack(final int bookIndex, final int trackIndex) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					if (bookshelf.getSelectedBookIndex() != bookIndex) {
+						bookshelf.setSelectedBookIndex(bookIndex);
+					}
+					bookshelf.setSelectedTrackIndex(bookIndex, trackIndex);
+				}
+			});
 		}
 	}
 
@@ -101,13 +133,17 @@ public class BookshelfController implements IBookshelfEvents {
 	 * edu.chalmers.dat255.audiobookplayer.interfaces.IBookshelfEvents#removeBook
 	 * (int)
 	 */
-	public void removeBook(int bookIndex) {
-		if (bookshelf != null) {
-			try {
-				bookshelf.removeBookAt(bookIndex);
-			} catch (IndexOutOfBoundsException e) {
-				// Expected when trying to remove last book.
-			}
+	public void removeBook(final int bookIndex) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					try {
+						bookshelf.removeBookAt(bookIndex);
+					} catch (IndexOutOfBoundsException e) {
+						// Expected when trying to remove last book.
+					}
+				}
+			});
 		}
 	}
 
@@ -117,9 +153,13 @@ public class BookshelfController implements IBookshelfEvents {
 	 * @see edu.chalmers.dat255.audiobookplayer.interfaces.IBookshelfEvents#
 	 * setBookTitleAt(int, java.lang.String)
 	 */
-	public void setBookTitleAt(int bookIndex, String newTitle) {
-		if (bookshelf != null) {
-			bookshelf.setSelectedBookTitle(newTitle);
+	public void setBookTitleAt(int bookIndex, final String newTitle) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					bookshelf.setSelectedBookTitle(newTitle);
+				}
+			});
 		}
 	}
 
@@ -130,13 +170,18 @@ public class BookshelfController implements IBookshelfEvents {
 	 * edu.chalmers.dat255.audiobookplayer.interfaces.IBookshelfEvents#removeTrack
 	 * (int)
 	 */
-	public void removeTrack(int trackIndex) {
-		if (bookshelf != null) {
-			try {
-				bookshelf.removeTrack(trackIndex);
-			} catch (IndexOutOfBoundsException e) {
-				// Expected when trying to remove last track in last book.
-			}
+	public void removeTrack(final int trackIndex) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					try {
+						bookshelf.removeTrack(trackIndex);
+					} catch (IndexOutOfBoundsException e) {
+						// Expected when trying to remove last track in last
+						// book.
+					}
+				}
+			});
 		}
 	}
 
@@ -147,9 +192,13 @@ public class BookshelfController implements IBookshelfEvents {
 	 * edu.chalmers.dat255.audiobookplayer.interfaces.IBookshelfEvents#removeTrack
 	 * (int, int)
 	 */
-	public void removeTrack(int bookIndex, int trackIndex) {
-		if (bookshelf != null) {
-			bookshelf.removeTrack(bookIndex, trackIndex);
+	public void removeTrack(final int bookIndex, final int trackIndex) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					bookshelf.removeTrack(bookIndex, trackIndex);
+				}
+			});
 		}
 	}
 
@@ -160,13 +209,19 @@ public class BookshelfController implements IBookshelfEvents {
 	 * edu.chalmers.dat255.audiobookplayer.interfaces.IBookshelfEvents#moveTrack
 	 * (int, int, int)
 	 */
-	public void moveTrack(int bookIndex, int trackIndex, int offset) {
-		if (bookshelf != null) {
-			try {
-				bookshelf.moveTrack(bookIndex, trackIndex, offset);
-			} catch (IndexOutOfBoundsException e) {
-				// Expected when trying to move a track to an illegal position.
-			}
+	public void moveTrack(final int bookIndex, final int trackIndex,
+			final int offset) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					try {
+						bookshelf.moveTrack(bookIndex, trackIndex, offset);
+					} catch (IndexOutOfBoundsException e) {
+						// Expected when trying to move a track to an illegal
+						// position.
+					}
+				}
+			});
 		}
 	}
 
@@ -175,14 +230,119 @@ public class BookshelfController implements IBookshelfEvents {
 	 */
 
 	/**
-	 * Adds a listener to the bookshelf (model).
+	 * Adds a listener to the bookshelf (model). The listener is called on the
+	 * model thread.
 	 * 
 	 * @param pcl
 	 *            The listener to add.
 	 */
-	public void addPropertyChangeListener(PropertyChangeListener pcl) {
-		if (bookshelf != null) {
-			bookshelf.addPropertyChangeListener(pcl);
+	public void addPropertyChangeListener(final PropertyChangeListener pcl) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					bookshelf.addPropertyChangeListener(pcl);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Adds a listener of one kind of events to the bookshelf (model). The
+	 * listener is called on the model thread.
+	 * 
+	 * @param type
+	 *            The kind of events to listen to.
+	 * @param pcl
+	 *            The listener to add.
+	 */
+	public void addPropertyChangeListener(final EventType type,
+			final PropertyChangeListener pcl) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					bookshelf.addPropertyChangeListener(type, pcl);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Removes a listener from the bookshelf (model), from all kinds of events
+	 * it listens to.
+	 * 
+	 * @param pcl
+	 *            The listener to remove.
+	 */
+	public void removePropertyChangeListener(
+			final PropertyChangeListener pcl) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					bookshelf.removePropertyChangeListener(pcl);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Starts journaling the changes of the bookshelf. From now on, saving the
+	 * bookshelf of the journaled user goes through the journal.
+	 * 
+	 * @param j
+	 *            The journal.
+	 */
+	public void setJournal(final BookshelfJournal j) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					// start from this very state, so no change is missed
+					j.start(bookshelf.getSnapshot());
+					for (EventType type : j.getEventTypes()) {
+						bookshelf.addPropertyChangeListener(type, j);
+					}
+				}
+			});
+			journal = j;
+		}
+	}
+
+	/**
+	 * Starts autosaving the bookshelf in the background after its books or
+	 * tracks change. From now on, saving the bookshelf of the journaled user
+	 * also counts as an autosave.
+	 * 
+	 * @param a
+	 *            The autosave.
+	 */
+	public void setAutosave(final BookshelfAutosave a) {
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					for (EventType type : a.getEventTypes()) {
+						bookshelf.addPropertyChangeListener(type, a);
+					}
+				}
+			});
+			autosave = a;
+		}
+	}
+
+	/**
+	 * Stops saving the bookshelf in the background, saving what the autosave
+	 * had not yet saved, and closes the journal once it has written what it
+	 * was given. Called when the bookshelf is no longer used, as when the
+	 * application is closed or the profile is switched.
+	 */
+	public void shutdown() {
+		if (autosave != null) {
+			removePropertyChangeListener(autosave);
+			autosave.shutdown();
+			autosave = null;
+		}
+		if (journal != null) {
+			removePropertyChangeListener(journal);
+			journal.close();
+			journal = null;
 		}
 	}
 
@@ -190,13 +350,18 @@ public class BookshelfController implements IBookshelfEvents {
 	 * Removes all listeners from the model.
 	 */
 	public void removeListeners() {
-		if (bookshelf != null) {
-			bookshelf.removeListeners();
+		if (model != null) {
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					bookshelf.removeListeners();
+				}
+			});
 		}
 	}
 
 	/**
-	 * Saves the model (a "Bookmark").
+	 * Saves the model (a "Bookmark"). Saves the snapshot taken after the last
+	 * finished change, so the model thread is not held up while writing.
 	 * 
 	 * @param c
 	 *            Context
@@ -205,7 +370,24 @@ public class BookshelfController implements IBookshelfEvents {
 	 * @return True if saved successfully.
 	 */
 	public boolean saveBookshelf(Context c, String username) {
-		return BookshelfHandler.saveBookshelf(c, username, bookshelf);
+		if (autosave != null
+				&& autosave.getJournal().getUsername().equals(username)) {
+			// also cancels the autosave that is waiting, if any
+			return autosave.saveNow();
+		}
+		if (journal != null && journal.getUsername().equals(username)) {
+			// take the snapshot in line with the journal, then wait
+			final AtomicReference<Future<Boolean>> save = new AtomicReference<Future<Boolean>>();
+			model.run(new Command() {
+				public void execute(Bookshelf bookshelf) {
+					save.set(journal.compact(bookshelf.getSnapshot()));
+				}
+			});
+			return BookshelfJournal.await(save.get());
+		}
+
+		Bookshelf bs = model == null ? null : model.getSnapshot();
+		return BookshelfHandler.saveBookshelf(c, username, bs);
 	}
 
 }
@@ -0,0 +1,105 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+package edu.chalmers.dat255.audiobookplayer.ctrl;
+
+import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+
+/**
+ * The current playback position: the playing track and its elapsed time.
+ * <p>
+ * The player writes the position several times a second without touching the
+ * model, and the GUI reads it whenever it redraws. Both values are kept in a
+ * single volatile long, so reading and writing needs no locks, allocates
+ * nothing and always gives a track index and elapsed time that belong
+ * together. There must only be one writer.
+ * <p>
+ * The model is only given the position at checkpoints (see PlayerController).
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+public final class PlaybackPosition {
+	private static final long LOW_BITS = 0xffffffffL;
+	private static final int HIGH_SHIFT = 32;
+
+	private volatile long position = pack(
+			Constants.Value.NO_TRACK_SELECTED, 0);
+
+	/**
+	 * Sets the position. Must only be called by the player.
+	 * 
+	 * @param trackIndex
+	 *            The index of the playing track.
+	 * @param elapsedTime
+	 *            The elapsed time of the track (ms).
+	 */
+	void set(int trackIndex, int elapsedTime) {
+		position = pack(trackIndex, elapsedTime);
+	}
+
+	/**
+	 * Returns the position as a single value, to be taken apart with
+	 * {@link #getTrackIndex(long)} and {@link #getElapsedTime(long)}. Two
+	 * equal values mean the same position.
+	 * 
+	 * @return The current position.
+	 */
+	public long get() {
+		return position;
+	}
+
+	/**
+	 * @param position
+	 *            A position given by {@link #get()}.
+	 * @return The index of the playing track, or
+	 *         Constants.Value.NO_TRACK_SELECTED if nothing has been played.
+	 */
+	public static int getTrackIndex(long position) {
+		return (int) (position >> HIGH_SHIFT);
+	}
+
+	/**
+	 * @param position
+	 *            A position given by {@link #get()}.
+	 * @return The elapsed time of the playing track (ms).
+	 */
+	public static int getElapsedTime(long position) {
+		return (int) (position & LOW_BITS);
+	}
+
+	/**
+	 * @param position
+	 *            A position given by {@link #get()}.
+	 * @param bs
+	 *            A bookshelf, which may be empty.
+	 * @return True if the position is in the selected track of the selected
+	 *         book, false if it is in another track or no book is selected.
+	 */
+	public static boolean isInSelectedTrack(long position, Bookshelf bs) {
+		if (bs.getSelectedBookIndex() == Constants.Value.NO_BOOK_SELECTED) {
+			return false;
+		}
+		return getTrackIndex(position) == bs.getSelectedTrackIndex();
+	}
+
+	/**
+	 * Puts a track index and an elapsed time in one value.
+	 */
+	private static long pack(int trackIndex, int elapsedTime) {
+		return ((long) trackIndex << HIGH_SHIFT) | (elapsedTime & LOW_BITS);
+	}
+
+}
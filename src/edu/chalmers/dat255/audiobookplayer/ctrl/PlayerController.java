@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.ctrl;
@@ -23,16 +23,24 @@ import android.util.Log;
 import edu.chalmers.dat255.audiobookplayer.constants.Constants;
 import edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents;
 import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor.Command;
 
 /**
  * Manages playing audio files. When its functions are called it will mutate the
  * bookshelf.
  * <p>
- * Handles timed updates of the model.
+ * Publishes the playback position several times a second (see
+ * {@link #getPlaybackPosition()}), and writes it to the model at checkpoints:
+ * every few seconds while playing, and when pausing, stopping or changing
+ * track.
+ * <p>
+ * The bookshelf is only changed through its model executor, and read from
+ * its snapshots.
  * <p>
  * Wraps the android.media.MediaPlayer class.
  * 
- * @author Aki Kkel
+ * @author Aki Käkelä
  * @version 0.6
  */
 public class PlayerController implements IPlayerEvents, OnPreparedListener,
@@ -45,12 +53,12 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 	private MediaPlayer mp;
 
 	/**
-	 * The model to mutate
+	 * Runs the changes of the model
 	 */
-	private Bookshelf bs;
+	private final ModelExecutor model;
 
 	/**
-	 * An update thread which writes the elapsed time to the model
+	 * An update thread which publishes the elapsed time and checkpoints it
 	 */
 	private Thread trackTimeUpdateThread;
 
@@ -65,18 +73,51 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 	 */
 	private transient int seekPosition = 0;
 
+	/**
+	 * The position of the playing track, read by the GUI
+	 */
+	private final PlaybackPosition position = new PlaybackPosition();
+
+	/**
+	 * The index of the track given to the media player at setup
+	 */
+	private volatile int playingTrackIndex = Constants.Value.NO_TRACK_SELECTED;
+
 	private static final int UPDATE_FREQUENCY = Constants.Value.UPDATE_FREQUENCY;
+	private static final int CHECKPOINT_FREQUENCY = Constants.Value.CHECKPOINT_FREQUENCY;
 
 	private static final double ONE_TENTH = 0.1; // 10%
 	private static final double MAX_SEEK_PERCENTAGE = 1.0; // 100%
 
+	/**
+	 * Writes the last published position to the model
+	 */
+	private final Command checkpointCommand = new Command() {
+		public void execute(Bookshelf bs) {
+			checkpoint(bs);
+		}
+	};
+
 	/**
 	 * Creates a PlayerController instance and initializes the Media Player and
-	 * Bookshelf.
+	 * Bookshelf. The bookshelf is given an executor of its own; use
+	 * {@link #PlayerController(ModelExecutor)} to share one with other
+	 * controllers.
 	 */
 	public PlayerController(Bookshelf bs) {
+		this(new ModelExecutor(bs));
+	}
+
+	/**
+	 * Creates a PlayerController instance that changes the bookshelf through
+	 * the given executor.
+	 * 
+	 * @param model
+	 *            The executor of the bookshelf.
+	 */
+	public PlayerController(ModelExecutor model) {
 		this.mp = new MediaPlayer();
-		this.bs = bs;
+		this.model = model;
 	}
 
 	/**
@@ -125,6 +166,8 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 		isStarted = false;
 		seekPosition = 0;
 
+		Bookshelf bs = model.getSnapshot();
+
 		// do nothing if no track is selected
 		if (bs.getSelectedTrackIndex() == Constants.Value.NO_TRACK_SELECTED) {
 			Log.i(TAG, "Stopping since track index is not selected.");
@@ -150,6 +193,10 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 			// stop any currently running timer
 			stopTimer();
 
+			// the new track has not been played yet
+			playingTrackIndex = bs.getSelectedTrackIndex();
+			position.set(playingTrackIndex, 0);
+
 			/*
 			 * Reset the media player and then prepare it, providing a file
 			 * path.
@@ -203,6 +250,12 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 	 * Reverts what setup does.
 	 */
 	private void tearDown() {
+		// keep the position in the model before stopping
+		if (isPlaying()) {
+			updateTrackTime();
+		}
+		checkpoint();
+
 		seekPosition = 0;
 		isStarted = false;
 		stopTimer();
@@ -216,9 +269,11 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 	/**
 	 * Convenience method.
 	 * 
+	 * @param bs
+	 *            The bookshelf or a snapshot of it.
 	 * @return
 	 */
-	private int getTrackDuration() {
+	private int getTrackDuration(Bookshelf bs) {
 		// check that there is a selected track
 		if (bs.getSelectedTrackIndex() != Constants.Value.NO_TRACK_SELECTED) {
 			return bs.getSelectedTrackDuration();
@@ -239,6 +294,10 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 		if (isStarted && mp.isPlaying()) {
 			stopTimer();
 			mp.pause();
+
+			// the paused position is kept in the model
+			updateTrackTime();
+			checkpoint();
 		}
 	}
 
@@ -263,7 +322,124 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 	 * ()
 	 */
 	public void previousTrack() {
-		if (isAllowedBookIndex()) {
+		model.run(new Command() {
+			public void execute(Bookshelf bs) {
+				previousTrack(bs);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#nextTrack()
+	 */
+	public void nextTrack() {
+		model.run(new Command() {
+			public void execute(Bookshelf bs) {
+				nextTrack(bs);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#seekRight
+	 * (boolean)
+	 */
+	public void seekRight(boolean seek) {
+		/*
+		 * Note: in the future, 'seek' would have been used to determine a
+		 * stopped/started state to end/start seeking.
+		 */
+		Bookshelf bs = model.getSnapshot();
+		if (isAllowedTrackIndex(bs) && getTrackDuration(bs) != 0) {
+			seekTo((int) (ONE_TENTH * getTrackDuration(bs) + mp
+					.getCurrentPosition()));
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#seekLeft
+	 * (boolean)
+	 */
+	public void seekLeft(boolean seek) {
+		/*
+		 * Note: in the future, 'seek' would have been used to determine a
+		 * stopped/started state to end/start seeking.
+		 */
+		Bookshelf bs = model.getSnapshot();
+		if (isAllowedTrackIndex(bs) && getTrackDuration(bs) != 0) {
+			seekTo((int) (mp.getCurrentPosition() - ONE_TENTH
+					* getTrackDuration(bs)));
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#
+	 * seekToPercentageInTrack(double)
+	 */
+	public void seekToPercentageInTrack(final double percentage) {
+		model.run(new Command() {
+			public void execute(Bookshelf bs) {
+				seekToPercentageInTrack(bs, percentage);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#
+	 * seekToPercentageInBook(double)
+	 */
+	public void seekToPercentageInBook(final double percentage) {
+		model.run(new Command() {
+			public void execute(Bookshelf bs) {
+				seekToPercentageInBook(bs, percentage);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#isStarted()
+	 */
+	public boolean isStarted() {
+		return isStarted;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#isPlaying()
+	 */
+	public boolean isPlaying() {
+		return mp.isPlaying();
+	}
+
+	/* End IPlayerEvents */
+
+	/**
+	 * Selects the previous track. Runs on the model thread.
+	 * 
+	 * @param bs
+	 *            The bookshelf.
+	 */
+	private void previousTrack(Bookshelf bs) {
+		if (isAllowedBookIndex(bs)) {
+			checkpoint(bs);
 			int trackIndex = bs.getSelectedTrackIndex();
 
 			/*
@@ -298,14 +474,15 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Selects the next track. Runs on the model thread.
 	 * 
-	 * @see
-	 * edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#nextTrack()
+	 * @param bs
+	 *            The bookshelf.
 	 */
-	public void nextTrack() {
-		if (isAllowedBookIndex()) {
+	private void nextTrack(Bookshelf bs) {
+		if (isAllowedBookIndex(bs)) {
+			checkpoint(bs);
 			int trackIndex = bs.getSelectedTrackIndex();
 
 			/*
@@ -335,53 +512,18 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#seekRight
-	 * (boolean)
-	 */
-	public void seekRight(boolean seek) {
-		/*
-		 * Note: in the future, 'seek' would have been used to determine a
-		 * stopped/started state to end/start seeking.
-		 */
-		if (isAllowedTrackIndex() && getTrackDuration() != 0) {
-			seekTo((int) (ONE_TENTH * getTrackDuration() + mp
-					.getCurrentPosition()));
-		}
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#seekLeft
-	 * (boolean)
-	 */
-	public void seekLeft(boolean seek) {
-		/*
-		 * Note: in the future, 'seek' would have been used to determine a
-		 * stopped/started state to end/start seeking.
-		 */
-		if (isAllowedTrackIndex() && getTrackDuration() != 0) {
-			seekTo((int) (mp.getCurrentPosition() - ONE_TENTH
-					* getTrackDuration()));
-		}
-	}
-
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Seeks in the selected track. Runs on the model thread.
 	 * 
-	 * @see edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#
-	 * seekToPercentageInTrack(double)
+	 * @param bs
+	 *            The bookshelf.
+	 * @param percentage
 	 */
-	public void seekToPercentageInTrack(double percentage) {
+	private void seekToPercentageInTrack(Bookshelf bs, double percentage) {
 		if (!isLegalPercentage(percentage)) {
 			// simply play the next track if this happens.
-			nextTrack();
-		} else if (isAllowedBookIndex()) {
+			nextTrack(bs);
+		} else if (isAllowedBookIndex(bs)) {
 			if (bs.getSelectedTrackIndex() == Constants.Value.NO_TRACK_SELECTED) {
 				// set the selected track index to the first one
 				bs.setSelectedTrackIndex(0);
@@ -392,35 +534,35 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Selects the track at the given percentage of the book, and seeks to the
+	 * rest of the percentage in it. Runs on the model thread.
 	 * 
-	 * @see edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#
-	 * seekToPercentageInBook(double)
+	 * @param bs
+	 *            The bookshelf.
+	 * @param percentage
 	 */
-	public void seekToPercentageInBook(double percentage) {
+	private void seekToPercentageInBook(Bookshelf bs, double percentage) {
 		if (!isLegalPercentage(percentage)) {
 			Log.e(TAG,
 					"Seeked to an illegal book state (negative or above 100%). "
 							+ "Player stopping.");
 			// stop if this happens.
 			stop();
-		} else if (isAllowedBookIndex()) {
+		} else if (isAllowedBookIndex(bs)) {
+			// keep the position of the track that is left
+			checkpoint(bs);
+
 			// get the duration of the book
 			int bookDuration = bs.getSelectedBookDuration();
 
 			// calculate the seek time (ms)
 			seekPosition = (int) (bookDuration * percentage);
 
-			// go through the tracks and calculate the remainder and track index
-			int track = 0;
-			int trackDuration = 0;
+			// find the track and the remainder to seek to within it
 			int selectedBook = bs.getSelectedBookIndex();
-			while (seekPosition > (trackDuration = bs.getTrackDurationAt(
-					selectedBook, track))) {
-				seekPosition -= trackDuration;
-				track++;
-			}
+			int track = bs.getTrackIndexAtTime(selectedBook, seekPosition);
+			seekPosition -= bs.getTrackStartTimeAt(selectedBook, track);
 
 			// change to the correct track
 			bs.setSelectedTrackIndex(track);
@@ -429,28 +571,6 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#isStarted()
-	 */
-	public boolean isStarted() {
-		return isStarted;
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents#isPlaying()
-	 */
-	public boolean isPlaying() {
-		return mp.isPlaying();
-	}
-
-	/* End IPlayerEvents */
-
 	/**
 	 * Checks whether the given percentage is legal (0-100).
 	 * 
@@ -481,32 +601,37 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 		} else {
 			// seek to the given, valid time
 			mp.seekTo(time);
+			position.set(playingTrackIndex, time);
 		}
 	}
 
 	/**
 	 * Convenience method.
 	 * 
+	 * @param bs
+	 *            The bookshelf or a snapshot of it.
 	 * @return
 	 */
-	private boolean isAllowedTrackIndex() {
-		return isAllowedBookIndex()
+	private boolean isAllowedTrackIndex(Bookshelf bs) {
+		return isAllowedBookIndex(bs)
 				&& bs.isLegalTrackIndex(bs.getSelectedTrackIndex());
 	}
 
 	/**
 	 * Convenience method.
 	 * 
+	 * @param bs
+	 *            The bookshelf or a snapshot of it.
 	 * @return
 	 */
-	private boolean isAllowedBookIndex() {
+	private boolean isAllowedBookIndex(Bookshelf bs) {
 		return bs.isLegalBookIndex(bs.getSelectedBookIndex());
 	}
 
 	/**
 	 * Thread that updates the elapsed time in a track.
 	 * 
-	 * @author Aki Kkel
+	 * @author Aki Käkelä
 	 * @version 0.2
 	 * 
 	 */
@@ -518,8 +643,17 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 		 * @see java.lang.Runnable#run()
 		 */
 		public void run() {
+			int sinceCheckpoint = 0;
 			while (isStarted && mp.isPlaying()) {
 				updateTrackTime();
+
+				sinceCheckpoint += UPDATE_FREQUENCY;
+				if (sinceCheckpoint >= CHECKPOINT_FREQUENCY) {
+					// no need to wait for it
+					model.execute(checkpointCommand);
+					sinceCheckpoint = 0;
+				}
+
 				try {
 					Thread.sleep(UPDATE_FREQUENCY);
 				} catch (InterruptedException e) {
@@ -531,15 +665,48 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 	}
 
 	/**
-	 * Convenience method.
+	 * Publishes the current position of the media player. Does not touch the
+	 * model.
 	 */
 	private void updateTrackTime() {
-		// check that there is a selected track
-		if (isAllowedTrackIndex()) {
-			this.bs.setSelectedTrackElapsedTime(mp.getCurrentPosition());
+		position.set(playingTrackIndex, mp.getCurrentPosition());
+	}
+
+	/**
+	 * Writes the last published position to the model, and waits until it is
+	 * written. Nothing is written unless the published track is still the
+	 * selected track, so a position never ends up in another track.
+	 */
+	public void checkpoint() {
+		model.run(checkpointCommand);
+	}
+
+	/**
+	 * Writes the last published position to the model (see
+	 * {@link #checkpoint()}). Runs on the model thread.
+	 * 
+	 * @param bs
+	 *            The bookshelf.
+	 */
+	private void checkpoint(Bookshelf bs) {
+		long pos = position.get();
+		if (isStarted && isAllowedTrackIndex(bs)
+				&& PlaybackPosition.isInSelectedTrack(pos, bs)) {
+			bs.setSelectedTrackElapsedTime(PlaybackPosition
+					.getElapsedTime(pos));
 		}
 	}
 
+	/**
+	 * Returns the playback position, which is updated several times a second
+	 * while playing. Reading it is cheap and may be done from any thread.
+	 * 
+	 * @return The playback position.
+	 */
+	public PlaybackPosition getPlaybackPosition() {
+		return position;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -588,11 +755,11 @@ public class PlayerController implements IPlayerEvents, OnPreparedListener,
 	/**
 	 * *** FOR TESTING PURPOSES ONLY ***
 	 * 
-	 * Returns the bookshelf for testing.
+	 * Returns a snapshot of the bookshelf for testing.
 	 * 
 	 */
 	public Bookshelf getBs() {
-		return bs;
+		return model.getSnapshot();
 	}
 
 	/**
@@ -8,13 +8,13 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.interfaces;
 
 /**
- * @author Aki Kkel, Fredrik hs
+ * @author Aki Käkelä, Fredrik Åhs
  * @version 0.7
  * 
  */
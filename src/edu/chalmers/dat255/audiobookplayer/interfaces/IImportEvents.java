@@ -0,0 +1,46 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.interfaces;
+
+/**
+ * Specifies the events of a book being imported (see BookImport). The events
+ * come from the threads that read the tracks, not the UI thread.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+public interface IImportEvents {
+
+	/**
+	 * Called each time the metadata of a track has been read, or has failed
+	 * to be.
+	 * 
+	 * @param done
+	 *            The number of tracks read so far.
+	 * @param total
+	 *            The number of tracks to read.
+	 */
+	void importProgress(int done, int total);
+
+	/**
+	 * Called once, when the import has ended.
+	 * 
+	 * @param added
+	 *            True if the book was added to the bookshelf; false if the
+	 *            import was cancelled or the book could not be created.
+	 */
+	void importFinished(boolean added);
+}
@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.interfaces;
@@ -17,7 +17,7 @@ package edu.chalmers.dat255.audiobookplayer.interfaces;
  * Used to assert that implementing classes can handle updates on Track
  * instances.
  * 
- * @author Aki Kkel
+ * @author Aki Käkelä
  * @version 0.6
  * 
  */
@@ -34,12 +34,21 @@ public interface ITrackUpdates {
 	 * Tags
 	 */
 	/**
-	 * Adds a tag with the given time.
+	 * Adds a tag with the given time. Tags are kept in order of time, and a
+	 * time that is already tagged is not tagged twice.
 	 * 
 	 * @param time
 	 */
 	void addTag(int time);
 
+	/**
+	 * Adds tags at all the given times at once (e.g. when importing
+	 * bookmarks). The times may be in any order.
+	 * 
+	 * @param times
+	 */
+	void addTags(int[] times);
+
 	/**
 	 * Removes the tag at the specified index. Does nothing if the list is
 	 * empty.
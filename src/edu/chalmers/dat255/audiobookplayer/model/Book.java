@@ -8,16 +8,18 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.model;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
@@ -28,9 +30,23 @@ import edu.chalmers.dat255.audiobookplayer.interfaces.IBookUpdates;
 /**
  * Represents a collection of Track objects. Null tracks are not allowed (and
  * will be ignored when added).
+ * <p>
+ * The tracks are not kept as objects, but in a table with one array per
+ * property (see TrackTable). Tracks are copied into the table when added, and
+ * track objects handed out by the book are copies.
+ * <p>
+ * A book read from storage may have its tracks left where they are stored
+ * (see TrackSegment) until they are first needed. The title, author, number
+ * of tracks, duration and elapsed time of such a book are known without
+ * loading them. The book remembers its segment until its tracks are changed,
+ * so that tracks which have not changed are not stored again.
+ * <p>
+ * Every change gives the book a new version, unique among all books, which a
+ * copy takes over until it is changed itself. Books of the same version are
+ * equal without comparing them.
  * 
- * @author Marcus Parkkinen, Aki Kkel
- * @version 0.6
+ * @author Marcus Parkkinen, Aki Käkelä
+ * @version 0.10
  */
 public final class Book implements IBookUpdates, Serializable {
 	private static final String TAG = "Book.java";
@@ -38,11 +54,41 @@ public final class Book implements IBookUpdates, Serializable {
 	private static final int NO_TRACK_SELECTED = Constants.Value.NO_TRACK_SELECTED;
 	private static final long serialVersionUID = 2;
 
-	private List<Track> tracks;
+	// hands out a new version to every change of any book
+	private static final AtomicInteger VERSIONS = new AtomicInteger();
+
+	/*
+	 * The tracks, or null until they are loaded from the segment. Books are
+	 * shared between threads through snapshots, so the tracks may be loaded
+	 * by any of them.
+	 */
+	private volatile TrackTable tracks;
+
+	/*
+	 * Where the tracks are stored as they are now, or null if they have been
+	 * changed since (never null while the tracks are not loaded). Set by the
+	 * thread that saves a snapshot the book is in.
+	 */
+	private transient volatile TrackSegment segment;
+
 	private int selectedTrackIndex = NO_TRACK_SELECTED;
 	private String author; // immutable
 	private String title;
-	private int duration;
+
+	/*
+	 * The generation of the bookshelf that may change this book in place. A
+	 * book of another generation is copied before it is changed (see
+	 * Bookshelf#getSnapshot).
+	 */
+	private transient int generation;
+
+	/*
+	 * The version of the contents, 0 if not known (after deserialization).
+	 * The hash is 0 until it is computed, and is reset on every change; a
+	 * thread that sees a stale 0 only computes it again.
+	 */
+	private transient volatile int version = VERSIONS.incrementAndGet();
+	private transient int hash;
 
 	/**
 	 * Used when no author is given.
@@ -58,7 +104,7 @@ public final class Book implements IBookUpdates, Serializable {
 	 * Creates an empty book with the given title and author.
 	 */
 	public Book(String title, String author) {
-		tracks = new LinkedList<Track>();
+		tracks = new TrackTable();
 		setSelectedBookTitle(title);
 
 		// when a book is created, it should be ensured that the author is
@@ -88,7 +134,6 @@ public final class Book implements IBookUpdates, Serializable {
 		for (Track t : col) {
 			if (t != null) {
 				tracks.add(t);
-				duration += t.getDuration();
 			}
 		}
 
@@ -106,14 +151,31 @@ public final class Book implements IBookUpdates, Serializable {
 		this(original.getSelectedBookTitle(), original.getSelectedBookAuthor());
 
 		// copy primitive member variables
-		this.duration = original.duration;
 		this.selectedTrackIndex = original.selectedTrackIndex;
 		setAuthor(original.getSelectedBookAuthor());
 
-		// also create deep copies of the tracks
-		for (Track t : original.tracks) {
-			this.tracks.add(new Track(t));
-		}
+		// also copy the tracks (a column is copied once either book changes it)
+		copyTracks(original);
+		copyVersion(original);
+	}
+
+	/**
+	 * Creates a copy of a book that belongs to the given generation of a
+	 * bookshelf. The copy shares the track table of the original until either
+	 * book changes it.
+	 * 
+	 * @param original
+	 *            The book to copy.
+	 * @param generation
+	 *            The generation of the bookshelf that will own the copy.
+	 */
+	Book(Book original, int generation) {
+		copyTracks(original);
+		this.selectedTrackIndex = original.selectedTrackIndex;
+		this.author = original.author;
+		this.title = original.title;
+		this.generation = generation;
+		copyVersion(original);
 	}
 
 	/**
@@ -128,6 +190,31 @@ public final class Book implements IBookUpdates, Serializable {
 		this(col, title, Constants.Message.NO_AUTHOR);
 	}
 
+	/**
+	 * Creates a book whose tracks are loaded from the given segment the first
+	 * time they are needed.
+	 * 
+	 * @param segment
+	 *            Where the tracks are stored.
+	 * @param title
+	 *            The title of the book.
+	 * @param author
+	 *            The author of the book.
+	 * @param selectedTrackIndex
+	 *            The index of the selected track.
+	 */
+	public Book(TrackSegment segment, String title, String author,
+			int selectedTrackIndex) {
+		if (segment == null) {
+			throw new IllegalArgumentException(TAG
+					+ " segment may not be null");
+		}
+		this.segment = segment;
+		setSelectedBookTitle(title);
+		this.author = author;
+		this.selectedTrackIndex = selectedTrackIndex;
+	}
+
 	/* IBookUpdates */
 
 	/*
@@ -140,11 +227,12 @@ public final class Book implements IBookUpdates, Serializable {
 	public void removeTrack(int trackIndex) {
 		checkTrackIndexLegal(trackIndex);
 
-		// remove the track and adjust the duration
-		duration -= tracks.remove(trackIndex).getDuration();
+		// remove the track (which also adjusts the duration)
+		tracks().remove(trackIndex);
+		tracksChanged();
 
 		// check whether this was the last track
-		if (tracks.size() == 0) {
+		if (tracks().size() == 0) {
 			setSelectedTrackIndex(NO_TRACK_SELECTED);
 		} else {
 			if (trackIndex < selectedTrackIndex) {
@@ -167,13 +255,11 @@ public final class Book implements IBookUpdates, Serializable {
 	 */
 	public void addTrack(Track t) {
 		if (t != null) {
-			// add the track
-			tracks.add(t);
-
-			// adjust the duration
-			duration += t.getDuration();
+			// add the track (which also adjusts the duration)
+			tracks().add(t);
+			tracksChanged();
 
-			if (tracks.size() == 1) {
+			if (tracks().size() == 1) {
 				selectedTrackIndex = 0;
 			}
 		}
@@ -190,7 +276,8 @@ public final class Book implements IBookUpdates, Serializable {
 		checkTrackIndexLegal(firstIndex);
 		checkTrackIndexLegal(secondIndex);
 
-		Collections.swap(tracks, firstIndex, secondIndex);
+		tracks().swap(firstIndex, secondIndex);
+		tracksChanged();
 	}
 
 	/*
@@ -204,8 +291,8 @@ public final class Book implements IBookUpdates, Serializable {
 		checkTrackIndexLegal(fromIndex);
 		checkTrackIndexLegal(toIndex);
 
-		Track t = tracks.remove(fromIndex);
-		tracks.add(toIndex, t);
+		tracks().move(fromIndex, toIndex);
+		tracksChanged();
 	}
 
 	/*
@@ -215,13 +302,14 @@ public final class Book implements IBookUpdates, Serializable {
 	 * setSelectedTrackIndex(int)
 	 */
 	public void setSelectedTrackIndex(int index) {
-		if (index < -1 || index > this.tracks.size() + 1) {
+		if (index < -1 || index > tracks().size() + 1) {
 			throw new IndexOutOfBoundsException(TAG
 					+ " setSelectedTrackIndex with index out of bounds: "
-					+ index + ", list size: " + this.tracks.size());
+					+ index + ", list size: " + tracks().size());
 		}
 
 		selectedTrackIndex = index;
+		changed();
 	}
 
 	/*
@@ -236,7 +324,7 @@ public final class Book implements IBookUpdates, Serializable {
 					+ " setBookTitle to null title is illegal");
 		}
 		this.title = title;
-
+		changed();
 	}
 
 	/*
@@ -246,10 +334,7 @@ public final class Book implements IBookUpdates, Serializable {
 	 * updateBookDuration()
 	 */
 	public void updateSelectedBookDuration() {
-		this.duration = 0;
-		for (Track t : tracks) {
-			this.duration += t.getDuration();
-		}
+		tracks().updateStartTimes();
 	}
 
 	/*
@@ -280,6 +365,7 @@ public final class Book implements IBookUpdates, Serializable {
 	 */
 	private void setAuthor(String author) {
 		this.author = author;
+		changed();
 	}
 
 	/* ITrackUpdates */
@@ -293,8 +379,8 @@ public final class Book implements IBookUpdates, Serializable {
 	public void setSelectedTrackElapsedTime(int newTime) {
 		checkTrackIndexLegal(selectedTrackIndex);
 
-		this.tracks.get(selectedTrackIndex)
-				.setSelectedTrackElapsedTime(newTime);
+		tracks().setElapsedTime(selectedTrackIndex, newTime);
+		tracksChanged();
 	}
 
 	/*
@@ -306,7 +392,26 @@ public final class Book implements IBookUpdates, Serializable {
 	public void addTag(int time) {
 		checkTrackIndexLegal(selectedTrackIndex);
 
-		this.tracks.get(selectedTrackIndex).addTag(time);
+		int count = tracks().getTagCount(selectedTrackIndex);
+		tracks().addTag(selectedTrackIndex, time);
+		if (tracks().getTagCount(selectedTrackIndex) != count) {
+			tracksChanged();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * edu.chalmers.dat255.audiobookplayer.interfaces.ITrackUpdates#addTags(int
+	 * [])
+	 */
+	public void addTags(int[] times) {
+		checkTrackIndexLegal(selectedTrackIndex);
+
+		if (tracks().addTags(selectedTrackIndex, times) > 0) {
+			tracksChanged();
+		}
 	}
 
 	/*
@@ -319,7 +424,8 @@ public final class Book implements IBookUpdates, Serializable {
 	public void removeTagAt(int tagIndex) {
 		checkTrackIndexLegal(selectedTrackIndex);
 
-		this.tracks.get(selectedTrackIndex).removeTagAt(tagIndex);
+		tracks().removeTag(selectedTrackIndex, tagIndex);
+		tracksChanged();
 	}
 
 	/* End ITrackUpdates */
@@ -333,7 +439,7 @@ public final class Book implements IBookUpdates, Serializable {
 	 * @return True if the given index is within bounds of the track list.
 	 */
 	public boolean isLegalTrackIndex(int index) {
-		return index >= 0 && index < tracks.size();
+		return index >= 0 && index < getNumberOfTracks();
 	}
 
 	/**
@@ -342,7 +448,8 @@ public final class Book implements IBookUpdates, Serializable {
 	 * @return a Number of elements (tracks).
 	 */
 	public int getNumberOfTracks() {
-		return tracks.size();
+		TrackTable t = tracks;
+		return t == null ? segment.getNumberOfTracks() : t.size();
 	}
 
 	/**
@@ -362,7 +469,7 @@ public final class Book implements IBookUpdates, Serializable {
 	public int getSelectedTrackDuration() {
 		checkTrackIndexLegal(selectedTrackIndex);
 
-		return tracks.get(selectedTrackIndex).getDuration();
+		return tracks().getDuration(selectedTrackIndex);
 	}
 
 	/**
@@ -373,7 +480,7 @@ public final class Book implements IBookUpdates, Serializable {
 	public int getSelectedTrackElapsedTime() {
 		checkTrackIndexLegal(selectedTrackIndex);
 
-		return this.tracks.get(selectedTrackIndex).getElapsedTime();
+		return tracks().getElapsedTime(selectedTrackIndex);
 	}
 
 	/**
@@ -390,7 +497,7 @@ public final class Book implements IBookUpdates, Serializable {
 	public String getTrackPathAt(int trackIndex) {
 		// TODO: check legal
 
-		return tracks.get(trackIndex).getTrackPath();
+		return tracks().getPath(trackIndex);
 	}
 
 	/**
@@ -400,9 +507,9 @@ public final class Book implements IBookUpdates, Serializable {
 	 * @return the list
 	 */
 	public List<String> getTrackPaths() {
-		List<String> paths = new LinkedList<String>();
-		for (Track t : tracks) {
-			paths.add(t.getTrackPath());
+		List<String> paths = new ArrayList<String>(tracks().size());
+		for (int i = 0; i < tracks().size(); i++) {
+			paths.add(tracks().getPath(i));
 		}
 		return paths;
 	}
@@ -413,9 +520,9 @@ public final class Book implements IBookUpdates, Serializable {
 	 * @return The title.
 	 */
 	public List<String> getTrackTitles() {
-		List<String> trackTitles = new LinkedList<String>();
-		for (Track t : tracks) {
-			trackTitles.add(t.getTrackTitle());
+		List<String> trackTitles = new ArrayList<String>(tracks().size());
+		for (int i = 0; i < tracks().size(); i++) {
+			trackTitles.add(tracks().getTitle(i));
 		}
 		return trackTitles;
 	}
@@ -426,7 +533,8 @@ public final class Book implements IBookUpdates, Serializable {
 	 * @return duration (ms)
 	 */
 	public int getDuration() {
-		return duration;
+		TrackTable t = tracks;
+		return t == null ? segment.getDuration() : t.getDuration();
 	}
 
 	/**
@@ -435,17 +543,48 @@ public final class Book implements IBookUpdates, Serializable {
 	 * @return The elapsed time of the book.
 	 */
 	public int getBookElapsedTime() {
-		int bookElapsedTime = 0;
+		checkTrackIndexLegal(selectedTrackIndex);
 
-		// add the duration of all previous tracks
-		for (int i = 0; i < this.selectedTrackIndex; i++) {
-			bookElapsedTime += tracks.get(i).getDuration();
+		TrackTable t = tracks;
+		if (t == null) {
+			return segment.getBookElapsedTime();
 		}
 
-		// add the elapsed time of the current track
-		bookElapsedTime += tracks.get(this.selectedTrackIndex).getElapsedTime();
+		// the start of the current track plus its elapsed time
+		return t.getStartTime(selectedTrackIndex)
+				+ t.getElapsedTime(selectedTrackIndex);
+	}
 
-		return bookElapsedTime;
+	/**
+	 * Returns the time in the book (in ms) at which the track at the given
+	 * index starts.
+	 * 
+	 * @param trackIndex
+	 *            Index of the track.
+	 * @return The sum of the durations of all earlier tracks.
+	 */
+	public int getTrackStartTimeAt(int trackIndex) {
+		checkTrackIndexLegal(trackIndex);
+
+		return tracks().getStartTime(trackIndex);
+	}
+
+	/**
+	 * Returns the index of the track that plays at the given time in the book.
+	 * A time at the very end of a track belongs to that track, and a time past
+	 * the end of the book belongs to the last track.
+	 * 
+	 * @param bookTime
+	 *            Time in the book (ms).
+	 * @return Index of the track, or Constants.Value.NO_TRACK_SELECTED if the
+	 *         book has no tracks.
+	 */
+	public int getTrackIndexAtTime(int bookTime) {
+		if (tracks().size() == 0) {
+			return NO_TRACK_SELECTED;
+		}
+
+		return tracks().getIndexAt(bookTime);
 	}
 
 	/**
@@ -458,7 +597,50 @@ public final class Book implements IBookUpdates, Serializable {
 	public int getTrackDurationAt(int trackIndex) {
 		checkTrackIndexLegal(trackIndex);
 
-		return tracks.get(trackIndex).getDuration();
+		return tracks().getDuration(trackIndex);
+	}
+
+	/**
+	 * Sets the duration (in ms) of the track located at the specified index,
+	 * as when an estimated duration has been found exactly.
+	 * 
+	 * @param trackIndex
+	 *            Index of the track
+	 * @param duration
+	 *            The new duration (ms)
+	 */
+	public void setTrackDurationAt(int trackIndex, int duration) {
+		checkTrackIndexLegal(trackIndex);
+
+		tracks().setDuration(trackIndex, duration);
+		tracksChanged();
+	}
+
+	/**
+	 * Returns the elapsed time (in ms) of the track located at the specified
+	 * index.
+	 * 
+	 * @param trackIndex
+	 *            Index of the track
+	 * @return int elapsed time (ms)
+	 */
+	public int getTrackElapsedTimeAt(int trackIndex) {
+		checkTrackIndexLegal(trackIndex);
+
+		return tracks().getElapsedTime(trackIndex);
+	}
+
+	/**
+	 * Returns the tag times of the track located at the specified index.
+	 * 
+	 * @param trackIndex
+	 *            Index of the track
+	 * @return Array of the tag times. May be empty.
+	 */
+	public int[] getTagTimesAt(int trackIndex) {
+		checkTrackIndexLegal(trackIndex);
+
+		return tracks().getTagTimes(trackIndex);
 	}
 
 	/**
@@ -469,7 +651,7 @@ public final class Book implements IBookUpdates, Serializable {
 	public String getTrackTitle() {
 		checkTrackIndexLegal(selectedTrackIndex);
 
-		return this.tracks.get(selectedTrackIndex).getTrackTitle();
+		return tracks().getTitle(selectedTrackIndex);
 	}
 
 	/*
@@ -479,8 +661,16 @@ public final class Book implements IBookUpdates, Serializable {
 	 */
 	@Override
 	public int hashCode() {
-		return new HashCodeBuilder().append(tracks).append(selectedTrackIndex)
-				.append(author).append(title).append(duration).toHashCode();
+		int h = hash;
+		if (h == 0) {
+			// only what is known without loading the tracks is hashed
+			h = new HashCodeBuilder().append(getNumberOfTracks())
+					.append(getDuration()).append(selectedBookElapsedTime())
+					.append(selectedTrackIndex).append(author).append(title)
+					.toHashCode();
+			hash = h;
+		}
+		return h;
 	}
 
 	/*
@@ -490,12 +680,29 @@ public final class Book implements IBookUpdates, Serializable {
 	 */
 	@Override
 	public boolean equals(final Object obj) {
-		if (obj instanceof Book) {
+		if (this == obj) {
+			return true;
+		} else if (obj instanceof Book) {
 			final Book other = (Book) obj;
-			return new EqualsBuilder().append(tracks, other.tracks)
+			int v = version;
+			if (v != 0 && v == other.version) {
+				// a copy that neither book has changed since
+				return true;
+			}
+			int h = hash;
+			int otherHash = other.hash;
+			if (h != 0 && otherHash != 0 && h != otherHash) {
+				// the contents differ if the cached hashes do
+				return false;
+			}
+			// the tracks are compared last since they take the longest
+			return new EqualsBuilder()
 					.append(selectedTrackIndex, other.selectedTrackIndex)
 					.append(author, other.author).append(title, other.title)
-					.append(duration, other.duration).isEquals();
+					.append(getNumberOfTracks(), other.getNumberOfTracks())
+					.append(getDuration(), other.getDuration()).isEquals()
+					&& (sharesSegment(other) || tracks().equals(
+							other.tracks()));
 		} else {
 			return false;
 		}
@@ -504,12 +711,96 @@ public final class Book implements IBookUpdates, Serializable {
 	/**
 	 * Returns all tag times.
 	 * 
-	 * @return Array of all tag times.
+	 * @return Array of all tag times, in order.
 	 */
 	public int[] getTagTimes() {
 		checkTrackIndexLegal(selectedTrackIndex);
 
-		return this.tracks.get(selectedTrackIndex).getTagTimes();
+		return tracks().getTagTimes(selectedTrackIndex);
+	}
+
+	/**
+	 * Returns the number of tags in the selected track.
+	 * 
+	 * @return The number of tags.
+	 */
+	public int getTagCount() {
+		checkTrackIndexLegal(selectedTrackIndex);
+
+		return tracks().getTagCount(selectedTrackIndex);
+	}
+
+	/**
+	 * Returns the index of the tag at the given time in the selected track.
+	 * 
+	 * @param time
+	 *            The time of the tag (ms).
+	 * @return The index of the tag, or Constants.Value.NO_TAG if there is none
+	 *         at that time.
+	 */
+	public int getTagIndex(int time) {
+		checkTrackIndexLegal(selectedTrackIndex);
+
+		return tracks().getTagIndex(selectedTrackIndex, time);
+	}
+
+	/**
+	 * Returns the time of the first tag after the given time in the selected
+	 * track.
+	 * 
+	 * @param time
+	 *            A time in the track (ms).
+	 * @return The time of the tag (ms), or Constants.Value.NO_TAG if there is
+	 *         none.
+	 */
+	public int getNextTagTime(int time) {
+		checkTrackIndexLegal(selectedTrackIndex);
+
+		int tag = tracks().getNextTag(selectedTrackIndex, time);
+		return tagTimeAt(tag);
+	}
+
+	/**
+	 * Returns the time of the last tag before the given time in the selected
+	 * track.
+	 * 
+	 * @param time
+	 *            A time in the track (ms).
+	 * @return The time of the tag (ms), or Constants.Value.NO_TAG if there is
+	 *         none.
+	 */
+	public int getPreviousTagTime(int time) {
+		checkTrackIndexLegal(selectedTrackIndex);
+
+		int tag = tracks().getPreviousTag(selectedTrackIndex, time);
+		return tagTimeAt(tag);
+	}
+
+	/**
+	 * Returns the times of the tags in a range of the selected track.
+	 * 
+	 * @param from
+	 *            The start of the range (ms), inclusive.
+	 * @param to
+	 *            The end of the range (ms), exclusive.
+	 * @return The times of the tags in the range, in order.
+	 */
+	public int[] getTagTimesBetween(int from, int to) {
+		checkTrackIndexLegal(selectedTrackIndex);
+
+		return tracks().getTagTimes(selectedTrackIndex, from, to);
+	}
+
+	/**
+	 * @param tagIndex
+	 *            Index of a tag in the selected track, or TagIndex.NO_TAG.
+	 * @return The time of the tag, or Constants.Value.NO_TAG.
+	 */
+	private int tagTimeAt(int tagIndex) {
+		if (tagIndex == TagIndex.NO_TAG) {
+			return Constants.Value.NO_TAG;
+		}
+		return tracks().getTagTime(selectedTrackIndex, tagIndex);
 	}
 
 	/*
@@ -517,13 +808,13 @@ public final class Book implements IBookUpdates, Serializable {
 	 */
 
 	/**
-	 * Returns a reference to the currently selected track. NOTE: Only for
-	 * testing purposes.
+	 * Returns a copy of the currently selected track. NOTE: Only for testing
+	 * purposes.
 	 * 
 	 * @return the currently selected track
 	 */
 	public Track getSelectedTrack() {
-		return tracks.get(selectedTrackIndex);
+		return tracks().getTrack(selectedTrackIndex);
 	}
 
 	/*
@@ -538,12 +829,163 @@ public final class Book implements IBookUpdates, Serializable {
 	 * @return Track title at given index.
 	 */
 	public String getTrackTitleAt(int trackIndex) {
-		if (trackIndex >= 0 && trackIndex < tracks.size()) {
-			return tracks.get(trackIndex).getTrackTitle();
+		if (trackIndex >= 0 && trackIndex < tracks().size()) {
+			return tracks().getTitle(trackIndex);
 		}
 		return null;
 	}
 
+	/**
+	 * Returns where the tracks of this book are stored, if they have not been
+	 * changed since.
+	 * 
+	 * @return The segment, or null if the tracks have been changed since they
+	 *         were last stored.
+	 */
+	public TrackSegment getTrackSegment() {
+		return segment;
+	}
+
+	/**
+	 * Records that the tracks of this book, as they are now, have been stored
+	 * in the given segment. The tracks are not stored again until they are
+	 * changed.
+	 * 
+	 * @param segment
+	 *            Where the tracks were stored.
+	 */
+	public void setTrackSegment(TrackSegment segment) {
+		if (segment == null) {
+			throw new IllegalArgumentException(TAG
+					+ " segment may not be null");
+		}
+		if (segment.getNumberOfTracks() != getNumberOfTracks()) {
+			throw new IllegalArgumentException(TAG + " segment has "
+					+ segment.getNumberOfTracks() + " tracks, the book "
+					+ getNumberOfTracks());
+		}
+		this.segment = segment;
+	}
+
+	/**
+	 * @return True if the tracks of this book have been loaded.
+	 */
+	public boolean isLoaded() {
+		return tracks != null;
+	}
+
+	/**
+	 * Returns the tracks, loading them first if they have not been.
+	 * 
+	 * @return The tracks.
+	 */
+	private TrackTable tracks() {
+		TrackTable t = tracks;
+		if (t == null) {
+			t = loadTracks();
+		}
+		return t;
+	}
+
+	/**
+	 * Loads the tracks from the segment, unless another thread just did.
+	 * 
+	 * @return The tracks.
+	 */
+	private synchronized TrackTable loadTracks() {
+		if (tracks == null) {
+			tracks = segment.copyTracks();
+		}
+		return tracks;
+	}
+
+	/**
+	 * Takes over the tracks of a book being copied: a copy of its table if it
+	 * has one, and its segment either way.
+	 * 
+	 * @param original
+	 *            The book that is copied.
+	 */
+	private void copyTracks(Book original) {
+		TrackTable t = original.tracks;
+		this.segment = original.segment;
+		this.tracks = t == null ? null : new TrackTable(t);
+	}
+
+	/**
+	 * @param other
+	 *            Another book.
+	 * @return True if the tracks of both books are stored in the same segment,
+	 *         and neither has changed them since.
+	 */
+	private boolean sharesSegment(Book other) {
+		TrackSegment s = segment;
+		return s != null && s == other.segment;
+	}
+
+	/**
+	 * Loads the tracks before the book is serialized, as the segment is not.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		tracks();
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * @return The generation of the bookshelf that may change this book in
+	 *         place.
+	 */
+	int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns the version of this book, which changes whenever the book is
+	 * changed. A copy starts at the version of its original, and no two books
+	 * are given the same version by a change.
+	 * 
+	 * @return The version of the book, or 0 if it is not known.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Marks the book as changed: steps the version and drops the cached hash.
+	 */
+	private void changed() {
+		version = VERSIONS.incrementAndGet();
+		hash = 0;
+	}
+
+	/**
+	 * Marks the tracks as changed, so they no longer match their segment.
+	 * They are loaded by then, since changing them needs them.
+	 */
+	private void tracksChanged() {
+		changed();
+		segment = null;
+	}
+
+	/**
+	 * Takes over the version and the cached hash of a book being copied.
+	 * 
+	 * @param original
+	 *            The book that is copied.
+	 */
+	private void copyVersion(Book original) {
+		this.version = original.version;
+		this.hash = original.hash;
+	}
+
+	/**
+	 * @return The elapsed time of the book, or 0 if no track is selected.
+	 */
+	private int selectedBookElapsedTime() {
+		return isLegalTrackIndex(selectedTrackIndex) ? getBookElapsedTime()
+				: 0;
+	}
+
 	/**
 	 * Throws an IndexOutOfBoundsException if the given index is not legal.
 	 * 
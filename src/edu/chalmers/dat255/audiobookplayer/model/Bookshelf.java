@@ -8,49 +8,87 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.model;
 
 import java.beans.PropertyChangeListener;
-import java.beans.PropertyChangeSupport;
 import java.io.Serializable;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 
 import android.util.Log;
 import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+import edu.chalmers.dat255.audiobookplayer.constants.EventType;
 import edu.chalmers.dat255.audiobookplayer.interfaces.IBookUpdates;
 
 /**
  * The bookshelf class contains a collection of books.
+ * <p>
+ * A bookshelf is not thread-safe. In the application, it is only changed on
+ * the model thread (see ModelExecutor), and read from snapshots.
+ * <p>
+ * Like a book, the bookshelf takes a new version whenever it is changed, and
+ * caches its hash until then. Books are therefore changed through the
+ * bookshelf, not through the books it hands out.
  * 
- * @author Marcus Parkkinen, Aki Kkel
- * @version 0.6
+ * @author Marcus Parkkinen, Aki Käkelä
+ * @version 0.8
  * 
  */
 public class Bookshelf implements IBookUpdates, Serializable {
 	private static final String TAG = "Bookshelf";
 
 	private static final int NO_BOOK_SELECTED = Constants.Value.NO_BOOK_SELECTED;
+	private static final int NO_TRACK_SELECTED = Constants.Value.NO_TRACK_SELECTED;
 	private static final long serialVersionUID = 1L;
 
+	// hands out a new generation to every bookshelf that takes a snapshot
+	private static final AtomicInteger GENERATIONS = new AtomicInteger();
+
+	// hands out a new version to every change of any bookshelf
+	private static final AtomicInteger VERSIONS = new AtomicInteger();
+
 	private List<Book> books;
 	private int selectedBookIndex;
-	private transient PropertyChangeSupport pcs;
+
+	/*
+	 * The listeners of each kind of event. The map is replaced, never
+	 * changed, when a listener is added or removed, so events are fired
+	 * without locking and in constant time. Null if there are no listeners.
+	 */
+	private transient volatile Map<EventType, PropertyChangeListener[]> listeners;
+
+	/*
+	 * Snapshots share the list of books, and the books and tracks in it, with
+	 * this bookshelf. The list is copied before it is changed if it is shared,
+	 * and books and tracks of another generation are copied before they are
+	 * changed (see writableBook).
+	 */
+	private transient boolean booksShared;
+	private transient int generation;
+
+	/*
+	 * The version of the contents, 0 if not known (after deserialization),
+	 * and their hash, 0 until it is computed (see Book).
+	 */
+	private transient volatile int version = VERSIONS.incrementAndGet();
+	private transient int hash;
 
 	/**
 	 * Creates an empty bookshelf.
 	 */
 	public Bookshelf() {
-		books = new LinkedList<Book>();
+		books = new ArrayList<Book>();
 		selectedBookIndex = NO_BOOK_SELECTED;
-
-		pcs = new PropertyChangeSupport(this);
 	}
 
 	/**
@@ -69,6 +107,8 @@ public class Bookshelf implements IBookUpdates, Serializable {
 		for (Book b : original.books) {
 			this.books.add(new Book(b));
 		}
+		this.version = original.version;
+		this.hash = original.hash;
 	}
 
 	/* Bookshelf methods */
@@ -81,12 +121,18 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	 */
 	public void setSelectedBookIndex(int index) {
 		if (isValidBookIndex(index)) {
+			int oldIndex = selectedBookIndex;
 			selectedBookIndex = index;
+			changed();
 
-			if (hasListeners()) {
-				pcs.firePropertyChange(Constants.Event.BOOK_SELECTED, null,
-						new Bookshelf(this));
+			// tell the listeners which track the player should start in
+			int trackIndex = NO_TRACK_SELECTED;
+			if (isLegalBookIndex(index)) {
+				trackIndex = books.get(index).getSelectedTrackIndex();
 			}
+
+			fireChange(EventType.BOOK_SELECTED, index, trackIndex,
+					oldIndex, index);
 		}
 
 	}
@@ -98,7 +144,7 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	 *            the new book to add
 	 */
 	public void addBook(Book b) {
-		books.add(b);
+		writableBooks().add(b);
 		// select it if it is the first, otherwise move the selection ahead so
 		// that it is pointing at the correct book
 		if (selectedBookIndex == NO_BOOK_SELECTED) {
@@ -107,10 +153,8 @@ public class Bookshelf implements IBookUpdates, Serializable {
 			// selected.
 		}
 
-		if (hasListeners()) {
-			pcs.firePropertyChange(Constants.Event.BOOK_LIST_CHANGED, null,
-					new Bookshelf(this));
-		}
+		fireChange(EventType.BOOK_LIST_CHANGED, books.size() - 1,
+				NO_TRACK_SELECTED, null, null);
 	}
 
 	/**
@@ -121,7 +165,7 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	public void removeBookAt(int index) {
 		checkBookIndexLegal(index);
 
-		books.remove(index);
+		writableBooks().remove(index);
 
 		// check whether this was the last book
 		if (books.size() == 0) {
@@ -137,10 +181,8 @@ public class Bookshelf implements IBookUpdates, Serializable {
 			}
 		}
 
-		if (hasListeners()) {
-			pcs.firePropertyChange(Constants.Event.BOOK_LIST_CHANGED, null,
-					new Bookshelf(this));
-		}
+		fireChange(EventType.BOOK_LIST_CHANGED, index,
+				NO_TRACK_SELECTED, null, null);
 	}
 
 	/**
@@ -154,13 +196,12 @@ public class Bookshelf implements IBookUpdates, Serializable {
 		checkBookIndexLegal(fromIndex);
 		checkBookIndexLegal(toIndex);
 
-		Book b = books.remove(fromIndex);
-		books.add(toIndex, b);
+		List<Book> list = writableBooks();
+		Book b = list.remove(fromIndex);
+		list.add(toIndex, b);
 
-		if (hasListeners()) {
-			pcs.firePropertyChange(Constants.Event.BOOK_LIST_CHANGED, null,
-					new Bookshelf(this));
-		}
+		fireChange(EventType.BOOK_LIST_CHANGED, toIndex,
+				NO_TRACK_SELECTED, fromIndex, toIndex);
 	}
 
 	/**
@@ -203,7 +244,7 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	public void removeTrack(int index) {
 		checkBookIndexLegal(selectedBookIndex);
 
-		this.books.get(selectedBookIndex).removeTrack(index);
+		writableBook(selectedBookIndex).removeTrack(index);
 
 		/*
 		 * since we removed a track we need to recalculate the duration of the
@@ -211,10 +252,8 @@ public class Bookshelf implements IBookUpdates, Serializable {
 		 */
 		updateSelectedBookDuration();
 
-		if (hasListeners()) {
-			pcs.firePropertyChange(Constants.Event.TRACK_LIST_CHANGED, null,
-					new Bookshelf(this));
-		}
+		fireChange(EventType.TRACK_LIST_CHANGED, selectedBookIndex,
+				index, null, null);
 	}
 
 	/*
@@ -227,7 +266,7 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	public void addTrack(Track t) {
 		checkBookIndexLegal(selectedBookIndex);
 
-		this.books.get(selectedBookIndex).addTrack(t);
+		writableBook(selectedBookIndex).addTrack(t);
 
 		/*
 		 * since we removed a track we need to recalculate the duration of the
@@ -235,10 +274,8 @@ public class Bookshelf implements IBookUpdates, Serializable {
 		 */
 		updateSelectedBookDuration();
 
-		if (hasListeners()) {
-			pcs.firePropertyChange(Constants.Event.TRACK_LIST_CHANGED, null,
-					new Bookshelf(this));
-		}
+		fireChange(EventType.TRACK_LIST_CHANGED, selectedBookIndex,
+				getNumberOfTracks() - 1, null, null);
 	}
 
 	/*
@@ -251,12 +288,10 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	public void swapTracks(int firstIndex, int secondIndex) {
 		checkBookIndexLegal(selectedBookIndex);
 
-		this.books.get(selectedBookIndex).swapTracks(firstIndex, secondIndex);
+		writableBook(selectedBookIndex).swapTracks(firstIndex, secondIndex);
 
-		if (hasListeners()) {
-			pcs.firePropertyChange(Constants.Event.TRACK_LIST_CHANGED, null,
-					new Bookshelf(this));
-		}
+		fireChange(EventType.TRACK_LIST_CHANGED, selectedBookIndex,
+				secondIndex, firstIndex, secondIndex);
 	}
 
 	/*
@@ -269,12 +304,10 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	public void moveTrack(int from, int to) {
 		checkBookIndexLegal(selectedBookIndex);
 
-		this.books.get(selectedBookIndex).moveTrack(from, to);
+		writableBook(selectedBookIndex).moveTrack(from, to);
 
-		if (hasListeners()) {
-			pcs.firePropertyChange(Constants.Event.TRACK_LIST_CHANGED, null,
-					new Bookshelf(this));
-		}
+		fireChange(EventType.TRACK_LIST_CHANGED, selectedBookIndex, to,
+				from, to);
 	}
 
 	/*
@@ -286,10 +319,12 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	public void setSelectedTrackIndex(int index) {
 		checkBookIndexLegal(selectedBookIndex);
 
-		this.books.get(selectedBookIndex).setSelectedTrackIndex(index);
+		Book b = writableBook(selectedBookIndex);
+		int oldIndex = b.getSelectedTrackIndex();
+		b.setSelectedTrackIndex(index);
 
-		pcs.firePropertyChange(Constants.Event.TRACK_INDEX_CHANGED, null,
-				new Bookshelf(this));
+		fireChange(EventType.TRACK_INDEX_CHANGED, selectedBookIndex,
+				index, oldIndex, index);
 	}
 
 	/*
@@ -329,7 +364,7 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	 * updateBookDuration()
 	 */
 	public void updateSelectedBookDuration() {
-		this.books.get(selectedBookIndex).updateSelectedBookDuration();
+		writableBook(selectedBookIndex).updateSelectedBookDuration();
 	}
 
 	/* End IBookUpdates */
@@ -343,12 +378,12 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	public void setBookTitleAt(int bookIndex, String newTitle) {
 		checkBookIndexLegal(bookIndex);
 
-		this.books.get(bookIndex).setSelectedBookTitle(newTitle);
+		Book b = writableBook(bookIndex);
+		String oldTitle = b.getSelectedBookTitle();
+		b.setSelectedBookTitle(newTitle);
 
-		if (hasListeners()) {
-			pcs.firePropertyChange(Constants.Event.BOOK_TITLE_CHANGED, null,
-					new Bookshelf(this));
-		}
+		fireChange(EventType.BOOK_TITLE_CHANGED, bookIndex,
+				NO_TRACK_SELECTED, oldTitle, newTitle);
 	}
 
 	/**
@@ -364,6 +399,47 @@ public class Bookshelf implements IBookUpdates, Serializable {
 		return this.books.get(bookIndex).getSelectedBookTitle();
 	}
 
+	/**
+	 * Sets the durations of the tracks with the given paths, as when
+	 * estimated durations have been found exactly after a book was imported.
+	 * Only books whose tracks are loaded are looked through: a book imported
+	 * since the bookshelf was read always is, and the others are left in
+	 * storage.
+	 * 
+	 * @param durations
+	 *            The new durations (ms), by the paths of the tracks.
+	 * @return The number of tracks whose duration was changed.
+	 */
+	public int setTrackDurations(Map<String, Integer> durations) {
+		int changed = 0;
+		for (int i = 0; i < books.size(); i++) {
+			Book b = books.get(i);
+			if (!b.isLoaded()) {
+				continue;
+			}
+			int changedInBook = 0;
+			for (int j = 0; j < b.getNumberOfTracks(); j++) {
+				Integer duration = durations.get(b.getTrackPathAt(j));
+				if (duration == null
+						|| duration.intValue() == b.getTrackDurationAt(j)) {
+					continue;
+				}
+				if (changedInBook == 0) {
+					b = writableBook(i);
+				}
+				b.setTrackDurationAt(j, duration.intValue());
+				changedInBook++;
+			}
+
+			if (changedInBook > 0) {
+				changed += changedInBook;
+				fireChange(EventType.TRACK_LIST_CHANGED, i,
+						NO_TRACK_SELECTED, null, null);
+			}
+		}
+		return changed;
+	}
+
 	/* ITrackUpdates */
 
 	/*
@@ -379,11 +455,14 @@ public class Bookshelf implements IBookUpdates, Serializable {
 		}
 
 		// set elapsed time in the currently playing book
-		books.get(selectedBookIndex).setSelectedTrackElapsedTime(elapsedTime);
-
-		if (hasListeners()) {
-			pcs.firePropertyChange(Constants.Event.ELAPSED_TIME_CHANGED, null,
-					new Bookshelf(this));
+		Book b = writableBook(selectedBookIndex);
+		int oldTime = b.getSelectedTrackElapsedTime();
+		b.setSelectedTrackElapsedTime(elapsedTime);
+
+		if (hasListeners(EventType.ELAPSED_TIME_CHANGED)) {
+			fireChange(EventType.ELAPSED_TIME_CHANGED, selectedBookIndex,
+					b.getSelectedTrackIndex(), oldTime,
+					b.getSelectedTrackElapsedTime());
 		}
 	}
 
@@ -396,10 +475,36 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	public void addTag(int time) {
 		checkBookIndexLegal(selectedBookIndex);
 
-		this.books.get(selectedBookIndex).addTag(time);
+		Book b = writableBook(selectedBookIndex);
+		int count = b.getTagCount();
+		b.addTag(time);
+
+		// a time that was already tagged changes nothing
+		if (b.getTagCount() != count) {
+			fireChange(EventType.TAG_ADDED, selectedBookIndex,
+					b.getSelectedTrackIndex(), null, time);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * edu.chalmers.dat255.audiobookplayer.interfaces.ITrackUpdates#addTags(int
+	 * [])
+	 */
+	public void addTags(int[] times) {
+		checkBookIndexLegal(selectedBookIndex);
+
+		Book b = writableBook(selectedBookIndex);
+		int count = b.getTagCount();
+		b.addTags(times);
 
-		pcs.firePropertyChange(Constants.Event.TAG_ADDED, null, new Bookshelf(
-				this));
+		// one event for the whole import
+		if (b.getTagCount() != count) {
+			fireChange(EventType.TAG_ADDED, selectedBookIndex,
+					b.getSelectedTrackIndex(), null, times.clone());
+		}
 	}
 
 	/*
@@ -412,14 +517,60 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	public void removeTagAt(int tagIndex) {
 		checkBookIndexLegal(selectedBookIndex);
 
-		this.books.get(selectedBookIndex).removeTagAt(tagIndex);
+		writableBook(selectedBookIndex).removeTagAt(tagIndex);
 
-		pcs.firePropertyChange(Constants.Event.TAG_REMOVED, null,
-				new Bookshelf(this));
+		fireChange(EventType.TAG_REMOVED, selectedBookIndex,
+				getSelectedTrackIndex(), tagIndex, null);
 	}
 
 	/* End ITrackUpdates */
 
+	/**
+	 * Returns the time of the first tag after the given time in the selected
+	 * track of the selected book.
+	 * 
+	 * @param time
+	 *            A time in the track (ms).
+	 * @return The time of the tag (ms), or Constants.Value.NO_TAG if there is
+	 *         none.
+	 */
+	public int getNextTagTime(int time) {
+		checkBookIndexLegal(selectedBookIndex);
+
+		return this.books.get(selectedBookIndex).getNextTagTime(time);
+	}
+
+	/**
+	 * Returns the time of the last tag before the given time in the selected
+	 * track of the selected book.
+	 * 
+	 * @param time
+	 *            A time in the track (ms).
+	 * @return The time of the tag (ms), or Constants.Value.NO_TAG if there is
+	 *         none.
+	 */
+	public int getPreviousTagTime(int time) {
+		checkBookIndexLegal(selectedBookIndex);
+
+		return this.books.get(selectedBookIndex).getPreviousTagTime(time);
+	}
+
+	/**
+	 * Returns the times of the tags in a range of the selected track of the
+	 * selected book.
+	 * 
+	 * @param from
+	 *            The start of the range (ms), inclusive.
+	 * @param to
+	 *            The end of the range (ms), exclusive.
+	 * @return The times of the tags in the range, in order.
+	 */
+	public int[] getTagTimesBetween(int from, int to) {
+		checkBookIndexLegal(selectedBookIndex);
+
+		return this.books.get(selectedBookIndex).getTagTimesBetween(from, to);
+	}
+
 	/*
 	 * Accessors to Bookshelf.
 	 */
@@ -577,6 +728,37 @@ public class Bookshelf implements IBookUpdates, Serializable {
 		return this.books.get(bookIndex).getTrackDurationAt(trackIndex);
 	}
 
+	/**
+	 * Gets the time in a given book at which a given track starts.
+	 * 
+	 * @param bookIndex
+	 *            Position of the book
+	 * @param trackIndex
+	 *            Position of the track
+	 * @return The sum of the durations of all earlier tracks (ms).
+	 */
+	public int getTrackStartTimeAt(int bookIndex, int trackIndex) {
+		checkTrackIndexLegalAt(bookIndex, trackIndex);
+
+		return this.books.get(bookIndex).getTrackStartTimeAt(trackIndex);
+	}
+
+	/**
+	 * Gets the index of the track that plays at a given time in a given book.
+	 * 
+	 * @param bookIndex
+	 *            Position of the book
+	 * @param bookTime
+	 *            Time in the book (ms)
+	 * @return Index of the track, or Constants.Value.NO_TRACK_SELECTED if the
+	 *         book has no tracks.
+	 */
+	public int getTrackIndexAtTime(int bookIndex, int bookTime) {
+		checkBookIndexLegal(bookIndex);
+
+		return this.books.get(bookIndex).getTrackIndexAtTime(bookTime);
+	}
+
 	/**
 	 * Track path of selected book and track.
 	 * 
@@ -652,14 +834,126 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	}
 
 	/**
-	 * Provides a check to see whether this model has listeners. If it does not,
-	 * updates are pointless.
+	 * Provides a check to see whether this model has listeners of the given
+	 * kind of events. If it does not, updates are pointless.
+	 * 
+	 * @param type
+	 *            The kind of events.
+	 * @return True if there is at least one listener of the kind.
+	 */
+	private boolean hasListeners(EventType type) {
+		Map<EventType, PropertyChangeListener[]> all = listeners;
+		return all != null && all.get(type) != null;
+	}
+
+	/**
+	 * Tells all listeners what changed. The event carries only the given
+	 * values; no copy of the bookshelf is made.
+	 * <p>
+	 * Unlike PropertyChangeSupport#firePropertyChange, the event is fired even
+	 * if the old and new values are equal (e.g. re-selecting a book).
+	 * 
+	 * @param type
+	 *            The kind of event. Only the listeners of this kind are told.
+	 * @param bookIndex
+	 *            The book that changed.
+	 * @param trackIndex
+	 *            The track that changed.
+	 * @param oldValue
+	 *            Value before the change.
+	 * @param newValue
+	 *            Value after the change.
+	 */
+	private void fireChange(EventType type, int bookIndex, int trackIndex,
+			Object oldValue, Object newValue) {
+		Map<EventType, PropertyChangeListener[]> all = listeners;
+		PropertyChangeListener[] ls = all == null ? null : all.get(type);
+		if (ls != null) {
+			BookshelfEvent e = new BookshelfEvent(this, type, bookIndex,
+					trackIndex, oldValue, newValue);
+			for (PropertyChangeListener pcl : ls) {
+				pcl.propertyChange(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of the whole bookshelf for listeners that need more than
+	 * what the change events carry (e.g. to redraw a list of books).
+	 * <p>
+	 * The snapshot shares all books and tracks with this bookshelf, so taking
+	 * it costs the same no matter how many books there are. A book or track is
+	 * only copied when either bookshelf changes it, and then only the changed
+	 * book and track.
+	 * 
+	 * @return A copy of this bookshelf, without listeners.
+	 */
+	public Bookshelf getSnapshot() {
+		Bookshelf snapshot = new Bookshelf();
+		snapshot.books = books;
+		snapshot.selectedBookIndex = selectedBookIndex;
+		snapshot.version = version;
+		snapshot.hash = hash;
+
+		// neither side may change what the other one can see
+		snapshot.booksShared = true;
+		snapshot.generation = GENERATIONS.incrementAndGet();
+		booksShared = true;
+		generation = GENERATIONS.incrementAndGet();
+
+		return snapshot;
+	}
+
+	/**
+	 * Returns the list of books, copied first if it is shared with a snapshot.
 	 * 
-	 * @return True if this object has elements in its property change listener
-	 *         object.
+	 * @return A list of books that may be changed.
 	 */
-	private boolean hasListeners() {
-		return pcs.getPropertyChangeListeners().length > 0;
+	private List<Book> writableBooks() {
+		changed();
+		if (booksShared) {
+			books = new ArrayList<Book>(books);
+			booksShared = false;
+		}
+		return books;
+	}
+
+	/**
+	 * Returns the book at the given index, copied first if it may be seen by a
+	 * snapshot. The copy shares its tracks until they are changed.
+	 * 
+	 * @param bookIndex
+	 *            Index of the book.
+	 * @return A book that may be changed.
+	 */
+	private Book writableBook(int bookIndex) {
+		changed();
+		Book b = books.get(bookIndex);
+		if (b.getGeneration() != generation) {
+			b = new Book(b, generation);
+			writableBooks().set(bookIndex, b);
+		}
+		return b;
+	}
+
+	/**
+	 * Marks the bookshelf as changed: takes a new version and drops the cached
+	 * hash.
+	 */
+	private void changed() {
+		version = VERSIONS.incrementAndGet();
+		hash = 0;
+	}
+
+	/**
+	 * Returns the version of this bookshelf, which changes whenever the
+	 * bookshelf is changed. Snapshots and copies start at the version of their
+	 * original.
+	 * 
+	 * @return The version of the bookshelf, or 0 if it is not known.
+	 */
+	public int getVersion() {
+		return version;
 	}
 
 	/**
@@ -689,22 +983,49 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	}
 
 	/**
-	 * Adds a listener to this object's property change listener object.
+	 * Adds a listener of all kinds of events.
 	 * 
 	 * @param listener
 	 *            Listener to add.
 	 */
 	public void addPropertyChangeListener(PropertyChangeListener listener) {
 		if (listener != null) {
-			pcs.addPropertyChangeListener(listener);
+			for (EventType type : EventType.values()) {
+				addListener(type, listener);
+			}
 
 			/*
-			 * Synchronize the new listener with the current state of the
-			 * bookshelf.
+			 * Tell the new listener to synchronize with the current state of
+			 * the bookshelf (see getSnapshot).
 			 */
-			pcs.firePropertyChange(Constants.Event.BOOKSHELF_UPDATED, null,
-					new Bookshelf(this));
+			fireChange(EventType.BOOKSHELF_UPDATED, selectedBookIndex,
+					NO_TRACK_SELECTED, null, null);
+
+		} else {
+			Log.e(TAG,
+					" trying to add null as property change listener. Skipping operation.");
+		}
+	}
+
+	/**
+	 * Adds a listener of one kind of events. The listener is not called for
+	 * any other kind.
+	 * 
+	 * @param type
+	 *            The kind of events to listen to.
+	 * @param listener
+	 *            Listener to add.
+	 */
+	public void addPropertyChangeListener(EventType type,
+			PropertyChangeListener listener) {
+		if (listener != null) {
+			addListener(type, listener);
 
+			// tell the new listener to synchronize, as above
+			if (type == EventType.BOOKSHELF_UPDATED) {
+				fireChange(EventType.BOOKSHELF_UPDATED, selectedBookIndex,
+						NO_TRACK_SELECTED, null, null);
+			}
 		} else {
 			Log.e(TAG,
 					" trying to add null as property change listener. Skipping operation.");
@@ -712,12 +1033,68 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	}
 
 	/**
-	 * Removes all listeners from the pcs member.
+	 * Adds a listener to the listeners of the given kind, replacing the map
+	 * of listeners.
+	 */
+	private synchronized void addListener(EventType type,
+			PropertyChangeListener listener) {
+		Map<EventType, PropertyChangeListener[]> all;
+		if (listeners == null) {
+			all = new EnumMap<EventType, PropertyChangeListener[]>(
+					EventType.class);
+		} else {
+			all = new EnumMap<EventType, PropertyChangeListener[]>(listeners);
+		}
+
+		PropertyChangeListener[] ls = all.get(type);
+		if (ls == null) {
+			ls = new PropertyChangeListener[] { listener };
+		} else {
+			ls = Arrays.copyOf(ls, ls.length + 1);
+			ls[ls.length - 1] = listener;
+		}
+		all.put(type, ls);
+
+		listeners = all;
+	}
+
+	/**
+	 * Removes a listener from all kinds of events it listens to.
+	 * 
+	 * @param listener
+	 *            Listener to remove.
 	 */
-	public void removeListeners() {
-		for (PropertyChangeListener pcl : pcs.getPropertyChangeListeners()) {
-			pcs.removePropertyChangeListener(pcl);
+	public synchronized void removePropertyChangeListener(
+			PropertyChangeListener listener) {
+		if (listeners == null) {
+			return;
 		}
+
+		Map<EventType, PropertyChangeListener[]> all = new EnumMap<EventType, PropertyChangeListener[]>(
+				EventType.class);
+		for (Map.Entry<EventType, PropertyChangeListener[]> entry : listeners
+				.entrySet()) {
+			PropertyChangeListener[] ls = entry.getValue();
+			PropertyChangeListener[] kept = new PropertyChangeListener[ls.length];
+			int n = 0;
+			for (PropertyChangeListener l : ls) {
+				if (l != listener) {
+					kept[n++] = l;
+				}
+			}
+			if (n > 0) {
+				all.put(entry.getKey(), Arrays.copyOf(kept, n));
+			}
+		}
+
+		listeners = all;
+	}
+
+	/**
+	 * Removes all listeners.
+	 */
+	public synchronized void removeListeners() {
+		listeners = null;
 	}
 
 	/*
@@ -727,8 +1104,14 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	 */
 	@Override
 	public int hashCode() {
-		return new HashCodeBuilder().append(books).append(selectedBookIndex)
-				.toHashCode();
+		int h = hash;
+		if (h == 0) {
+			// each book caches its own hash, so only the list is walked here
+			h = new HashCodeBuilder().append(books)
+					.append(selectedBookIndex).toHashCode();
+			hash = h;
+		}
+		return h;
 	}
 
 	/*
@@ -738,8 +1121,20 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	 */
 	@Override
 	public boolean equals(final Object obj) {
-		if (obj instanceof Bookshelf) {
+		if (this == obj) {
+			return true;
+		} else if (obj instanceof Bookshelf) {
 			final Bookshelf other = (Bookshelf) obj;
+			int v = version;
+			if (v != 0 && v == other.version) {
+				// a snapshot or copy that neither has changed since
+				return true;
+			}
+			int h = hash;
+			int otherHash = other.hash;
+			if (h != 0 && otherHash != 0 && h != otherHash) {
+				return false;
+			}
 			return new EqualsBuilder().append(books, other.books)
 					.append(selectedBookIndex, other.selectedBookIndex)
 					.isEquals();
@@ -804,27 +1199,19 @@ public class Bookshelf implements IBookUpdates, Serializable {
 		checkBookIndexLegal(bookIndex);
 		checkTrackIndexLegalAt(bookIndex, trackIndex);
 
-		// the event to fire
-		String event;
-
 		if (this.books.get(bookIndex).getNumberOfTracks() <= 1) {
 			// remove the entire book (since there was just 1 track)
-
+			// note: removing the book fires its own event
 			removeBookAt(bookIndex);
-
-			event = Constants.Event.BOOK_LIST_CHANGED;
 		} else {
 			// if more than 1 track, remove it
-			this.books.get(bookIndex).removeTrack(trackIndex);
+			writableBook(bookIndex).removeTrack(trackIndex);
 
 			// re-calculate the book duration
 			updateBookDurationAt(bookIndex);
 
-			event = Constants.Event.TRACK_LIST_CHANGED;
-		}
-
-		if (hasListeners()) {
-			pcs.firePropertyChange(event, null, new Bookshelf(this));
+			fireChange(EventType.TRACK_LIST_CHANGED, bookIndex,
+					trackIndex, null, null);
 		}
 
 	}
@@ -839,7 +1226,7 @@ public class Bookshelf implements IBookUpdates, Serializable {
 	private void updateBookDurationAt(int bookIndex) {
 		checkBookIndexLegal(bookIndex);
 
-		this.books.get(bookIndex).updateSelectedBookDuration();
+		writableBook(bookIndex).updateSelectedBookDuration();
 	}
 
 	/**
@@ -858,12 +1245,10 @@ public class Bookshelf implements IBookUpdates, Serializable {
 		checkTrackIndexLegalAt(bookIndex, trackIndex);
 		checkTrackIndexLegalAt(bookIndex, trackIndex + offset);
 
-		this.books.get(bookIndex).moveTrack(trackIndex, trackIndex + offset);
+		writableBook(bookIndex).moveTrack(trackIndex, trackIndex + offset);
 
-		if (hasListeners()) {
-			pcs.firePropertyChange(Constants.Event.BOOK_LIST_CHANGED, null,
-					new Bookshelf(this));
-		}
+		fireChange(EventType.BOOK_LIST_CHANGED, bookIndex, trackIndex
+				+ offset, trackIndex, trackIndex + offset);
 	}
 
 	/**
@@ -0,0 +1,92 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+package edu.chalmers.dat255.audiobookplayer.model;
+
+import java.beans.PropertyChangeEvent;
+
+import edu.chalmers.dat255.audiobookplayer.constants.EventType;
+
+/**
+ * A change in the bookshelf. Only what changed is carried by the event: the
+ * position of the affected book and track, and the old and new value of the
+ * changed property (see Constants.Event for what the values are for each
+ * event).
+ * <p>
+ * Listeners that need to see the whole bookshelf should ask for a snapshot
+ * (see {@link Bookshelf#getSnapshot()}).
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+public class BookshelfEvent extends PropertyChangeEvent {
+	private static final long serialVersionUID = 5L;
+
+	private final EventType type;
+	private final int bookIndex;
+	private final int trackIndex;
+
+	/**
+	 * Creates an event describing a change in the given bookshelf.
+	 * 
+	 * @param source
+	 *            The bookshelf that changed.
+	 * @param type
+	 *            The kind of event.
+	 * @param bookIndex
+	 *            The book that changed, or Constants.Value.NO_BOOK_SELECTED.
+	 * @param trackIndex
+	 *            The track that changed, or Constants.Value.NO_TRACK_SELECTED.
+	 * @param oldValue
+	 *            The value before the change. May be null.
+	 * @param newValue
+	 *            The value after the change. May be null.
+	 */
+	public BookshelfEvent(Bookshelf source, EventType type, int bookIndex,
+			int trackIndex, Object oldValue, Object newValue) {
+		super(source, type.getPropertyName(), oldValue, newValue);
+		this.type = type;
+		this.bookIndex = bookIndex;
+		this.trackIndex = trackIndex;
+	}
+
+	/**
+	 * @return The kind of event.
+	 */
+	public EventType getType() {
+		return type;
+	}
+
+	/**
+	 * @return The index of the book that changed.
+	 */
+	public int getBookIndex() {
+		return bookIndex;
+	}
+
+	/**
+	 * @return The index of the track that changed.
+	 */
+	public int getTrackIndex() {
+		return trackIndex;
+	}
+
+	/**
+	 * @return The bookshelf that fired the event (not a copy).
+	 */
+	public Bookshelf getBookshelf() {
+		return (Bookshelf) getSource();
+	}
+
+}
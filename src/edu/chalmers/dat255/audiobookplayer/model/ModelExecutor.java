@@ -0,0 +1,216 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.model;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Runs all changes of a bookshelf, one at a time, on a single model thread.
+ * <p>
+ * Changes are given as commands, which are queued and run in the order they
+ * were given. Only commands may touch the bookshelf, so the bookshelf needs no
+ * locks and is never changed by two threads at once. Change events are fired
+ * on the model thread.
+ * <p>
+ * Any thread may read the bookshelf through {@link #getSnapshot()}, which
+ * returns the snapshot published after the last command without locking.
+ * <p>
+ * The model thread is stopped when it has been idle for a while, and started
+ * again by the next command, until the executor is shut down.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+public final class ModelExecutor {
+	private static final String TAG = "ModelExecutor";
+
+	// how long (s) the model thread waits for a command before stopping
+	private static final long KEEP_ALIVE = 30;
+
+	/**
+	 * A change of the bookshelf.
+	 * 
+	 * @author Aki Käkelä
+	 * @version 0.1
+	 * 
+	 */
+	public interface Command {
+		/**
+		 * Changes the given bookshelf. Runs on the model thread.
+		 * 
+		 * @param bs
+		 *            The bookshelf (not a copy).
+		 */
+		void execute(Bookshelf bs);
+	}
+
+	private final Bookshelf bookshelf;
+	private final ThreadPoolExecutor executor;
+
+	// the thread running the current command, if any
+	private volatile Thread modelThread;
+
+	// taken after every command
+	private volatile Bookshelf snapshot;
+
+	/**
+	 * Creates an executor of the given bookshelf. From now on, the bookshelf
+	 * should only be changed through this executor.
+	 * 
+	 * @param bs
+	 *            The bookshelf to change.
+	 */
+	public ModelExecutor(Bookshelf bs) {
+		if (bs == null) {
+			throw new IllegalArgumentException(TAG
+					+ " bookshelf may not be null");
+		}
+		this.bookshelf = bs;
+		this.snapshot = bs.getSnapshot();
+
+		this.executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, TAG);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues a command and returns at once. Exceptions thrown by the command
+	 * are logged, as is a command given after the executor was shut down,
+	 * which is dropped.
+	 * 
+	 * @param command
+	 *            The command to run.
+	 */
+	public void execute(final Command command) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						runCommand(command);
+					} catch (RuntimeException e) {
+						Log.e(TAG, "Command failed: " + e.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Log.e(TAG, "Command dropped after shutdown");
+		}
+	}
+
+	/**
+	 * Runs a command and waits until it is done, so that its changes can be
+	 * seen in {@link #getSnapshot()} when this returns. Runs the command at
+	 * once if called on the model thread (e.g. by a listener).
+	 * <p>
+	 * Exceptions thrown by the command are thrown again here.
+	 * 
+	 * @param command
+	 *            The command to run.
+	 * @throws IllegalStateException
+	 *             If the executor has been shut down.
+	 */
+	public void run(final Command command) {
+		if (Thread.currentThread() == modelThread) {
+			runCommand(command);
+			return;
+		}
+
+		Future<?> done;
+		try {
+			done = executor.submit(new Runnable() {
+				public void run() {
+					runCommand(command);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IllegalStateException(TAG + " has been shut down");
+		}
+
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			// stop waiting; the command will still be run
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the bookshelf, taken after the last command. Never
+	 * blocks. On the model thread, a new snapshot is taken so that changes
+	 * made by the running command can be seen.
+	 * 
+	 * @return A snapshot of the bookshelf.
+	 */
+	public Bookshelf getSnapshot() {
+		if (Thread.currentThread() == modelThread) {
+			return bookshelf.getSnapshot();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Stops the model thread once the commands queued so far have run, and
+	 * returns at once. Called when the bookshelf is no longer used, as when
+	 * the application is closed or the profile is switched.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return True if the executor has been shut down.
+	 */
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	/**
+	 * Runs a command on the current thread and publishes a snapshot after it.
+	 * Must only be called on the model thread.
+	 */
+	private void runCommand(Command command) {
+		modelThread = Thread.currentThread();
+		try {
+			command.execute(bookshelf);
+		} finally {
+			snapshot = bookshelf.getSnapshot();
+		}
+	}
+
+}
@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.model;
@@ -24,7 +24,7 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
  * The time is immutable, so the object must be destroyed and recreated to
  * "move" a tag.
  * 
- * @author Aki Kkel
+ * @author Aki Käkelä
  * @version 0.6
  * 
  */
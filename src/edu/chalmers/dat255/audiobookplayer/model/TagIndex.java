@@ -0,0 +1,237 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.model;
+
+import java.util.Arrays;
+
+/**
+ * Operations on the tags of a track, kept as a sorted array of distinct tag
+ * times (ms). An array is never changed once it is handed out; every change
+ * returns a new array. A track without tags has a null array.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+final class TagIndex {
+	private static final String TAG = "TagIndex.java";
+
+	/**
+	 * The index returned when there is no tag to find.
+	 */
+	static final int NO_TAG = -1;
+
+	private TagIndex() {
+	} // to defeat instantiation
+
+	/**
+	 * @param tags
+	 *            The tags of a track. May be null.
+	 * @return The number of tags.
+	 */
+	static int size(int[] tags) {
+		return tags == null ? 0 : tags.length;
+	}
+
+	/**
+	 * Returns the tags with a tag added at the given time.
+	 * 
+	 * @param tags
+	 *            The tags of a track. May be null.
+	 * @param time
+	 *            The time of the new tag (ms).
+	 * @return The tags including the new one, or the given array if there
+	 *         already was a tag at that time.
+	 */
+	static int[] insert(int[] tags, int time) {
+		checkTime(time);
+		if (tags == null) {
+			return new int[] { time };
+		}
+
+		int i = Arrays.binarySearch(tags, time);
+		if (i >= 0) {
+			return tags;
+		}
+		i = -i - 1;
+		int[] result = new int[tags.length + 1];
+		System.arraycopy(tags, 0, result, 0, i);
+		result[i] = time;
+		System.arraycopy(tags, i, result, i + 1, tags.length - i);
+		return result;
+	}
+
+	/**
+	 * Returns the tags with the tag at the given index removed.
+	 * 
+	 * @param tags
+	 *            The tags of a track. May be null.
+	 * @param tagIndex
+	 *            Index of the tag to remove.
+	 * @return The remaining tags, or null if there are none.
+	 */
+	static int[] remove(int[] tags, int tagIndex) {
+		int count = size(tags);
+		if (tagIndex < 0 || tagIndex >= count) {
+			throw new IndexOutOfBoundsException(TAG + " remove"
+					+ " Tag index is illegal");
+		}
+		if (count == 1) {
+			return null;
+		}
+
+		int[] result = new int[count - 1];
+		System.arraycopy(tags, 0, result, 0, tagIndex);
+		System.arraycopy(tags, tagIndex + 1, result, tagIndex, count
+				- tagIndex - 1);
+		return result;
+	}
+
+	/**
+	 * Returns the tags merged with any number of new tag times, in one pass
+	 * over both. The times need not be sorted and may repeat each other or
+	 * the existing tags.
+	 * 
+	 * @param tags
+	 *            The tags of a track. May be null.
+	 * @param times
+	 *            The times of the new tags (ms).
+	 * @return The merged tags, or null if there are none.
+	 */
+	static int[] merge(int[] tags, int[] times) {
+		int[] added = times.clone();
+		Arrays.sort(added);
+		for (int time : added) {
+			checkTime(time);
+		}
+
+		int count = size(tags);
+		int[] result = new int[count + added.length];
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while (i < count || j < added.length) {
+			int next;
+			if (j == added.length || i < count && tags[i] <= added[j]) {
+				next = tags[i++];
+			} else {
+				next = added[j++];
+			}
+			// skip times that are already tagged
+			if (n == 0 || result[n - 1] != next) {
+				result[n++] = next;
+			}
+		}
+
+		if (n == 0) {
+			return null;
+		} else if (n == count) {
+			// nothing new; keep the old array
+			return tags;
+		}
+		return n == result.length ? result : Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * @param tags
+	 *            The tags of a track. May be null.
+	 * @param time
+	 *            The time of a tag (ms).
+	 * @return The index of the tag at the given time, or NO_TAG.
+	 */
+	static int indexOf(int[] tags, int time) {
+		if (tags == null) {
+			return NO_TAG;
+		}
+		int i = Arrays.binarySearch(tags, time);
+		return i >= 0 ? i : NO_TAG;
+	}
+
+	/**
+	 * @param tags
+	 *            The tags of a track. May be null.
+	 * @param time
+	 *            A time in the track (ms).
+	 * @return The index of the first tag after the given time, or NO_TAG.
+	 */
+	static int next(int[] tags, int time) {
+		int i = firstAtOrAfter(tags, time);
+		if (i < size(tags) && tags[i] == time) {
+			i++;
+		}
+		return i < size(tags) ? i : NO_TAG;
+	}
+
+	/**
+	 * @param tags
+	 *            The tags of a track. May be null.
+	 * @param time
+	 *            A time in the track (ms).
+	 * @return The index of the last tag before the given time, or NO_TAG.
+	 */
+	static int previous(int[] tags, int time) {
+		int i = firstAtOrAfter(tags, time) - 1;
+		return i >= 0 ? i : NO_TAG;
+	}
+
+	/**
+	 * Returns the times of the tags in a range of time.
+	 * 
+	 * @param tags
+	 *            The tags of a track. May be null.
+	 * @param from
+	 *            The start of the range (ms), inclusive.
+	 * @param to
+	 *            The end of the range (ms), exclusive.
+	 * @return A new array with the times of the tags in the range, in order.
+	 */
+	static int[] range(int[] tags, int from, int to) {
+		int start = firstAtOrAfter(tags, from);
+		int end = Math.max(start, firstAtOrAfter(tags, to));
+		if (start == end) {
+			return new int[0];
+		}
+		return Arrays.copyOfRange(tags, start, end);
+	}
+
+	/**
+	 * @param tags
+	 *            The tags of a track. May be null.
+	 * @param time
+	 *            A time in the track (ms).
+	 * @return The index of the first tag at or after the given time; the
+	 *         number of tags if there is none.
+	 */
+	private static int firstAtOrAfter(int[] tags, int time) {
+		if (tags == null) {
+			return 0;
+		}
+		int i = Arrays.binarySearch(tags, time);
+		return i >= 0 ? i : -i - 1;
+	}
+
+	/**
+	 * Throws an IllegalArgumentException if the given time is not legal.
+	 * 
+	 * @param time
+	 *            The time of a tag (ms).
+	 */
+	private static void checkTime(int time) {
+		if (time < 0) {
+			throw new IllegalArgumentException(TAG
+					+ " Tag time must not be negative: " + time);
+		}
+	}
+}
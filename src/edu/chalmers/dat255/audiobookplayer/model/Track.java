@@ -8,14 +8,13 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.model;
 
 import java.io.Serializable;
 import java.security.InvalidParameterException;
-import java.util.List;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
@@ -29,7 +28,7 @@ import edu.chalmers.dat255.audiobookplayer.interfaces.ITrackUpdates;
  * <p>
  * Duration and track path are immutable.
  * 
- * @author Aki Kkel, Marcus Parkkinen
+ * @author Aki Käkelä, Marcus Parkkinen
  * @version 0.6
  * 
  */
@@ -41,7 +40,8 @@ public final class Track implements ITrackUpdates, Serializable {
 	private final String path;
 	private final int duration;
 	private int elapsedTime;
-	private List<Tag> tags;
+	// sorted tag times (null if none); never changed in place
+	private int[] tags;
 	private String title;
 
 	/**
@@ -86,19 +86,45 @@ public final class Track implements ITrackUpdates, Serializable {
 		this(original.path, original.title, original.duration);
 		this.elapsedTime = original.elapsedTime;
 		this.title = original.title;
+
+		// the tag array is never changed in place, so it can be shared
+		this.tags = original.tags;
+	}
+
+	/**
+	 * Creates a track from the data of a track in a book.
+	 * 
+	 * @param path
+	 *            Path to the track
+	 * @param title
+	 *            Title of the track. May be null.
+	 * @param duration
+	 *            Playing time of the track in ms.
+	 * @param elapsedTime
+	 *            Elapsed time of the track in ms.
+	 * @param tagTimes
+	 *            Sorted times of the tags of the track, never to be changed
+	 *            in place. May be null.
+	 */
+	Track(String path, String title, int duration, int elapsedTime,
+			int[] tagTimes) {
+		this(path, title, duration);
+		this.elapsedTime = elapsedTime;
+
+		this.tags = tagTimes;
 	}
 
 	/**
 	 * @return The path to the track.
 	 */
-	protected String getTrackPath() {
+	public String getTrackPath() {
 		return path;
 	}
 
 	/**
 	 * @return The playing time of the track.
 	 */
-	protected int getDuration() {
+	public int getDuration() {
 		return duration;
 	}
 
@@ -176,7 +202,18 @@ public final class Track implements ITrackUpdates, Serializable {
 	 * edu.chalmers.dat255.audiobookplayer.interfaces.ITrackUpdates#addTag(int)
 	 */
 	public void addTag(int time) {
-		this.tags.add(new Tag(time));
+		this.tags = TagIndex.insert(this.tags, time);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * edu.chalmers.dat255.audiobookplayer.interfaces.ITrackUpdates#addTags(int
+	 * [])
+	 */
+	public void addTags(int[] times) {
+		this.tags = TagIndex.merge(this.tags, times);
 	}
 
 	/*
@@ -192,21 +229,20 @@ public final class Track implements ITrackUpdates, Serializable {
 					+ TAG_INDEX_ILLEGAL);
 		}
 
-		this.tags.remove(tagIndex);
+		this.tags = TagIndex.remove(this.tags, tagIndex);
 	}
 
 	/**
-	 * Returns an array of times for the tags. May return an empty array (check
-	 * length == 0).
+	 * Returns an array of times for the tags, in order. May return an empty
+	 * array (check length == 0).
 	 * 
 	 * @return
 	 */
 	public int[] getTagTimes() {
-		int[] result = new int[this.tags.size()];
-		for (int i = 0; i < this.tags.size(); i++) {
-			result[i] = this.tags.get(i).getTime();
+		if (this.tags == null) {
+			return new int[0];
 		}
-		return result;
+		return this.tags.clone();
 	}
 
 	/**
@@ -214,7 +250,7 @@ public final class Track implements ITrackUpdates, Serializable {
 	 * @return
 	 */
 	private boolean isLegalTagIndex(int tagIndex) {
-		return tagIndex >= 0 && tagIndex < tags.size();
+		return tagIndex >= 0 && tagIndex < TagIndex.size(tags);
 	}
 
 }
@@ -0,0 +1,169 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.model;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The tracks of a book as they are stored, loaded the first time they are
+ * needed. Until then, the segment stands in for them with what the list of
+ * books shows: the number of tracks, the duration of the book and how far
+ * into it the selected track is.
+ * <p>
+ * Books copied from each other share their segment, so the tracks are only
+ * read once however many copies need them.
+ * <p>
+ * The paths, titles and durations of the tracks may be stored apart from
+ * their positions and tags, in a catalogue shared by all users.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+public final class TrackSegment {
+	private static final String TAG = "TrackSegment.java";
+
+	/**
+	 * Reads the tracks of a segment from where they are stored.
+	 * 
+	 * @author Aki Käkelä
+	 * @version 0.1
+	 * 
+	 */
+	public interface Loader {
+		/**
+		 * @return The tracks, in order.
+		 * @throws IOException
+		 *             If the tracks could not be read.
+		 */
+		List<Track> load() throws IOException;
+	}
+
+	private final long key;
+	private final long catalogueKey;
+	private final int numberOfTracks;
+	private final int duration;
+	private final int bookElapsedTime;
+	private final Loader loader;
+
+	// the loaded tracks, never changed (guarded by this)
+	private TrackTable tracks;
+
+	/**
+	 * Creates a segment that is not yet loaded.
+	 * 
+	 * @param key
+	 *            What the segment is stored as.
+	 * @param catalogueKey
+	 *            What the paths, titles and durations of the tracks are stored
+	 *            as in the catalogue, or 0 if they are stored in the segment.
+	 * @param numberOfTracks
+	 *            The number of tracks in the segment.
+	 * @param duration
+	 *            The duration of the book (ms).
+	 * @param bookElapsedTime
+	 *            The elapsed time of the book (ms) at its selected track.
+	 * @param loader
+	 *            Reads the tracks.
+	 */
+	public TrackSegment(long key, long catalogueKey, int numberOfTracks,
+			int duration, int bookElapsedTime, Loader loader) {
+		if (loader == null) {
+			throw new IllegalArgumentException(TAG
+					+ " loader may not be null");
+		}
+		this.key = key;
+		this.catalogueKey = catalogueKey;
+		this.numberOfTracks = numberOfTracks;
+		this.duration = duration;
+		this.bookElapsedTime = bookElapsedTime;
+		this.loader = loader;
+	}
+
+	/**
+	 * @return What the segment is stored as.
+	 */
+	public long getKey() {
+		return key;
+	}
+
+	/**
+	 * @return What the paths, titles and durations of the tracks are stored
+	 *         as in the catalogue, or 0 if they are stored in the segment.
+	 */
+	public long getCatalogueKey() {
+		return catalogueKey;
+	}
+
+	/**
+	 * @return The number of tracks in the segment.
+	 */
+	int getNumberOfTracks() {
+		return numberOfTracks;
+	}
+
+	/**
+	 * @return The duration of the book (ms).
+	 */
+	int getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return The elapsed time of the book (ms) at its selected track.
+	 */
+	int getBookElapsedTime() {
+		return bookElapsedTime;
+	}
+
+	/**
+	 * @return True if the tracks have been loaded.
+	 */
+	public synchronized boolean isLoaded() {
+		return tracks != null;
+	}
+
+	/**
+	 * Returns a copy of the tracks, loading them the first time.
+	 * 
+	 * @return A table of the tracks that the caller may change.
+	 * @throws IllegalStateException
+	 *             If the tracks could not be loaded, or do not match the
+	 *             segment.
+	 */
+	synchronized TrackTable copyTracks() {
+		if (tracks == null) {
+			List<Track> loaded;
+			try {
+				loaded = loader.load();
+			} catch (IOException e) {
+				throw new IllegalStateException(TAG
+						+ " could not load the tracks: " + e.getMessage());
+			}
+			if (loaded.size() != numberOfTracks) {
+				throw new IllegalStateException(TAG + " expected "
+						+ numberOfTracks + " tracks, loaded " + loaded.size());
+			}
+
+			TrackTable table = new TrackTable();
+			for (Track t : loaded) {
+				table.add(t);
+			}
+			tracks = table;
+		}
+		return new TrackTable(tracks);
+	}
+}
@@ -0,0 +1,665 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.model;
+
+import java.io.Serializable;
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * The tracks of a book, stored column by column: one array per property
+ * instead of one object per track. Any track can be reached in constant time,
+ * and a track costs a few array slots instead of a handful of objects.
+ * <p>
+ * A copy shares the columns of the original until one of them changes a
+ * column; only that column is then copied.
+ * 
+ * @author Aki Käkelä
+ * @version 0.3
+ * 
+ */
+final class TrackTable implements Serializable {
+	private static final String TAG = "TrackTable.java";
+	private static final long serialVersionUID = 1L;
+	private static final int INITIAL_CAPACITY = 4;
+
+	// the columns, as flags for sharedColumns
+	private static final int PATHS = 1;
+	private static final int TITLES = 2;
+	private static final int DURATIONS = 4;
+	private static final int ELAPSED_TIMES = 8;
+	private static final int TAGS = 16;
+	private static final int START_TIMES = 32;
+	private static final int ALL_COLUMNS = 63;
+
+	private int size;
+	private String[] paths;
+	private String[] titles;
+	private int[] durations;
+	private int[] elapsedTimes;
+
+	// the tag times of each track (null if none); never changed in place
+	private int[][] tagTimes;
+
+	/*
+	 * The time in the book at which each track starts, i.e. the sum of the
+	 * durations of all earlier tracks. startTimes[size] is the duration of the
+	 * book.
+	 */
+	private int[] startTimes;
+
+	// the columns that are shared with another table
+	private transient int sharedColumns;
+
+	/*
+	 * The hash of the contents, 0 until it is computed and again after every
+	 * change. Being a single int, it is never seen half written.
+	 */
+	private transient int hash;
+
+	/**
+	 * Creates an empty table.
+	 */
+	TrackTable() {
+		paths = new String[INITIAL_CAPACITY];
+		titles = new String[INITIAL_CAPACITY];
+		durations = new int[INITIAL_CAPACITY];
+		elapsedTimes = new int[INITIAL_CAPACITY];
+		tagTimes = new int[INITIAL_CAPACITY][];
+		startTimes = new int[INITIAL_CAPACITY + 1];
+	}
+
+	/**
+	 * Creates a copy of a table. The copy shares all columns with the original
+	 * until either of them changes.
+	 * 
+	 * @param original
+	 *            The table to copy.
+	 */
+	TrackTable(TrackTable original) {
+		size = original.size;
+		paths = original.paths;
+		titles = original.titles;
+		durations = original.durations;
+		elapsedTimes = original.elapsedTimes;
+		tagTimes = original.tagTimes;
+		startTimes = original.startTimes;
+		hash = original.hash;
+
+		// neither table may change the columns in place from now on
+		sharedColumns = ALL_COLUMNS;
+		original.sharedColumns = ALL_COLUMNS;
+	}
+
+	/**
+	 * @return The number of tracks.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a track last in the table.
+	 * 
+	 * @param t
+	 *            The track to add. Must not be null.
+	 */
+	void add(Track t) {
+		ensureCapacity(size + 1);
+		own(ALL_COLUMNS);
+
+		paths[size] = t.getTrackPath();
+		titles[size] = t.getTrackTitle();
+		durations[size] = t.getDuration();
+		elapsedTimes[size] = t.getElapsedTime();
+		int[] tags = t.getTagTimes();
+		tagTimes[size] = tags.length == 0 ? null : tags;
+		startTimes[size + 1] = startTimes[size] + durations[size];
+
+		size++;
+	}
+
+	/**
+	 * Removes the track at the given index. Later tracks move one step ahead.
+	 * 
+	 * @param index
+	 *            Index of the track.
+	 */
+	void remove(int index) {
+		own(ALL_COLUMNS);
+
+		int moved = size - index - 1;
+		System.arraycopy(paths, index + 1, paths, index, moved);
+		System.arraycopy(titles, index + 1, titles, index, moved);
+		System.arraycopy(durations, index + 1, durations, index, moved);
+		System.arraycopy(elapsedTimes, index + 1, elapsedTimes, index, moved);
+		System.arraycopy(tagTimes, index + 1, tagTimes, index, moved);
+
+		// let go of the references in the last, now unused, slot
+		size--;
+		paths[size] = null;
+		titles[size] = null;
+		tagTimes[size] = null;
+
+		updateStartTimes(index);
+	}
+
+	/**
+	 * Swaps the tracks at the given indices.
+	 * 
+	 * @param first
+	 *            Index of the first track.
+	 * @param second
+	 *            Index of the second track.
+	 */
+	void swap(int first, int second) {
+		own(ALL_COLUMNS);
+
+		String path = paths[first];
+		paths[first] = paths[second];
+		paths[second] = path;
+
+		String title = titles[first];
+		titles[first] = titles[second];
+		titles[second] = title;
+
+		int duration = durations[first];
+		durations[first] = durations[second];
+		durations[second] = duration;
+
+		int elapsedTime = elapsedTimes[first];
+		elapsedTimes[first] = elapsedTimes[second];
+		elapsedTimes[second] = elapsedTime;
+
+		int[] tags = tagTimes[first];
+		tagTimes[first] = tagTimes[second];
+		tagTimes[second] = tags;
+
+		updateStartTimes(Math.min(first, second));
+	}
+
+	/**
+	 * Moves a track from one index to another. The tracks in between move one
+	 * step towards the old index.
+	 * 
+	 * @param from
+	 *            Index of the track to move.
+	 * @param to
+	 *            Index to move the track to.
+	 */
+	void move(int from, int to) {
+		if (from == to) {
+			return;
+		}
+		own(ALL_COLUMNS);
+
+		String path = paths[from];
+		String title = titles[from];
+		int duration = durations[from];
+		int elapsedTime = elapsedTimes[from];
+		int[] tags = tagTimes[from];
+
+		// shift the tracks in between one step towards 'from'
+		int low = Math.min(from, to);
+		int moved = Math.abs(to - from);
+		int src = from < to ? low + 1 : low;
+		int dst = from < to ? low : low + 1;
+		System.arraycopy(paths, src, paths, dst, moved);
+		System.arraycopy(titles, src, titles, dst, moved);
+		System.arraycopy(durations, src, durations, dst, moved);
+		System.arraycopy(elapsedTimes, src, elapsedTimes, dst, moved);
+		System.arraycopy(tagTimes, src, tagTimes, dst, moved);
+
+		paths[to] = path;
+		titles[to] = title;
+		durations[to] = duration;
+		elapsedTimes[to] = elapsedTime;
+		tagTimes[to] = tags;
+
+		updateStartTimes(low);
+	}
+
+	/**
+	 * Recalculates the start times of all tracks.
+	 */
+	void updateStartTimes() {
+		own(START_TIMES);
+		updateStartTimes(0);
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @return The path of the track.
+	 */
+	String getPath(int index) {
+		return paths[index];
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @return The title of the track. May be null.
+	 */
+	String getTitle(int index) {
+		return titles[index];
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @return The duration of the track (ms).
+	 */
+	int getDuration(int index) {
+		return durations[index];
+	}
+
+	/**
+	 * @return The sum of the durations of all tracks (ms).
+	 */
+	int getDuration() {
+		return startTimes[size];
+	}
+
+	/**
+	 * Sets the duration of a track, as when an estimate has been found
+	 * exactly. An elapsed time past the new end of the track is set to the
+	 * new duration.
+	 * 
+	 * @param index
+	 *            Index of the track.
+	 * @param duration
+	 *            The new duration (ms).
+	 */
+	void setDuration(int index, int duration) {
+		if (duration <= 0) {
+			throw new InvalidParameterException(
+					"Attempting to set duration to a non-positive value.");
+		}
+		own(DURATIONS | START_TIMES);
+		durations[index] = duration;
+		if (elapsedTimes[index] > duration) {
+			own(ELAPSED_TIMES);
+			elapsedTimes[index] = duration;
+		}
+		updateStartTimes(index);
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @return The elapsed time of the track (ms).
+	 */
+	int getElapsedTime(int index) {
+		return elapsedTimes[index];
+	}
+
+	/**
+	 * Sets the elapsed time of a track. A time past the end of the track is
+	 * set to the duration of the track.
+	 * 
+	 * @param index
+	 *            Index of the track.
+	 * @param elapsedTime
+	 *            The new elapsed time (ms).
+	 */
+	void setElapsedTime(int index, int elapsedTime) {
+		if (elapsedTime < 0) {
+			throw new InvalidParameterException(
+					"Attempting to set elapsed time to a negative value.");
+		}
+		own(ELAPSED_TIMES);
+
+		if (elapsedTime > durations[index]) {
+			Log.e(TAG, "elapsedTime (" + elapsedTime + ") set to duration ("
+					+ durations[index] + ")");
+			elapsedTimes[index] = durations[index];
+		} else {
+			elapsedTimes[index] = elapsedTime;
+		}
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @return The time in the book at which the track starts (ms).
+	 */
+	int getStartTime(int index) {
+		return startTimes[index];
+	}
+
+	/**
+	 * Returns the index of the track that plays at the given time in the book.
+	 * A time at the very end of a track belongs to that track, and a time past
+	 * the end of the book belongs to the last track. The table must not be
+	 * empty.
+	 * 
+	 * @param bookTime
+	 *            Time in the book (ms).
+	 * @return Index of the track.
+	 */
+	int getIndexAt(int bookTime) {
+		// find the first track that ends at or after the given time
+		int low = 0;
+		int high = size - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (startTimes[mid + 1] < bookTime) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @return The number of tags in the track.
+	 */
+	int getTagCount(int index) {
+		return TagIndex.size(tagTimes[index]);
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @return A copy of the tag times of the track, in order. Empty if there
+	 *         are none.
+	 */
+	int[] getTagTimes(int index) {
+		if (tagTimes[index] == null) {
+			return new int[0];
+		}
+		return tagTimes[index].clone();
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @param tagIndex
+	 *            Index of the tag in the track.
+	 * @return The time of the tag (ms).
+	 */
+	int getTagTime(int index, int tagIndex) {
+		if (tagIndex < 0 || tagIndex >= getTagCount(index)) {
+			throw new IndexOutOfBoundsException(TAG + " getTagTime"
+					+ " Tag index is illegal");
+		}
+		return tagTimes[index][tagIndex];
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @param time
+	 *            The time of a tag (ms).
+	 * @return The index of the tag at the given time, or TagIndex.NO_TAG.
+	 */
+	int getTagIndex(int index, int time) {
+		return TagIndex.indexOf(tagTimes[index], time);
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @param time
+	 *            A time in the track (ms).
+	 * @return The index of the first tag after the given time, or
+	 *         TagIndex.NO_TAG.
+	 */
+	int getNextTag(int index, int time) {
+		return TagIndex.next(tagTimes[index], time);
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @param time
+	 *            A time in the track (ms).
+	 * @return The index of the last tag before the given time, or
+	 *         TagIndex.NO_TAG.
+	 */
+	int getPreviousTag(int index, int time) {
+		return TagIndex.previous(tagTimes[index], time);
+	}
+
+	/**
+	 * @param index
+	 *            Index of the track.
+	 * @param from
+	 *            The start of the range (ms), inclusive.
+	 * @param to
+	 *            The end of the range (ms), exclusive.
+	 * @return The times of the tags of the track in the range, in order.
+	 */
+	int[] getTagTimes(int index, int from, int to) {
+		return TagIndex.range(tagTimes[index], from, to);
+	}
+
+	/**
+	 * Adds a tag to a track, in order of time. Nothing changes if the track
+	 * already has a tag at that time.
+	 * 
+	 * @param index
+	 *            Index of the track.
+	 * @param time
+	 *            Time of the tag (ms).
+	 * @return The index of the tag in the track.
+	 */
+	int addTag(int index, int time) {
+		int[] tags = TagIndex.insert(tagTimes[index], time);
+		if (tags != tagTimes[index]) {
+			own(TAGS);
+			tagTimes[index] = tags;
+		}
+		return TagIndex.indexOf(tags, time);
+	}
+
+	/**
+	 * Adds any number of tags to a track at once. Times that the track
+	 * already has a tag at are skipped.
+	 * 
+	 * @param index
+	 *            Index of the track.
+	 * @param times
+	 *            Times of the tags (ms), in any order.
+	 * @return The number of tags that were added.
+	 */
+	int addTags(int index, int[] times) {
+		int count = getTagCount(index);
+		int[] tags = TagIndex.merge(tagTimes[index], times);
+		if (tags != tagTimes[index]) {
+			own(TAGS);
+			tagTimes[index] = tags;
+		}
+		return TagIndex.size(tags) - count;
+	}
+
+	/**
+	 * Removes a tag from a track.
+	 * 
+	 * @param index
+	 *            Index of the track.
+	 * @param tagIndex
+	 *            Index of the tag in the track.
+	 */
+	void removeTag(int index, int tagIndex) {
+		int[] tags = TagIndex.remove(tagTimes[index], tagIndex);
+		own(TAGS);
+		tagTimes[index] = tags;
+	}
+
+	/**
+	 * Creates a track object with the data of a track. Changes to the track
+	 * object are not reflected in the table.
+	 * 
+	 * @param index
+	 *            Index of the track.
+	 * @return A new track.
+	 */
+	Track getTrack(int index) {
+		return new Track(paths[index], titles[index], durations[index],
+				elapsedTimes[index], tagTimes[index]);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h != 0) {
+			return h;
+		}
+
+		h = size;
+		for (int i = 0; i < size; i++) {
+			h = 31 * h + (paths[i] == null ? 0 : paths[i].hashCode());
+			h = 31 * h + (titles[i] == null ? 0 : titles[i].hashCode());
+			h = 31 * h + durations[i];
+			h = 31 * h + elapsedTimes[i];
+			h = 31 * h + Arrays.hashCode(tagTimes[i]);
+		}
+		hash = h;
+		return h;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		} else if (!(obj instanceof TrackTable)) {
+			return false;
+		}
+
+		TrackTable other = (TrackTable) obj;
+		int h = hash;
+		int otherHash = other.hash;
+		if (size != other.size || h != 0 && otherHash != 0
+				&& h != otherHash) {
+			return false;
+		}
+
+		/*
+		 * A column shared by both tables is not changed by either of them, so
+		 * it is equal without looking at it. Only the columns that either
+		 * table has changed since the copy are compared.
+		 */
+		for (int i = 0; i < size; i++) {
+			if (paths != other.paths && !equal(paths[i], other.paths[i])
+					|| titles != other.titles
+					&& !equal(titles[i], other.titles[i])
+					|| durations != other.durations
+					&& durations[i] != other.durations[i]
+					|| elapsedTimes != other.elapsedTimes
+					&& elapsedTimes[i] != other.elapsedTimes[i]
+					|| tagTimes != other.tagTimes
+					&& !Arrays.equals(tagTimes[i], other.tagTimes[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if both are null or equal.
+	 */
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Makes room for at least the given number of tracks.
+	 * 
+	 * @param capacity
+	 *            The number of tracks to make room for.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > paths.length) {
+			int newCapacity = Math.max(capacity, paths.length * 3 / 2 + 1);
+			paths = Arrays.copyOf(paths, newCapacity);
+			titles = Arrays.copyOf(titles, newCapacity);
+			durations = Arrays.copyOf(durations, newCapacity);
+			elapsedTimes = Arrays.copyOf(elapsedTimes, newCapacity);
+			tagTimes = Arrays.copyOf(tagTimes, newCapacity);
+			startTimes = Arrays.copyOf(startTimes, newCapacity + 1);
+
+			// all columns are new copies
+			sharedColumns = 0;
+		}
+	}
+
+	/**
+	 * Copies the given columns if they are shared with another table, so that
+	 * they may be changed in place.
+	 * 
+	 * @param columns
+	 *            The columns to take ownership of.
+	 */
+	private void own(int columns) {
+		// every change starts here, so the hash is no longer valid
+		hash = 0;
+
+		int toCopy = columns & sharedColumns;
+		if (toCopy == 0) {
+			return;
+		}
+
+		if ((toCopy & PATHS) != 0) {
+			paths = paths.clone();
+		}
+		if ((toCopy & TITLES) != 0) {
+			titles = titles.clone();
+		}
+		if ((toCopy & DURATIONS) != 0) {
+			durations = durations.clone();
+		}
+		if ((toCopy & ELAPSED_TIMES) != 0) {
+			elapsedTimes = elapsedTimes.clone();
+		}
+		if ((toCopy & TAGS) != 0) {
+			tagTimes = tagTimes.clone();
+		}
+		if ((toCopy & START_TIMES) != 0) {
+			startTimes = startTimes.clone();
+		}
+		sharedColumns &= ~toCopy;
+	}
+
+	/**
+	 * Recalculates the start times of the tracks from the given index and on.
+	 * Earlier start times are unaffected by a change at the given index.
+	 * 
+	 * @param fromIndex
+	 *            Index of the first track that has changed.
+	 */
+	private void updateStartTimes(int fromIndex) {
+		for (int i = fromIndex; i < size; i++) {
+			startTimes[i + 1] = startTimes[i] + durations[i];
+		}
+	}
+
+}
@@ -0,0 +1,1009 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.Track;
+import edu.chalmers.dat255.audiobookplayer.model.TrackSegment;
+
+/**
+ * Writes and reads bookshelves in a compact binary format.
+ * <p>
+ * Every string (track folders and file names, titles, authors) is stored
+ * once in a string table and referred to by its index, so the folder of a
+ * book is not repeated for each of its tracks. Numbers are written as
+ * varints; tag times are written as the difference from the previous tag.
+ * <p>
+ * A bookshelf is saved as an index of its books, and the tracks of each book
+ * as a segment of their own. The index holds what the list of books shows,
+ * so it can be read at once however large the bookshelf is; the tracks of a
+ * book are read from its segment the first time they are needed (see
+ * TrackSegment). A whole bookshelf can still be written as one file.
+ * <p>
+ * What is known of the tracks themselves (their paths, titles and durations)
+ * is kept apart from what a user has done with them (positions and tags): the
+ * first as an entry of a catalogue that the bookshelves of all users share,
+ * the second in the segment. The index and segments of a user thus hold
+ * nothing but the state of that user.
+ * <p>
+ * A file is read straight from a memory map of it, and a string is only
+ * decoded the first time it is referred to.
+ * 
+ * <pre>
+ * file      = magic version length checksum body
+ * index     = strings selectedBook count entry*
+ * entry     = segment(8) catalogue(8) title author selectedTrack trackCount
+ *             duration bookElapsedTime
+ * segment   = count state*
+ * catalogue = strings count info*
+ * whole     = strings selectedBook count book*
+ * book      = title author selectedTrack tracks
+ * strings   = count (length utf8-bytes)*
+ * tracks    = count track*
+ * track     = info state
+ * info      = folder name title+1 duration
+ * state     = elapsedTime tagCount tagDelta*
+ * </pre>
+ * 
+ * Indices that may be -1 are written as zigzag varints, and the title of a
+ * track is written as its string index plus one (0 for no title). The length
+ * (in bytes) and the CRC32 of the body are written as four byte integers, so
+ * that a file that was cut short or damaged is refused as a whole.
+ * <p>
+ * A bookshelf file of version 4 is an index, and one of version 2 a whole
+ * bookshelf; files of version 1 are whole bookshelves with no length and
+ * checksum. An index of version 3 has no catalogue keys, and refers to
+ * segments of version 1, which hold whole tracks (strings tracks). Segments
+ * and catalogue entries have a magic and version of their own.
+ * 
+ * @author Aki Käkelä
+ * @version 0.4
+ * 
+ */
+public final class BinaryParser {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The first bytes of a binary bookshelf file.
+	 */
+	private static final byte[] MAGIC = { 'A', 'B', 'S', 'H' };
+
+	/**
+	 * The first bytes of a segment file.
+	 */
+	private static final byte[] SEGMENT_MAGIC = { 'A', 'B', 'T', 'R' };
+
+	/**
+	 * The first bytes of a catalogue entry.
+	 */
+	private static final byte[] CATALOGUE_MAGIC = { 'A', 'B', 'C', 'T' };
+
+	/**
+	 * The version of the index format written.
+	 */
+	public static final int VERSION = 4;
+
+	// the version of a whole bookshelf in one file
+	private static final int WHOLE_VERSION = 2;
+
+	// the first version with a length and checksum of the body
+	private static final int CHECKSUM_VERSION = 2;
+
+	// the first version that is an index
+	private static final int INDEX_VERSION = 3;
+
+	// the version of the segment format written, and the one with tracks
+	private static final int SEGMENT_VERSION = 2;
+	private static final int WHOLE_SEGMENT_VERSION = 1;
+
+	// the version of the catalogue entry format written
+	private static final int CATALOGUE_VERSION = 1;
+
+	// the length and checksum of the body
+	private static final int CHECKSUM_SIZE = 8;
+
+	private static final int NO_STRING = 0;
+	private static final char SEPARATOR = '/';
+
+	// the bits of a varint byte
+	private static final int VARINT_MORE = 0x80;
+	private static final int VARINT_BITS = 0x7f;
+	private static final int VARINT_SHIFT = 7;
+
+	private BinaryParser() {
+	} // to defeat instantiation
+
+	/**
+	 * Writes a whole bookshelf, tracks and all, as one file of version 2.
+	 * 
+	 * @param bs
+	 *            The bookshelf to write.
+	 * @param out
+	 *            Where to write. Flushed but not closed.
+	 * @throws IOException
+	 */
+	public static void write(Bookshelf bs, OutputStream out)
+			throws IOException {
+		// the strings are gathered first, since the table goes before them
+		StringTable strings = new StringTable();
+		for (int i = 0; i < bs.getNumberOfBooks(); i++) {
+			Book b = bs.getBookAt(i);
+			strings.add(b.getSelectedBookTitle());
+			strings.add(b.getSelectedBookAuthor());
+			addTrackStrings(strings, b);
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+		Encoder e = new Encoder(body);
+		strings.write(e);
+
+		e.writeSignedVarint(bs.getSelectedBookIndex());
+		e.writeVarint(bs.getNumberOfBooks());
+		for (int i = 0; i < bs.getNumberOfBooks(); i++) {
+			Book b = bs.getBookAt(i);
+			e.writeVarint(strings.indexOf(b.getSelectedBookTitle()));
+			e.writeVarint(strings.indexOf(b.getSelectedBookAuthor()));
+			e.writeSignedVarint(b.getSelectedTrackIndex());
+			writeTracks(e, strings, b);
+		}
+
+		writeFile(out, MAGIC, WHOLE_VERSION, body);
+	}
+
+	/**
+	 * Writes the index of a bookshelf: each book without its tracks, which
+	 * are written to segments and catalogue entries of their own (see
+	 * {@link #writeSegment(Book, OutputStream)} and
+	 * {@link #writeCatalogueEntry(Book, OutputStream)}).
+	 * 
+	 * @param bs
+	 *            The bookshelf to write.
+	 * @param segments
+	 *            The key of the segment of each book.
+	 * @param catalogue
+	 *            The key of the catalogue entry of each book.
+	 * @param out
+	 *            Where to write. Flushed but not closed.
+	 * @throws IOException
+	 */
+	public static void writeIndex(Bookshelf bs, long[] segments,
+			long[] catalogue, OutputStream out) throws IOException {
+		StringTable strings = new StringTable();
+		for (int i = 0; i < bs.getNumberOfBooks(); i++) {
+			Book b = bs.getBookAt(i);
+			strings.add(b.getSelectedBookTitle());
+			strings.add(b.getSelectedBookAuthor());
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+		Encoder e = new Encoder(body);
+		strings.write(e);
+
+		e.writeSignedVarint(bs.getSelectedBookIndex());
+		e.writeVarint(bs.getNumberOfBooks());
+		for (int i = 0; i < bs.getNumberOfBooks(); i++) {
+			Book b = bs.getBookAt(i);
+			e.writeLong(segments[i]);
+			e.writeLong(catalogue[i]);
+			e.writeVarint(strings.indexOf(b.getSelectedBookTitle()));
+			e.writeVarint(strings.indexOf(b.getSelectedBookAuthor()));
+			e.writeSignedVarint(b.getSelectedTrackIndex());
+
+			// what the list of books shows, so the tracks need not be loaded
+			e.writeVarint(b.getNumberOfTracks());
+			e.writeVarint(b.getDuration());
+			e.writeVarint(b.isLegalTrackIndex(b.getSelectedTrackIndex()) ? b
+					.getBookElapsedTime() : 0);
+		}
+
+		writeFile(out, MAGIC, VERSION, body);
+	}
+
+	/**
+	 * Writes the positions and tags of the tracks of a book as a segment.
+	 * 
+	 * @param b
+	 *            The book.
+	 * @param out
+	 *            Where to write. Flushed but not closed.
+	 * @throws IOException
+	 */
+	public static void writeSegment(Book b, OutputStream out)
+			throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+		Encoder e = new Encoder(body);
+		e.writeVarint(b.getNumberOfTracks());
+		for (int j = 0; j < b.getNumberOfTracks(); j++) {
+			writeTrackState(e, b, j);
+		}
+
+		writeFile(out, SEGMENT_MAGIC, SEGMENT_VERSION, body);
+	}
+
+	/**
+	 * Writes the paths, titles and durations of the tracks of a book as a
+	 * catalogue entry. Books of the same tracks give the same entry.
+	 * 
+	 * @param b
+	 *            The book.
+	 * @param out
+	 *            Where to write. Flushed but not closed.
+	 * @throws IOException
+	 */
+	public static void writeCatalogueEntry(Book b, OutputStream out)
+			throws IOException {
+		StringTable strings = new StringTable();
+		addTrackStrings(strings, b);
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+		Encoder e = new Encoder(body);
+		strings.write(e);
+		e.writeVarint(b.getNumberOfTracks());
+		for (int j = 0; j < b.getNumberOfTracks(); j++) {
+			writeTrackInfo(e, strings, b, j);
+		}
+
+		writeFile(out, CATALOGUE_MAGIC, CATALOGUE_VERSION, body);
+	}
+
+	/**
+	 * Writes a file: its magic and version, then the length and checksum of
+	 * the body, then the body.
+	 */
+	private static void writeFile(OutputStream out, byte[] magic,
+			int version, ByteArrayOutputStream body) throws IOException {
+		byte[] bytes = body.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+
+		Encoder header = new Encoder(new BufferedOutputStream(out,
+				BUFFER_SIZE));
+		header.out.write(magic);
+		header.writeVarint(version);
+		header.out.write(ByteBuffer.allocate(CHECKSUM_SIZE)
+				.putInt(bytes.length).putInt((int) crc.getValue()).array());
+		header.out.write(bytes);
+		header.out.flush();
+	}
+
+	/**
+	 * Adds the folders, file names and titles of the tracks of a book to a
+	 * string table.
+	 */
+	private static void addTrackStrings(StringTable strings, Book b) {
+		for (int j = 0; j < b.getNumberOfTracks(); j++) {
+			String path = b.getTrackPathAt(j);
+			int split = path.lastIndexOf(SEPARATOR) + 1;
+			strings.add(path.substring(0, split));
+			strings.add(path.substring(split));
+			strings.add(b.getTrackTitleAt(j));
+		}
+	}
+
+	/**
+	 * Writes the tracks of a book.
+	 * 
+	 * @param e
+	 *            Where to write.
+	 * @param strings
+	 *            The string table of the file.
+	 * @param b
+	 *            The book.
+	 * @throws IOException
+	 */
+	private static void writeTracks(Encoder e, StringTable strings, Book b)
+			throws IOException {
+		e.writeVarint(b.getNumberOfTracks());
+
+		for (int j = 0; j < b.getNumberOfTracks(); j++) {
+			writeTrackInfo(e, strings, b, j);
+			writeTrackState(e, b, j);
+		}
+	}
+
+	/**
+	 * Writes the path, title and duration of a track.
+	 * 
+	 * @param e
+	 *            Where to write.
+	 * @param strings
+	 *            The string table of the file.
+	 * @param b
+	 *            The book.
+	 * @param j
+	 *            The index of the track.
+	 * @throws IOException
+	 */
+	private static void writeTrackInfo(Encoder e, StringTable strings,
+			Book b, int j) throws IOException {
+		String path = b.getTrackPathAt(j);
+		int split = path.lastIndexOf(SEPARATOR) + 1;
+		e.writeVarint(strings.indexOf(path.substring(0, split)));
+		e.writeVarint(strings.indexOf(path.substring(split)));
+
+		String title = b.getTrackTitleAt(j);
+		e.writeVarint(title == null ? NO_STRING : strings.indexOf(title) + 1);
+
+		e.writeVarint(b.getTrackDurationAt(j));
+	}
+
+	/**
+	 * Writes the elapsed time and tags of a track.
+	 * 
+	 * @param e
+	 *            Where to write.
+	 * @param b
+	 *            The book.
+	 * @param j
+	 *            The index of the track.
+	 * @throws IOException
+	 */
+	private static void writeTrackState(Encoder e, Book b, int j)
+			throws IOException {
+		e.writeVarint(b.getTrackElapsedTimeAt(j));
+
+		// the tags are sorted, so each one is written as a step forward
+		int[] tags = b.getTagTimesAt(j);
+		e.writeVarint(tags.length);
+		int previous = 0;
+		for (int time : tags) {
+			e.writeVarint(time - previous);
+			previous = time;
+		}
+	}
+
+	/**
+	 * Reads a whole bookshelf from a file by mapping it into memory.
+	 * 
+	 * @param file
+	 *            The file to read.
+	 * @return The bookshelf.
+	 * @throws IOException
+	 *             If the file could not be read or is not a whole bookshelf.
+	 */
+	public static Bookshelf read(File file) throws IOException {
+		return read(file, null, null);
+	}
+
+	/**
+	 * Reads a bookshelf from a file by mapping it into memory. If the file is
+	 * an index, the tracks of each book are left in their segments and
+	 * catalogue entries until they are needed.
+	 * 
+	 * @param file
+	 *            The file to read.
+	 * @param segments
+	 *            The folder of the segments, or null if the file must hold a
+	 *            whole bookshelf.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 * @return The bookshelf.
+	 * @throws IOException
+	 *             If the file could not be read, is not a bookshelf, or a
+	 *             segment or catalogue entry it refers to is missing.
+	 */
+	public static Bookshelf read(File file, File segments, File catalogue)
+			throws IOException {
+		return read(map(file), segments, catalogue);
+	}
+
+	/**
+	 * Reads a whole bookshelf from a buffer.
+	 * 
+	 * @param buffer
+	 *            The buffer, from its position.
+	 * @return The bookshelf.
+	 * @throws IOException
+	 *             If the buffer does not hold a whole bookshelf.
+	 */
+	public static Bookshelf read(ByteBuffer buffer) throws IOException {
+		return read(buffer, null, null);
+	}
+
+	/**
+	 * Reads a bookshelf from a buffer.
+	 * 
+	 * @see #read(File, File, File)
+	 */
+	private static Bookshelf read(ByteBuffer buffer, File segments,
+			File catalogue) throws IOException {
+		BookSink.Shelf shelf = new BookSink.Shelf();
+		readBooks(buffer, segments, catalogue, shelf);
+		return shelf.getBookshelf();
+	}
+
+	/**
+	 * Reads the books of a bookshelf file one at a time, of any version. The
+	 * books of an index are handed on before their tracks are loaded.
+	 * 
+	 * @param file
+	 *            The file to read.
+	 * @param segments
+	 *            The folder of the segments.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 * @param sink
+	 *            Receives the books.
+	 * @throws IOException
+	 *             If the file could not be read, or the sink failed.
+	 */
+	static void readBooks(File file, File segments, File catalogue,
+			BookSink sink) throws IOException {
+		readBooks(map(file), segments, catalogue, sink);
+	}
+
+	/**
+	 * Reads the books of a bookshelf from a buffer.
+	 * 
+	 * @see #readBooks(File, File, File, BookSink)
+	 */
+	private static void readBooks(ByteBuffer buffer, File segments,
+			File catalogue, BookSink sink) throws IOException {
+		try {
+			Decoder d = new Decoder(buffer);
+			int version = readHeader(buffer, MAGIC, VERSION);
+			if (version >= CHECKSUM_VERSION) {
+				checkBody(buffer);
+			}
+			if (version >= INDEX_VERSION && segments == null) {
+				throw new IOException("The bookshelf file is an index");
+			}
+			d.readStrings();
+
+			int selectedBookIndex = d.readSignedVarint();
+			int numberOfBooks = d.readVarint();
+			for (int i = 0; i < numberOfBooks; i++) {
+				sink.addBook(version >= INDEX_VERSION ? readIndexedBook(d,
+						version, segments, catalogue) : readBook(d));
+			}
+			sink.setSelectedBookIndex(selectedBookIndex);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("The bookshelf file is truncated");
+		} catch (RuntimeException e) {
+			// e.g. an index or a track that is out of bounds
+			throw new IOException("The bookshelf file is corrupt: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Checks whether a file is a binary bookshelf file of any version, by its
+	 * first bytes.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @return True if the file starts as a bookshelf file.
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	static boolean isBookshelfFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			for (byte b : MAGIC) {
+				if (in.read() != b) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the tracks of a segment, with their paths, titles and durations
+	 * from its catalogue entry.
+	 * 
+	 * @param file
+	 *            The segment.
+	 * @param entry
+	 *            The catalogue entry, or null if the segment holds whole
+	 *            tracks.
+	 * @return The tracks, in order.
+	 * @throws IOException
+	 *             If the segment or entry could not be read, is damaged, or
+	 *             they do not match.
+	 */
+	public static List<Track> readSegment(File file, File entry)
+			throws IOException {
+		try {
+			ByteBuffer buffer = map(file);
+			Decoder d = new Decoder(buffer);
+			int version = readHeader(buffer, SEGMENT_MAGIC, SEGMENT_VERSION);
+			checkBody(buffer);
+			if (version == WHOLE_SEGMENT_VERSION) {
+				d.readStrings();
+				return readTracks(d);
+			}
+			if (entry == null) {
+				throw new IOException("The segment " + file
+						+ " has no catalogue entry");
+			}
+
+			List<Track> tracks = readCatalogueEntry(entry);
+			if (d.readVarint() != tracks.size()) {
+				throw new IOException("The segment " + file
+						+ " does not match the catalogue entry " + entry);
+			}
+			for (Track t : tracks) {
+				readTrackState(d, t);
+			}
+			return tracks;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("The segment " + file + " is truncated");
+		} catch (RuntimeException e) {
+			throw new IOException("The segment " + file + " is corrupt: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the tracks of a catalogue entry, at the start of them.
+	 * 
+	 * @param file
+	 *            The catalogue entry.
+	 * @return The tracks, in order.
+	 * @throws IOException
+	 *             If the entry could not be read or is damaged.
+	 */
+	private static List<Track> readCatalogueEntry(File file)
+			throws IOException {
+		try {
+			ByteBuffer buffer = map(file);
+			Decoder d = new Decoder(buffer);
+			readHeader(buffer, CATALOGUE_MAGIC, CATALOGUE_VERSION);
+			checkBody(buffer);
+			d.readStrings();
+
+			int numberOfTracks = d.readVarint();
+			List<Track> tracks = new ArrayList<Track>(numberOfTracks);
+			for (int j = 0; j < numberOfTracks; j++) {
+				tracks.add(readTrackInfo(d));
+			}
+			return tracks;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("The catalogue entry " + file
+					+ " is truncated");
+		}
+	}
+
+	/**
+	 * @param segments
+	 *            The folder of the segments (or of the catalogue).
+	 * @param key
+	 *            The key of a segment (or catalogue entry).
+	 * @return The file the segment is stored in.
+	 */
+	public static File getSegmentFile(File segments, long key) {
+		return new File(segments, Long.toHexString(key));
+	}
+
+	/**
+	 * Maps a file into memory.
+	 */
+	private static ByteBuffer map(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			// the mapping stays valid after the channel is closed
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the magic and version of a file.
+	 * 
+	 * @return The version.
+	 * @throws IOException
+	 *             If the magic or version is wrong.
+	 */
+	private static int readHeader(ByteBuffer buffer, byte[] magic,
+			int maxVersion) throws IOException {
+		for (byte b : magic) {
+			if (buffer.get() != b) {
+				throw new IOException("Not a bookshelf file");
+			}
+		}
+		int version = new Decoder(buffer).readVarint();
+		if (version < 1 || version > maxVersion) {
+			throw new IOException("Unknown bookshelf file version: "
+					+ version);
+		}
+		return version;
+	}
+
+	/**
+	 * Checks the length and checksum of the body, which follow them in the
+	 * buffer. The buffer is left at the start of the body.
+	 * 
+	 * @param buffer
+	 *            The buffer, at the length of the body.
+	 * @throws IOException
+	 *             If the body is cut short or damaged.
+	 */
+	private static void checkBody(ByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		int checksum = buffer.getInt();
+		if (length != buffer.remaining()) {
+			throw new IOException("The bookshelf file is truncated");
+		}
+
+		// a mapped buffer has no array, so it is checked a chunk at a time
+		CRC32 crc = new CRC32();
+		ByteBuffer body = buffer.duplicate();
+		byte[] chunk = new byte[Math.min(BUFFER_SIZE, length)];
+		while (body.hasRemaining()) {
+			int n = Math.min(chunk.length, body.remaining());
+			body.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		if ((int) crc.getValue() != checksum) {
+			throw new IOException("The bookshelf file is damaged");
+		}
+	}
+
+	/**
+	 * Reads a book with its tracks.
+	 * 
+	 * @param d
+	 *            Where to read from.
+	 * @return The book.
+	 */
+	private static Book readBook(Decoder d) {
+		String title = d.readString(d.readVarint());
+		String author = d.readString(d.readVarint());
+		int selectedTrackIndex = d.readSignedVarint();
+
+		Book b = new Book(readTracks(d), title, author);
+		b.setSelectedTrackIndex(selectedTrackIndex);
+		return b;
+	}
+
+	/**
+	 * Reads a book of an index, leaving its tracks in their segment.
+	 * 
+	 * @param d
+	 *            Where to read from.
+	 * @param version
+	 *            The version of the index.
+	 * @param segments
+	 *            The folder of the segments.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 * @return The book.
+	 * @throws IOException
+	 *             If the segment or catalogue entry of the book is missing.
+	 */
+	private static Book readIndexedBook(Decoder d, int version,
+			File segments, File catalogue) throws IOException {
+		long key = d.readLong();
+		long catalogueKey = version >= VERSION ? d.readLong() : 0;
+		String title = d.readString(d.readVarint());
+		String author = d.readString(d.readVarint());
+		int selectedTrackIndex = d.readSignedVarint();
+		int numberOfTracks = d.readVarint();
+		int duration = d.readVarint();
+		int bookElapsedTime = d.readVarint();
+
+		File file = getSegmentFile(segments, key);
+		if (!file.exists()) {
+			throw new IOException("Missing segment " + file);
+		}
+		if (catalogueKey != 0) {
+			File entry = getSegmentFile(catalogue, catalogueKey);
+			if (!entry.exists()) {
+				throw new IOException("Missing catalogue entry " + entry);
+			}
+		}
+		return new Book(newSegment(segments, catalogue, key, catalogueKey,
+				numberOfTracks, duration, bookElapsedTime), title, author,
+				selectedTrackIndex);
+	}
+
+	/**
+	 * Creates a segment that reads its tracks from the segment file and
+	 * catalogue entry of the given keys.
+	 * 
+	 * @param segments
+	 *            The folder of the segments.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 * @param key
+	 *            The key of the segment.
+	 * @param catalogueKey
+	 *            The key of the catalogue entry, or 0 if the segment holds
+	 *            whole tracks.
+	 * @param numberOfTracks
+	 *            The number of tracks in the segment.
+	 * @param duration
+	 *            The duration of the book (ms).
+	 * @param bookElapsedTime
+	 *            The elapsed time of the book (ms) at its selected track.
+	 * @return The segment.
+	 */
+	static TrackSegment newSegment(File segments, File catalogue, long key,
+			long catalogueKey, int numberOfTracks, int duration,
+			int bookElapsedTime) {
+		final File file = getSegmentFile(segments, key);
+		final File entry = catalogueKey == 0 ? null : getSegmentFile(
+				catalogue, catalogueKey);
+		return new TrackSegment(key, catalogueKey, numberOfTracks, duration,
+				bookElapsedTime, new TrackSegment.Loader() {
+					public List<Track> load() throws IOException {
+						return readSegment(file, entry);
+					}
+				});
+	}
+
+	/**
+	 * Reads the tracks of a book.
+	 * 
+	 * @param d
+	 *            Where to read from.
+	 * @return The tracks, in order.
+	 */
+	private static List<Track> readTracks(Decoder d) {
+		int numberOfTracks = d.readVarint();
+
+		List<Track> tracks = new ArrayList<Track>(numberOfTracks);
+		for (int j = 0; j < numberOfTracks; j++) {
+			Track t = readTrackInfo(d);
+			readTrackState(d, t);
+			tracks.add(t);
+		}
+		return tracks;
+	}
+
+	/**
+	 * Reads the path, title and duration of a track.
+	 * 
+	 * @param d
+	 *            Where to read from.
+	 * @return The track, at its start and without tags.
+	 */
+	private static Track readTrackInfo(Decoder d) {
+		String folder = d.readString(d.readVarint());
+		String path = folder + d.readString(d.readVarint());
+		int titleIndex = d.readVarint();
+		String trackTitle = titleIndex == NO_STRING ? null : d
+				.readString(titleIndex - 1);
+
+		return new Track(path, trackTitle, d.readVarint());
+	}
+
+	/**
+	 * Reads the elapsed time and tags of a track.
+	 * 
+	 * @param d
+	 *            Where to read from.
+	 * @param t
+	 *            The track to give them.
+	 */
+	private static void readTrackState(Decoder d, Track t) {
+		t.setSelectedTrackElapsedTime(d.readVarint());
+
+		int numberOfTags = d.readVarint();
+		if (numberOfTags > 0) {
+			int[] tags = new int[numberOfTags];
+			int time = 0;
+			for (int k = 0; k < numberOfTags; k++) {
+				time += d.readVarint();
+				tags[k] = time;
+			}
+			t.addTags(tags);
+		}
+	}
+
+	/**
+	 * The distinct strings of a file, in the order they were first added.
+	 */
+	private static final class StringTable {
+		private final Map<String, Integer> indices;
+		private final List<String> strings;
+
+		StringTable() {
+			indices = new HashMap<String, Integer>();
+			strings = new ArrayList<String>();
+		}
+
+		/**
+		 * Adds a string unless it is already in the table.
+		 * 
+		 * @param s
+		 *            The string. Null is ignored.
+		 */
+		void add(String s) {
+			if (s != null && !indices.containsKey(s)) {
+				indices.put(s, strings.size());
+				strings.add(s);
+			}
+		}
+
+		/**
+		 * @param s
+		 *            A string in the table.
+		 * @return The index of the string.
+		 */
+		int indexOf(String s) {
+			return indices.get(s);
+		}
+
+		/**
+		 * Writes the table.
+		 * 
+		 * @param e
+		 *            Where to write.
+		 * @throws IOException
+		 */
+		void write(Encoder e) throws IOException {
+			e.writeVarint(strings.size());
+			for (String s : strings) {
+				byte[] bytes = s.getBytes(UTF_8);
+				e.writeVarint(bytes.length);
+				e.out.write(bytes);
+			}
+		}
+	}
+
+	/**
+	 * Writes varints to a stream.
+	 */
+	private static final class Encoder {
+		private final OutputStream out;
+
+		Encoder(OutputStream out) {
+			this.out = out;
+		}
+
+		/**
+		 * Writes a number that is not negative, seven bits per byte.
+		 * 
+		 * @param value
+		 *            The number.
+		 * @throws IOException
+		 */
+		void writeVarint(int value) throws IOException {
+			while ((value & ~VARINT_BITS) != 0) {
+				out.write((value & VARINT_BITS) | VARINT_MORE);
+				value >>>= VARINT_SHIFT;
+			}
+			out.write(value);
+		}
+
+		/**
+		 * Writes a number that may be negative (zigzag encoded, so that small
+		 * negative numbers stay small).
+		 * 
+		 * @param value
+		 *            The number.
+		 * @throws IOException
+		 */
+		void writeSignedVarint(int value) throws IOException {
+			writeVarint((value << 1) ^ (value >> (Integer.SIZE - 1)));
+		}
+
+		/**
+		 * Writes a number as eight bytes.
+		 * 
+		 * @param value
+		 *            The number.
+		 * @throws IOException
+		 */
+		void writeLong(long value) throws IOException {
+			out.write(ByteBuffer.allocate(Long.SIZE / Byte.SIZE)
+					.putLong(value).array());
+		}
+	}
+
+	/**
+	 * Reads varints and strings from a buffer. The strings of the string
+	 * table are only decoded when they are asked for.
+	 */
+	private static final class Decoder {
+		private final ByteBuffer buffer;
+		private int[] stringOffsets;
+		private int[] stringLengths;
+		private String[] strings;
+
+		Decoder(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return The next number that is not negative.
+		 */
+		int readVarint() {
+			int value = 0;
+			int shift = 0;
+			int b;
+			do {
+				if (shift >= Integer.SIZE) {
+					throw new IllegalArgumentException("Varint is too long");
+				}
+				b = buffer.get();
+				value |= (b & VARINT_BITS) << shift;
+				shift += VARINT_SHIFT;
+			} while ((b & VARINT_MORE) != 0);
+			return value;
+		}
+
+		/**
+		 * @return The next number that may be negative.
+		 */
+		int readSignedVarint() {
+			int value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/**
+		 * @return The next number of eight bytes.
+		 */
+		long readLong() {
+			return buffer.getLong();
+		}
+
+		/**
+		 * Reads where each string of the string table is, and skips them.
+		 */
+		void readStrings() {
+			int count = readVarint();
+			stringOffsets = new int[count];
+			stringLengths = new int[count];
+			strings = new String[count];
+			for (int i = 0; i < count; i++) {
+				stringLengths[i] = readVarint();
+				stringOffsets[i] = buffer.position();
+				buffer.position(stringOffsets[i] + stringLengths[i]);
+			}
+		}
+
+		/**
+		 * @param index
+		 *            Index of a string in the string table.
+		 * @return The string, decoded the first time it is asked for.
+		 */
+		String readString(int index) {
+			if (strings[index] == null) {
+				byte[] bytes = new byte[stringLengths[index]];
+				ByteBuffer b = buffer.duplicate();
+				b.position(stringOffsets[index]);
+				b.get(bytes);
+				strings[index] = new String(bytes, UTF_8);
+			}
+			return strings[index];
+		}
+	}
+}
@@ -8,31 +8,49 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.util;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import android.media.MediaMetadataRetriever;
-import android.util.Log;
-import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+import edu.chalmers.dat255.audiobookplayer.interfaces.IImportEvents;
 import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
-import edu.chalmers.dat255.audiobookplayer.model.Track;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor;
 
 /**
- * Creates Book instances (filling them with metadata).
+ * Creates Book instances (filling them with metadata), by importing them
+ * (see BookImport).
+ * <p>
+ * The imports belong to the book creator, which lives as long as the
+ * application, rather than to the activity that started them. An activity
+ * that goes away only detaches its listener, and a new one can find the
+ * imports still running with {@link #getImports()}.
  * 
- * @author Aki Kkel, Fredrik hs
- * @version 0.6
+ * @author Aki Käkelä, Fredrik Åhs
+ * @version 0.8
  * 
  */
 public final class BookCreator {
 	private static final String TAG = "BookCreator.class";
+	// how long (s) an idle worker waits for a track before stopping
+	private static final long KEEP_ALIVE = 30;
 	private static BookCreator instance = null;
-	private Bookshelf bsh;
+	private ModelExecutor model;
+	private MetadataCache cache;
+	private Executor workers;
+	// the imports started, until they are found to have ended (guarded by
+	// this)
+	private final List<BookImport> imports = new ArrayList<BookImport>();
 
 	private BookCreator() {
 	} // To disable outside instantiation
@@ -48,14 +66,34 @@ public final class BookCreator {
 	}
 
 	/**
+	 * Gives the bookshelf an executor of its own; use
+	 * {@link #setModel(ModelExecutor)} to share one with the controllers.
+	 * 
 	 * @param bsh
 	 */
 	public void setBookshelf(Bookshelf bsh) {
-		this.bsh = bsh;
+		this.model = bsh == null ? null : new ModelExecutor(bsh);
+	}
+
+	/**
+	 * @param model
+	 *            The executor of the bookshelf to add books to.
+	 */
+	public void setModel(ModelExecutor model) {
+		this.model = model;
 	}
 
 	/**
-	 * Creates a book with given parameters.
+	 * @param cache
+	 *            The cache to keep the metadata of imported tracks in, or null
+	 *            to read the tracks every time.
+	 */
+	public void setCache(MetadataCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Creates a book with given parameters, and waits for it to be added.
 	 * 
 	 * @param paths
 	 *            A list paths to all the tracks that will be added.
@@ -63,74 +101,90 @@ public final class BookCreator {
 	 *            The title of the book.
 	 * @param author
 	 *            The author of the book.
+	 * @return True if the book was added.
 	 */
 	public boolean createBookToBookshelf(List<String> paths, String title,
 			String author) {
-		Book b = createBook(paths, title, author);
-
-		if (b != null) {
-			bsh.addBook(b);
-			return true;
+		BookImport i = importBook(paths, title, author, null);
+		try {
+			return i.await();
+		} catch (InterruptedException e) {
+			i.cancel();
+			Thread.currentThread().interrupt();
+			return false;
 		}
-
-		return false;
 	}
 
 	/**
-	 * Helper class.
-	 * 
-	 * In future versions, this should be used instead of adding directly to the
-	 * bookshelf (see Issue #1 on the issue tracker).
+	 * Starts creating a book with given parameters, and returns at once. The
+	 * metadata of the tracks is read in the background, on a pool of at most
+	 * {@link Constants.Value#MAX_IMPORT_WORKERS} threads that all imports
+	 * share, and the book is added to the bookshelf when all of it has been
+	 * read.
 	 * 
 	 * @param paths
 	 *            A list paths to all the tracks that will be added.
 	 * @param title
-	 *            The title of the book.
+	 *            The title of the book, if the first track has no album.
 	 * @param author
-	 *            The author of the book.
-	 * @return A book created with given data.
+	 *            The author of the book, if the first track has no artist.
+	 * @param listener
+	 *            Told of the progress, or null.
+	 * @return The import, which can be cancelled or waited for.
 	 */
-	private Book createBook(List<String> paths, String title, String author) {
-		String tmpTitle = title;
-		String tmpAuthor = author;
-		// if no tracks, do not create book
-		if (paths.size() == 0) {
-			return null;
+	public BookImport importBook(List<String> paths, String title,
+			String author, IImportEvents listener) {
+		BookImport i = new BookImport(paths, title, author, model, cache,
+				listener);
+		synchronized (this) {
+			removeEnded();
+			imports.add(i);
 		}
-		MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-		// assumes
-		try {
-			mmr.setDataSource(paths.get(0));
+		i.start(getWorkers());
+		return i;
+	}
 
-		} catch (IllegalArgumentException e) {
-			Log.d(TAG, " invalid path to book provided. Skipping operation.");
-			return null;
-		}
+	/**
+	 * @return The imports that have not yet ended, oldest first.
+	 */
+	public synchronized List<BookImport> getImports() {
+		removeEnded();
+		return new ArrayList<BookImport>(imports);
+	}
 
-		// try to retrieve metadata ALBUM which is where the title of the book
-		// should typically be stored
-		tmpTitle = mmr
-				.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
-		if (tmpTitle == null || tmpTitle.length() == 0) {
-			tmpTitle = title;
-		}
-		// try to retrieve metadata ARTIST which is where the author of the book
-		// should typically be stored
-		tmpAuthor = mmr
-				.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
-		if (tmpAuthor == null || tmpAuthor.length() == 0) {
-			tmpAuthor = author;
-		}
-		List<Track> trackList = new LinkedList<Track>();
-		for (String path : paths) {
-			try {
-				trackList.add(TrackCreator.createTrack(path));
-			} catch (Exception e) {
-				// If a track contains malformed data, do not add it to the book
-				continue;
+	/**
+	 * Forgets the imports that have ended. Called with the lock held.
+	 */
+	private void removeEnded() {
+		for (Iterator<BookImport> it = imports.iterator(); it.hasNext();) {
+			if (it.next().isDone()) {
+				it.remove();
 			}
 		}
-		return new Book(trackList, tmpTitle, tmpAuthor);
+	}
+
+	/**
+	 * @return The workers that read metadata, started the first time they
+	 *         are needed.
+	 */
+	private synchronized Executor getWorkers() {
+		if (workers == null) {
+			int n = Math.max(1, Math.min(Constants.Value.MAX_IMPORT_WORKERS,
+					Runtime.getRuntime().availableProcessors()));
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(n, n, KEEP_ALIVE,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, TAG);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			// stopped when there is nothing to import
+			pool.allowCoreThreadTimeOut(true);
+			workers = pool;
+		}
+		return workers;
 	}
 
 }
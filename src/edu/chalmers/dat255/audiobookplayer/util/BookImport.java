@@ -0,0 +1,398 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+import edu.chalmers.dat255.audiobookplayer.interfaces.IImportEvents;
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor.Command;
+import edu.chalmers.dat255.audiobookplayer.model.Track;
+
+/**
+ * A book being imported: the metadata of its tracks is read by a pool of
+ * workers, one task per track, and the book is added to the bookshelf once
+ * all of them are done. Tracks found in the metadata cache are not read
+ * again. The tracks keep the order of their paths, whichever
+ * order they are read in.
+ * <p>
+ * The title and author of the book are read from the album and artist of the
+ * first track, if it has them. As before, no book is created if the first
+ * track cannot be read; other tracks that cannot be read are left out.
+ * <p>
+ * Durations that were only estimated (see
+ * {@link TrackMetadata#isDurationExact()}) are found exactly by the workers
+ * after the book has been added. Once all are found, the tracks on the
+ * bookshelf are given them through the model thread, and they are put in
+ * the cache, so that they are not scanned again.
+ * <p>
+ * An import does not belong to whoever started it: a listener showing its
+ * progress can be detached and another one attached at any time (see
+ * {@link #setListener(IImportEvents)}), and the import goes on meanwhile.
+ * 
+ * @author Aki Käkelä
+ * @version 0.4
+ * 
+ */
+public final class BookImport {
+	private static final String TAG = "BookImport";
+
+	private final List<String> paths;
+	private final String title;
+	private final String author;
+	private final ModelExecutor model;
+	private final MetadataCache cache;
+
+	// told of the progress, or null (changed under the lock of the import)
+	private volatile IImportEvents listener;
+	// whether the listener has been told that the import ended (ditto)
+	private boolean endNotified;
+
+	// the tracks read, by the index of their path; null if not read
+	private final Track[] tracks;
+	private final TrackMetadata[] metadata;
+	private Executor workers;
+	private volatile boolean firstRead;
+	private volatile String album;
+	private volatile String artist;
+
+	private final AtomicInteger done = new AtomicInteger();
+	// the tracks done whose progress has been told
+	private final AtomicInteger reported = new AtomicInteger();
+	// set when the import has ended, by finishing or being cancelled
+	private final AtomicBoolean ended = new AtomicBoolean();
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile boolean added;
+	private volatile boolean cancelled;
+
+	/**
+	 * Creates an import; start it with {@link #start(Executor)}.
+	 * 
+	 * @param paths
+	 *            The paths to the tracks.
+	 * @param title
+	 *            The title to use if the first track has no album.
+	 * @param author
+	 *            The author to use if the first track has no artist.
+	 * @param model
+	 *            The executor of the bookshelf to add the book to.
+	 * @param cache
+	 *            The cache to look up tracks in before reading them, or null.
+	 * @param listener
+	 *            Told of the progress, or null.
+	 */
+	BookImport(List<String> paths, String title, String author,
+			ModelExecutor model, MetadataCache cache, IImportEvents listener) {
+		if (paths == null || model == null) {
+			throw new IllegalArgumentException(TAG
+					+ " paths and model may not be null");
+		}
+		this.paths = new ArrayList<String>(paths);
+		this.title = title;
+		this.author = author;
+		this.model = model;
+		this.cache = cache;
+		this.listener = listener;
+		this.tracks = new Track[paths.size()];
+		this.metadata = new TrackMetadata[paths.size()];
+	}
+
+	/**
+	 * Gives a task per track to the workers.
+	 * 
+	 * @param workers
+	 *            The workers.
+	 */
+	void start(Executor workers) {
+		this.workers = workers;
+		if (paths.isEmpty()) {
+			// if no tracks, do not create book
+			fail();
+			return;
+		}
+		for (int i = 0; i < paths.size(); i++) {
+			final int index = i;
+			workers.execute(new Runnable() {
+				public void run() {
+					if (!cancelled) {
+						read(index);
+						trackDone();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Cancels the import, unless it has already ended. Tracks being read are
+	 * read to the end, but nothing more is read, and no book is added.
+	 * 
+	 * @return True if the import was cancelled; false if it had ended.
+	 */
+	public boolean cancel() {
+		if (!ended.compareAndSet(false, true)) {
+			return false;
+		}
+		cancelled = true;
+		notifyEnd(false);
+		return true;
+	}
+
+	/**
+	 * Sets the listener told of the progress, replacing the one before. A
+	 * listener set after the import has ended is told so at once.
+	 * 
+	 * @param listener
+	 *            The new listener, or null to detach the current one.
+	 */
+	public void setListener(IImportEvents listener) {
+		synchronized (this) {
+			this.listener = listener;
+			if (listener == null || !endNotified) {
+				// told by notifyEnd, if at all
+				return;
+			}
+		}
+		listener.importFinished(added);
+	}
+
+	/**
+	 * @return The title to use if the first track has no album.
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return True if the import was cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return True if the import has ended.
+	 */
+	public boolean isDone() {
+		return finished.getCount() == 0;
+	}
+
+	/**
+	 * @return The number of tracks read so far.
+	 */
+	public int getProgress() {
+		return done.get();
+	}
+
+	/**
+	 * @return The number of tracks to read.
+	 */
+	public int getTotal() {
+		return tracks.length;
+	}
+
+	/**
+	 * Waits for the import to end.
+	 * 
+	 * @return True if the book was added to the bookshelf.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public boolean await() throws InterruptedException {
+		finished.await();
+		return added;
+	}
+
+	/**
+	 * Reads the metadata of a track, and that of the book along with the
+	 * first one.
+	 * 
+	 * @param index
+	 *            The index of the path of the track.
+	 */
+	private void read(int index) {
+		String path = paths.get(index);
+		try {
+			TrackMetadata m = TrackCreator.getMetadata(path, cache);
+			if (index == 0) {
+				// the album and artist are where the title and author of the
+				// book should typically be stored
+				album = m.getAlbum();
+				artist = m.getArtist();
+				firstRead = true;
+			}
+			metadata[index] = m;
+			tracks[index] = TrackCreator.createTrack(path, m);
+		} catch (IllegalArgumentException e) {
+			Log.d(TAG, "Could not read " + path + ". Skipping track.");
+		} catch (RuntimeException e) {
+			// If a track contains malformed data, do not add it to the book
+			Log.d(TAG, "Malformed track " + path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Counts a track as done, and adds the book once all are.
+	 */
+	private void trackDone() {
+		int n = done.incrementAndGet();
+		if (cancelled) {
+			return;
+		}
+		IImportEvents l = listener;
+		if (l != null) {
+			l.importProgress(n, tracks.length);
+		}
+
+		// the book is added after all progress has been told
+		if (reported.incrementAndGet() < tracks.length) {
+			return;
+		}
+		if (cache != null) {
+			cache.save();
+		}
+
+		// the workers wrote the tracks before counting them as done
+		if (!firstRead) {
+			Log.d(TAG, " invalid path to book provided. Skipping operation.");
+			fail();
+			return;
+		}
+		List<Track> trackList = new ArrayList<Track>(tracks.length);
+		for (Track t : tracks) {
+			if (t != null) {
+				trackList.add(t);
+			}
+		}
+		final Book b = new Book(trackList, orElse(album, title), orElse(
+				artist, author));
+
+		// too late to cancel from here on
+		if (ended.compareAndSet(false, true)) {
+			try {
+				model.run(new Command() {
+					public void execute(Bookshelf bs) {
+						bs.addBook(b);
+					}
+				});
+				added = true;
+			} catch (RuntimeException e) {
+				// e.g. the bookshelf was closed while the tracks were read
+				Log.e(TAG, "Could not add the book: " + e.getMessage());
+			}
+			notifyEnd(added);
+			if (added) {
+				refine();
+			}
+		}
+	}
+
+	/**
+	 * Gives a task to the workers for each track whose duration is an
+	 * estimate, to find it exactly. Once all of them are done, the durations
+	 * found are set on the bookshelf, and the cache is saved.
+	 */
+	private void refine() {
+		List<Integer> estimated = new ArrayList<Integer>();
+		for (int i = 0; i < metadata.length; i++) {
+			if (metadata[i] != null && !metadata[i].isDurationExact()) {
+				estimated.add(i);
+			}
+		}
+		final AtomicInteger left = new AtomicInteger(estimated.size());
+		final Map<String, Integer> durations = new ConcurrentHashMap<String, Integer>();
+		for (final int index : estimated) {
+			workers.execute(new Runnable() {
+				public void run() {
+					String path = paths.get(index);
+					TrackMetadata m = TrackCreator.refineMetadata(path,
+							metadata[index], cache);
+					if (m.isDurationExact()) {
+						durations.put(path, m.getDuration());
+					}
+					if (left.decrementAndGet() == 0) {
+						refined(durations);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sets the durations found exactly on the bookshelf, in one change, and
+	 * saves the cache.
+	 * 
+	 * @param durations
+	 *            The durations found (ms), by the paths of the tracks.
+	 */
+	private void refined(final Map<String, Integer> durations) {
+		if (!durations.isEmpty()) {
+			// dropped if the bookshelf has been closed since
+			model.execute(new Command() {
+				public void execute(Bookshelf bs) {
+					bs.setTrackDurations(durations);
+				}
+			});
+		}
+		if (cache != null) {
+			cache.save();
+		}
+	}
+
+	/**
+	 * Ends the import without adding the book, unless it has already ended.
+	 */
+	private void fail() {
+		if (ended.compareAndSet(false, true)) {
+			notifyEnd(false);
+		}
+	}
+
+	/**
+	 * Tells the listener that the import has ended, then releases those
+	 * waiting for it.
+	 */
+	private void notifyEnd(boolean result) {
+		IImportEvents l;
+		synchronized (this) {
+			endNotified = true;
+			l = listener;
+		}
+		try {
+			if (l != null) {
+				l.importFinished(result);
+			}
+		} finally {
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * @return The value, or the fallback if the value is null or empty.
+	 */
+	private static String orElse(String value, String fallback) {
+		return value == null || value.length() == 0 ? fallback : value;
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.IOException;
+
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+
+/**
+ * Receives the books of a bookshelf as they are read, one at a time, so that
+ * a reader need not hold all of them (see BookshelfMigration).
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+interface BookSink {
+	/**
+	 * Receives the next book.
+	 * 
+	 * @param b
+	 *            The book.
+	 * @throws IOException
+	 *             If the book could not be passed on.
+	 */
+	void addBook(Book b) throws IOException;
+
+	/**
+	 * Receives the index of the selected book, after all books. Not called
+	 * if the bookshelf read has none.
+	 * 
+	 * @param index
+	 *            The index.
+	 */
+	void setSelectedBookIndex(int index);
+
+	/**
+	 * Collects the books in a bookshelf.
+	 */
+	final class Shelf implements BookSink {
+		private final Bookshelf bookshelf = new Bookshelf();
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * edu.chalmers.dat255.audiobookplayer.util.BookSink#addBook(edu.chalmers
+		 * .dat255.audiobookplayer.model.Book)
+		 */
+		public void addBook(Book b) {
+			bookshelf.addBook(b);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * edu.chalmers.dat255.audiobookplayer.util.BookSink#setSelectedBookIndex
+		 * (int)
+		 */
+		public void setSelectedBookIndex(int index) {
+			bookshelf.setSelectedBookIndex(index);
+		}
+
+		/**
+		 * @return The bookshelf of the books received.
+		 */
+		Bookshelf getBookshelf() {
+			return bookshelf;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Track;
+
+/**
+ * Converts books to and from JSON. Books keep their tracks in a table rather
+ * than as track objects, so this adapter writes them in the same format as
+ * the track objects were written before (see TrackTypeAdapter), and reads
+ * them back from it.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+final class BookTypeAdapter extends TypeAdapter<Book> {
+	// book properties
+	private static final String TRACKS = "tracks";
+	private static final String SELECTED_TRACK_INDEX = "selectedTrackIndex";
+	private static final String AUTHOR = "author";
+	private static final String TITLE = "title";
+	private static final String DURATION = "duration";
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.google.gson.TypeAdapter#write(com.google.gson.stream.JsonWriter,
+	 * java.lang.Object)
+	 */
+	@Override
+	public void write(JsonWriter out, Book b) throws IOException {
+		if (b == null) {
+			out.nullValue();
+			return;
+		}
+
+		out.beginObject();
+		out.name(TRACKS).beginArray();
+		for (int i = 0; i < b.getNumberOfTracks(); i++) {
+			writeTrack(out, b, i);
+		}
+		out.endArray();
+
+		out.name(SELECTED_TRACK_INDEX).value(b.getSelectedTrackIndex());
+		out.name(AUTHOR).value(b.getSelectedBookAuthor());
+		out.name(TITLE).value(b.getSelectedBookTitle());
+		out.name(DURATION).value(b.getDuration());
+		out.endObject();
+	}
+
+	/**
+	 * Writes a track of a book, the same way as a track on its own.
+	 * 
+	 * @param out
+	 *            Where to write.
+	 * @param b
+	 *            The book.
+	 * @param trackIndex
+	 *            Index of the track.
+	 * @throws IOException
+	 */
+	private void writeTrack(JsonWriter out, Book b, int trackIndex)
+			throws IOException {
+		TrackTypeAdapter.write(out, b.getTrackPathAt(trackIndex),
+				b.getTrackDurationAt(trackIndex),
+				b.getTrackElapsedTimeAt(trackIndex),
+				b.getTagTimesAt(trackIndex), b.getTrackTitleAt(trackIndex));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.google.gson.TypeAdapter#read(com.google.gson.stream.JsonReader)
+	 */
+	@Override
+	public Book read(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+
+		List<Track> tracks = new ArrayList<Track>();
+		int selectedTrackIndex = Constants.Value.NO_TRACK_SELECTED;
+		String author = null;
+		String title = null;
+
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (name.equals(TRACKS)) {
+				in.beginArray();
+				while (in.hasNext()) {
+					tracks.add(TrackTypeAdapter.readTrack(in));
+				}
+				in.endArray();
+			} else if (name.equals(SELECTED_TRACK_INDEX)) {
+				selectedTrackIndex = in.nextInt();
+			} else if (name.equals(AUTHOR)) {
+				author = TrackTypeAdapter.readString(in);
+			} else if (name.equals(TITLE)) {
+				title = TrackTypeAdapter.readString(in);
+			} else {
+				// the duration is calculated from the tracks
+				in.skipValue();
+			}
+		}
+		in.endObject();
+
+		Book b = new Book(tracks, title, author);
+		b.setSelectedTrackIndex(selectedTrackIndex);
+		return b;
+	}
+
+}
@@ -0,0 +1,342 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+import edu.chalmers.dat255.audiobookplayer.constants.EventType;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor.Command;
+
+/**
+ * Saves the bookshelf in the background after books or tracks have changed.
+ * <p>
+ * A change marks the bookshelf as dirty, and it is saved once no change has
+ * come for a quiet period, or once the first unsaved change is a maximum
+ * delay old, whichever comes first. A burst of changes is thus saved at
+ * once. The position, selections and tags are not watched, as the journal
+ * keeps them between saves. If a save fails, the bookshelf is dirty again
+ * and the save is tried again after the quiet period.
+ * <p>
+ * Saves go through the journal, which writes them on its own thread; the
+ * model thread only takes a snapshot. The time and bytes each save takes are
+ * kept as metrics.
+ * <p>
+ * The autosave has a timer thread of its own, which is stopped by
+ * {@link #shutdown()} once the bookshelf is no longer used.
+ * 
+ * @author Aki Käkelä
+ * @version 0.3
+ * 
+ */
+public final class BookshelfAutosave implements PropertyChangeListener {
+	private static final String TAG = "BookshelfAutosave";
+
+	/**
+	 * The events that make the bookshelf dirty.
+	 */
+	private static final EventType[] EVENTS = { EventType.BOOK_LIST_CHANGED,
+			EventType.TRACK_LIST_CHANGED, EventType.BOOK_TITLE_CHANGED };
+
+	private final ModelExecutor model;
+	private final BookshelfJournal journal;
+	private final long quietPeriod;
+	private final long maxDelay;
+	private final ScheduledExecutorService timer;
+
+	// when the oldest unsaved change was made (ms), or 0 if there is none
+	private long dirtySince;
+	// the save waiting for its time, or null
+	private ScheduledFuture<?> pending;
+	// set once the autosave has been shut down
+	private boolean shutDown;
+
+	// metrics
+	private volatile int changes;
+	private volatile int saves;
+	private volatile int failures;
+	private volatile long bytesWritten;
+	private volatile long lastLatency;
+	private volatile long maxLatency;
+
+	private final Runnable save = new Runnable() {
+		public void run() {
+			saveNow();
+		}
+	};
+
+	/**
+	 * Creates an autosave that waits for the quiet period and maximum delay
+	 * given in Constants.
+	 * 
+	 * @param model
+	 *            The executor of the bookshelf.
+	 * @param journal
+	 *            The journal to save through.
+	 */
+	public BookshelfAutosave(ModelExecutor model, BookshelfJournal journal) {
+		this(model, journal, Constants.Value.AUTOSAVE_QUIET_PERIOD,
+				Constants.Value.AUTOSAVE_MAX_DELAY);
+	}
+
+	/**
+	 * Creates an autosave. From now on, the journal leaves saving after books
+	 * or tracks changed to the autosave.
+	 * 
+	 * @param model
+	 *            The executor of the bookshelf.
+	 * @param journal
+	 *            The journal to save through.
+	 * @param quietPeriod
+	 *            How long (ms) to wait after a change for more changes.
+	 * @param maxDelay
+	 *            How long (ms) a change may go unsaved at most.
+	 */
+	public BookshelfAutosave(ModelExecutor model, BookshelfJournal journal,
+			long quietPeriod, long maxDelay) {
+		if (model == null || journal == null) {
+			throw new IllegalArgumentException(TAG
+					+ " model and journal may not be null");
+		}
+		this.model = model;
+		this.journal = journal;
+		this.quietPeriod = quietPeriod;
+		this.maxDelay = maxDelay;
+		this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, TAG);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		journal.setDeferred(true);
+	}
+
+	/**
+	 * @return The journal saved through.
+	 */
+	public BookshelfJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * @return The events the autosave should be registered for.
+	 */
+	public EventType[] getEventTypes() {
+		return EVENTS.clone();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * java.beans.PropertyChangeListener#propertyChange(java.beans.
+	 * PropertyChangeEvent)
+	 */
+	public synchronized void propertyChange(PropertyChangeEvent evt) {
+		if (shutDown) {
+			// saving is left to the owner of the bookshelf from now on
+			return;
+		}
+		changes++;
+		long now = System.currentTimeMillis();
+		if (dirtySince == 0) {
+			dirtySince = now;
+		}
+
+		// wait for the quiet period, but not past the maximum delay
+		long delay = Math.min(quietPeriod, dirtySince + maxDelay - now);
+		if (pending != null) {
+			pending.cancel(false);
+		}
+		pending = timer.schedule(save, Math.max(0, delay),
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Saves the bookshelf and waits for it to be written. Any autosave
+	 * waiting for its time is cancelled, as this save covers it. If the save
+	 * fails, the bookshelf is marked as dirty again and another save is
+	 * scheduled, unless the autosave has been shut down.
+	 * 
+	 * @return True if the bookshelf was saved.
+	 */
+	public boolean saveNow() {
+		long start = System.currentTimeMillis();
+
+		// take the snapshot in line with the journal
+		final AtomicReference<Future<Boolean>> save = new AtomicReference<Future<Boolean>>();
+		final long[] cleaned = new long[1];
+		model.run(new Command() {
+			public void execute(Bookshelf bookshelf) {
+				cleaned[0] = clean();
+				save.set(journal.compact(bookshelf.getSnapshot()));
+			}
+		});
+		if (save.get() == null) {
+			// interrupted while waiting for the snapshot
+			return false;
+		}
+
+		boolean saved = BookshelfJournal.await(save.get());
+		record(saved, System.currentTimeMillis() - start);
+		if (!saved) {
+			retry(cleaned[0] != 0 ? cleaned[0] : start);
+		}
+		return saved;
+	}
+
+	/**
+	 * Shuts the autosave down: the autosave waiting for its time is
+	 * cancelled, the bookshelf is saved now if it has unsaved changes, and the
+	 * timer is stopped. Changes from now on are not autosaved.
+	 * 
+	 * @return True if no changes were left unsaved.
+	 */
+	public boolean shutdown() {
+		boolean dirty;
+		synchronized (this) {
+			if (shutDown) {
+				return true;
+			}
+			shutDown = true;
+			dirty = dirtySince != 0;
+			if (pending != null) {
+				pending.cancel(false);
+				pending = null;
+			}
+		}
+		boolean saved = !dirty || saveNow();
+		timer.shutdown();
+		return saved;
+	}
+
+	/**
+	 * Adds a save to the metrics.
+	 */
+	private synchronized void record(boolean saved, long latency) {
+		if (saved) {
+			saves++;
+			bytesWritten += journal.getLastSaveSize();
+			lastLatency = latency;
+			maxLatency = Math.max(maxLatency, latency);
+		} else {
+			failures++;
+		}
+
+		Log.d(TAG, "Saved: " + saved + " in " + latency + " ms, " + saves
+				+ " saves of " + changes + " changes, " + bytesWritten
+				+ " bytes written");
+	}
+
+	/**
+	 * Marks the bookshelf as saved and cancels a waiting autosave.
+	 * 
+	 * @return When the oldest change it held was made (ms), or 0 if there
+	 *         was none.
+	 */
+	private synchronized long clean() {
+		long since = dirtySince;
+		dirtySince = 0;
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+		return since;
+	}
+
+	/**
+	 * Marks the bookshelf as dirty again after a failed save, and schedules
+	 * another save after the quiet period, so that a disk that keeps failing
+	 * is not tried over and over.
+	 * 
+	 * @param since
+	 *            When the oldest change the save held was made (ms).
+	 */
+	private synchronized void retry(long since) {
+		if (dirtySince == 0 || since < dirtySince) {
+			dirtySince = since;
+		}
+		if (shutDown) {
+			// saving is left to the owner of the bookshelf from now on
+			return;
+		}
+		if (pending != null) {
+			pending.cancel(false);
+		}
+		pending = timer.schedule(save, quietPeriod, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return True if there are changes that are not yet being saved.
+	 */
+	public synchronized boolean isDirty() {
+		return dirtySince != 0;
+	}
+
+	/**
+	 * @return The number of changes seen.
+	 */
+	public int getChangeCount() {
+		return changes;
+	}
+
+	/**
+	 * @return The number of successful saves.
+	 */
+	public int getSaveCount() {
+		return saves;
+	}
+
+	/**
+	 * @return The number of failed saves.
+	 */
+	public int getFailureCount() {
+		return failures;
+	}
+
+	/**
+	 * @return The number of bytes written by all successful saves.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * @return How long (ms) the last successful save took, from taking the
+	 *         snapshot until it was written.
+	 */
+	public long getLastLatency() {
+		return lastLatency;
+	}
+
+	/**
+	 * @return How long (ms) the slowest successful save took.
+	 */
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+}
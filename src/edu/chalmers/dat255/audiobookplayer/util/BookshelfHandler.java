@@ -8,24 +8,99 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 
 import android.content.Context;
+import android.util.Log;
+
+import com.google.gson.JsonIOException;
+
+import edu.chalmers.dat255.audiobookplayer.model.Book;
 import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.TrackSegment;
 
 /**
- * Loads and saves bookshelf data.
+ * Loads and saves bookshelf data. The bookshelf is saved in the binary format
+ * of BinaryParser; bookshelves saved as JSON by earlier versions are
+ * converted into it when loaded (see BookshelfMigration), and a bookshelf can
+ * be exported as JSON.
+ * <p>
+ * The bookshelf file is an index of the books, and the tracks of each book
+ * are saved as a segment in a folder next to it. Loading only reads the
+ * index; the tracks of a book are read when they are first needed. A segment
+ * is never changed once written: the tracks of a book that have not changed
+ * since they were last saved are saved by referring to the segment they are
+ * in, and only the books whose tracks changed get new segments, so the cost
+ * of a save follows the number of changed books. Segments that neither the
+ * bookshelf file nor its backup refers to are deleted after a save: the
+ * first save of a bookshelf file since the application started reads both
+ * versions to find them, and later saves know which segments each save
+ * drops without reading anything.
+ * <p>
+ * Each user (profile) has a bookshelf of their own. The paths, titles and
+ * durations of the tracks of a book are stored once, in a catalogue that all
+ * profiles share; the files of a profile hold only its own state, such as
+ * the selected book, the positions and the tags. An entry of the catalogue
+ * is named after its contents, so a book that is in several profiles is
+ * stored there once, and it is deleted when no profile refers to it. The
+ * references to each entry are counted once by the first save since the
+ * application started, by reading the bookshelves of all profiles, and
+ * from then on kept up to date by each save, so a save of one profile does
+ * not read the others.
+ * <p>
+ * Saving never leaves a half written file (see SafeFile), and the version
+ * saved before is kept as a backup to load should the newest one be
+ * damaged.
  * 
- * @author Aki Kkel, Marcus Parkkinen
- * @version 0.1
+ * @author Aki Käkelä, Marcus Parkkinen
+ * @version 0.9
  * 
  */
 public final class BookshelfHandler {
+	private static final String TAG = "BookshelfHandler.java";
+	// also used by BookshelfMigration
+	static final String SHELF_EXTENSION = ".shelf";
+	private static final String BOOKMARK_EXTENSION = ".bookmark";
+	private static final String SEGMENTS_EXTENSION = ".tracks";
+	private static final String CATALOGUE = "shared.catalogue";
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	// for the FNV-1a hash that catalogue entries are named after
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int BYTE_MASK = 0xff;
+
+	private static final Random KEYS = new Random();
+
+	// saves of all profiles share the catalogue, so they take turns
+	private static final Object CATALOGUE_LOCK = new Object();
+
+	// the segments referred to by the versions of each bookshelf file saved
+	// since the application started, by its path (under CATALOGUE_LOCK)
+	private static final Map<String, ShelfKeys> SHELF_KEYS = new HashMap<String, ShelfKeys>();
+	// the references to the entries of each catalogue, by its path, once
+	// counted (under CATALOGUE_LOCK)
+	private static final Map<String, EntryCounts> ENTRY_COUNTS = new HashMap<String, EntryCounts>();
 
 	private BookshelfHandler() {
 	} // to defeat instantiation
@@ -43,24 +118,52 @@ public final class BookshelfHandler {
 	 *            username
 	 */
 	public static Bookshelf loadBookshelf(Context c, String username) {
-		try {
-			// read
-			Object obj = JsonParser.fromJSON(FileParser
-					.readFromInternalStorage(username + ".bookmark", c),
-					Bookshelf.class);
-			if (obj instanceof Bookshelf) {
-				// if we found a bookshelf type object, return it
-				return ((Bookshelf) obj);
+		SafeFile shelf = new SafeFile(getShelfFile(c, username));
+		File segments = getSegmentFolder(c, username);
+		File catalogue = getCatalogueFolder(c);
+
+		// try the saved file first, then an unfinished save, then the backup
+		for (File f : shelf.getCandidates()) {
+			try {
+				Bookshelf bs = BinaryParser.read(f, segments, catalogue);
+
+				// add what changed after the bookshelf was saved
+				if (f == shelf.getBaseFile()) {
+					BookshelfJournal.replay(c, username, bs);
+				}
+				return bs;
+			} catch (IOException e) {
+				Log.e(TAG, "Could not load the bookshelf from " + f + ": "
+						+ e.getMessage());
+			}
+		}
+
+		// fall back on a bookshelf saved as JSON by an earlier version,
+		// converted one book at a time into the binary format
+		File json = c.getFileStreamPath(username + BOOKMARK_EXTENSION);
+		if (json.exists()) {
+			try {
+				BookshelfMigration.migrate(json, shelf.getBaseFile());
+				return BinaryParser.read(shelf.getBaseFile(), segments,
+						catalogue);
+			} catch (IOException e) {
+				Log.e(TAG, "Could not convert the bookshelf in " + json
+						+ ": " + e.getMessage());
+			}
+
+			// read it as it is instead
+			Bookshelf bs = loadJSON(c, username + BOOKMARK_EXTENSION);
+			if (bs != null) {
+				return bs;
 			}
-		} catch (Exception e) {
-			// If anything goes wrong, just continue..
 		}
+
 		// return a new bookshelf instance if nothing was found
 		return (new Bookshelf());
 	}
 
 	/**
-	 * Save a JSON representation of the model object tree to file.
+	 * Save a binary representation of the model object tree to file.
 	 * 
 	 * @param bs
 	 * 
@@ -70,16 +173,725 @@ public final class BookshelfHandler {
 	 *            username
 	 */
 	public static boolean saveBookshelf(Context c, String username, Bookshelf bs) {
+		return save(c, username, bs) >= 0;
+	}
+
+	/**
+	 * Saves the bookshelf: the segments of the books that need new ones,
+	 * then the index. The books given new segments are told so, which is
+	 * why the bookshelf must not be changed while it is saved (save a
+	 * snapshot).
+	 * 
+	 * @param c
+	 *            Context.
+	 * @param username
+	 *            The user.
+	 * @param bs
+	 *            The bookshelf.
+	 * @return The number of bytes written, or -1 if the saving failed.
+	 */
+	static long save(Context c, String username, Bookshelf bs) {
+		SafeFile shelf = new SafeFile(getShelfFile(c, username));
+		File segments = getSegmentFolder(c, username);
+		File catalogue = getCatalogueFolder(c);
+		synchronized (CATALOGUE_LOCK) {
+			try {
+				// the segments and entries go first, so the index never
+				// refers to a missing one
+				createFolders(segments, catalogue);
+				long bytes = 0;
+				for (int i = 0; i < bs.getNumberOfBooks(); i++) {
+					Book b = bs.getBookAt(i);
+					if (!isStored(b, segments, catalogue)) {
+						bytes += storeTracks(b, segments, catalogue);
+					}
+				}
+				bytes += writeIndex(shelf, bs);
+
+				deleteUnusedSegments(shelf, bs, segments, catalogue);
+				deleteUnusedEntries(c, catalogue);
+				return bytes;
+			} catch (IOException e) {
+				// the saving failed; show it by returning -1
+				Log.e(TAG, "Could not save the bookshelf: " + e.getMessage());
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Creates the folders of the segments and the catalogue, if needed.
+	 * 
+	 * @param segments
+	 *            The folder of the segments.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 * @throws IOException
+	 *             If a folder could not be created.
+	 */
+	static void createFolders(File segments, File catalogue)
+			throws IOException {
+		for (File folder : new File[] { segments, catalogue }) {
+			if (!folder.isDirectory() && !folder.mkdirs()) {
+				throw new IOException("Could not create " + folder);
+			}
+		}
+	}
+
+	/**
+	 * @param b
+	 *            A book.
+	 * @param segments
+	 *            The folder of the segments.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 * @return True if the tracks of the book have not changed since they were
+	 *         stored in these folders.
+	 */
+	private static boolean isStored(Book b, File segments, File catalogue) {
+		TrackSegment s = b.getTrackSegment();
+		return s != null
+				&& s.getCatalogueKey() != 0
+				&& BinaryParser.getSegmentFile(segments, s.getKey()).exists()
+				&& BinaryParser.getSegmentFile(catalogue, s.getCatalogueKey())
+						.exists();
+	}
+
+	/**
+	 * Stores the tracks of a book: writes a new segment, synced to the disk,
+	 * and the catalogue entry unless the catalogue has it already. The book
+	 * is then given the segment, so it is not stored again until it
+	 * changes.
+	 * 
+	 * @param b
+	 *            The book.
+	 * @param segments
+	 *            The folder of the segments.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 */
+	static long storeTracks(Book b, File segments, File catalogue)
+			throws IOException {
+		long[] entry = new long[1];
+		long bytes = writeEntry(b, catalogue, entry);
+
+		long key = newKey(segments);
+		FileOutputStream out = SafeFile.open(BinaryParser.getSegmentFile(
+				segments, key));
+		try {
+			BinaryParser.writeSegment(b, out);
+			out.getFD().sync();
+			bytes += out.getChannel().position();
+		} finally {
+			out.close();
+		}
+
+		b.setTrackSegment(BinaryParser.newSegment(segments, catalogue, key,
+				entry[0], b.getNumberOfTracks(), b.getDuration(),
+				b.getBookElapsedTime()));
+		return bytes;
+	}
+
+	/**
+	 * Writes the index of a bookshelf whose books have all been stored, next
+	 * to the old one, then swaps them.
+	 * 
+	 * @param shelf
+	 *            The bookshelf file.
+	 * @param bs
+	 *            The bookshelf.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 */
+	static long writeIndex(SafeFile shelf, Bookshelf bs) throws IOException {
+		long[] keys = new long[bs.getNumberOfBooks()];
+		long[] entries = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			TrackSegment s = bs.getBookAt(i).getTrackSegment();
+			keys[i] = s.getKey();
+			entries[i] = s.getCatalogueKey();
+		}
+
+		FileOutputStream out = shelf.startWrite();
+		long bytes;
+		try {
+			BinaryParser.writeIndex(bs, keys, entries, out);
+			bytes = out.getChannel().position();
+			shelf.finishWrite(out);
+		} catch (IOException e) {
+			shelf.failWrite(out);
+			throw e;
+		}
+
+		// the old version is now the backup, and the backup is gone
+		String path = shelf.getBaseFile().getPath();
+		ShelfKeys known = SHELF_KEYS.get(path);
+		if (known != null) {
+			Set<String> written = getKeys(bs, false);
+			Set<String> current = known.current;
+			for (String key : known.written(written)) {
+				if (!written.contains(key) && !current.contains(key)) {
+					known.dropped.add(key);
+				}
+			}
+		}
+		EntryCounts counts = ENTRY_COUNTS.get(getCatalogueFolder(
+				shelf.getBaseFile()).getPath());
+		if (counts != null) {
+			counts.written(path, getKeys(bs, true));
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the catalogue entry of a book, unless the catalogue has it
+	 * already. The entry is named after a hash of its contents.
+	 * 
+	 * @param b
+	 *            The book.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 * @param entry
+	 *            Its first element is set to the key of the entry.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 */
+	private static long writeEntry(Book b, File catalogue, long[] entry)
+			throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		BinaryParser.writeCatalogueEntry(b, buffer);
+		byte[] contents = buffer.toByteArray();
+
+		long key = hash(contents);
+		File f = BinaryParser.getSegmentFile(catalogue, key);
+		while (f.exists()) {
+			if (hasContents(f, contents)) {
+				// stored by an earlier save, or by another profile
+				entry[0] = key;
+				return 0;
+			}
+
+			// another entry has the same hash
+			key = key == -1 ? 1 : key + 1;
+			f = BinaryParser.getSegmentFile(catalogue, key);
+		}
+
+		// written in full before it gets its name
+		File temp = new File(catalogue, f.getName() + TEMP_EXTENSION);
+		FileOutputStream out = SafeFile.open(temp);
+		try {
+			out.write(contents);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(f)) {
+			throw new IOException("Could not rename " + temp);
+		}
+		entry[0] = key;
+		return contents.length;
+	}
+
+	/**
+	 * @return The FNV-1a hash of the bytes, never 0.
+	 */
+	private static long hash(byte[] bytes) {
+		long hash = FNV_OFFSET;
+		for (byte b : bytes) {
+			hash ^= b & BYTE_MASK;
+			hash *= FNV_PRIME;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * @return True if the file holds exactly the given bytes.
+	 */
+	private static boolean hasContents(File f, byte[] bytes)
+			throws IOException {
+		if (f.length() != bytes.length) {
+			return false;
+		}
+		byte[] contents = new byte[bytes.length];
+		FileInputStream in = new FileInputStream(f);
+		try {
+			int n = 0;
+			while (n < contents.length) {
+				int read = in.read(contents, n, contents.length - n);
+				if (read < 0) {
+					return false;
+				}
+				n += read;
+			}
+		} finally {
+			in.close();
+		}
+		return Arrays.equals(contents, bytes);
+	}
+
+	/**
+	 * @return A key that no segment in the folder has.
+	 */
+	private static long newKey(File segments) {
+		long key;
+		do {
+			key = KEYS.nextLong();
+		} while (key == 0
+				|| BinaryParser.getSegmentFile(segments, key).exists());
+		return key;
+	}
+
+	/**
+	 * Deletes the segments that neither the bookshelf file nor its backup
+	 * refers to, once it has just been written. The first time for a
+	 * bookshelf file, its versions are read to find them, which also finds
+	 * those left by earlier runs; from then on, the segments dropped by each
+	 * write are known. Nothing is deleted if a version cannot be read.
+	 * 
+	 * @param shelf
+	 *            The bookshelf file.
+	 * @param bs
+	 *            The bookshelf just written to it.
+	 * @param segments
+	 *            The folder of the segments.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 */
+	private static void deleteUnusedSegments(SafeFile shelf, Bookshelf bs,
+			File segments, File catalogue) {
+		String path = shelf.getBaseFile().getPath();
+		ShelfKeys known = SHELF_KEYS.get(path);
+		if (known != null) {
+			for (String key : known.dropped) {
+				File f = new File(segments, key);
+				if (f.exists() && !f.delete()) {
+					Log.e(TAG, "Could not delete " + f);
+				}
+			}
+			known.dropped.clear();
+			return;
+		}
+
+		Set<String> used = new HashSet<String>();
+		try {
+			addKeys(shelf, segments, catalogue, used);
+		} catch (IOException e) {
+			Log.e(TAG, "Kept all segments: " + e.getMessage());
+			return;
+		}
+		deleteUnused(segments, used);
+		SHELF_KEYS.put(path, new ShelfKeys(getKeys(bs, false), used));
+	}
+
+	/**
+	 * @param bs
+	 *            A bookshelf whose books have all been stored.
+	 * @param entries
+	 *            True for the catalogue entries, false for the segments.
+	 * @return The names of the segments or catalogue entries of its books.
+	 */
+	private static Set<String> getKeys(Bookshelf bs, boolean entries) {
+		Set<String> keys = new HashSet<String>();
+		for (int i = 0; i < bs.getNumberOfBooks(); i++) {
+			TrackSegment s = bs.getBookAt(i).getTrackSegment();
+			if (s != null) {
+				keys.add(Long.toHexString(entries ? s.getCatalogueKey() : s
+						.getKey()));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Deletes the catalogue entries that no profile refers to any longer, in
+	 * its bookshelf file or backup. The first time, the references are
+	 * counted by reading the bookshelves of all profiles, which also finds
+	 * the entries left by earlier runs; from then on, the counts are kept by
+	 * the writes of the bookshelves. Nothing is deleted during this run if a
+	 * bookshelf cannot be read.
+	 * 
+	 * @param c
+	 *            Context.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 */
+	private static void deleteUnusedEntries(Context c, File catalogue) {
+		EntryCounts counts = ENTRY_COUNTS.get(catalogue.getPath());
+		if (counts != null) {
+			counts.deleteUnused(catalogue);
+			return;
+		}
+
+		counts = new EntryCounts();
+		ENTRY_COUNTS.put(catalogue.getPath(), counts);
+		try {
+			for (String profile : getProfiles(c)) {
+				SafeFile shelf = new SafeFile(getShelfFile(c, profile));
+				File segments = getSegmentFolder(c, profile);
+				Set<String> current = new HashSet<String>();
+				Set<String> others = new HashSet<String>();
+				for (File f : shelf.getCandidates()) {
+					Bookshelf bs = BinaryParser.read(f, segments, catalogue);
+					(f == shelf.getBaseFile() ? current : others)
+							.addAll(getKeys(bs, true));
+				}
+				counts.add(shelf.getBaseFile().getPath(), current, others);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Kept all catalogue entries: " + e.getMessage());
+			counts.disable();
+			return;
+		}
+		deleteUnused(catalogue, counts.getUsed());
+	}
+
+	/**
+	 * Adds the names of the segments that the versions of a bookshelf file
+	 * refer to.
+	 * 
+	 * @param shelf
+	 *            The bookshelf file.
+	 * @param segments
+	 *            The folder of the segments.
+	 * @param catalogue
+	 *            The folder of the catalogue.
+	 * @param used
+	 *            Where to add the names.
+	 * @throws IOException
+	 *             If a version could not be read.
+	 */
+	private static void addKeys(SafeFile shelf, File segments,
+			File catalogue, Set<String> used) throws IOException {
+		for (File f : shelf.getCandidates()) {
+			used.addAll(getKeys(BinaryParser.read(f, segments, catalogue),
+					false));
+		}
+	}
+
+	/**
+	 * Deletes the files of a folder that are not in use.
+	 * 
+	 * @param folder
+	 *            The folder.
+	 * @param used
+	 *            The names of the files in use.
+	 */
+	private static void deleteUnused(File folder, Set<String> used) {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (!used.contains(f.getName()) && !f.delete()) {
+				Log.e(TAG, "Could not delete " + f);
+			}
+		}
+	}
+
+	/**
+	 * Exports a JSON representation of the model object tree to a file in
+	 * internal storage.
+	 * 
+	 * @param c
+	 *            Context.
+	 * @param fileName
+	 *            The file to export to.
+	 * @param bs
+	 *            The bookshelf to export.
+	 * @return True if the bookshelf was exported.
+	 */
+	public static boolean exportBookshelf(Context c, String fileName,
+			Bookshelf bs) {
 		try {
-			// write
-			FileParser.writeToInternalStorage(username + ".bookmark", c,
-					JsonParser.toJSON(bs));
+			Writer out = FileParser.openWriter(fileName, c);
+			try {
+				JsonParser.toJSON(bs, out);
+			} finally {
+				out.close();
+			}
 		} catch (IOException e) {
-			// the saving failed; show it by returning false
+			return false;
+		} catch (JsonIOException e) {
 			return false;
 		}
-		// saving was successful
 		return true;
 	}
 
+	/**
+	 * @param c
+	 *            Context.
+	 * @param username
+	 *            The user.
+	 * @return The file the bookshelf of the user is saved in.
+	 */
+	static File getShelfFile(Context c, String username) {
+		return c.getFileStreamPath(username + SHELF_EXTENSION);
+	}
+
+	/**
+	 * @param c
+	 *            Context.
+	 * @param username
+	 *            The user.
+	 * @return The folder the segments of the bookshelf of the user are saved
+	 *         in.
+	 */
+	static File getSegmentFolder(Context c, String username) {
+		return getSegmentFolder(getShelfFile(c, username));
+	}
+
+	/**
+	 * @param shelf
+	 *            A bookshelf file.
+	 * @return The folder the segments of the bookshelf are saved in: the
+	 *         file, named without its extension and with that of a folder of
+	 *         segments.
+	 */
+	static File getSegmentFolder(File shelf) {
+		String name = shelf.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		return new File(shelf.getParentFile(), name + SEGMENTS_EXTENSION);
+	}
+
+	/**
+	 * @param c
+	 *            Context.
+	 * @return The folder of the catalogue that all profiles share.
+	 */
+	static File getCatalogueFolder(Context c) {
+		return c.getFileStreamPath(CATALOGUE);
+	}
+
+	/**
+	 * @param shelf
+	 *            A bookshelf file.
+	 * @return The folder of the catalogue shared by the bookshelves next to
+	 *         the file.
+	 */
+	static File getCatalogueFolder(File shelf) {
+		return new File(shelf.getParentFile(), CATALOGUE);
+	}
+
+	/**
+	 * @return The lock that saves hold while they use the catalogue.
+	 */
+	static Object getCatalogueLock() {
+		return CATALOGUE_LOCK;
+	}
+
+	/**
+	 * Lists the profiles that have a bookshelf saved, including those saved
+	 * as JSON by an earlier version.
+	 * 
+	 * @param c
+	 *            Context.
+	 * @return The names of the profiles, in order.
+	 */
+	public static List<String> getProfiles(Context c) {
+		Set<String> profiles = new TreeSet<String>();
+		String[] files = c.getFilesDir().list();
+		if (files != null) {
+			for (String name : files) {
+				for (String extension : new String[] { SHELF_EXTENSION,
+						BOOKMARK_EXTENSION }) {
+					if (name.endsWith(extension)) {
+						profiles.add(name.substring(0, name.length()
+								- extension.length()));
+					}
+				}
+			}
+		}
+		return new ArrayList<String>(profiles);
+	}
+
+	/**
+	 * Checks whether a name can be given to a profile: it may not be empty,
+	 * start with a dot, or hold a separator, as its files are named after it.
+	 * 
+	 * @param profile
+	 *            The name.
+	 * @return True if the name can be used.
+	 */
+	public static boolean isValidProfile(String profile) {
+		return profile != null && profile.length() > 0
+				&& !profile.startsWith(".")
+				&& profile.indexOf(File.separatorChar) < 0
+				&& !profile.equals(CATALOGUE);
+	}
+
+	/**
+	 * Loads a bookshelf saved as JSON.
+	 * 
+	 * @param c
+	 *            Context.
+	 * @param file
+	 *            The file to load.
+	 * @return The bookshelf, or null if there is none or it could not be read.
+	 */
+	private static Bookshelf loadJSON(Context c, String file) {
+		if (!c.getFileStreamPath(file).exists()) {
+			// nothing saved
+			return null;
+		}
+
+		try {
+			// read
+			Reader in = FileParser.openReader(file, c);
+			try {
+				return JsonParser.fromJSON(in, Bookshelf.class);
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			// the file is there but could not be read; say so and continue
+			Log.e(TAG, "Could not load the bookshelf from " + file + ": "
+					+ e.getMessage());
+		}
+		return null;
+	}
+
+
+	/**
+	 * The segments that the versions of a bookshelf file refer to, and those
+	 * that are no longer referred to but not yet deleted.
+	 */
+	private static final class ShelfKeys {
+		private Set<String> current;
+		private Set<String> backup;
+		private final Set<String> dropped = new HashSet<String>();
+
+		/**
+		 * @param current
+		 *            The segments of the file.
+		 * @param backup
+		 *            The segments of the other versions.
+		 */
+		private ShelfKeys(Set<String> current, Set<String> backup) {
+			this.current = current;
+			this.backup = backup;
+		}
+
+		/**
+		 * Notes that a new version was written, and the backup replaced.
+		 * 
+		 * @param keys
+		 *            The keys of the new version.
+		 * @return The keys of the backup that was replaced.
+		 */
+		private Set<String> written(Set<String> keys) {
+			Set<String> replaced = backup;
+			backup = current;
+			current = keys;
+			return replaced;
+		}
+	}
+
+	/**
+	 * The number of versions of bookshelf files that refer to each entry of
+	 * a catalogue, and the entries that none refers to any longer.
+	 */
+	private static final class EntryCounts {
+		private final Map<String, Integer> counts = new HashMap<String, Integer>();
+		// the entries of each bookshelf file, by its path
+		private final Map<String, ShelfKeys> shelves = new HashMap<String, ShelfKeys>();
+		private final Set<String> unused = new HashSet<String>();
+		// false if the references could not be counted
+		private boolean enabled = true;
+
+		/**
+		 * Adds the references of a bookshelf file.
+		 * 
+		 * @param path
+		 *            The path of the file.
+		 * @param current
+		 *            The entries of the file.
+		 * @param others
+		 *            The entries of its other versions.
+		 */
+		private void add(String path, Set<String> current, Set<String> others) {
+			count(current, 1);
+			count(others, 1);
+			shelves.put(path, new ShelfKeys(current, others));
+		}
+
+		/**
+		 * Notes that a new version of a bookshelf file was written, and its
+		 * backup replaced.
+		 * 
+		 * @param path
+		 *            The path of the file.
+		 * @param keys
+		 *            The entries of the new version.
+		 */
+		private void written(String path, Set<String> keys) {
+			if (!enabled) {
+				return;
+			}
+			ShelfKeys shelf = shelves.get(path);
+			if (shelf == null) {
+				// a bookshelf file that did not exist when counted
+				shelf = new ShelfKeys(new HashSet<String>(),
+						new HashSet<String>());
+				shelves.put(path, shelf);
+			}
+			// counted up first, so an entry that is kept never reaches 0
+			count(keys, 1);
+			count(shelf.written(keys), -1);
+		}
+
+		/**
+		 * Stops counting, and never deletes anything.
+		 */
+		private void disable() {
+			enabled = false;
+			counts.clear();
+			shelves.clear();
+			unused.clear();
+		}
+
+		/**
+		 * @return The entries that are referred to.
+		 */
+		private Set<String> getUsed() {
+			return counts.keySet();
+		}
+
+		/**
+		 * Deletes the entries that are no longer referred to.
+		 * 
+		 * @param catalogue
+		 *            The folder of the catalogue.
+		 */
+		private void deleteUnused(File catalogue) {
+			for (String key : unused) {
+				File f = new File(catalogue, key);
+				if (f.exists() && !f.delete()) {
+					Log.e(TAG, "Could not delete " + f);
+				}
+			}
+			unused.clear();
+		}
+
+		private void count(Set<String> keys, int delta) {
+			if (!enabled) {
+				return;
+			}
+			for (String key : keys) {
+				Integer n = counts.get(key);
+				int count = (n == null ? 0 : n) + delta;
+				if (count > 0) {
+					counts.put(key, count);
+					unused.remove(key);
+				} else {
+					counts.remove(key);
+					unused.add(key);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,550 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+import edu.chalmers.dat255.audiobookplayer.constants.EventType;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.BookshelfEvent;
+
+/**
+ * An append-only journal of the small changes of a bookshelf: the playback
+ * position, the selected book and track, and tags. Each change is appended
+ * as a short record in the background, so the position survives the
+ * application being killed without writing the whole bookshelf.
+ * <p>
+ * Every so often, and whenever books or tracks are added, removed, moved or
+ * renamed, the journal is compacted: the whole bookshelf is saved and the
+ * journal is started over. Compacting after such changes can be left to a
+ * BookshelfAutosave, which saves bursts of them at once; in between, the
+ * journal is stale and records nothing.
+ * <p>
+ * A journal starts with the checksum of the saved bookshelf it continues
+ * from, and is only replayed on top of that same bookshelf (see
+ * {@link #replay(Context, String, Bookshelf)}). If a save fails, the journal
+ * is closed as it is, since what it holds still fits the bookshelf saved
+ * before, and nothing more is recorded until a save succeeds.
+ * <p>
+ * The journal listens to the bookshelf on the model thread, and does all its
+ * writing on a thread of its own, until it is closed.
+ * 
+ * @author Aki Käkelä
+ * @version 0.4
+ * 
+ */
+public final class BookshelfJournal implements PropertyChangeListener {
+	private static final String TAG = "BookshelfJournal";
+	private static final String JOURNAL_EXTENSION = ".journal";
+
+	private static final byte[] MAGIC = { 'A', 'B', 'J', 'L' };
+	private static final int VERSION = 1;
+
+	// a record: type, book index, track index, value and a checksum
+	private static final int RECORD_SIZE = 1 + 4 + 4 + 4 + 4;
+	private static final int CHECKED_SIZE = RECORD_SIZE - 4;
+
+	// the kinds of records
+	private static final byte BOOK_SELECTED = 1;
+	private static final byte TRACK_SELECTED = 2;
+	private static final byte ELAPSED_TIME = 3;
+	private static final byte TAG_ADDED = 4;
+	private static final byte TAG_REMOVED = 5;
+
+	/**
+	 * The number of records after which the journal is compacted.
+	 */
+	private static final int COMPACT_THRESHOLD = 500;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The events the journal needs to listen to.
+	 */
+	private static final EventType[] EVENTS = { EventType.BOOK_SELECTED,
+			EventType.TRACK_INDEX_CHANGED, EventType.ELAPSED_TIME_CHANGED,
+			EventType.TAG_ADDED, EventType.TAG_REMOVED,
+			EventType.BOOK_LIST_CHANGED, EventType.TRACK_LIST_CHANGED,
+			EventType.BOOK_TITLE_CHANGED };
+
+	private final Context context;
+	private final String username;
+	private final ExecutorService executor;
+
+	// the number of records since the last compaction
+	private volatile int records;
+
+	// the number of bytes written by the last successful save
+	private volatile long lastSaveSize;
+
+	// whether compacting after books or tracks changed is left to others
+	private volatile boolean deferred;
+
+	// whether books or tracks changed since the last compaction (model thread)
+	private boolean stale;
+
+	// whether the journal has been closed
+	private volatile boolean closed;
+
+	// the open journal file, or null (journal thread only)
+	private FileOutputStream out;
+
+	/**
+	 * Creates a journal of the bookshelf of the given user. Nothing is
+	 * written until the journal is started.
+	 * 
+	 * @param c
+	 *            Context.
+	 * @param username
+	 *            The user whose bookshelf is journaled.
+	 */
+	public BookshelfJournal(Context c, String username) {
+		this.context = c;
+		this.username = username;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, TAG);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return The user whose bookshelf is journaled.
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * @return The number of bytes written by the last successful save.
+	 */
+	long getLastSaveSize() {
+		return lastSaveSize;
+	}
+
+	/**
+	 * Leaves compacting after books or tracks changed to the caller (see
+	 * BookshelfAutosave). Until the next compaction, nothing is recorded, as
+	 * the indices in the journal would no longer match the saved bookshelf.
+	 * 
+	 * @param defer
+	 *            True to leave compacting to the caller.
+	 */
+	void setDeferred(boolean defer) {
+		this.deferred = defer;
+	}
+
+	/**
+	 * @return The events the journal should be registered for.
+	 */
+	public EventType[] getEventTypes() {
+		return EVENTS.clone();
+	}
+
+	/**
+	 * Starts the journal from the given bookshelf, by saving it and starting
+	 * a new journal file. Should be called on the model thread, right before
+	 * the journal is registered as a listener, so that no change falls in
+	 * between.
+	 * 
+	 * @param snapshot
+	 *            A snapshot of the bookshelf.
+	 */
+	public void start(Bookshelf snapshot) {
+		compact(snapshot);
+	}
+
+	/**
+	 * Saves the given bookshelf and starts the journal over, in the
+	 * background. If the save fails, the journal is closed, as later records
+	 * may not fit the bookshelf saved before.
+	 * 
+	 * @param snapshot
+	 *            A snapshot of the bookshelf, taken on the model thread.
+	 * @return The result of the save: true if it succeeded.
+	 */
+	public Future<Boolean> compact(final Bookshelf snapshot) {
+		records = 0;
+		stale = false;
+		return executor.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				long written = BookshelfHandler.save(context, username,
+						snapshot);
+				if (written < 0) {
+					// records after this may hold indices of the new books
+					closeFile();
+					return false;
+				}
+				lastSaveSize = written;
+				restart();
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Waits for a save to be done.
+	 * 
+	 * @param save
+	 *            The result of {@link #compact(Bookshelf)}.
+	 * @return True if the bookshelf was saved.
+	 */
+	public static boolean await(Future<Boolean> save) {
+		try {
+			return save.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Save failed: " + e.getCause());
+		}
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * java.beans.PropertyChangeListener#propertyChange(java.beans.
+	 * PropertyChangeEvent)
+	 */
+	public void propertyChange(PropertyChangeEvent evt) {
+		if (!(evt instanceof BookshelfEvent)) {
+			return;
+		}
+		BookshelfEvent e = (BookshelfEvent) evt;
+		if (closed) {
+			// the journal thread is stopped; nothing more is recorded
+			return;
+		}
+		if (stale) {
+			// the saved bookshelf is out of date; the next save covers this
+			return;
+		}
+		int book = e.getBookIndex();
+		int track = e.getTrackIndex();
+
+		switch (e.getType()) {
+		case BOOK_SELECTED:
+			append(BOOK_SELECTED, book, track, 0);
+			break;
+		case TRACK_INDEX_CHANGED:
+			append(TRACK_SELECTED, book, track, 0);
+			break;
+		case ELAPSED_TIME_CHANGED:
+			append(ELAPSED_TIME, book, track, (Integer) e.getNewValue());
+			break;
+		case TAG_ADDED:
+			if (e.getNewValue() instanceof int[]) {
+				for (int time : (int[]) e.getNewValue()) {
+					append(TAG_ADDED, book, track, time);
+				}
+			} else {
+				append(TAG_ADDED, book, track, (Integer) e.getNewValue());
+			}
+			break;
+		case TAG_REMOVED:
+			append(TAG_REMOVED, book, track, (Integer) e.getOldValue());
+			break;
+		default:
+			// books or tracks changed; indices in the journal no longer hold
+			if (deferred) {
+				stale = true;
+			} else {
+				compact(e.getBookshelf().getSnapshot());
+			}
+			return;
+		}
+
+		if (records >= COMPACT_THRESHOLD) {
+			compact(e.getBookshelf().getSnapshot());
+		}
+	}
+
+	/**
+	 * Closes the journal: waits until everything queued so far has been
+	 * written, syncs the journal file to the disk and closes it, and stops
+	 * the journal thread. Changes after this are not recorded. Should be
+	 * called once the journal no longer listens to the bookshelf, as when
+	 * the application is closed or the profile is switched.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		Future<Boolean> done = executor.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				closeFile();
+				return true;
+			}
+		});
+		executor.shutdown();
+		await(done);
+	}
+
+	/**
+	 * Appends a record to the journal in the background.
+	 */
+	private void append(byte type, int book, int track, int value) {
+		records++;
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.put(type).putInt(book).putInt(track).putInt(value);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, CHECKED_SIZE);
+		record.putInt((int) crc.getValue());
+		final byte[] bytes = record.array();
+
+		executor.execute(new Runnable() {
+			public void run() {
+				if (out == null) {
+					// the journal could not be started, or the last save
+					// failed; wait for the next save
+					return;
+				}
+				try {
+					// one write per record, so a record is never split by
+					// the application being killed in between
+					out.write(bytes);
+				} catch (IOException e) {
+					Log.e(TAG, "Could not append to the journal: "
+							+ e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts a new journal file that continues from the bookshelf just saved.
+	 * Runs on the journal thread.
+	 */
+	private void restart() {
+		try {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+			long checksum = checksum(BookshelfHandler.getShelfFile(context,
+					username));
+
+			ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + 8);
+			header.put(MAGIC).putInt(VERSION).putLong(checksum);
+
+			out = context.openFileOutput(username + JOURNAL_EXTENSION,
+					Context.MODE_PRIVATE);
+			out.write(header.array());
+		} catch (IOException e) {
+			Log.e(TAG, "Could not start the journal: " + e.getMessage());
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ignored) {
+					// nothing more to do
+				}
+				out = null;
+			}
+		}
+	}
+
+	/**
+	 * Syncs the journal file to the disk and closes it. Runs on the journal
+	 * thread.
+	 */
+	private void closeFile() {
+		if (out == null) {
+			return;
+		}
+		try {
+			try {
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not close the journal: " + e.getMessage());
+		}
+		out = null;
+	}
+
+	/*
+	 * FOR TESTING PURPOSES ONLY
+	 */
+
+	/**
+	 * Waits until everything queued so far has been written.
+	 */
+	void drain() {
+		await(executor.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return true;
+			}
+		}));
+	}
+
+	/*
+	 * END TESTING PURPOSES ONLY
+	 */
+
+	/**
+	 * Replays the journal of a user onto the bookshelf it continues from. A
+	 * journal that belongs to another saved bookshelf is ignored, and so is a
+	 * record that was cut short or is damaged, and everything after it.
+	 * 
+	 * @param c
+	 *            Context.
+	 * @param username
+	 *            The user.
+	 * @param bs
+	 *            The bookshelf just loaded from the saved file of the user.
+	 * @return The number of records replayed.
+	 */
+	public static int replay(Context c, String username, Bookshelf bs) {
+		File journal = c.getFileStreamPath(username + JOURNAL_EXTENSION);
+		if (!journal.exists()) {
+			return 0;
+		}
+
+		int replayed = 0;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(journal)));
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				in.readFully(magic);
+				if (!Arrays.equals(MAGIC, magic)
+						|| in.readInt() != VERSION
+						|| in.readLong() != checksum(BookshelfHandler
+								.getShelfFile(c, username))) {
+					// already part of the saved bookshelf, or not a journal
+					return 0;
+				}
+
+				byte[] record = new byte[RECORD_SIZE];
+				ByteBuffer buffer = ByteBuffer.wrap(record);
+				CRC32 crc = new CRC32();
+				while (true) {
+					in.readFully(record);
+					crc.reset();
+					crc.update(record, 0, CHECKED_SIZE);
+					buffer.rewind();
+					byte type = buffer.get();
+					int book = buffer.getInt();
+					int track = buffer.getInt();
+					int value = buffer.getInt();
+					if (buffer.getInt() != (int) crc.getValue()) {
+						Log.e(TAG, "Damaged journal record " + replayed);
+						break;
+					}
+					apply(bs, type, book, track, value);
+					replayed++;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			// the end of the journal (possibly in the middle of a record)
+		} catch (IOException e) {
+			Log.e(TAG, "Could not replay the journal: " + e.getMessage());
+		}
+		return replayed;
+	}
+
+	/**
+	 * Applies a record to a bookshelf. Records that do not fit the bookshelf
+	 * are skipped.
+	 */
+	private static void apply(Bookshelf bs, byte type, int book, int track,
+			int value) {
+		try {
+			if (type == BOOK_SELECTED) {
+				bs.setSelectedBookIndex(book);
+				return;
+			}
+
+			// the other records are about the selected track of a book
+			if (bs.getSelectedBookIndex() != book) {
+				bs.setSelectedBookIndex(book);
+			}
+			if (bs.getSelectedTrackIndex() != track) {
+				bs.setSelectedTrackIndex(track);
+			}
+
+			switch (type) {
+			case ELAPSED_TIME:
+				bs.setSelectedTrackElapsedTime(value);
+				break;
+			case TAG_ADDED:
+				bs.addTag(value);
+				break;
+			case TAG_REMOVED:
+				bs.removeTagAt(value);
+				break;
+			default:
+				// the track was selected above
+				break;
+			}
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Skipped a journal record that does not fit: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * @param file
+	 *            A file.
+	 * @return The CRC32 of the file, or 0 if there is no such file.
+	 * @throws IOException
+	 */
+	static long checksum(File file) throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
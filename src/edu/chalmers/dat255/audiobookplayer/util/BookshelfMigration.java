@@ -0,0 +1,189 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+
+/**
+ * Converts a bookshelf file of an earlier version, JSON or binary, into the
+ * current binary format. The books are read and stored one at a time, so
+ * only the book being converted has its tracks in memory, however large the
+ * bookshelf is; what is kept of the others is the small index entry.
+ * <p>
+ * The conversion runs in the application, when a profile that only has a
+ * JSON bookshelf is loaded (see BookshelfHandler#loadBookshelf). For trying
+ * it on many or large files, {@link #migrateAll(File, File)} converts a
+ * whole folder as a batch; BookshelfMigrationTest runs it on a device, as
+ * it needs the Android classes that saving uses.
+ * <p>
+ * The new file gets its segments in a folder next to it, and shares the
+ * catalogue of the files in its folder (see BookshelfHandler).
+ * 
+ * @author Aki Käkelä
+ * @version 0.3
+ * 
+ */
+public final class BookshelfMigration {
+	private static final String TAG = "BookshelfMigration";
+
+	private BookshelfMigration() {
+	} // to defeat instantiation
+
+	/**
+	 * Converts a bookshelf file. The old file is left as it is.
+	 * 
+	 * @param from
+	 *            The file to convert, JSON or binary of any version.
+	 * @param to
+	 *            The bookshelf file to write.
+	 * @return The number of books converted.
+	 * @throws IOException
+	 *             If the old file could not be read, or the new one written.
+	 */
+	public static int migrate(File from, File to) throws IOException {
+		File segments = BookshelfHandler.getSegmentFolder(to);
+		File catalogue = BookshelfHandler.getCatalogueFolder(to);
+		Converter converter = new Converter(segments, catalogue);
+
+		synchronized (BookshelfHandler.getCatalogueLock()) {
+			BookshelfHandler.createFolders(segments, catalogue);
+			if (BinaryParser.isBookshelfFile(from)) {
+				BinaryParser.readBooks(from,
+						BookshelfHandler.getSegmentFolder(from),
+						BookshelfHandler.getCatalogueFolder(from), converter);
+			} else {
+				Reader in = FileParser.openReader(from);
+				try {
+					JsonParser.readBooks(in, converter);
+				} finally {
+					in.close();
+				}
+			}
+
+			Bookshelf index = converter.getIndex();
+			BookshelfHandler.writeIndex(new SafeFile(to), index);
+			return index.getNumberOfBooks();
+		}
+	}
+
+	/**
+	 * Converts every bookshelf file in a folder, as a batch. Each file is
+	 * converted into a file of the same name with the bookshelf extension in
+	 * the other folder, and the time it takes is logged. A file that cannot
+	 * be converted is logged and skipped; folders, such as those of segments,
+	 * are skipped as well. The old files are left as they are.
+	 * 
+	 * @param from
+	 *            The folder of the files to convert, JSON or binary of any
+	 *            version.
+	 * @param to
+	 *            The folder to write the new files to. Created if needed.
+	 * @return The number of books converted, by the name of each file that
+	 *         was converted, in the order of the names.
+	 * @throws IOException
+	 *             If the old folder could not be listed, or the new one could
+	 *             not be created.
+	 */
+	public static Map<String, Integer> migrateAll(File from, File to)
+			throws IOException {
+		File[] files = from.listFiles();
+		if (files == null) {
+			throw new IOException("Could not list " + from);
+		}
+		if (!to.isDirectory() && !to.mkdirs()) {
+			throw new IOException("Could not create " + to);
+		}
+		Arrays.sort(files);
+
+		Map<String, Integer> converted = new LinkedHashMap<String, Integer>();
+		for (File f : files) {
+			if (!f.isFile()) {
+				continue;
+			}
+			long start = System.currentTimeMillis();
+			try {
+				int books = migrate(f, new File(to, f.getName()
+						+ BookshelfHandler.SHELF_EXTENSION));
+				converted.put(f.getName(), books);
+				Log.i(TAG, "Converted " + books + " books of " + f.getName()
+						+ " in " + (System.currentTimeMillis() - start)
+						+ " ms");
+			} catch (IOException e) {
+				Log.e(TAG, "Could not convert " + f + ": " + e.getMessage());
+			} catch (RuntimeException e) {
+				// e.g. a file that is not a bookshelf at all
+				Log.e(TAG, "Could not convert " + f + ": " + e);
+			}
+		}
+		return converted;
+	}
+
+	/**
+	 * Stores each book as it is read, and keeps only its index entry.
+	 */
+	private static final class Converter implements BookSink {
+		private final File segments;
+		private final File catalogue;
+		private final Bookshelf index = new Bookshelf();
+
+		private Converter(File segments, File catalogue) {
+			this.segments = segments;
+			this.catalogue = catalogue;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * edu.chalmers.dat255.audiobookplayer.util.BookSink#addBook(edu.chalmers
+		 * .dat255.audiobookplayer.model.Book)
+		 */
+		public void addBook(Book b) throws IOException {
+			BookshelfHandler.storeTracks(b, segments, catalogue);
+
+			// the tracks are in the segment now, and loaded again if needed
+			index.addBook(new Book(b.getTrackSegment(), b
+					.getSelectedBookTitle(), b.getSelectedBookAuthor(), b
+					.getSelectedTrackIndex()));
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * edu.chalmers.dat255.audiobookplayer.util.BookSink#setSelectedBookIndex
+		 * (int)
+		 */
+		public void setSelectedBookIndex(int index) {
+			this.index.setSelectedBookIndex(index);
+		}
+
+		/**
+		 * @return The index entries of the books stored.
+		 */
+		private Bookshelf getIndex() {
+			return index;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+
+/**
+ * Converts bookshelves to and from JSON: the books, then the index of the
+ * selected book, as they were written when found by reflection.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+final class BookshelfTypeAdapter extends TypeAdapter<Bookshelf> {
+	// bookshelf properties
+	private static final String BOOKS = "books";
+	private static final String SELECTED_BOOK_INDEX = "selectedBookIndex";
+
+	private final TypeAdapter<Book> bookAdapter;
+
+	/**
+	 * Creates an adapter that converts the books with the given adapter.
+	 * 
+	 * @param bookAdapter
+	 *            The adapter of the books.
+	 */
+	BookshelfTypeAdapter(TypeAdapter<Book> bookAdapter) {
+		this.bookAdapter = bookAdapter;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.google.gson.TypeAdapter#write(com.google.gson.stream.JsonWriter,
+	 * java.lang.Object)
+	 */
+	@Override
+	public void write(JsonWriter out, Bookshelf bs) throws IOException {
+		if (bs == null) {
+			out.nullValue();
+			return;
+		}
+
+		out.beginObject();
+		out.name(BOOKS).beginArray();
+		for (int i = 0; i < bs.getNumberOfBooks(); i++) {
+			bookAdapter.write(out, bs.getBookAt(i));
+		}
+		out.endArray();
+		out.name(SELECTED_BOOK_INDEX).value(bs.getSelectedBookIndex());
+		out.endObject();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.google.gson.TypeAdapter#read(com.google.gson.stream.JsonReader)
+	 */
+	@Override
+	public Bookshelf read(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+
+		BookSink.Shelf shelf = new BookSink.Shelf();
+		read(in, shelf);
+		return shelf.getBookshelf();
+	}
+
+	/**
+	 * Reads the books of a bookshelf one at a time, handing each on as soon
+	 * as it is read.
+	 * 
+	 * @param in
+	 *            Where to read from, at the bookshelf.
+	 * @param sink
+	 *            Receives the books.
+	 * @throws IOException
+	 *             If the JSON could not be read, or the sink failed.
+	 */
+	void read(JsonReader in, BookSink sink) throws IOException {
+		boolean selected = false;
+		int selectedBookIndex = 0;
+
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (name.equals(BOOKS) && in.peek() != JsonToken.NULL) {
+				in.beginArray();
+				while (in.hasNext()) {
+					Book b = bookAdapter.read(in);
+					if (b != null) {
+						sink.addBook(b);
+					}
+				}
+				in.endArray();
+			} else if (name.equals(SELECTED_BOOK_INDEX)) {
+				selectedBookIndex = in.nextInt();
+				selected = true;
+			} else {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+
+		// the books are all added first, since adding one may select it
+		if (selected) {
+			sink.setSelectedBookIndex(selectedBookIndex);
+		}
+	}
+}
@@ -8,29 +8,105 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 
 import android.content.Context;
 
 /**
- * @author Marcus Parkkinen, Aki Kkel
- * @version 0.1
+ * Reads and writes text files in internal storage. The text is streamed as
+ * UTF-8, so there is no limit on the size of a file.
+ * 
+ * @author Marcus Parkkinen, Aki Käkelä
+ * @version 0.3
  * 
  */
 public final class FileParser {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 8192;
+
+	// the size of the length header that files were written with before
+	private static final int LEGACY_HEADER_SIZE = 2;
 
 	private FileParser() {
 	} // to defeat instantiation
 
+	/**
+	 * Opens a file in internal storage for writing text, replacing what was
+	 * in it. The caller must close the writer.
+	 * 
+	 * @param file
+	 *            The file name to write to.
+	 * @param c
+	 *            Context.
+	 * @return A buffered writer to the file.
+	 */
+	public static Writer openWriter(String file, Context c)
+			throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(c.openFileOutput(
+				file, Context.MODE_PRIVATE), UTF_8), BUFFER_SIZE);
+	}
+
+	/**
+	 * Opens a file in internal storage for reading text. Files written in the
+	 * old format (one length-prefixed string, at most 64 KB) are read as well.
+	 * The caller must close the reader.
+	 * 
+	 * @param file
+	 *            The file name to read from.
+	 * @param c
+	 *            Context.
+	 * @return A buffered reader of the file.
+	 */
+	public static Reader openReader(String file, Context c) throws IOException {
+		return openReader(c.getFileStreamPath(file));
+	}
+
+	/**
+	 * Opens a file for reading text, as {@link #openReader(String, Context)}
+	 * does for a file in internal storage.
+	 * 
+	 * @param file
+	 *            The file to read from.
+	 * @return A buffered reader of the file.
+	 */
+	public static Reader openReader(File file) throws IOException {
+		long length = file.length();
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(
+				file), BUFFER_SIZE);
+		try {
+			if (isLegacy(in, length)) {
+				// small enough to be read at once
+				DataInputStream data = new DataInputStream(in);
+				String content = data.readUTF();
+				data.close();
+				return new StringReader(content);
+			}
+			return new BufferedReader(new InputStreamReader(in, UTF_8),
+					BUFFER_SIZE);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
 	/**
 	 * Writes to internal storage given a file name.
 	 * 
@@ -43,13 +119,12 @@ public final class FileParser {
 	 */
 	public static void writeToInternalStorage(String file, Context c,
 			String content) throws IOException {
-
-		FileOutputStream outputStream = c.openFileOutput(file,
-				Context.MODE_PRIVATE);
-		DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-
-		dataOutputStream.writeUTF(content);
-		dataOutputStream.close();
+		Writer out = openWriter(file, c);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
 	}
 
 	/**
@@ -63,13 +138,41 @@ public final class FileParser {
 	 */
 	public static String readFromInternalStorage(String file, Context c)
 			throws IOException {
-		FileInputStream inputStream = c.openFileInput(file);
-		DataInputStream dataInputStream = new DataInputStream(inputStream);
+		Reader in = openReader(file, c);
+		try {
+			StringWriter result = new StringWriter();
+			char[] buffer = new char[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				result.write(buffer, 0, n);
+			}
 
-		String result = dataInputStream.readUTF();
-		dataInputStream.close();
+			// return the JSON String representation of the object.
+			return result.toString();
+		} finally {
+			in.close();
+		}
+	}
 
-		// return the JSON String representation of the object.
-		return result;
+	/**
+	 * Checks whether a file starts with the length header of the old format,
+	 * which is the case if the header holds the length of the rest of the
+	 * file. The stream is left at the start of the file.
+	 * 
+	 * @param in
+	 *            The file.
+	 * @param length
+	 *            The length of the file.
+	 * @return True if the file is in the old format.
+	 */
+	private static boolean isLegacy(BufferedInputStream in, long length)
+			throws IOException {
+		if (length < LEGACY_HEADER_SIZE) {
+			return false;
+		}
+		in.mark(LEGACY_HEADER_SIZE);
+		int header = (in.read() << 8) | in.read();
+		in.reset();
+		return header == length - LEGACY_HEADER_SIZE;
 	}
 }
@@ -8,29 +8,66 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.util;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import edu.chalmers.dat255.audiobookplayer.model.Book;
+import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.Tag;
+import edu.chalmers.dat255.audiobookplayer.model.Track;
 
 /**
- * @author Marcus Parkkinen
- * @version 0.1
+ * Converts the model to and from JSON.
+ * 
+ * @author Marcus Parkkinen, Aki Käkelä
+ * @version 0.2
  * 
  */
 public final class JsonParser {
+	/*
+	 * Gson instances are thread safe, so one is shared instead of creating a
+	 * new one (and its type adapters) for every call. Every model class has
+	 * an adapter of its own, so no fields are looked up by reflection.
+	 */
+	private static final BookTypeAdapter BOOK_ADAPTER = new BookTypeAdapter();
+	private static final BookshelfTypeAdapter BOOKSHELF_ADAPTER = new BookshelfTypeAdapter(
+			BOOK_ADAPTER);
+	private static final Gson GSON = createGson();
+
 	private JsonParser() {
 	} // to defeat instantiation
 
+	/**
+	 * @return A Gson instance with the type adapters of the model classes.
+	 */
+	private static Gson createGson() {
+		return new GsonBuilder()
+				.registerTypeAdapter(Bookshelf.class, BOOKSHELF_ADAPTER)
+				.registerTypeAdapter(Book.class, BOOK_ADAPTER)
+				.registerTypeAdapter(Track.class, new TrackTypeAdapter())
+				.registerTypeAdapter(Tag.class, new TagTypeAdapter()).create();
+	}
+
 	/**
 	 * @param jsonString
 	 * @param type
 	 * @return
 	 */
 	public static <T> T fromJSON(String jsonString, Class<T> type) {
-		return (new Gson()).fromJson(jsonString, type);
+		return GSON.fromJson(jsonString, type);
 	}
 
 	/**
@@ -38,6 +75,69 @@ public final class JsonParser {
 	 * @return
 	 */
 	public static String toJSON(Object obj) {
-		return (new Gson()).toJson(obj);
+		return GSON.toJson(obj);
+	}
+
+	/**
+	 * Reads an object from a stream of JSON, without holding all of the text
+	 * in memory.
+	 * 
+	 * @param in
+	 *            The JSON to read. Not closed.
+	 * @param type
+	 *            The type of the object.
+	 * @return The object, or null if the stream is empty.
+	 * @throws JsonIOException
+	 *             If the stream could not be read.
+	 * @throws JsonSyntaxException
+	 *             If the JSON is malformed.
+	 */
+	public static <T> T fromJSON(Reader in, Class<T> type) {
+		return GSON.fromJson(new JsonReader(in), type);
+	}
+
+	/**
+	 * Reads the books of a bookshelf from a stream of JSON, handing each on
+	 * as soon as it is read, so that only one book is held at a time.
+	 * 
+	 * @param in
+	 *            The JSON to read. Not closed.
+	 * @param sink
+	 *            Receives the books.
+	 * @throws IOException
+	 *             If the stream could not be read, the JSON is malformed, or
+	 *             the sink failed.
+	 */
+	static void readBooks(Reader in, BookSink sink) throws IOException {
+		JsonReader reader = new JsonReader(in);
+		reader.setLenient(true);
+		try {
+			BOOKSHELF_ADAPTER.read(reader, sink);
+		} catch (RuntimeException e) {
+			// e.g. a value of the wrong type where a book was expected
+			throw new IOException("Malformed bookshelf JSON: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes an object as JSON to a stream, without building all of the text
+	 * in memory first.
+	 * 
+	 * @param obj
+	 *            The object to write.
+	 * @param out
+	 *            Where to write the JSON. Flushed but not closed.
+	 * @throws JsonIOException
+	 *             If the stream could not be written.
+	 */
+	public static void toJSON(Object obj, Writer out) {
+		JsonWriter writer = new JsonWriter(out);
+		GSON.toJson(obj, obj.getClass(), writer);
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			throw new JsonIOException(e);
+		}
 	}
 }
@@ -0,0 +1,327 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+
+/**
+ * Keeps the metadata of audio files on the disk, so that a file imported
+ * again is not opened to read it. An entry is found by the canonical path of
+ * the file, and is only used if the file still has the size and modification
+ * time it had when it was read; otherwise the file has changed and is read
+ * again.
+ * <p>
+ * The cache holds a bounded number of entries, and the one used least
+ * recently is evicted to make room for a new one. It is read from its file
+ * the first time it is used, and written with {@link #save()} after changes
+ * (see SafeFile). A cache file that cannot be read is ignored.
+ * <p>
+ * All methods are thread safe.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+public final class MetadataCache {
+	private static final String TAG = "MetadataCache";
+
+	// the first bytes of the file, and the version of its format
+	private static final int MAGIC = 0x41424d43; // "ABMC"
+	private static final int VERSION = 3;
+	private static final int BUFFER_SIZE = 8192;
+
+	// the map as a LinkedHashMap is by default, but in order of use
+	private static final int INITIAL_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	/**
+	 * An entry: the metadata, and the file it was read from as it was then.
+	 */
+	private static final class CacheEntry {
+		private final long size;
+		private final long lastModified;
+		private final TrackMetadata metadata;
+
+		private CacheEntry(long size, long lastModified,
+				TrackMetadata metadata) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.metadata = metadata;
+		}
+	}
+
+	private final SafeFile file;
+	private final int maxEntries;
+
+	// by canonical path, in order of use, the one used least recently first
+	private final Map<String, CacheEntry> entries;
+	private boolean loaded;
+	private boolean changed;
+
+	// metrics
+	private int hits;
+	private int misses;
+
+	/**
+	 * Creates a cache of at most {@link Constants.Value#METADATA_CACHE_SIZE}
+	 * entries.
+	 * 
+	 * @param file
+	 *            The file the cache is kept in.
+	 */
+	public MetadataCache(File file) {
+		this(file, Constants.Value.METADATA_CACHE_SIZE);
+	}
+
+	/**
+	 * Creates a cache.
+	 * 
+	 * @param file
+	 *            The file the cache is kept in.
+	 * @param maxEntries
+	 *            The most entries to keep.
+	 */
+	public MetadataCache(File file, final int maxEntries) {
+		if (file == null || maxEntries < 1) {
+			throw new IllegalArgumentException(TAG
+					+ " file may not be null, and maxEntries must be positive");
+		}
+		this.file = new SafeFile(file);
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, CacheEntry>(INITIAL_CAPACITY,
+				LOAD_FACTOR, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CacheEntry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Looks up the metadata of a file.
+	 * 
+	 * @param f
+	 *            The file.
+	 * @return The metadata, or null if the file is not in the cache or has
+	 *         changed since.
+	 */
+	public synchronized TrackMetadata get(File f) {
+		load();
+		String key = getKey(f);
+		CacheEntry e = entries.get(key);
+		if (e != null && e.size == f.length()
+				&& e.lastModified == f.lastModified()) {
+			hits++;
+			return e.metadata;
+		}
+
+		// read again once the file has changed
+		if (e != null) {
+			entries.remove(key);
+			changed = true;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Adds the metadata of a file, as the file is now.
+	 * 
+	 * @param f
+	 *            The file.
+	 * @param metadata
+	 *            Its metadata.
+	 */
+	public synchronized void put(File f, TrackMetadata metadata) {
+		if (metadata == null) {
+			throw new IllegalArgumentException(TAG
+					+ " metadata may not be null");
+		}
+		load();
+		entries.put(getKey(f), new CacheEntry(f.length(), f.lastModified(),
+				metadata));
+		changed = true;
+	}
+
+	/**
+	 * @return The number of entries.
+	 */
+	public synchronized int size() {
+		load();
+		return entries.size();
+	}
+
+	/**
+	 * @return The most entries kept.
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @return The number of lookups that found the metadata.
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of lookups that did not.
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Writes the cache to its file, if it has changed since it was read or
+	 * last written.
+	 * 
+	 * @return True if the file holds the cache.
+	 */
+	public synchronized boolean save() {
+		if (!changed) {
+			return true;
+		}
+		try {
+			FileOutputStream out = file.startWrite();
+			try {
+				write(new DataOutputStream(new BufferedOutputStream(out,
+						BUFFER_SIZE)));
+				file.finishWrite(out);
+			} catch (IOException e) {
+				file.failWrite(out);
+				throw e;
+			}
+			changed = false;
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Could not save the metadata cache: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the entries, the one used least recently first, so that they
+	 * are read back in the same order of use.
+	 */
+	private void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(entries.size());
+		for (Map.Entry<String, CacheEntry> e : entries.entrySet()) {
+			CacheEntry entry = e.getValue();
+			TrackMetadata m = entry.metadata;
+			out.writeUTF(e.getKey());
+			out.writeLong(entry.size);
+			out.writeLong(entry.lastModified);
+			out.writeInt(m.getDuration());
+			out.writeBoolean(m.isDurationExact());
+			writeString(out, m.getTitle());
+			writeString(out, m.getAlbum());
+			writeString(out, m.getArtist());
+			out.writeInt(m.getTrackNumber());
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads the cache from its file the first time it is needed. The newest
+	 * version that can be read is used.
+	 */
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		for (File f : file.getCandidates()) {
+			try {
+				read(f);
+				return;
+			} catch (IOException e) {
+				entries.clear();
+				Log.e(TAG, "Could not load the metadata cache from " + f + ": "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Reads the entries from a file, where an entry used later replaces
+	 * (and evicts) one used earlier as needed.
+	 */
+	private void read(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(f), BUFFER_SIZE));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a metadata cache of this version");
+			}
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				String key = in.readUTF();
+				long size = in.readLong();
+				long lastModified = in.readLong();
+				int duration = in.readInt();
+				boolean exact = in.readBoolean();
+				String title = readString(in);
+				String album = readString(in);
+				String artist = readString(in);
+				TrackMetadata m = new TrackMetadata(duration, exact, title,
+						album, artist, in.readInt());
+				entries.put(key, new CacheEntry(size, lastModified, m));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return The canonical path of the file, or its absolute path if it has
+	 *         none.
+	 */
+	private static String getKey(File f) {
+		try {
+			return f.getCanonicalPath();
+		} catch (IOException e) {
+			return f.getAbsolutePath();
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		out.writeUTF(s == null ? "" : s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		// empty means none (see TrackMetadata)
+		String s = in.readUTF();
+		return s.length() == 0 ? null : s;
+	}
+}
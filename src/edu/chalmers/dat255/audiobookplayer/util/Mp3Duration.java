@@ -0,0 +1,365 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Finds the duration of the MPEG audio (MP3) between two positions of a
+ * file, without decoding it.
+ * <p>
+ * {@link #estimate(FileChannel, long, long)} reads only a few frames: the
+ * number of frames in a Xing, Info or VBRI header gives the exact duration;
+ * otherwise frames are sampled at several positions, and the duration is
+ * worked out from their bitrate, which is exact enough for a constant
+ * bitrate but an estimate for a variable one.
+ * {@link #scan(FileChannel, long, long)} counts every frame, and is exact.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+final class Mp3Duration {
+	private static final int BYTE_MASK = 0xff;
+	private static final int MS_PER_SECOND = 1000;
+	private static final int BITS_PER_BYTE = 8;
+
+	private static final int HEADER_SIZE = 4;
+	// how much is read for the first frame, which is usually at the start,
+	// and how far into the audio it is looked for if not
+	private static final int FIRST_READ = 8 * 1024;
+	private static final int SYNC_WINDOW = 64 * 1024;
+	// the most a frame can be (layer II at 384 kbps, 8 kHz, is shorter)
+	private static final int MAX_FRAME_SIZE = 2881;
+	// the positions (in tenths of the audio) frames are sampled at
+	private static final int[] SAMPLE_POSITIONS = { 1, 3, 5, 7, 9 };
+	private static final int TENTHS = 10;
+	private static final int FRAMES_PER_SAMPLE = 8;
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+	// the MPEG versions, as in the header
+	private static final int MPEG_25 = 0;
+	private static final int MPEG_1 = 3;
+	// the layers, as in the header
+	private static final int LAYER_3 = 1;
+	private static final int LAYER_1 = 3;
+	private static final int MONO = 3;
+
+	private static final int XING_FRAMES = 0x01;
+	private static final int VBRI_OFFSET = 36;
+	private static final int VBRI_FRAMES = 14;
+
+	// kbps, by [MPEG 1 or 2][layer 1 to 3][index]
+	private static final int[][][] BITRATES = {
+			{
+					{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352,
+							384, 416, 448 },
+					{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256,
+							320, 384 },
+					{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224,
+							256, 320 } },
+			{
+					{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192,
+							224, 256 },
+					{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144,
+							160 },
+					{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144,
+							160 } } };
+	// Hz, by [MPEG 1, 2 or 2.5][index]
+	private static final int[][] SAMPLE_RATES = { { 44100, 48000, 32000 },
+			{ 22050, 24000, 16000 }, { 11025, 12000, 8000 } };
+
+	private final long duration;
+	private final boolean exact;
+
+	private Mp3Duration(long duration, boolean exact) {
+		this.duration = duration;
+		this.exact = exact;
+	}
+
+	/**
+	 * @return The duration (ms).
+	 */
+	long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return True if the duration was counted from the frames rather than
+	 *         estimated.
+	 */
+	boolean isExact() {
+		return exact;
+	}
+
+	/**
+	 * Finds the duration from a few frames.
+	 * 
+	 * @param ch
+	 *            The file.
+	 * @param start
+	 *            Where the audio starts (after any ID3v2 tag).
+	 * @param end
+	 *            Where the audio ends (before any ID3v1 tag).
+	 * @return The duration, or null if no frames were found.
+	 * @throws IOException
+	 */
+	static Mp3Duration estimate(FileChannel ch, long start, long end)
+			throws IOException {
+		ByteBuffer b = TagReader.readAt(ch, start,
+				(int) Math.min(FIRST_READ, end - start));
+		int offset = findFrame(b, 0);
+		if (offset < 0 && b.limit() == FIRST_READ) {
+			b = TagReader.readAt(ch, start,
+					(int) Math.min(SYNC_WINDOW + MAX_FRAME_SIZE, end - start));
+			offset = findFrame(b, 0);
+		}
+		if (offset < 0) {
+			return null;
+		}
+		Frame first = new Frame(b.getInt(offset));
+
+		// a header of the encoder, in place of the audio of the first frame
+		long frames = readFrameCount(b, offset, first);
+		if (frames >= 0) {
+			return new Mp3Duration(first.toMillis(frames), true);
+		}
+
+		// sample the bitrate across the file; as the positions are spread
+		// by bytes, the samples per byte found at each are averaged
+		long audioStart = start + offset;
+		long audioSize = end - audioStart;
+		double samplesPerByte = 0;
+		int sampled = 0;
+		boolean constant = true;
+		for (int position : SAMPLE_POSITIONS) {
+			long at = audioStart + audioSize * position / TENTHS;
+			ByteBuffer window = TagReader.readAt(ch, at,
+					(int) Math.min((FRAMES_PER_SAMPLE + 1) * MAX_FRAME_SIZE,
+							end - at));
+			int pos = findFrame(window, 0);
+			long bytes = 0;
+			long samples = 0;
+			for (int i = 0; pos >= 0 && i < FRAMES_PER_SAMPLE; i++) {
+				if (pos + HEADER_SIZE > window.limit()) {
+					break;
+				}
+				Frame f = new Frame(window.getInt(pos));
+				if (!f.isValid() || f.sampleRate != first.sampleRate) {
+					break;
+				}
+				constant &= f.bitrate == first.bitrate;
+				bytes += f.size;
+				samples += f.samples;
+				pos += f.size;
+			}
+			if (bytes > 0) {
+				samplesPerByte += (double) samples / bytes;
+				sampled++;
+			}
+		}
+
+		if (constant || sampled == 0) {
+			// as many frames of the same size as fit
+			return new Mp3Duration(audioSize * BITS_PER_BYTE * MS_PER_SECOND
+					/ first.bitrate, false);
+		}
+		return new Mp3Duration((long) (audioSize * samplesPerByte / sampled
+				* MS_PER_SECOND / first.sampleRate), false);
+	}
+
+	/**
+	 * Counts the frames of the audio.
+	 * 
+	 * @param ch
+	 *            The file.
+	 * @param start
+	 *            Where the audio starts (after any ID3v2 tag).
+	 * @param end
+	 *            Where the audio ends (before any ID3v1 tag).
+	 * @return The duration, or null if no frames were found.
+	 * @throws IOException
+	 */
+	static Mp3Duration scan(FileChannel ch, long start, long end)
+			throws IOException {
+		long samples = 0;
+		int sampleRate = 0;
+		boolean first = true;
+		long pos = start;
+		while (pos + HEADER_SIZE <= end) {
+			ByteBuffer b = TagReader.readAt(ch, pos,
+					(int) Math.min(SCAN_BUFFER_SIZE, end - pos));
+			int offset = findFrame(b, 0);
+			if (offset < 0) {
+				if (pos + b.limit() >= end) {
+					break;
+				}
+				// nothing in this buffer; go on past all but its last bytes
+				pos += Math.max(1, b.limit() - MAX_FRAME_SIZE - HEADER_SIZE);
+				continue;
+			}
+
+			// the frames in the buffer, from one to the next
+			while (offset + HEADER_SIZE <= b.limit()) {
+				Frame f = new Frame(b.getInt(offset));
+				if (!f.isValid() || (sampleRate != 0
+						&& f.sampleRate != sampleRate)) {
+					break;
+				}
+				if (pos + offset + f.size > end) {
+					// cut short
+					break;
+				}
+				if (first) {
+					first = false;
+					sampleRate = f.sampleRate;
+					if (readFrameCount(b, offset, f) >= 0) {
+						// the header of the encoder holds no audio
+						offset += f.size;
+						continue;
+					}
+				}
+				samples += f.samples;
+				offset += f.size;
+			}
+			pos += Math.max(1, offset);
+		}
+		if (sampleRate == 0) {
+			return null;
+		}
+		return new Mp3Duration(samples * MS_PER_SECOND / sampleRate, true);
+	}
+
+	/**
+	 * Reads the number of frames from a Xing, Info or VBRI header in a frame.
+	 * 
+	 * @return The number of frames, or -1 if the frame holds none.
+	 */
+	private static long readFrameCount(ByteBuffer b, int offset, Frame f) {
+		int xing = offset + HEADER_SIZE + f.getSideInfoSize();
+		if ((TagReader.matches(b, xing, "Xing") || TagReader.matches(b,
+				xing, "Info")) && xing + 12 <= b.limit()) {
+			int flags = b.getInt(xing + 4);
+			if ((flags & XING_FRAMES) != 0) {
+				return b.getInt(xing + 8) & 0xffffffffL;
+			}
+		}
+		int vbri = offset + VBRI_OFFSET;
+		if (TagReader.matches(b, vbri, "VBRI")
+				&& vbri + VBRI_FRAMES + 4 <= b.limit()) {
+			return b.getInt(vbri + VBRI_FRAMES) & 0xffffffffL;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the first frame from an offset: a valid header, followed by
+	 * another one where the frame ends (unless the bytes end first), so that
+	 * bytes in the audio that look like a header are not taken for one.
+	 * 
+	 * @return The offset of the frame, or -1 if none is found.
+	 */
+	private static int findFrame(ByteBuffer b, int from) {
+		for (int i = from; i + HEADER_SIZE <= b.limit(); i++) {
+			if ((b.get(i) & BYTE_MASK) != BYTE_MASK) {
+				continue;
+			}
+			Frame f = new Frame(b.getInt(i));
+			if (!f.isValid()) {
+				continue;
+			}
+			int next = i + f.size;
+			if (next + HEADER_SIZE > b.limit()) {
+				return i;
+			}
+			Frame g = new Frame(b.getInt(next));
+			if (g.isValid() && g.sampleRate == f.sampleRate) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The header of a frame.
+	 */
+	private static final class Frame {
+		private int version;
+		private int layer;
+		private int bitrate; // bps
+		private int sampleRate;
+		private int samples;
+		private int size;
+		private boolean mono;
+
+		private Frame(int header) {
+			if ((header >>> 21) != 0x7ff) {
+				return;
+			}
+			version = (header >>> 19) & 3;
+			layer = (header >>> 17) & 3;
+			int bitrateIndex = (header >>> 12) & 0xf;
+			int rateIndex = (header >>> 10) & 3;
+			int padding = (header >>> 9) & 1;
+			mono = ((header >>> 6) & 3) == MONO;
+			if (version == 1 || layer == 0 || bitrateIndex == 0
+					|| bitrateIndex == 0xf || rateIndex == 3) {
+				// reserved, or free format
+				return;
+			}
+
+			int v = version == MPEG_1 ? 0 : 1;
+			int l = LAYER_1 - layer;
+			bitrate = BITRATES[v][l][bitrateIndex] * MS_PER_SECOND;
+			sampleRate = SAMPLE_RATES[version == MPEG_1 ? 0
+					: version == MPEG_25 ? 2 : 1][rateIndex];
+			if (layer == LAYER_1) {
+				samples = 384;
+				size = (12 * bitrate / sampleRate + padding) * 4;
+			} else {
+				samples = layer == LAYER_3 && version != MPEG_1 ? 576 : 1152;
+				size = samples / BITS_PER_BYTE * bitrate / sampleRate
+						+ padding;
+			}
+		}
+
+		/**
+		 * @return True if the header is one of a frame with audio.
+		 */
+		private boolean isValid() {
+			return size > HEADER_SIZE;
+		}
+
+		/**
+		 * @return The size of the side information after the header, where a
+		 *         Xing header is put.
+		 */
+		private int getSideInfoSize() {
+			if (version == MPEG_1) {
+				return mono ? 17 : 32;
+			}
+			return mono ? 9 : 17;
+		}
+
+		/**
+		 * @return The duration of the given number of frames like this one.
+		 */
+		private long toMillis(long frames) {
+			return frames * samples * MS_PER_SECOND / sampleRate;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.media.MediaMetadataRetriever;
+
+/**
+ * A bounded pool of MediaMetadataRetrievers, each of which holds native
+ * resources of the media framework until it is released.
+ * <p>
+ * A retriever is taken with {@link #acquire()} and given back with
+ * {@link #release(MediaMetadataRetriever)} in a finally block, or with
+ * {@link #discard(MediaMetadataRetriever)} if it failed. A thread is given
+ * back the retriever it used last, if it is idle. At most the given number
+ * of retrievers exist at once; beyond that, threads wait for one to be given
+ * back. Retrievers left idle for the timeout are released on a timer thread,
+ * which itself ends when there are none left.
+ * <p>
+ * All methods are thread safe.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+public final class RetrieverPool {
+	private static final String TAG = "RetrieverPool";
+
+	private final int maxSize;
+	private final long idleTimeout;
+
+	// the idle retrievers, the one given back last at the end
+	private final List<Slot> idle = new ArrayList<Slot>();
+	// the number of retrievers that exist, idle or in use
+	private int size;
+	// the timer, created when first needed, and its next teardown
+	private ScheduledThreadPoolExecutor timer;
+	private ScheduledFuture<?> teardown;
+
+	// metrics
+	private int created;
+	private int released;
+
+	private final Runnable releaseExpired = new Runnable() {
+		public void run() {
+			synchronized (RetrieverPool.this) {
+				// this teardown is over, so another may be scheduled
+				teardown = null;
+			}
+			releaseIdle(System.currentTimeMillis() - idleTimeout);
+		}
+	};
+
+	/**
+	 * @param maxSize
+	 *            The most retrievers that may exist at once.
+	 * @param idleTimeout
+	 *            How long (ms) a retriever may be idle before it is released.
+	 */
+	public RetrieverPool(int maxSize, long idleTimeout) {
+		if (maxSize <= 0 || idleTimeout <= 0) {
+			throw new IllegalArgumentException(TAG
+					+ " size and timeout must be positive");
+		}
+		this.maxSize = maxSize;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Takes a retriever: the one this thread used last if it is idle, else
+	 * any idle one, else a new one; if the pool is full, waits for one to be
+	 * given back.
+	 * 
+	 * @return The retriever, which must be given back.
+	 * @throws IllegalStateException
+	 *             If interrupted while waiting.
+	 */
+	public synchronized MediaMetadataRetriever acquire() {
+		Thread current = Thread.currentThread();
+		while (idle.isEmpty() && size >= maxSize) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				current.interrupt();
+				throw new IllegalStateException(TAG
+						+ " interrupted while waiting for a retriever");
+			}
+		}
+		for (int i = idle.size() - 1; i >= 0; i--) {
+			if (idle.get(i).owner == current) {
+				return idle.remove(i).retriever;
+			}
+		}
+		if (!idle.isEmpty()) {
+			return idle.remove(idle.size() - 1).retriever;
+		}
+		size++;
+		created++;
+		return new MediaMetadataRetriever();
+	}
+
+	/**
+	 * Gives a retriever back to the pool, to be reused.
+	 * 
+	 * @param retriever
+	 *            A retriever from {@link #acquire()}.
+	 */
+	public synchronized void release(MediaMetadataRetriever retriever) {
+		idle.add(new Slot(retriever, Thread.currentThread(),
+				System.currentTimeMillis()));
+		scheduleTeardown(idleTimeout);
+		notify();
+	}
+
+	/**
+	 * Releases a retriever that failed, rather than giving it back, and
+	 * makes room for a new one.
+	 * 
+	 * @param retriever
+	 *            A retriever from {@link #acquire()}.
+	 */
+	public void discard(MediaMetadataRetriever retriever) {
+		try {
+			retriever.release();
+		} finally {
+			synchronized (this) {
+				size--;
+				released++;
+				notify();
+			}
+		}
+	}
+
+	/**
+	 * Releases all idle retrievers now, as when the memory is low.
+	 */
+	public void releaseIdle() {
+		releaseIdle(Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return The number of retrievers that exist, idle or in use.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of idle retrievers.
+	 */
+	public synchronized int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * @return The number of retrievers created so far.
+	 */
+	public synchronized int getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return The number of retrievers released so far.
+	 */
+	public synchronized int getReleased() {
+		return released;
+	}
+
+	/**
+	 * Releases the retrievers idle since before a time, and schedules the
+	 * next teardown if any remain. The native resources are released outside
+	 * the lock.
+	 * 
+	 * @param before
+	 *            The time (ms).
+	 */
+	private void releaseIdle(long before) {
+		List<Slot> expired = new ArrayList<Slot>();
+		synchronized (this) {
+			// the idle list is in order of when the retrievers were given back
+			while (!idle.isEmpty() && idle.get(0).since <= before) {
+				expired.add(idle.remove(0));
+			}
+			size -= expired.size();
+			released += expired.size();
+			if (!idle.isEmpty()) {
+				scheduleTeardown(idle.get(0).since + idleTimeout
+						- System.currentTimeMillis());
+			}
+			notifyAll();
+		}
+		for (Slot s : expired) {
+			s.retriever.release();
+		}
+	}
+
+	/**
+	 * Schedules a teardown after a delay, unless one is already scheduled.
+	 */
+	private synchronized void scheduleTeardown(long delay) {
+		if (teardown != null) {
+			return;
+		}
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, TAG);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// the thread ends when nothing has been scheduled for a while
+			timer.setKeepAliveTime(idleTimeout, TimeUnit.MILLISECONDS);
+			timer.allowCoreThreadTimeOut(true);
+		}
+		teardown = timer.schedule(releaseExpired, Math.max(0, delay),
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * An idle retriever, with the thread that used it last and when it was
+	 * given back.
+	 */
+	private static final class Slot {
+		private final MediaMetadataRetriever retriever;
+		private final Thread owner;
+		private final long since;
+
+		private Slot(MediaMetadataRetriever retriever, Thread owner,
+				long since) {
+			this.retriever = retriever;
+			this.owner = owner;
+			this.since = since;
+		}
+	}
+}
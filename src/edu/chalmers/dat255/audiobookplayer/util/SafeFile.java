@@ -0,0 +1,200 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * A file that is never left half written. A new version is written to a
+ * temporary file and synced to the disk, and only then renamed over the file
+ * (a rename replaces a file at once). The version it replaces is kept as a
+ * backup.
+ * <p>
+ * If the application is killed while writing, the file is left as it was.
+ * Should the file still be unreadable, {@link #getCandidates()} gives the
+ * files to try instead, newest first.
+ * <p>
+ * Every file that saving writes, safe or not, is opened by
+ * {@link #open(File)}, so that tests can kill a save at any byte.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+final class SafeFile {
+	private static final String TAG = "SafeFile.java";
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final String BACKUP_EXTENSION = ".bak";
+
+	/**
+	 * Opens files for writing in place of {@link FileOutputStream}.
+	 * 
+	 * @author Aki Käkelä
+	 * @version 0.1
+	 * 
+	 */
+	interface Opener {
+		/**
+		 * @param f
+		 *            The file to write, replacing it.
+		 * @return The stream to write to.
+		 * @throws IOException
+		 */
+		FileOutputStream open(File f) throws IOException;
+	}
+
+	// opens the files that are written, or null to open them directly
+	private static volatile Opener opener;
+
+	private final File base;
+	private final File temp;
+	private final File backup;
+
+	/**
+	 * @param base
+	 *            The file to write safely.
+	 */
+	SafeFile(File base) {
+		this.base = base;
+		this.temp = new File(base.getPath() + TEMP_EXTENSION);
+		this.backup = new File(base.getPath() + BACKUP_EXTENSION);
+	}
+
+	/**
+	 * @return The file itself.
+	 */
+	File getBaseFile() {
+		return base;
+	}
+
+	/**
+	 * @return The file a new version is written to before it replaces the
+	 *         file.
+	 */
+	File getTempFile() {
+		return temp;
+	}
+
+	/**
+	 * @return The file holding the version before the current one.
+	 */
+	File getBackupFile() {
+		return backup;
+	}
+
+	/**
+	 * Returns the files that may hold a version of the file, in the order
+	 * they should be tried: the file, a new version that was written but not
+	 * yet renamed (it may be cut short, so it must be checked), and the
+	 * backup.
+	 * 
+	 * @return The files that exist.
+	 */
+	File[] getCandidates() {
+		File[] all = { base, temp, backup };
+		int n = 0;
+		for (File f : all) {
+			if (f.exists()) {
+				all[n++] = f;
+			}
+		}
+		File[] result = new File[n];
+		System.arraycopy(all, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * Starts writing a new version of the file.
+	 * 
+	 * @return The stream to write to. Must be given to
+	 *         {@link #finishWrite(FileOutputStream)} or
+	 *         {@link #failWrite(FileOutputStream)}.
+	 * @throws IOException
+	 */
+	FileOutputStream startWrite() throws IOException {
+		return open(temp);
+	}
+
+	/**
+	 * Makes the new version the file, once it is on the disk. The current
+	 * version becomes the backup, replacing the one before it.
+	 * 
+	 * @param out
+	 *            The stream from {@link #startWrite()}.
+	 * @throws IOException
+	 *             If the new version could not be written. The file is then
+	 *             left as it was.
+	 */
+	void finishWrite(FileOutputStream out) throws IOException {
+		try {
+			out.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (base.exists()) {
+			backup.delete();
+			if (!base.renameTo(backup)) {
+				throw new IOException(TAG + " could not back up " + base);
+			}
+		}
+		if (!temp.renameTo(base)) {
+			throw new IOException(TAG + " could not replace " + base);
+		}
+	}
+
+	/**
+	 * Opens a file for writing, replacing it.
+	 * 
+	 * @param f
+	 *            The file.
+	 * @return The stream to write to.
+	 * @throws IOException
+	 */
+	static FileOutputStream open(File f) throws IOException {
+		Opener o = opener;
+		return o == null ? new FileOutputStream(f) : o.open(f);
+	}
+
+	/**
+	 * Sets what opens the files that are written. Used for testing.
+	 * 
+	 * @param o
+	 *            The opener, or null to open the files directly.
+	 */
+	static void setOpener(Opener o) {
+		opener = o;
+	}
+
+	/**
+	 * Gives up writing a new version. The file is left as it was.
+	 * 
+	 * @param out
+	 *            The stream from {@link #startWrite()}.
+	 */
+	void failWrite(FileOutputStream out) {
+		try {
+			out.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not close " + temp + ": " + e.getMessage());
+		}
+		temp.delete();
+	}
+}
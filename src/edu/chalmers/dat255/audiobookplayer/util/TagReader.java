@@ -0,0 +1,939 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the metadata of audio files in Java, without opening the media. Only
+ * the regions of a file that hold tags are read, through a FileChannel:
+ * <ul>
+ * <li>MP3: ID3v2 (2.2 to 2.4) frames at the start, and an ID3v1 tag at the
+ * end for what the ID3v2 tag lacks. The duration is found from the frames
+ * of the audio (see {@link Mp3Duration}), or else from the TLEN frame.</li>
+ * <li>MP4 (M4A, M4B): the moov/mvhd atom for the duration, and the iTunes
+ * atoms in moov/udta/meta/ilst.</li>
+ * <li>Ogg Vorbis and Opus: the comment header, and the last page for the
+ * duration.</li>
+ * <li>FLAC: the STREAMINFO and VORBIS_COMMENT blocks.</li>
+ * </ul>
+ * Large items, such as cover art, are skipped without being read.
+ * <p>
+ * The duration of an MP3 may be an estimate (see
+ * {@link TrackMetadata#isDurationExact()}); the other formats give it
+ * exactly.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+public final class TagReader {
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset UTF_16 = Charset.forName("UTF-16");
+	private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+	private static final int BYTE_MASK = 0xff;
+	private static final long INT_MASK = 0xffffffffL;
+	private static final int MS_PER_SECOND = 1000;
+
+	// text items larger than this are not text worth reading (e.g. images)
+	private static final int MAX_ITEM_SIZE = 64 * 1024;
+	// the most of a comment header that is read
+	private static final int MAX_COMMENTS_SIZE = 256 * 1024;
+
+	// ID3
+	private static final int ID3V2_HEADER_SIZE = 10;
+	private static final int ID3V2_FOOTER_SIZE = 10;
+	private static final int ID3V2_FLAG_UNSYNC = 0x80;
+	private static final int ID3V2_FLAG_EXTENDED = 0x40;
+	private static final int ID3V2_FLAG_FOOTER = 0x10;
+	// frames that are compressed or encrypted are not read
+	private static final int ID3V23_FRAME_UNREADABLE = 0xc0;
+	private static final int ID3V23_FRAME_GROUPED = 0x20;
+	private static final int ID3V24_FRAME_GROUPED = 0x40;
+	private static final int ID3V24_FRAME_UNREADABLE = 0x0c;
+	private static final int ID3V24_FRAME_UNSYNC = 0x02;
+	private static final int ID3V24_FRAME_LENGTH = 0x01;
+	private static final int ID3V1_SIZE = 128;
+	private static final int ID3V1_FIELD_SIZE = 30;
+	private static final int ID3V1_TITLE = 3;
+	private static final int ID3V1_ARTIST = 33;
+	private static final int ID3V1_ALBUM = 63;
+	private static final int ID3V1_ZERO = 125;
+	private static final int ID3V1_TRACK = 126;
+	private static final int MPEG_SYNC = 0xe0;
+
+	// MP4
+	private static final int ATOM_HEADER_SIZE = 8;
+	private static final int LARGE_ATOM_HEADER_SIZE = 16;
+	private static final int MVHD_SIZE = 32;
+	private static final int DATA_HEADER_SIZE = 16;
+	private static final String COPYRIGHT = "\u00a9";
+
+	// Ogg
+	private static final int OGG_HEADER_SIZE = 27;
+	private static final int OGG_SEGMENTS = 26;
+	private static final int OGG_GRANULE = 6;
+	private static final int OGG_LACE = 255;
+	private static final int OGG_TAIL_SIZE = 64 * 1024;
+	private static final int VORBIS_RATE = 12;
+	private static final int VORBIS_COMMENTS = 7;
+	private static final int OPUS_PRE_SKIP = 10;
+	private static final int OPUS_COMMENTS = 8;
+	private static final int OPUS_RATE = 48000;
+
+	// FLAC
+	private static final int FLAC_MAGIC_SIZE = 4;
+	private static final int FLAC_BLOCK_HEADER_SIZE = 4;
+	private static final int FLAC_LAST_BLOCK = 0x80;
+	private static final int FLAC_BLOCK_TYPE = 0x7f;
+	private static final int FLAC_STREAMINFO = 0;
+	private static final int FLAC_VORBIS_COMMENT = 4;
+	private static final int STREAMINFO_SIZE = 18;
+	private static final int STREAMINFO_RATE = 10;
+
+	private TagReader() {
+	} // to defeat instantiation
+
+	/**
+	 * Reads the metadata of an audio file.
+	 * 
+	 * @param f
+	 *            The file.
+	 * @return The metadata, with {@link TrackMetadata#UNKNOWN_DURATION} if
+	 *         the tags do not give the duration, or null if the format of
+	 *         the file is not one that is read.
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	public static TrackMetadata read(File f) throws IOException {
+		return read(f, false);
+	}
+
+	/**
+	 * Reads the metadata of an audio file.
+	 * 
+	 * @param f
+	 *            The file.
+	 * @param scan
+	 *            True if the whole of an MP3 should be read for its exact
+	 *            duration, rather than estimating it from a few frames.
+	 * @return The metadata, as {@link #read(File)} returns it.
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	public static TrackMetadata read(File f, boolean scan) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			return read(in.getChannel(), scan);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the metadata of an audio file.
+	 * 
+	 * @param ch
+	 *            The file, which is not closed.
+	 * @param scan
+	 *            True if the whole of an MP3 should be read.
+	 * @return The metadata, or null if the format is not one that is read.
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	static TrackMetadata read(FileChannel ch, boolean scan)
+			throws IOException {
+		Fields fields = new Fields();
+
+		// other formats may also start with an ID3v2 tag
+		long start = readId3v2(ch, fields);
+		ByteBuffer head = readAt(ch, start, ATOM_HEADER_SIZE);
+		if (matches(head, 0, "fLaC")) {
+			readFlac(ch, start, fields);
+		} else if (matches(head, 0, "OggS")) {
+			readOgg(ch, start, fields);
+		} else if (matches(head, 4, "ftyp")) {
+			readAtoms(ch, start, ch.size(), fields);
+		} else {
+			boolean id3v1 = readId3v1(ch, fields);
+			if (!id3v1 && start == 0 && !isMpegFrame(head)) {
+				// not a format that is read
+				return null;
+			}
+			long end = ch.size() - (id3v1 ? ID3V1_SIZE : 0);
+			Mp3Duration d = scan ? Mp3Duration.scan(ch, start, end)
+					: Mp3Duration.estimate(ch, start, end);
+			if (d != null) {
+				fields.setDuration(d.getDuration(), d.isExact());
+			}
+		}
+
+		return fields.toMetadata();
+	}
+
+	/* ID3 */
+
+	/**
+	 * Reads an ID3v2 tag at the start of the file, if there is one.
+	 * 
+	 * @return The position after the tag, or 0 if there is none.
+	 */
+	private static long readId3v2(FileChannel ch, Fields fields)
+			throws IOException {
+		ByteBuffer h = readAt(ch, 0, ID3V2_HEADER_SIZE);
+		if (h.remaining() < ID3V2_HEADER_SIZE || !matches(h, 0, "ID3")) {
+			return 0;
+		}
+		int major = h.get(3);
+		int flags = h.get(5) & BYTE_MASK;
+		int size = syncsafe(h, 6);
+		long end = ID3V2_HEADER_SIZE + size
+				+ ((flags & ID3V2_FLAG_FOOTER) != 0 ? ID3V2_FOOTER_SIZE : 0);
+		if (major < 2 || major > 4) {
+			// a version that cannot be read; skip it
+			return end;
+		}
+
+		Source tag;
+		if ((flags & ID3V2_FLAG_UNSYNC) != 0 && major < 4) {
+			// unsynchronised as a whole, so it is read at once and restored
+			tag = new BufferSource(resync(readAt(ch, ID3V2_HEADER_SIZE,
+					Math.min(size, MAX_COMMENTS_SIZE))));
+		} else {
+			tag = new ChannelSource(ch, ID3V2_HEADER_SIZE);
+		}
+		long pos = 0;
+		if ((flags & ID3V2_FLAG_EXTENDED) != 0) {
+			ByteBuffer ext = tag.read(pos, 4);
+			if (ext.remaining() < 4) {
+				return end;
+			}
+			pos += major == 4 ? syncsafe(ext, 0) : 4 + ext.getInt(0);
+		}
+		readFrames(tag, pos, size, major, fields);
+		return end;
+	}
+
+	/**
+	 * Reads the frames of an ID3v2 tag that hold metadata.
+	 * 
+	 * @param tag
+	 *            The body of the tag.
+	 * @param pos
+	 *            Where the first frame is.
+	 * @param size
+	 *            The size of the body.
+	 * @param major
+	 *            The version of the tag.
+	 */
+	private static void readFrames(Source tag, long pos, int size, int major,
+			Fields fields) throws IOException {
+		int headerSize = major == 2 ? 6 : 10;
+		int idSize = major == 2 ? 3 : 4;
+		while (pos + headerSize <= size) {
+			ByteBuffer h = tag.read(pos, headerSize);
+			if (h.remaining() < headerSize || h.get(0) == 0) {
+				// the end of the file, or padding
+				return;
+			}
+			String id = new String(h.array(), 0, idSize, ISO_8859_1);
+			int frameSize;
+			int frameFlags = 0;
+			if (major == 2) {
+				frameSize = uint24(h, 3);
+			} else {
+				frameSize = major == 4 ? syncsafe(h, 4) : h.getInt(4);
+				frameFlags = h.getShort(8);
+			}
+			pos += headerSize;
+			if (frameSize <= 0 || pos + frameSize > size) {
+				return;
+			}
+
+			int field = getId3Field(id);
+			if (field != Fields.NONE && frameSize <= MAX_ITEM_SIZE) {
+				ByteBuffer body = tag.read(pos, frameSize);
+				body = readFrameBody(body, major, frameFlags);
+				if (body != null) {
+					fields.set(field, decodeId3Text(body));
+				}
+			}
+			pos += frameSize;
+		}
+	}
+
+	/**
+	 * Undoes what the flags of a frame did to its body.
+	 * 
+	 * @return The body, or null if it cannot be read (compressed or
+	 *         encrypted).
+	 */
+	private static ByteBuffer readFrameBody(ByteBuffer body, int major,
+			int flags) {
+		int skip = 0;
+		if (major == 3) {
+			if ((flags & ID3V23_FRAME_UNREADABLE) != 0) {
+				return null;
+			}
+			if ((flags & ID3V23_FRAME_GROUPED) != 0) {
+				skip++;
+			}
+		} else if (major == 4) {
+			if ((flags & ID3V24_FRAME_UNREADABLE) != 0) {
+				return null;
+			}
+			if ((flags & ID3V24_FRAME_GROUPED) != 0) {
+				skip++;
+			}
+			if ((flags & ID3V24_FRAME_LENGTH) != 0) {
+				skip += 4;
+			}
+			if ((flags & ID3V24_FRAME_UNSYNC) != 0) {
+				body = resync(body);
+			}
+		}
+		if (skip > body.remaining()) {
+			return null;
+		}
+		body.position(body.position() + skip);
+		return body.slice();
+	}
+
+	/**
+	 * @return The field a frame holds, or {@link Fields#NONE}.
+	 */
+	private static int getId3Field(String id) {
+		if (id.equals("TIT2") || id.equals("TT2")) {
+			return Fields.TITLE;
+		} else if (id.equals("TALB") || id.equals("TAL")) {
+			return Fields.ALBUM;
+		} else if (id.equals("TPE1") || id.equals("TP1")) {
+			return Fields.ARTIST;
+		} else if (id.equals("TRCK") || id.equals("TRK")) {
+			return Fields.TRACK;
+		} else if (id.equals("TLEN") || id.equals("TLE")) {
+			return Fields.DURATION;
+		}
+		return Fields.NONE;
+	}
+
+	/**
+	 * Decodes the first string of a text frame, in the encoding its first
+	 * byte names.
+	 */
+	private static String decodeId3Text(ByteBuffer body) {
+		if (body.remaining() < 1) {
+			return null;
+		}
+		int encoding = body.get(0);
+		Charset charset;
+		int unit = 1;
+		switch (encoding) {
+		case 1:
+			charset = UTF_16;
+			unit = 2;
+			break;
+		case 2:
+			charset = UTF_16BE;
+			unit = 2;
+			break;
+		case 3:
+			charset = UTF_8;
+			break;
+		default:
+			charset = ISO_8859_1;
+			break;
+		}
+
+		// up to the first terminator; later ones separate more values
+		byte[] b = body.array();
+		int start = body.arrayOffset() + 1;
+		int end = body.arrayOffset() + body.limit();
+		int n = start;
+		while (n + unit <= end && !(b[n] == 0 && b[n + unit - 1] == 0)) {
+			n += unit;
+		}
+		return new String(b, start, n - start, charset);
+	}
+
+	/**
+	 * Reads an ID3v1 tag at the end of the file, if there is one, for the
+	 * fields not found before.
+	 * 
+	 * @return True if there was one.
+	 */
+	private static boolean readId3v1(FileChannel ch, Fields fields)
+			throws IOException {
+		long size = ch.size();
+		if (size < ID3V1_SIZE) {
+			return false;
+		}
+		ByteBuffer t = readAt(ch, size - ID3V1_SIZE, ID3V1_SIZE);
+		if (!matches(t, 0, "TAG")) {
+			return false;
+		}
+		fields.set(Fields.TITLE, id3v1Text(t, ID3V1_TITLE));
+		fields.set(Fields.ARTIST, id3v1Text(t, ID3V1_ARTIST));
+		fields.set(Fields.ALBUM, id3v1Text(t, ID3V1_ALBUM));
+
+		// ID3v1.1 keeps the track in the end of the comment
+		if (t.get(ID3V1_ZERO) == 0 && t.get(ID3V1_TRACK) != 0) {
+			fields.set(Fields.TRACK,
+					Integer.toString(t.get(ID3V1_TRACK) & BYTE_MASK));
+		}
+		return true;
+	}
+
+	private static String id3v1Text(ByteBuffer t, int offset) {
+		int n = 0;
+		while (n < ID3V1_FIELD_SIZE && t.get(offset + n) != 0) {
+			n++;
+		}
+		return new String(t.array(), offset, n, ISO_8859_1);
+	}
+
+	/**
+	 * @return True if the bytes start with the sync bits of an MPEG audio
+	 *         frame.
+	 */
+	private static boolean isMpegFrame(ByteBuffer b) {
+		return b.remaining() >= 2 && (b.get(0) & BYTE_MASK) == BYTE_MASK
+				&& (b.get(1) & MPEG_SYNC) == MPEG_SYNC;
+	}
+
+	/**
+	 * Undoes unsynchronisation: removes each zero put after a 0xff.
+	 */
+	private static ByteBuffer resync(ByteBuffer b) {
+		byte[] out = new byte[b.remaining()];
+		int n = 0;
+		boolean afterFF = false;
+		for (int i = b.position(); i < b.limit(); i++) {
+			byte x = b.get(i);
+			if (!(afterFF && x == 0)) {
+				out[n++] = x;
+			}
+			afterFF = (x & BYTE_MASK) == BYTE_MASK;
+		}
+		return ByteBuffer.wrap(out, 0, n).slice();
+	}
+
+	/* MP4 */
+
+	/**
+	 * Reads the atoms between two positions, and those inside the atoms
+	 * that hold metadata.
+	 */
+	private static void readAtoms(FileChannel ch, long pos, long end,
+			Fields fields) throws IOException {
+		while (pos + ATOM_HEADER_SIZE <= end) {
+			ByteBuffer h = readAt(ch, pos, LARGE_ATOM_HEADER_SIZE);
+			if (h.remaining() < ATOM_HEADER_SIZE) {
+				return;
+			}
+			long size = h.getInt(0) & INT_MASK;
+			String type = new String(h.array(), 4, 4, ISO_8859_1);
+			int headerSize = ATOM_HEADER_SIZE;
+			if (size == 1 && h.remaining() >= LARGE_ATOM_HEADER_SIZE) {
+				size = h.getLong(ATOM_HEADER_SIZE);
+				headerSize = LARGE_ATOM_HEADER_SIZE;
+			} else if (size == 0) {
+				// up to the end of the file
+				size = end - pos;
+			}
+			if (size < headerSize || pos + size > end) {
+				return;
+			}
+			long body = pos + headerSize;
+			long bodyEnd = pos + size;
+
+			if (type.equals("moov") || type.equals("udta")
+					|| type.equals("ilst")) {
+				readAtoms(ch, body, bodyEnd, fields);
+			} else if (type.equals("meta")) {
+				// a full atom in MP4, with a version and flags first
+				ByteBuffer next = readAt(ch, body, 4);
+				boolean full = next.remaining() == 4 && next.getInt(0) == 0;
+				readAtoms(ch, full ? body + 4 : body, bodyEnd, fields);
+			} else if (type.equals("mvhd")) {
+				readMovieHeader(readAt(ch, body, MVHD_SIZE), fields);
+			} else {
+				int field = getMp4Field(type);
+				long itemSize = size - headerSize;
+				if (field != Fields.NONE && itemSize <= MAX_ITEM_SIZE) {
+					readMp4Item(readAt(ch, body, (int) itemSize), field,
+							fields);
+				}
+			}
+			pos += size;
+		}
+	}
+
+	/**
+	 * Reads the duration from the header of the movie.
+	 */
+	private static void readMovieHeader(ByteBuffer b, Fields fields) {
+		long timescale;
+		long duration;
+		if (b.remaining() < MVHD_SIZE) {
+			return;
+		}
+		if (b.get(0) == 1) {
+			// 64 bit times
+			timescale = b.getInt(20) & INT_MASK;
+			duration = b.getLong(24);
+		} else {
+			timescale = b.getInt(12) & INT_MASK;
+			duration = b.getInt(16) & INT_MASK;
+		}
+		if (timescale > 0) {
+			fields.setDuration(toMillis(duration, timescale));
+		}
+	}
+
+	/**
+	 * @return The field an item of the iTunes metadata holds, or
+	 *         {@link Fields#NONE}.
+	 */
+	private static int getMp4Field(String type) {
+		if (type.equals(COPYRIGHT + "nam")) {
+			return Fields.TITLE;
+		} else if (type.equals(COPYRIGHT + "alb")) {
+			return Fields.ALBUM;
+		} else if (type.equals(COPYRIGHT + "ART")) {
+			return Fields.ARTIST;
+		} else if (type.equals("trkn")) {
+			return Fields.TRACK;
+		}
+		return Fields.NONE;
+	}
+
+	/**
+	 * Reads the data atom of an item of the iTunes metadata.
+	 */
+	private static void readMp4Item(ByteBuffer item, int field, Fields fields) {
+		if (item.remaining() < DATA_HEADER_SIZE || !matches(item, 4, "data")) {
+			return;
+		}
+		int size = Math.min(item.getInt(0), item.remaining());
+		int length = size - DATA_HEADER_SIZE;
+		if (length < 0) {
+			return;
+		}
+		if (field == Fields.TRACK) {
+			// reserved (2), track (2), total (2)
+			if (length >= 4) {
+				fields.set(field, Integer.toString(item.getShort(
+						DATA_HEADER_SIZE + 2) & 0xffff));
+			}
+		} else {
+			fields.set(field, new String(item.array(), DATA_HEADER_SIZE,
+					length, UTF_8));
+		}
+	}
+
+	/* Ogg */
+
+	/**
+	 * Reads the first two packets of an Ogg stream, the identification and
+	 * comment headers, then the last page for the duration.
+	 */
+	private static void readOgg(FileChannel ch, long start, Fields fields)
+			throws IOException {
+		ByteBuffer[] packets = readOggPackets(ch, start, 2);
+		ByteBuffer id = packets[0];
+		ByteBuffer comments = packets[1];
+		if (id == null) {
+			return;
+		}
+
+		long rate;
+		long preSkip = 0;
+		int commentsStart;
+		if (matches(id, 1, "vorbis") && id.remaining() >= VORBIS_RATE + 4) {
+			rate = id.order(ByteOrder.LITTLE_ENDIAN).getInt(VORBIS_RATE)
+					& INT_MASK;
+			commentsStart = VORBIS_COMMENTS;
+		} else if (matches(id, 0, "OpusHead")
+				&& id.remaining() >= OPUS_PRE_SKIP + 2) {
+			rate = OPUS_RATE;
+			preSkip = id.order(ByteOrder.LITTLE_ENDIAN).getShort(
+					OPUS_PRE_SKIP) & 0xffff;
+			commentsStart = OPUS_COMMENTS;
+		} else {
+			return;
+		}
+
+		if (comments != null && comments.remaining() > commentsStart) {
+			comments.position(commentsStart);
+			readVorbisComments(comments.slice(), fields);
+		}
+
+		long granule = readLastGranule(ch);
+		if (granule > preSkip && rate > 0) {
+			fields.setDuration(toMillis(granule - preSkip, rate));
+		}
+	}
+
+	/**
+	 * Reads the first packets of an Ogg stream. A packet larger than the
+	 * comments may be is cut short.
+	 * 
+	 * @return The packets; null for those the stream does not have.
+	 */
+	private static ByteBuffer[] readOggPackets(FileChannel ch, long pos,
+			int count) throws IOException {
+		ByteBuffer[] packets = new ByteBuffer[count];
+		ByteArrayOutputStream packet = new ByteArrayOutputStream();
+		int n = 0;
+		while (n < count) {
+			ByteBuffer h = readAt(ch, pos, OGG_HEADER_SIZE);
+			if (h.remaining() < OGG_HEADER_SIZE || !matches(h, 0, "OggS")) {
+				break;
+			}
+			int segments = h.get(OGG_SEGMENTS) & BYTE_MASK;
+			ByteBuffer table = readAt(ch, pos + OGG_HEADER_SIZE, segments);
+			int bodySize = 0;
+			for (int i = 0; i < table.remaining(); i++) {
+				bodySize += table.get(i) & BYTE_MASK;
+			}
+			ByteBuffer body = readAt(ch, pos + OGG_HEADER_SIZE + segments,
+					bodySize);
+
+			int offset = 0;
+			for (int i = 0; i < table.remaining() && n < count; i++) {
+				int lace = table.get(i) & BYTE_MASK;
+				int length = Math.max(0,
+						Math.min(lace, body.remaining() - offset));
+				if (packet.size() + length <= MAX_COMMENTS_SIZE) {
+					packet.write(body.array(), offset, length);
+				}
+				offset += lace;
+				if (lace < OGG_LACE) {
+					// the packet ends in this segment
+					packets[n++] = ByteBuffer.wrap(packet.toByteArray());
+					packet.reset();
+				}
+			}
+			pos += OGG_HEADER_SIZE + segments + bodySize;
+		}
+		return packets;
+	}
+
+	/**
+	 * @return The granule position of the last page, or -1 if none is found.
+	 */
+	private static long readLastGranule(FileChannel ch) throws IOException {
+		long size = ch.size();
+		long start = Math.max(0, size - OGG_TAIL_SIZE);
+		ByteBuffer tail = readAt(ch, start, (int) (size - start));
+		tail.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = tail.remaining() - OGG_HEADER_SIZE; i >= 0; i--) {
+			if (matches(tail, i, "OggS")) {
+				long granule = tail.getLong(i + OGG_GRANULE);
+				if (granule >= 0) {
+					return granule;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/* FLAC */
+
+	/**
+	 * Reads the metadata blocks of a FLAC stream.
+	 */
+	private static void readFlac(FileChannel ch, long start, Fields fields)
+			throws IOException {
+		long pos = start + FLAC_MAGIC_SIZE;
+		boolean last = false;
+		while (!last) {
+			ByteBuffer h = readAt(ch, pos, FLAC_BLOCK_HEADER_SIZE);
+			if (h.remaining() < FLAC_BLOCK_HEADER_SIZE) {
+				return;
+			}
+			int type = h.get(0) & FLAC_BLOCK_TYPE;
+			last = (h.get(0) & FLAC_LAST_BLOCK) != 0;
+			int size = uint24(h, 1);
+			pos += FLAC_BLOCK_HEADER_SIZE;
+
+			if (type == FLAC_STREAMINFO) {
+				readStreamInfo(readAt(ch, pos, STREAMINFO_SIZE), fields);
+			} else if (type == FLAC_VORBIS_COMMENT) {
+				readVorbisComments(
+						readAt(ch, pos, Math.min(size, MAX_COMMENTS_SIZE)),
+						fields);
+			}
+			pos += size;
+		}
+	}
+
+	/**
+	 * Reads the duration from the STREAMINFO block: a sample rate of 20
+	 * bits, and a number of samples of 36 bits.
+	 */
+	private static void readStreamInfo(ByteBuffer b, Fields fields) {
+		if (b.remaining() < STREAMINFO_SIZE) {
+			return;
+		}
+		int r = STREAMINFO_RATE;
+		long rate = ((b.get(r) & BYTE_MASK) << 12)
+				| ((b.get(r + 1) & BYTE_MASK) << 4)
+				| ((b.get(r + 2) & BYTE_MASK) >> 4);
+		long samples = ((long) (b.get(r + 3) & 0x0f) << 32)
+				| (b.getInt(r + 4) & INT_MASK);
+		if (rate > 0 && samples > 0) {
+			fields.setDuration(toMillis(samples, rate));
+		}
+	}
+
+	/**
+	 * Reads Vorbis comments: a vendor string, then a number of
+	 * "KEY=value" strings, each after its length (little endian). A list cut
+	 * short is read as far as it goes.
+	 */
+	private static void readVorbisComments(ByteBuffer b, Fields fields) {
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		int pos = 0;
+		if (b.remaining() < 4) {
+			return;
+		}
+		pos += 4 + b.getInt(pos);
+		if (pos < 0 || pos + 4 > b.remaining()) {
+			return;
+		}
+		long count = b.getInt(pos) & INT_MASK;
+		pos += 4;
+		for (long i = 0; i < count && pos + 4 <= b.remaining(); i++) {
+			int length = b.getInt(pos);
+			pos += 4;
+			if (length < 0 || pos + length > b.remaining()) {
+				return;
+			}
+			String comment = new String(b.array(), b.arrayOffset() + pos,
+					length, UTF_8);
+			pos += length;
+
+			int eq = comment.indexOf('=');
+			if (eq > 0) {
+				fields.set(getVorbisField(comment.substring(0, eq)),
+						comment.substring(eq + 1));
+			}
+		}
+	}
+
+	/**
+	 * @return The field a Vorbis comment holds, or {@link Fields#NONE}.
+	 */
+	private static int getVorbisField(String key) {
+		if (key.equalsIgnoreCase("TITLE")) {
+			return Fields.TITLE;
+		} else if (key.equalsIgnoreCase("ALBUM")) {
+			return Fields.ALBUM;
+		} else if (key.equalsIgnoreCase("ARTIST")) {
+			return Fields.ARTIST;
+		} else if (key.equalsIgnoreCase("TRACKNUMBER")) {
+			return Fields.TRACK;
+		}
+		return Fields.NONE;
+	}
+
+	/* Reading */
+
+	/**
+	 * Reads bytes at a position of a file.
+	 * 
+	 * @return The bytes, from position 0 of the buffer; fewer if the file
+	 *         ends before.
+	 */
+	static ByteBuffer readAt(FileChannel ch, long pos, int n)
+			throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(Math.max(0, n));
+		while (b.hasRemaining()) {
+			int read = ch.read(b, pos + b.position());
+			if (read < 0) {
+				break;
+			}
+		}
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * @return True if the bytes at the offset are the given ASCII text.
+	 */
+	static boolean matches(ByteBuffer b, int offset, String text) {
+		if (offset + text.length() > b.remaining()) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (b.get(b.position() + offset + i) != (byte) text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return A number of units of which there are the given number a
+	 *         second, as milliseconds (rounded).
+	 */
+	private static long toMillis(long units, long rate) {
+		return (units * MS_PER_SECOND + rate / 2) / rate;
+	}
+
+	/**
+	 * @return The syncsafe integer (7 bits a byte) at the offset.
+	 */
+	private static int syncsafe(ByteBuffer b, int offset) {
+		int n = 0;
+		for (int i = 0; i < 4; i++) {
+			n = (n << 7) | (b.get(offset + i) & 0x7f);
+		}
+		return n;
+	}
+
+	private static int uint24(ByteBuffer b, int offset) {
+		return ((b.get(offset) & BYTE_MASK) << 16)
+				| ((b.get(offset + 1) & BYTE_MASK) << 8)
+				| (b.get(offset + 2) & BYTE_MASK);
+	}
+
+	/**
+	 * Where the bytes of a tag are read from.
+	 */
+	private interface Source {
+		/**
+		 * @return The bytes at a position of the tag; fewer if it ends
+		 *         before.
+		 */
+		ByteBuffer read(long pos, int n) throws IOException;
+	}
+
+	/**
+	 * A tag read from a file as it is needed.
+	 */
+	private static final class ChannelSource implements Source {
+		private final FileChannel ch;
+		private final long start;
+
+		private ChannelSource(FileChannel ch, long start) {
+			this.ch = ch;
+			this.start = start;
+		}
+
+		public ByteBuffer read(long pos, int n) throws IOException {
+			return readAt(ch, start + pos, n);
+		}
+	}
+
+	/**
+	 * A tag read into memory.
+	 */
+	private static final class BufferSource implements Source {
+		private final ByteBuffer buffer;
+
+		private BufferSource(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public ByteBuffer read(long pos, int n) {
+			int from = (int) Math.min(pos, buffer.remaining());
+			int to = (int) Math.min(pos + n, buffer.remaining());
+			ByteBuffer b = ByteBuffer.allocate(to - from);
+			b.put(buffer.array(), buffer.arrayOffset() + from, to - from);
+			b.flip();
+			return b;
+		}
+	}
+
+	/**
+	 * The fields found so far. The first value found of each field is kept.
+	 */
+	private static final class Fields {
+		private static final int NONE = -1;
+		private static final int TITLE = 0;
+		private static final int ALBUM = 1;
+		private static final int ARTIST = 2;
+		private static final int TRACK = 3;
+		private static final int DURATION = 4;
+
+		private final String[] values = new String[DURATION + 1];
+		private long duration = TrackMetadata.UNKNOWN_DURATION;
+		private boolean exact;
+
+		/**
+		 * Sets a field, unless it has been set already or the value is
+		 * empty.
+		 */
+		private void set(int field, String value) {
+			if (field == NONE || value == null) {
+				return;
+			}
+			value = value.trim();
+			if (value.length() > 0 && values[field] == null) {
+				values[field] = value;
+			}
+		}
+
+		private void setDuration(long ms) {
+			setDuration(ms, true);
+		}
+
+		private void setDuration(long ms, boolean isExact) {
+			if (duration < 0 && ms >= 0 && ms <= Integer.MAX_VALUE) {
+				duration = ms;
+				exact = isExact;
+			}
+		}
+
+		private TrackMetadata toMetadata() {
+			// a duration of its own, even estimated, is more reliable than a
+			// tag, which is often left from before the file was changed
+			setDuration(parseInt(values[DURATION], -1), false);
+			return new TrackMetadata((int) duration, exact, values[TITLE],
+					values[ALBUM], values[ARTIST], parseInt(values[TRACK],
+							TrackMetadata.NO_TRACK_NUMBER));
+		}
+
+		/**
+		 * Parses the number at the start of a text, such as "3/12".
+		 */
+		private static int parseInt(String s, int none) {
+			if (s == null) {
+				return none;
+			}
+			int n = 0;
+			while (n < s.length() && Character.isDigit(s.charAt(n))) {
+				n++;
+			}
+			try {
+				return n == 0 ? none : Integer.parseInt(s.substring(0, n));
+			} catch (NumberFormatException e) {
+				return none;
+			}
+		}
+	}
+}
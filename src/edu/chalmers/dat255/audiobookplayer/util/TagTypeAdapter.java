@@ -0,0 +1,105 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import edu.chalmers.dat255.audiobookplayer.model.Tag;
+
+/**
+ * Converts tags to and from JSON, as an object holding the time of the tag.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+final class TagTypeAdapter extends TypeAdapter<Tag> {
+	// tag properties
+	private static final String TIME = "time";
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.google.gson.TypeAdapter#write(com.google.gson.stream.JsonWriter,
+	 * java.lang.Object)
+	 */
+	@Override
+	public void write(JsonWriter out, Tag tag) throws IOException {
+		if (tag == null) {
+			out.nullValue();
+			return;
+		}
+		writeTime(out, tag.getTime());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.google.gson.TypeAdapter#read(com.google.gson.stream.JsonReader)
+	 */
+	@Override
+	public Tag read(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		return new Tag(readTime(in));
+	}
+
+	/**
+	 * Writes a tag given its time.
+	 * 
+	 * @param out
+	 *            Where to write.
+	 * @param time
+	 *            The time of the tag.
+	 * @throws IOException
+	 */
+	static void writeTime(JsonWriter out, int time) throws IOException {
+		out.beginObject().name(TIME).value(time).endObject();
+	}
+
+	/**
+	 * Reads the time of a tag. A bare number is read as a time as well.
+	 * 
+	 * @param in
+	 *            Where to read from.
+	 * @return The time of the tag.
+	 * @throws IOException
+	 */
+	static int readTime(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NUMBER) {
+			return in.nextInt();
+		}
+
+		int time = 0;
+		in.beginObject();
+		while (in.hasNext()) {
+			if (in.nextName().equals(TIME)) {
+				time = in.nextInt();
+			} else {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+
+		return time;
+	}
+}
@@ -8,51 +8,238 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.util;
 
 import java.io.File;
+import java.io.IOException;
 
 import android.media.MediaMetadataRetriever;
+import android.util.Log;
+import edu.chalmers.dat255.audiobookplayer.constants.Constants;
 import edu.chalmers.dat255.audiobookplayer.model.Track;
 
 /**
  * Creates Track instances (filling them with metadata).
+ * <p>
+ * The media framework is used through a pool of retrievers shared by all
+ * threads, so that an import of many files keeps a bounded number of them.
  * 
- * @author Aki Kkel, Fredrik hs
- * @version 0.6
+ * @author Aki Käkelä, Fredrik Åhs
+ * @version 0.8
  */
 public final class TrackCreator {
+	private static final String TAG = "TrackCreator";
+
+	private static final RetrieverPool RETRIEVERS = new RetrieverPool(
+			Constants.Value.MAX_IMPORT_WORKERS,
+			Constants.Value.RETRIEVER_IDLE_TIMEOUT);
 
 	private TrackCreator() {
 	} // to defeat instantiation
 
+	/**
+	 * Creates a track from the metadata of an audio file.
+	 * 
+	 * @param path
+	 *            The path to the file.
+	 * @return The track.
+	 * @throws IllegalArgumentException
+	 *             If the file could not be read.
+	 * @throws NumberFormatException
+	 *             If the file has no valid duration.
+	 */
 	public static Track createTrack(String path) {
-		// Instantiate a metadata retriever object and set its
-		// data source path to the provided path
-		MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-		mmr.setDataSource(path);
+		return createTrack(path, readMetadata(path));
+	}
+
+	/**
+	 * Returns the metadata of an audio file, from the cache if it has it;
+	 * otherwise the file is read, and the metadata added to the cache.
+	 * 
+	 * @param path
+	 *            The path to the file.
+	 * @param cache
+	 *            The cache, or null to always read the file.
+	 * @return The metadata.
+	 * @throws IllegalArgumentException
+	 *             If the file could not be read.
+	 * @throws NumberFormatException
+	 *             If the file has no valid duration.
+	 */
+	public static TrackMetadata getMetadata(String path, MetadataCache cache) {
+		File f = new File(path);
+		TrackMetadata m = cache == null ? null : cache.get(f);
+		if (m == null) {
+			m = readMetadata(path);
+			if (cache != null) {
+				cache.put(f, m);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Reads the metadata of an audio file. The tags are read in Java (see
+	 * TagReader) where the format allows; the media is only opened if they
+	 * do not give the duration.
+	 * 
+	 * @param path
+	 *            The path to the file.
+	 * @return The metadata.
+	 * @throws IllegalArgumentException
+	 *             If the file could not be read.
+	 * @throws NumberFormatException
+	 *             If the file has no valid duration.
+	 */
+	public static TrackMetadata readMetadata(String path) {
+		TrackMetadata tags = null;
+		try {
+			tags = TagReader.read(new File(path));
+		} catch (IOException e) {
+			// leave it to the retriever
+			Log.d(TAG, "Could not read the tags of " + path + ": "
+					+ e.getMessage());
+		}
+		if (tags != null && tags.hasDuration()) {
+			return tags;
+		}
+
+		TrackMetadata m = retrieveMetadata(path);
+		if (tags == null) {
+			return m;
+		}
+		return new TrackMetadata(m.getDuration(), orElse(tags.getTitle(),
+				m.getTitle()), orElse(tags.getAlbum(), m.getAlbum()), orElse(
+				tags.getArtist(), m.getArtist()), tags.getTrackNumber());
+	}
+
+	/**
+	 * Finds the exact duration of an audio file whose metadata holds an
+	 * estimate, by reading the whole of it, and puts the result in the cache.
+	 * This takes much longer than reading the metadata, and is meant for a
+	 * background worker after an import, which then gives the duration to
+	 * the track on the bookshelf (see BookImport).
+	 * 
+	 * @param path
+	 *            The path to the file.
+	 * @param m
+	 *            The metadata read before.
+	 * @param cache
+	 *            The cache to put the result in, or null.
+	 * @return The metadata with the exact duration, or the metadata given if
+	 *         it was exact or the file could not be read.
+	 */
+	public static TrackMetadata refineMetadata(String path, TrackMetadata m,
+			MetadataCache cache) {
+		if (m.isDurationExact()) {
+			return m;
+		}
+		TrackMetadata scanned = null;
+		try {
+			scanned = TagReader.read(new File(path), true);
+		} catch (IOException e) {
+			Log.d(TAG, "Could not scan " + path + ": " + e.getMessage());
+		}
+		if (scanned == null || !scanned.isDurationExact()) {
+			return m;
+		}
+		TrackMetadata refined = m.withExactDuration(scanned.getDuration());
+		if (cache != null) {
+			cache.put(new File(path), refined);
+		}
+		return refined;
+	}
+
+	/**
+	 * Reads the metadata of an audio file through the media framework.
+	 * 
+	 * @param path
+	 *            The path to the file.
+	 * @return The metadata.
+	 * @throws IllegalArgumentException
+	 *             If the file could not be read.
+	 * @throws NumberFormatException
+	 *             If the file has no valid duration.
+	 */
+	static TrackMetadata retrieveMetadata(String path) {
+		MediaMetadataRetriever mmr = RETRIEVERS.acquire();
+		boolean reusable = false;
+		try {
+			mmr.setDataSource(path);
 
-		// Get the duration of the track
-		String durationText = mmr
-				.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-		int duration = Integer.parseInt(durationText);
+			// Get the duration of the track
+			String durationText = mmr
+					.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+			int duration = Integer.parseInt(durationText);
+
+			// Get the title of the track, and the album and artist, where the
+			// title and author of a book should typically be stored
+			String title = mmr
+					.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+			String album = mmr
+					.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
+			String artist = mmr
+					.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+
+			reusable = true;
+			return new TrackMetadata(duration, title, album, artist);
+		} finally {
+			// a retriever that failed is not trusted with another file
+			if (reusable) {
+				RETRIEVERS.release(mmr);
+			} else {
+				RETRIEVERS.discard(mmr);
+			}
+		}
+	}
+
+	/**
+	 * Releases the native resources of the retrievers not in use, as when
+	 * the memory is low or the application is closed. The pool creates new
+	 * ones as they are needed.
+	 */
+	public static void releaseRetrievers() {
+		RETRIEVERS.releaseIdle();
+	}
+
+	/**
+	 * @return The pool of retrievers used to read metadata.
+	 */
+	static RetrieverPool getRetrievers() {
+		return RETRIEVERS;
+	}
+
+	/**
+	 * @return The value, or the fallback if the value is null.
+	 */
+	private static String orElse(String value, String fallback) {
+		return value == null ? fallback : value;
+	}
 
-		// Get the title of the track
-		String title = mmr
-				.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+	/**
+	 * Creates a track from the metadata of an audio file.
+	 * 
+	 * @param path
+	 *            The path to the file.
+	 * @param m
+	 *            The metadata of the file.
+	 * @return The track.
+	 */
+	public static Track createTrack(String path, TrackMetadata m) {
+		String title = m.getTitle();
 
 		// If the track name is invalid, use the name of the track file
-		if (title == null || title.length() == 0) {
+		if (title == null) {
 			title = (new File(path)).getName();
 			int periodPosition = title.lastIndexOf('.');
 			if (periodPosition != -1) {
 				title = title.substring(0, periodPosition);
 			}
 		}
-		return new Track(path, title, duration);
+		return new Track(path, title, m.getDuration());
 	}
 
 }
@@ -0,0 +1,218 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+
+/**
+ * The metadata of an audio file that books and tracks are created from.
+ * Immutable.
+ * <p>
+ * The duration may be an estimate, as when it is worked out from a few
+ * frames of an MP3; {@link #isDurationExact()} tells whether it is worth
+ * finding the exact duration later.
+ * 
+ * @author Aki Käkelä
+ * @version 0.2
+ * 
+ */
+public final class TrackMetadata {
+	/**
+	 * The duration of a file whose duration could not be read.
+	 */
+	public static final int UNKNOWN_DURATION = -1;
+	/**
+	 * The track number of a file that has none.
+	 */
+	public static final int NO_TRACK_NUMBER = 0;
+
+	private final int duration;
+	private final boolean durationExact;
+	private final String title;
+	private final String album;
+	private final String artist;
+	private final int trackNumber;
+
+	/**
+	 * @param duration
+	 *            The duration (ms).
+	 * @param title
+	 *            The title, or null if the file has none.
+	 * @param album
+	 *            The album, or null if the file has none.
+	 * @param artist
+	 *            The artist, or null if the file has none.
+	 */
+	public TrackMetadata(int duration, String title, String album,
+			String artist) {
+		this(duration, title, album, artist, NO_TRACK_NUMBER);
+	}
+
+	/**
+	 * @param duration
+	 *            The duration (ms), or {@link #UNKNOWN_DURATION}.
+	 * @param title
+	 *            The title, or null if the file has none.
+	 * @param album
+	 *            The album, or null if the file has none.
+	 * @param artist
+	 *            The artist, or null if the file has none.
+	 * @param trackNumber
+	 *            The number of the track in its album, or
+	 *            {@link #NO_TRACK_NUMBER}.
+	 */
+	public TrackMetadata(int duration, String title, String album,
+			String artist, int trackNumber) {
+		this(duration, true, title, album, artist, trackNumber);
+	}
+
+	/**
+	 * @param duration
+	 *            The duration (ms), or {@link #UNKNOWN_DURATION}.
+	 * @param durationExact
+	 *            False if the duration is an estimate.
+	 * @param title
+	 *            The title, or null if the file has none.
+	 * @param album
+	 *            The album, or null if the file has none.
+	 * @param artist
+	 *            The artist, or null if the file has none.
+	 * @param trackNumber
+	 *            The number of the track in its album, or
+	 *            {@link #NO_TRACK_NUMBER}.
+	 */
+	public TrackMetadata(int duration, boolean durationExact, String title,
+			String album, String artist, int trackNumber) {
+		this.duration = duration;
+		this.durationExact = durationExact && duration >= 0;
+		this.title = orNull(title);
+		this.album = orNull(album);
+		this.artist = orNull(artist);
+		this.trackNumber = trackNumber;
+	}
+
+	/**
+	 * @return The duration (ms), or {@link #UNKNOWN_DURATION}.
+	 */
+	public int getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return True if the duration is known.
+	 */
+	public boolean hasDuration() {
+		return duration >= 0;
+	}
+
+	/**
+	 * @return True if the duration is known, and not an estimate.
+	 */
+	public boolean isDurationExact() {
+		return durationExact;
+	}
+
+	/**
+	 * @param exactDuration
+	 *            The exact duration (ms).
+	 * @return This metadata with the given duration, which is exact.
+	 */
+	public TrackMetadata withExactDuration(int exactDuration) {
+		return new TrackMetadata(exactDuration, true, title, album, artist,
+				trackNumber);
+	}
+
+	/**
+	 * @return The number of the track in its album, or
+	 *         {@link #NO_TRACK_NUMBER}.
+	 */
+	public int getTrackNumber() {
+		return trackNumber;
+	}
+
+	/**
+	 * @return The title, or null if the file has none.
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return The album, or null if the file has none.
+	 */
+	public String getAlbum() {
+		return album;
+	}
+
+	/**
+	 * @return The artist, or null if the file has none.
+	 */
+	public String getArtist() {
+		return artist;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return new HashCodeBuilder().append(duration).append(durationExact)
+				.append(title)
+				.append(album).append(artist).append(trackNumber)
+				.toHashCode();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if (obj instanceof TrackMetadata) {
+			final TrackMetadata other = (TrackMetadata) obj;
+			return new EqualsBuilder().append(duration, other.duration)
+					.append(durationExact, other.durationExact)
+					.append(title, other.title).append(album, other.album)
+					.append(artist, other.artist)
+					.append(trackNumber, other.trackNumber).isEquals();
+		} else {
+			return false;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TrackMetadata [duration=" + duration + ", durationExact="
+				+ durationExact + ", title=" + title
+				+ ", album=" + album + ", artist=" + artist + ", trackNumber="
+				+ trackNumber + "]";
+	}
+
+	/**
+	 * @return The text, or null if it is empty.
+	 */
+	private static String orNull(String s) {
+		return s == null || s.length() == 0 ? null : s;
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ *  This work is licensed under the Creative Commons Attribution-NonCommercial-
+ *  NoDerivs 3.0 Unported License. To view a copy of this license, visit
+ *  http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to 
+ *  Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 
+ *  94041, USA.
+ * 
+ *  Use of this work is permitted only in accordance with license rights granted.
+ *  Materials provided "AS IS"; no representations or warranties provided.
+ * 
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
+ **/
+
+
+package edu.chalmers.dat255.audiobookplayer.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import edu.chalmers.dat255.audiobookplayer.model.Track;
+
+/**
+ * Converts tracks to and from JSON. Tracks are written the same way whether
+ * on their own or as part of a book (see BookTypeAdapter): the tags are left
+ * out if there are none, and so is the title.
+ * 
+ * @author Aki Käkelä
+ * @version 0.1
+ * 
+ */
+final class TrackTypeAdapter extends TypeAdapter<Track> {
+	// track properties
+	private static final String PATH = "path";
+	private static final String TITLE = "title";
+	private static final String DURATION = "duration";
+	private static final String ELAPSED_TIME = "elapsedTime";
+	private static final String TAGS = "tags";
+
+	private static final int INITIAL_TAG_CAPACITY = 4;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.google.gson.TypeAdapter#write(com.google.gson.stream.JsonWriter,
+	 * java.lang.Object)
+	 */
+	@Override
+	public void write(JsonWriter out, Track t) throws IOException {
+		if (t == null) {
+			out.nullValue();
+			return;
+		}
+		write(out, t.getTrackPath(), t.getDuration(), t.getElapsedTime(),
+				t.getTagTimes(), t.getTrackTitle());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.google.gson.TypeAdapter#read(com.google.gson.stream.JsonReader)
+	 */
+	@Override
+	public Track read(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		return readTrack(in);
+	}
+
+	/**
+	 * Writes a track given its properties.
+	 * 
+	 * @param out
+	 *            Where to write.
+	 * @param path
+	 *            The path of the track.
+	 * @param duration
+	 *            The duration of the track.
+	 * @param elapsedTime
+	 *            The elapsed time of the track.
+	 * @param tagTimes
+	 *            The times of the tags of the track.
+	 * @param title
+	 *            The title of the track, or null.
+	 * @throws IOException
+	 */
+	static void write(JsonWriter out, String path, int duration,
+			int elapsedTime, int[] tagTimes, String title) throws IOException {
+		out.beginObject();
+		out.name(PATH).value(path);
+		out.name(DURATION).value(duration);
+		out.name(ELAPSED_TIME).value(elapsedTime);
+
+		if (tagTimes.length > 0) {
+			out.name(TAGS).beginArray();
+			for (int time : tagTimes) {
+				TagTypeAdapter.writeTime(out, time);
+			}
+			out.endArray();
+		}
+
+		if (title != null) {
+			out.name(TITLE).value(title);
+		}
+		out.endObject();
+	}
+
+	/**
+	 * Reads a track.
+	 * 
+	 * @param in
+	 *            Where to read from.
+	 * @return The track.
+	 * @throws IOException
+	 */
+	static Track readTrack(JsonReader in) throws IOException {
+		String path = null;
+		String title = null;
+		int duration = 0;
+		int elapsedTime = 0;
+		int[] tagTimes = new int[INITIAL_TAG_CAPACITY];
+		int numberOfTags = 0;
+
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (name.equals(PATH)) {
+				path = readString(in);
+			} else if (name.equals(TITLE)) {
+				title = readString(in);
+			} else if (name.equals(DURATION)) {
+				duration = in.nextInt();
+			} else if (name.equals(ELAPSED_TIME)) {
+				elapsedTime = in.nextInt();
+			} else if (name.equals(TAGS) && in.peek() != JsonToken.NULL) {
+				in.beginArray();
+				while (in.hasNext()) {
+					if (numberOfTags == tagTimes.length) {
+						tagTimes = Arrays.copyOf(tagTimes, numberOfTags * 2);
+					}
+					tagTimes[numberOfTags++] = TagTypeAdapter.readTime(in);
+				}
+				in.endArray();
+			} else {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+
+		Track t = new Track(path, title, duration);
+		t.setSelectedTrackElapsedTime(elapsedTime);
+		if (numberOfTags > 0) {
+			t.addTags(Arrays.copyOf(tagTimes, numberOfTags));
+		}
+		return t;
+	}
+
+	/**
+	 * Reads a string that may be null.
+	 * 
+	 * @param in
+	 *            Where to read from.
+	 * @return The string, or null.
+	 * @throws IOException
+	 */
+	static String readString(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		return in.nextString();
+	}
+}
@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.view;
@@ -44,7 +44,7 @@ import edu.chalmers.dat255.audiobookplayer.util.TextFormatter;
 /**
  * Graphical representation of the bookshelf.
  * 
- * @author Marcus Parkkinen, Fredrik hs
+ * @author Marcus Parkkinen, Fredrik Åhs
  * @version 0.6
  */
 public class BookshelfFragment extends Fragment {
@@ -488,7 +488,7 @@ public class BookshelfFragment extends Fragment {
 	 * Private class used to populate the ExpandableListView used in
 	 * BookshelfFragment.
 	 * 
-	 * @author Fredrik hs
+	 * @author Fredrik Åhs
 	 * 
 	 */
 	private class ExpandableBookshelfAdapter extends BaseExpandableListAdapter {
@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.view;
@@ -24,7 +24,9 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 
 import android.app.Activity;
+import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Environment;
@@ -45,13 +47,15 @@ import android.widget.TextView;
 import android.widget.Toast;
 import edu.chalmers.dat255.audiobookplayer.R;
 import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+import edu.chalmers.dat255.audiobookplayer.interfaces.IImportEvents;
 import edu.chalmers.dat255.audiobookplayer.util.BookCreator;
+import edu.chalmers.dat255.audiobookplayer.util.BookImport;
 
 /**
  * This class is used to display and add new books to the bookshelf. It lists
  * all audio files and their file trees up to the ExternalStorageDirectory.
  * 
- * @author Fredrik hs
+ * @author Fredrik Åhs
  * 
  */
 public class BrowserActivity extends Activity {
@@ -60,7 +64,7 @@ public class BrowserActivity extends Activity {
 	/**
 	 * The different possible file types when browsing.
 	 * 
-	 * @author Fredrik hs
+	 * @author Fredrik Åhs
 	 * 
 	 */
 	public enum FILETYPE {
@@ -90,6 +94,9 @@ public class BrowserActivity extends Activity {
 	private File currentDirectory;
 	private Map<TypedFile, List<TypedFile>> childMap;
 
+	// the imports whose progress is shown
+	private final List<ImportProgress> shown = new ArrayList<ImportProgress>();
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -106,6 +113,21 @@ public class BrowserActivity extends Activity {
 
 		// fill the list view from the root
 		fill(f);
+
+		// show the imports that an earlier browser left running
+		for (BookImport i : BookCreator.getInstance().getImports()) {
+			showProgress(i, i.getTitle());
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		// the imports go on; only their progress can no longer be shown
+		for (ImportProgress p : shown) {
+			p.detach();
+		}
+		shown.clear();
+		super.onDestroy();
 	}
 
 	@Override
@@ -179,22 +201,71 @@ public class BrowserActivity extends Activity {
 					tracks.add(f.getAbsolutePath());
 				}
 			}
-			// if we manage to create a book (the book is valid) then continue
-			// as normal
-			if (BookCreator.getInstance().createBookToBookshelf(tracks, name,
-					null)) {
-				// create a toast to notify the user that a book has been
-				// added.
-				Toast.makeText(BrowserActivity.this, "Book added: " + name,
-						Toast.LENGTH_SHORT).show();
-				// empty checkedItems and fill the list with unchecked items
-				checkedItems = new TreeSet<File>();
-				// refill the ListView from currentDirectory
-				fill(currentDirectory);
+			if (!tracks.isEmpty()) {
+				importBook(tracks, name);
 			}
 		}
 	}
 
+	/**
+	 * Imports a book in the background, showing the progress in a dialog.
+	 * Cancelling the dialog cancels the import.
+	 * 
+	 * @param tracks
+	 *            The paths to the tracks.
+	 * @param name
+	 *            The name of the book, if its tracks have no album.
+	 */
+	private void importBook(List<String> tracks, String name) {
+		showProgress(BookCreator.getInstance().importBook(tracks, name, null,
+				null), name);
+	}
+
+	/**
+	 * Shows the progress of an import in a dialog, until the import ends or
+	 * the activity is destroyed. Cancelling the dialog cancels the import.
+	 * 
+	 * @param i
+	 *            The import.
+	 * @param name
+	 *            The name of the book.
+	 */
+	private void showProgress(final BookImport i, String name) {
+		ProgressDialog dialog = new ProgressDialog(this);
+		dialog.setMessage("Importing " + name);
+		dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		dialog.setMax(i.getTotal());
+		dialog.setProgress(i.getProgress());
+		dialog.setCancelable(true);
+		dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+			public void onCancel(DialogInterface d) {
+				i.cancel();
+			}
+		});
+		dialog.show();
+
+		ImportProgress p = new ImportProgress(i, dialog, name);
+		shown.add(p);
+		i.setListener(p);
+	}
+
+	/**
+	 * Tells the user that a book has been added, and clears the selection.
+	 * 
+	 * @param name
+	 *            The name of the book.
+	 */
+	private void bookAdded(String name) {
+		// create a toast to notify the user that a book has been
+		// added.
+		Toast.makeText(BrowserActivity.this, "Book added: " + name,
+				Toast.LENGTH_SHORT).show();
+		// empty checkedItems and fill the list with unchecked items
+		checkedItems = new TreeSet<File>();
+		// refill the ListView from currentDirectory
+		fill(currentDirectory);
+	}
+
 	/**
 	 * Fills the ListView with the children to root.
 	 * 
@@ -334,7 +405,7 @@ public class BrowserActivity extends Activity {
 	/**
 	 * Adapter to the browser.
 	 * 
-	 * @author Fredrik hs
+	 * @author Fredrik Åhs
 	 * 
 	 */
 	private class BrowserArrayAdapter extends ArrayAdapter<TypedFile> {
@@ -462,11 +533,75 @@ public class BrowserActivity extends Activity {
 		}
 	}
 
+	/**
+	 * Shows the progress of an import in a dialog, on the UI thread, until it
+	 * is detached.
+	 * 
+	 * @author Aki Käkelä
+	 * 
+	 */
+	private class ImportProgress implements IImportEvents {
+		private final BookImport bookImport;
+		private final ProgressDialog dialog;
+		private final String name;
+
+		// set on the UI thread once the activity no longer shows the import
+		private boolean detached;
+
+		/**
+		 * @param bookImport
+		 *            The import.
+		 * @param dialog
+		 *            The dialog showing its progress.
+		 * @param name
+		 *            The name of the book.
+		 */
+		public ImportProgress(BookImport bookImport, ProgressDialog dialog,
+				String name) {
+			this.bookImport = bookImport;
+			this.dialog = dialog;
+			this.name = name;
+		}
+
+		public void importProgress(final int done, int total) {
+			runOnUiThread(new Runnable() {
+				public void run() {
+					if (!detached) {
+						dialog.setProgress(done);
+					}
+				}
+			});
+		}
+
+		public void importFinished(final boolean added) {
+			runOnUiThread(new Runnable() {
+				public void run() {
+					if (!detached) {
+						detach();
+						shown.remove(ImportProgress.this);
+						if (added) {
+							bookAdded(name);
+						}
+					}
+				}
+			});
+		}
+
+		/**
+		 * Stops showing the import, which goes on. Called on the UI thread.
+		 */
+		public void detach() {
+			detached = true;
+			bookImport.setListener(null);
+			dialog.dismiss();
+		}
+	}
+
 	/**
 	 * Simple class which extends File by also having a FILETYPE which
 	 * identifies it in the list.
 	 * 
-	 * @author Fredrik hs
+	 * @author Fredrik Åhs
 	 * 
 	 */
 	private class TypedFile extends File {
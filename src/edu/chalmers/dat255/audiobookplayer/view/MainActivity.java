@@ -8,7 +8,7 @@
  *  Use of this work is permitted only in accordance with license rights granted.
  *  Materials provided "AS IS"; no representations or warranties provided.
  * 
- *  Copyright  2012 Marcus Parkkinen, Aki Kkel, Fredrik hs.
+ *  Copyright © 2012 Marcus Parkkinen, Aki Käkelä, Fredrik Åhs.
  **/
 
 package edu.chalmers.dat255.audiobookplayer.view;
@@ -18,8 +18,11 @@ import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.List;
 
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.view.ViewPager;
@@ -27,33 +30,73 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.widget.EditText;
 import android.widget.Toast;
 import edu.chalmers.dat255.audiobookplayer.R;
 import edu.chalmers.dat255.audiobookplayer.constants.Constants;
+import edu.chalmers.dat255.audiobookplayer.constants.EventType;
 import edu.chalmers.dat255.audiobookplayer.constants.PlaybackStatus;
 import edu.chalmers.dat255.audiobookplayer.ctrl.BookshelfController;
+import edu.chalmers.dat255.audiobookplayer.ctrl.PlaybackPosition;
 import edu.chalmers.dat255.audiobookplayer.ctrl.PlayerController;
 import edu.chalmers.dat255.audiobookplayer.interfaces.IBookshelfEvents;
 import edu.chalmers.dat255.audiobookplayer.interfaces.IBookshelfGUIEvents;
 import edu.chalmers.dat255.audiobookplayer.interfaces.IPlayerEvents;
 import edu.chalmers.dat255.audiobookplayer.model.Book;
 import edu.chalmers.dat255.audiobookplayer.model.Bookshelf;
+import edu.chalmers.dat255.audiobookplayer.model.BookshelfEvent;
+import edu.chalmers.dat255.audiobookplayer.model.ModelExecutor;
 import edu.chalmers.dat255.audiobookplayer.util.BookCreator;
+import edu.chalmers.dat255.audiobookplayer.util.BookshelfAutosave;
 import edu.chalmers.dat255.audiobookplayer.util.BookshelfHandler;
+import edu.chalmers.dat255.audiobookplayer.util.BookshelfJournal;
+import edu.chalmers.dat255.audiobookplayer.util.MetadataCache;
+import edu.chalmers.dat255.audiobookplayer.util.TrackCreator;
 
 /**
  * The main activity of the application.
  * 
- * @author Aki Kkel, Marcus Parkkinen
- * @version 0.6
+ * @author Aki Käkelä, Marcus Parkkinen
+ * @version 0.8
  * 
  */
 public class MainActivity extends FragmentActivity implements IPlayerEvents,
 		IBookshelfEvents, IBookshelfGUIEvents, PropertyChangeListener {
 	private static final String TAG = "MainActivity";
-	private static final String USERNAME = "Default";
+	private static final String DEFAULT_PROFILE = "Default";
+	private static final String PREFERENCES = "MainActivity";
+	private static final String PROFILE = "profile";
+	// the file the metadata of imported tracks is kept in
+	private static final String METADATA_CACHE = "metadata.cache";
 	private static final int PLAYER = 0;
 	private static final int BOOKSHELF = 1;
+	private static final int NO_BOOK_SELECTED = Constants.Value.NO_BOOK_SELECTED;
+	private static final int UPDATE_FREQUENCY = Constants.Value.UPDATE_FREQUENCY;
+
+	// Parts of the GUI that can be marked to be redrawn at the next frame
+	private static final int BOOKSHELF_LIST = 1;
+	private static final int PLAYER_RESET = 1 << 1;
+	private static final int BOOK_TITLE = 1 << 2;
+	private static final int BOOK_DURATION = 1 << 3;
+	private static final int TRACK_TITLE = 1 << 4;
+	private static final int TRACK_DURATION = 1 << 5;
+	private static final int TRACK_COUNTER = 1 << 6;
+	private static final int PLAYER_PAGE = 1 << 7;
+	private static final int PLAYER_LABELS = BOOK_TITLE | BOOK_DURATION
+			| TRACK_TITLE | TRACK_DURATION | TRACK_COUNTER;
+
+	// The time between two frames (ms), 60 frames per second
+	private static final int FRAME_TIME = 16;
+	private static final int NO_STATUS = -1;
+	private static final long NOT_DRAWN = Long.MIN_VALUE;
+
+	// The events drawn by the fragments. BOOKSHELF_UPDATED is last, since
+	// listening to it starts with an update.
+	private static final EventType[] EVENTS = { EventType.BOOK_LIST_CHANGED,
+			EventType.TRACK_LIST_CHANGED, EventType.BOOK_SELECTED,
+			EventType.BOOK_TITLE_CHANGED, EventType.TRACK_INDEX_CHANGED,
+			EventType.BOOKSHELF_UPDATED };
+	private static final int NO_TRACK_SELECTED = Constants.Value.NO_TRACK_SELECTED;
 
 	// ViewPager
 	private ViewPager pager;
@@ -66,6 +109,38 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	private BookshelfController bookshelfController;
 	private PlayerController playerController;
 
+	// Runs the changes of the bookshelf, for both controllers
+	private ModelExecutor model;
+
+	// Snapshot of the model, taken at the last structural change
+	private volatile Bookshelf shelf;
+
+	// The profile whose bookshelf is shown
+	private String profile;
+
+	// Redraws the playback position on the GUI thread
+	private final Handler handler = new Handler();
+	private final Runnable positionPoller = new Runnable() {
+		public void run() {
+			drawPlaybackPosition();
+			handler.postDelayed(this, UPDATE_FREQUENCY);
+		}
+	};
+
+	// The last playback position drawn
+	private long drawnPosition = NOT_DRAWN;
+
+	// Changes collected since the last frame, guarded by frameLock
+	private final Object frameLock = new Object();
+	private int pendingParts;
+	private int pendingStatus = NO_STATUS;
+	private boolean framePosted;
+	private final Runnable frame = new Runnable() {
+		public void run() {
+			drawFrame();
+		}
+	};
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -79,18 +154,36 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 
 		initPager();
 
-		// Load a bookshelf specified by the username
-		Bookshelf bs = BookshelfHandler.loadBookshelf(this, USERNAME);
+		// Load the bookshelf of the profile chosen last
+		profile = getSharedPreferences(PREFERENCES, MODE_PRIVATE).getString(
+				PROFILE, DEFAULT_PROFILE);
+		Bookshelf bs = BookshelfHandler.loadBookshelf(this, profile);
+
+		shelf = bs.getSnapshot();
+
+		/*
+		 * Create controllers that change the bookshelf through the same
+		 * executor, so that only one thread ever changes it.
+		 */
+		model = new ModelExecutor(bs);
+		playerController = new PlayerController(model);
+		bookshelfController = new BookshelfController(model);
+
+		// write the position and other small changes as they happen
+		BookshelfJournal journal = new BookshelfJournal(this, profile);
+		bookshelfController.setJournal(journal);
 
-		// Create controllers with the bookshelf reference
-		playerController = new PlayerController(bs);
-		bookshelfController = new BookshelfController(bs);
+		// save the rest in the background once the changes settle
+		bookshelfController.setAutosave(new BookshelfAutosave(model, journal));
 
-		BookCreator.getInstance().setBookshelf(bs);
+		BookCreator.getInstance().setModel(model);
+		BookCreator.getInstance().setCache(
+				new MetadataCache(getFileStreamPath(METADATA_CACHE)));
 
-		// Provide a reference to the bookshelf as an argument in the bundle
+		// Provide a snapshot of the bookshelf as an argument in the bundle
 		Bundle bsReference = new Bundle();
-		bsReference.putSerializable(Constants.Reference.BOOKSHELF, bs);
+		bsReference.putSerializable(Constants.Reference.BOOKSHELF,
+				bs.getSnapshot());
 		bookshelfFragment.setArguments(bsReference);
 
 	}
@@ -127,8 +220,12 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 		Log.d(TAG, "onStop()");
 		super.onStop();
 
-		// Disable updates
-		bookshelfController.removeListeners();
+		// Disable updates (the journal keeps listening)
+		bookshelfController.removePropertyChangeListener(this);
+		handler.removeCallbacks(positionPoller);
+
+		// keep the position in case the application is not resumed
+		playerController.checkpoint();
 	}
 
 	/*
@@ -144,7 +241,11 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 		 * if the application is stopped, it will go through onStart() and then
 		 * onResume(), so just start the updates again here.
 		 */
-		bookshelfController.addPropertyChangeListener(this);
+		for (EventType type : EVENTS) {
+			bookshelfController.addPropertyChangeListener(type, this);
+		}
+		handler.removeCallbacks(positionPoller);
+		handler.post(positionPoller);
 
 		/*
 		 * This method is run every time the application is created, starts or
@@ -181,6 +282,25 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 		 * Whenever the application is about to quit, save a bookmark.
 		 */
 		save();
+
+		// stop the threads that save the bookshelf in the background
+		bookshelfController.shutdown();
+
+		TrackCreator.releaseRetrievers();
+
+		// nothing changes the bookshelf any more
+		model.shutdown();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.app.Activity#onLowMemory()
+	 */
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		TrackCreator.releaseRetrievers();
 	}
 
 	/*
@@ -199,7 +319,69 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	 * Saves a bookmark (the bookshelf).
 	 */
 	private boolean save() {
-		return bookshelfController.saveBookshelf(this, USERNAME);
+		return bookshelfController.saveBookshelf(this, profile);
+	}
+
+	/**
+	 * Lets the user choose another profile, or create a new one.
+	 */
+	private void chooseProfile() {
+		final List<String> profiles = BookshelfHandler.getProfiles(this);
+		if (!profiles.contains(profile)) {
+			profiles.add(profile);
+		}
+		String[] items = profiles.toArray(new String[profiles.size() + 1]);
+		items[profiles.size()] = getString(R.string.new_profile);
+
+		new AlertDialog.Builder(this).setTitle(R.string.menu_profiles_title)
+				.setItems(items, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						if (which < profiles.size()) {
+							switchProfile(profiles.get(which));
+						} else {
+							createProfile();
+						}
+					}
+				}).show();
+	}
+
+	/**
+	 * Asks the user for the name of a new profile, and switches to it.
+	 */
+	private void createProfile() {
+		final EditText name = new EditText(this);
+		DialogInterface.OnClickListener create = new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				String newProfile = name.getText().toString().trim();
+				if (BookshelfHandler.isValidProfile(newProfile)) {
+					switchProfile(newProfile);
+				} else {
+					Toast.makeText(MainActivity.this, "Invalid name",
+							Toast.LENGTH_SHORT).show();
+				}
+			}
+		};
+
+		new AlertDialog.Builder(this).setTitle(R.string.new_profile)
+				.setView(name).setPositiveButton(android.R.string.ok, create)
+				.setNegativeButton(android.R.string.cancel, null).show();
+	}
+
+	/**
+	 * Switches to the bookshelf of another profile, by starting over with it.
+	 * The bookshelf of this profile is saved as the activity is destroyed.
+	 * 
+	 * @param newProfile
+	 *            The profile to switch to.
+	 */
+	private void switchProfile(String newProfile) {
+		if (newProfile.equals(profile)) {
+			return;
+		}
+		getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit()
+				.putString(PROFILE, newProfile).commit();
+		finish();
+		startActivity(getIntent());
 	}
 
 	/*
@@ -224,6 +406,10 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 			}
 			return true;
 
+		case R.id.menu_profiles:
+			chooseProfile();
+			return true;
+
 		default:
 			Toast.makeText(this, "Unknown", Toast.LENGTH_SHORT).show();
 			return super.onOptionsItemSelected(item);
@@ -343,6 +529,9 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 
 	/* BookshelfUIListener */
 	public void setSelectedBook(int index) {
+		// stop the player, keeping the position of the book that is left
+		playerController.stop();
+
 		// set the selected book to the new index
 		bookshelfController.setSelectedBook(index);
 	}
@@ -381,180 +570,314 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	}
 
 	/**
-	 * Whenever the model component changes, an event is received here. The new
-	 * value property of the event contains a reference to a copy of the model.
+	 * Whenever the model component changes, an event is received here. The
+	 * event only describes what changed (see BookshelfEvent).
 	 * 
 	 * @param event
 	 *            Event object that contains information about the change.
 	 */
 	public void propertyChange(PropertyChangeEvent event) {
-		if (event.getNewValue() instanceof Bookshelf) {
-			// Get the model copy from the update
-			Bookshelf bs = (Bookshelf) event.getNewValue();
-
+		if (event instanceof BookshelfEvent) {
 			// Update the fragments
-			updateFragments(event.getPropertyName(), bs);
+			updateFragments((BookshelfEvent) event);
 		}
 	}
 
 	/**
-	 * Handles the updates of the fragments given a model to represent
-	 * graphically.
+	 * Handles the updates of the fragments given a change in the model.
+	 * <p>
+	 * Only the kinds of events in EVENTS are received. Elapsed time changes
+	 * are not among them, since the playback position is drawn by polling the
+	 * player instead. Every event received takes a new snapshot of the model,
+	 * which is kept until the next event.
+	 * <p>
+	 * The player is controlled right away, but the fragments are not touched
+	 * here. The parts of them that need redrawing are marked, and all changes
+	 * made before the next frame are drawn together (see
+	 * {@link #drawFrame()}).
 	 * 
-	 * @param eventName
-	 *            The property name of the fired event.
-	 * @param bs
-	 *            Model copy.
-	 * @precondition The bookshelf instance must not be null.
+	 * @param event
+	 *            The fired event.
 	 */
-	private void updateFragments(String eventName, Bookshelf bs) {
+	private void updateFragments(BookshelfEvent event) {
+		// Take a snapshot of the model to represent graphically
+		Bookshelf bs = event.getBookshelf().getSnapshot();
+		shelf = bs;
+
 		/*
-		 * Check which event was fired, and do relevant updates in the
+		 * Check which event was fired, and mark the relevant parts of the
 		 * fragments.
 		 */
-		if (eventName.equals(Constants.Event.BOOK_LIST_CHANGED)) {
+		switch (event.getType()) {
+		case BOOK_LIST_CHANGED:
 			// update the bookshelf GUI
-			bookshelfFragment.bookshelfUpdated(bs);
-		} else if (eventName.equals(Constants.Event.BOOK_SELECTED)) {
-			if (bs.getSelectedBookIndex() != Constants.Value.NO_BOOK_SELECTED) {
-				Book b = bs.getSelectedBook();
-
-				// reset the player controls to standard values
-				playerFragment.resetComponents();
-
-				// update the player GUI components
-				updatePlayerGUI(b);
+			scheduleFrame(BOOKSHELF_LIST, NO_STATUS);
+			break;
+		case BOOK_SELECTED:
+			bookSelected(bs);
+			break;
+		case TRACK_LIST_CHANGED:
+			// update the bookshelf GUI, book duration and number of tracks
+			scheduleFrame(BOOKSHELF_LIST | BOOK_DURATION | TRACK_COUNTER,
+					NO_STATUS);
+			break;
+		case TRACK_INDEX_CHANGED:
+			trackIndexChanged(bs);
+			break;
+		case BOOK_TITLE_CHANGED:
+			// update the book title label
+			scheduleFrame(BOOK_TITLE, NO_STATUS);
+			break;
+		case BOOKSHELF_UPDATED:
+			scheduleFrame(BOOKSHELF_LIST, NO_STATUS);
+			break;
+		default:
+			/*
+			 * Eventually tag updates would have been handled here as well,
+			 * calling the private method updateTags. Tags are, however, not
+			 * implemented in the GUI so they are not listened to, either.
+			 */
+			break;
+		}
+	}
 
-				// make sure the player GUI knows it is playing
-				playerFragment.setPlaybackStatus(PlaybackStatus.PLAYING);
+	/**
+	 * Starts playing the selected book of the given snapshot, at its selected
+	 * track or at the beginning.
+	 * 
+	 * @param bs
+	 *            Snapshot taken after the book was selected.
+	 */
+	private void bookSelected(Bookshelf bs) {
+		if (bs.getSelectedBookIndex() != Constants.Value.NO_BOOK_SELECTED) {
+			Book b = bs.getSelectedBook();
 
-				// show the player UI
-				pager.setCurrentItem(PLAYER);
+			/*
+			 * reset the player controls to standard values, update the player
+			 * GUI components, make sure the player GUI knows it is playing and
+			 * show the player UI
+			 */
+			scheduleFrame(PLAYER_RESET | PLAYER_LABELS | PLAYER_PAGE,
+					PlaybackStatus.PLAYING);
+
+			// if a track is selected, start it
+			if (bs.getSelectedTrackIndex() != Constants.Value.NO_TRACK_SELECTED) {
+				// start at the saved time
+				playerController.setStartPosition(b
+						.getSelectedTrackElapsedTime());
+
+				// select the stored track to start playing in
+				bookshelfController.setSelectedTrack(bs.getSelectedBookIndex(),
+						bs.getSelectedTrackIndex());
+			} else {
+				// if there is no track selected, start from the beginning.
 
-				// if a track is selected, start it
-				if (bs.getSelectedTrackIndex() != Constants.Value.NO_TRACK_SELECTED) {
-					// start at the saved time
-					playerController.setStartPosition(b
-							.getSelectedTrackElapsedTime());
+				playerController.setStartPosition(0);
+				bookshelfController.setSelectedTrack(bs.getSelectedBookIndex(),
+						0);
 
-					// select the stored track to start playing in
-					bookshelfController.setSelectedTrack(
-							bs.getSelectedBookIndex(),
-							bs.getSelectedTrackIndex());
-				} else {
-					// if there is no track selected, start from the beginning.
+			}
+		}
+	}
 
-					playerController.setStartPosition(0);
-					bookshelfController.setSelectedTrack(
-							bs.getSelectedBookIndex(), 0);
+	/**
+	 * Starts or stops the player for the selected track of the given
+	 * snapshot.
+	 * 
+	 * @param bs
+	 *            Snapshot taken after the track was selected.
+	 */
+	private void trackIndexChanged(Bookshelf bs) {
+		if (bs.getSelectedTrackIndex() == Constants.Value.NO_TRACK_SELECTED) {
+			/*
+			 * Do not play audio.
+			 */
+			// stop the audio player
+			playerController.stop();
+
+			// reset the controls to 'stopped'
+			scheduleFrame(PLAYER_RESET | PLAYER_PAGE | TRACK_TITLE
+					| TRACK_DURATION | TRACK_COUNTER, NO_STATUS);
+		} else {
+			/*
+			 * Play audio.
+			 */
+
+			// restart the player
+			playerController.start();
+
+			// set the status
+			scheduleFrame(PLAYER_PAGE | TRACK_TITLE | TRACK_DURATION
+					| TRACK_COUNTER, PlaybackStatus.PLAYING);
+		}
+	}
 
-				}
+	/**
+	 * Marks parts of the fragments to be redrawn at the next frame, and makes
+	 * sure that a frame is coming. May be called from any thread.
+	 * <p>
+	 * A reset of the player is always drawn before the status, so a status
+	 * given after a reset is kept, and a reset given after a status clears
+	 * it.
+	 * 
+	 * @param parts
+	 *            The parts to redraw.
+	 * @param status
+	 *            The playback status to show, or NO_STATUS to leave it.
+	 */
+	private void scheduleFrame(int parts, int status) {
+		synchronized (frameLock) {
+			pendingParts |= parts;
+			if (status != NO_STATUS) {
+				pendingStatus = status;
+			} else if ((parts & PLAYER_RESET) != 0) {
+				pendingStatus = NO_STATUS;
 			}
-		} else if (eventName.equals(Constants.Event.ELAPSED_TIME_CHANGED)) {
-			Book b = bs.getSelectedBook();
 
-			// Bookshelf
-			updateSelectedBookElapsedTime(b);
+			if (!framePosted) {
+				framePosted = true;
+				handler.postDelayed(frame, FRAME_TIME);
+			}
+		}
+	}
 
-			// Player
-			// recalculate the track seekbar
-			updateTrackSeekbar(b);
-			// recalculate the book seekbar
-			updateBookSeekbar(b);
-			// update time labels
-			updateElapsedTimeLabels(b);
+	/**
+	 * Draws all the changes marked since the last frame, each part once, from
+	 * the latest snapshot. Runs on the GUI thread.
+	 */
+	private void drawFrame() {
+		int parts;
+		int status;
+		synchronized (frameLock) {
+			parts = pendingParts;
+			status = pendingStatus;
+			pendingParts = 0;
+			pendingStatus = NO_STATUS;
+			framePosted = false;
+		}
 
-		} else if (eventName.equals(Constants.Event.TRACK_LIST_CHANGED)) {
-			Book b = bs.getSelectedBook();
+		Bookshelf bs = shelf;
+		if (bs == null) {
+			return;
+		}
 
-			// Update the bookshelf GUI.
+		// Bookshelf
+		if ((parts & BOOKSHELF_LIST) != 0) {
 			bookshelfFragment.bookshelfUpdated(bs);
+		}
 
-			// Player
-			// update book duration label
-			updateBookDurationLabel(b);
-
-			// show the correct number of tracks
-			updateTrackCounterLabel(b);
+		// Player
+		if (playerFragment.getActivity() != null) {
+			drawPlayer(bs, parts, status);
+		}
 
-			// Update book duration label
-			updateBookDurationLabel(b);
-		} else if (eventName.equals(Constants.Event.TRACK_INDEX_CHANGED)) {
-			pager.setCurrentItem(PLAYER);
-			if (bs.getSelectedTrackIndex() == Constants.Value.NO_TRACK_SELECTED) {
-				/*
-				 * Do not play audio.
-				 */
-				// reset the controls to 'stopped'
-				playerFragment.resetComponents();
-
-				// stop the audio player
-				playerController.stop();
-			} else {
-				/*
-				 * Play audio.
-				 */
+		// the position labels may have been reset, so draw them again
+		drawnPosition = NOT_DRAWN;
+		drawPlaybackPosition();
+	}
 
-				// restart the player
-				playerController.start();
+	/**
+	 * Draws the marked parts of the player fragment.
+	 * 
+	 * @param bs
+	 *            The latest snapshot.
+	 * @param parts
+	 *            The parts to redraw.
+	 * @param status
+	 *            The playback status to show, or NO_STATUS to leave it.
+	 */
+	private void drawPlayer(Bookshelf bs, int parts, int status) {
+		if ((parts & PLAYER_RESET) != 0) {
+			playerFragment.resetComponents();
+		}
 
-				// set the status
-				playerFragment.setPlaybackStatus(PlaybackStatus.PLAYING);
-			}
+		if (bs.getSelectedBookIndex() != NO_BOOK_SELECTED) {
 			Book b = bs.getSelectedBook();
+			if ((parts & BOOK_TITLE) != 0) {
+				updateBookTitleLabel(b);
+			}
+			if ((parts & BOOK_DURATION) != 0) {
+				updateBookDurationLabel(b);
+			}
+			if ((parts & TRACK_TITLE) != 0) {
+				updateTrackTitleLabel(b);
+			}
+			if ((parts & TRACK_DURATION) != 0) {
+				updateTrackDurationLabel(b);
+			}
+			if ((parts & TRACK_COUNTER) != 0) {
+				updateTrackCounterLabel(b);
+			}
+		}
 
-			// Player
-			// update track title label
-			updateTrackTitleLabel(b);
+		if (status != NO_STATUS) {
+			playerFragment.setPlaybackStatus(status);
+		}
 
-			// update track book duration label
-			updateTrackDurationLabel(b);
+		if ((parts & PLAYER_PAGE) != 0) {
+			pager.setCurrentItem(PLAYER);
+		}
+	}
 
-			// show the correct number of tracks, illegal track index or not
-			updateTrackCounterLabel(b);
-		} else if (eventName.equals(Constants.Event.BOOK_TITLE_CHANGED)) {
-			Book b = bs.getSelectedBook();
-			// Bookshelf
+	/**
+	 * Draws the playback position of the player if it has changed since it was
+	 * last drawn. Must be called on the GUI thread.
+	 * <p>
+	 * Reading the position is lock-free and allocates nothing, so this is
+	 * cheap to call several times a second.
+	 */
+	private void drawPlaybackPosition() {
+		long pos = playerController.getPlaybackPosition().get();
+		if (pos == drawnPosition) {
+			return;
+		}
 
-			// Player
-			// update the book title label
-			updateBookTitleLabel(b);
-		} else if (eventName.equals(Constants.Event.BOOKSHELF_UPDATED)) {
-			bookshelfFragment.bookshelfUpdated(bs);
+		// only draw positions in the track shown by the snapshot, which
+		// has none when the bookshelf is empty
+		Bookshelf bs = shelf;
+		if (bs == null || !PlaybackPosition.isInSelectedTrack(pos, bs)) {
+			return;
 		}
-		/*
-		 * Eventually tag updates would have been handled here as well, calling
-		 * the private method updateTags. Tags are, however, not implemented in
-		 * the GUI so they will not be written here, either.
-		 */
+
+		drawnPosition = pos;
+		updateElapsedTime(PlaybackPosition.getElapsedTime(pos));
 	}
 
 	/**
-	 * Updates the book title/duration, track title/duration and track counter
-	 * (i.e. no changes to seek bars).
+	 * Updates the elapsed times of the selected book in the GUI, given the new
+	 * elapsed time of its selected track. Must be called on the GUI thread.
 	 * <p>
-	 * Does nothing if the given book is null.
+	 * The book elapsed time is calculated from the last snapshot, so no new
+	 * snapshot is needed.
 	 * 
-	 * @param b
-	 *            Book given with the data to be represented by the Player UI.
+	 * @param trackElapsedTime
+	 *            The new elapsed time of the selected track.
 	 */
-	private void updatePlayerGUI(Book b) {
-		if (b != null) {
-			// show the title of the book
-			updateBookTitleLabel(b);
+	private void updateElapsedTime(int trackElapsedTime) {
+		Bookshelf bs = shelf;
+		if (bs == null || bs.getSelectedBookIndex() == NO_BOOK_SELECTED) {
+			return;
+		}
 
-			// display its duration
-			updateBookDurationLabel(b);
+		Book b = bs.getSelectedBook();
+		if (b.getSelectedTrackIndex() == NO_TRACK_SELECTED) {
+			return;
+		}
 
-			// show the title of the track
-			updateTrackTitleLabel(b);
+		// the snapshot holds the elapsed time of the other tracks
+		int bookElapsedTime = b.getBookElapsedTime()
+				- b.getSelectedTrackElapsedTime() + trackElapsedTime;
 
-			// and display its duration
-			updateTrackDurationLabel(b);
+		// Bookshelf
+		updateSelectedBookElapsedTime(bookElapsedTime);
 
-			// update the track counter
-			updateTrackCounterLabel(b);
-		}
+		// Player
+		// recalculate the track seekbar
+		updateTrackSeekbar(trackElapsedTime, b.getSelectedTrackDuration());
+		// recalculate the book seekbar
+		updateBookSeekbar(bookElapsedTime, b.getDuration());
+		// update time labels
+		updateElapsedTimeLabels(trackElapsedTime, bookElapsedTime);
 	}
 
 	/**
@@ -563,12 +886,8 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	 * @param selectedBook
 	 */
 	@SuppressWarnings("unused")
-	private void updateTags(final Book selectedBook) {
-		playerFragment.getActivity().runOnUiThread(new Runnable() {
-			public void run() {
-				playerFragment.updateTagTimes(selectedBook.getTagTimes());
-			}
-		});
+	private void updateTags(Book selectedBook) {
+		playerFragment.updateTagTimes(selectedBook.getTagTimes());
 	}
 
 	/**
@@ -576,15 +895,10 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	 * 
 	 * @param b
 	 */
-	private void updateTrackCounterLabel(final Book b) {
-		playerFragment.getActivity().runOnUiThread(new Runnable() {
-			public void run() {
-				int currentTrack = b.getSelectedTrackIndex();
-				int numberOfTracks = b.getNumberOfTracks();
-				playerFragment.updateTrackCounterLabel(currentTrack,
-						numberOfTracks);
-			}
-		});
+	private void updateTrackCounterLabel(Book b) {
+		int currentTrack = b.getSelectedTrackIndex();
+		int numberOfTracks = b.getNumberOfTracks();
+		playerFragment.updateTrackCounterLabel(currentTrack, numberOfTracks);
 	}
 
 	/*
@@ -597,12 +911,8 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	 * @param b
 	 *            Book that specifies the change
 	 */
-	private void updateBookTitleLabel(final Book b) {
-		playerFragment.getActivity().runOnUiThread(new Runnable() {
-			public void run() {
-				playerFragment.updateBookTitleLabel(b.getSelectedBookTitle());
-			}
-		});
+	private void updateBookTitleLabel(Book b) {
+		playerFragment.updateBookTitleLabel(b.getSelectedBookTitle());
 	}
 
 	/**
@@ -611,14 +921,10 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	 * @param b
 	 *            Book that specifies the change
 	 */
-	private void updateTrackTitleLabel(final Book b) {
-		playerFragment.getActivity().runOnUiThread(new Runnable() {
-			public void run() {
-				if (b.getSelectedTrackIndex() != -1) {
-					playerFragment.updateTrackTitleLabel(b.getTrackTitle());
-				}
-			}
-		});
+	private void updateTrackTitleLabel(Book b) {
+		if (b.getSelectedTrackIndex() != -1) {
+			playerFragment.updateTrackTitleLabel(b.getTrackTitle());
+		}
 	}
 
 	/*
@@ -631,12 +937,8 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	 * @param b
 	 *            Book that specifies the change
 	 */
-	private void updateBookDurationLabel(final Book b) {
-		playerFragment.getActivity().runOnUiThread(new Runnable() {
-			public void run() {
-				playerFragment.updateBookDurationLabel(b.getDuration());
-			}
-		});
+	private void updateBookDurationLabel(Book b) {
+		playerFragment.updateBookDurationLabel(b.getDuration());
 	}
 
 	/**
@@ -646,46 +948,36 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	 * @param b
 	 *            Book that specifies the change
 	 */
-	private void updateTrackDurationLabel(final Book b) {
-		playerFragment.getActivity().runOnUiThread(new Runnable() {
-			public void run() {
-				if (b.getSelectedTrackIndex() != -1) {
-					int trackDur = 0;
-					try {
-						trackDur = b.getSelectedTrackDuration();
-					} catch (IllegalArgumentException e) {
-						Log.e(TAG, "No track selected when trying to update "
-								+ "track duration label. "
-								+ "Setting duration to 0.");
-					}
-					playerFragment.updateTrackDurationLabel(trackDur);
-				}
+	private void updateTrackDurationLabel(Book b) {
+		if (b.getSelectedTrackIndex() != -1) {
+			int trackDur = 0;
+			try {
+				trackDur = b.getSelectedTrackDuration();
+			} catch (IllegalArgumentException e) {
+				Log.e(TAG, "No track selected when trying to update "
+						+ "track duration label. " + "Setting duration to 0.");
 			}
-		});
+			playerFragment.updateTrackDurationLabel(trackDur);
+		}
 	}
 
 	/*
 	 * Elapsed times
 	 */
 	/**
-	 * UI mutator method that updates the track duration label in the player
+	 * UI mutator method that updates the elapsed time labels in the player
 	 * fragment.
 	 * 
-	 * @param b
-	 *            Book that specifies the change
+	 * @param trackElapsedTime
+	 *            Elapsed time of the selected track.
+	 * @param bookElapsedTime
+	 *            Elapsed time of the selected book.
 	 */
-	private void updateElapsedTimeLabels(final Book b) {
+	private void updateElapsedTimeLabels(int trackElapsedTime,
+			int bookElapsedTime) {
 		if (playerFragment.getActivity() != null) {
-			playerFragment.getActivity().runOnUiThread(new Runnable() {
-				public void run() {
-					if (b.getSelectedTrackIndex() != -1) {
-						playerFragment.updateTrackElapsedTimeLabel(b
-								.getSelectedTrackElapsedTime());
-						playerFragment.updateBookElapsedTimeLabel(b
-								.getBookElapsedTime());
-					}
-				}
-			});
+			playerFragment.updateTrackElapsedTimeLabel(trackElapsedTime);
+			playerFragment.updateBookElapsedTimeLabel(bookElapsedTime);
 		}
 	}
 
@@ -693,55 +985,38 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	 * UI mutator method that updates the book position of the selected book in
 	 * bookshelf fragment
 	 * 
-	 * @param b
-	 *            The selected book.
-	 */
-	private void updateSelectedBookElapsedTime(final Book b) {
-		if (b.getSelectedTrackIndex() != -1
-				&& bookshelfFragment.getActivity() != null) {
-			bookshelfFragment.getActivity().runOnUiThread(new Runnable() {
-				public void run() {
-					// update
-					bookshelfFragment.selectedBookElapsedTimeUpdated(b
-							.getBookElapsedTime());
-				}
-			});
+	 * @param bookElapsedTime
+	 *            Elapsed time of the selected book.
+	 */
+	private void updateSelectedBookElapsedTime(int bookElapsedTime) {
+		if (bookshelfFragment.getActivity() != null) {
+			bookshelfFragment.selectedBookElapsedTimeUpdated(bookElapsedTime);
 		}
 	}
 
 	/**
 	 * UI mutator method that updates the track seekbar in the player fragment.
 	 * 
-	 * @param b
-	 *            Book that specifies the change
+	 * @param trackElapsedTime
+	 *            Elapsed time of the selected track.
+	 * @param trackDuration
+	 *            Duration of the selected track.
 	 */
-	private void updateTrackSeekbar(Book b) {
-		if (b.getSelectedTrackIndex() != -1) {
-			// elapsed time
-			int trackElapsedTime = b.getSelectedTrackElapsedTime();
-
-			// total duration
-			int trackDuration = b.getSelectedTrackDuration();
-
-			double progress = getProgress(trackElapsedTime, trackDuration);
+	private void updateTrackSeekbar(int trackElapsedTime, int trackDuration) {
+		double progress = getProgress(trackElapsedTime, trackDuration);
 
-			playerFragment.updateTrackSeekBar(progress);
-		}
+		playerFragment.updateTrackSeekBar(progress);
 	}
 
 	/**
 	 * UI mutator method that updates the book seekbar in the player fragment.
 	 * 
-	 * @param b
-	 *            Book that specifies the change
+	 * @param bookElapsedTime
+	 *            Elapsed time of the selected book.
+	 * @param bookDuration
+	 *            Duration of the selected book.
 	 */
-	private void updateBookSeekbar(Book b) {
-		// elapsed time
-		int bookElapsedTime = b.getBookElapsedTime();
-
-		// total duration
-		int bookDuration = b.getDuration();
-
+	private void updateBookSeekbar(int bookElapsedTime, int bookDuration) {
 		double progress = getProgress(bookElapsedTime, bookDuration);
 
 		playerFragment.updateBookSeekBar(progress);
@@ -765,6 +1040,8 @@ public class MainActivity extends FragmentActivity implements IPlayerEvents,
 	 * setSelectedTrack(int, int)
 	 */
 	public void setSelectedTrack(int bookIndex, int trackIndex) {
+		// keep the position of the track that is left
+		playerController.stop();
 
 		bookshelfController.setSelectedTrack(bookIndex, trackIndex);
 